@@ -6,6 +6,8 @@
 package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,56 +17,204 @@ import net.jcip.annotations.ThreadSafe;
 /**
  * A processing action to be applied to data-products.
  * 
- * Instances are thread-compatible but not thread-safe.
+ * Instances are thread-compatible but not thread-safe. A subclass whose
+ * instances are thread-safe says so by overriding {@link #isThreadSafe()}; only
+ * such an action may be executed concurrently (e.g., by a {@link Bulkhead}).
  * 
  * @author Steven R. Emmerson
  */
 @NotThreadSafe
 public abstract class Action {
     /**
-     * Replaces references to subsequences of capturing groups.
-     * 
+     * A string containing references to the subsequences of capturing groups
+     * of the form "$i", where "i" is the i-th capturing group. The string is
+     * parsed once into a list of literal strings and group references so that
+     * expansion doesn't involve regular expressions. A reference that's
+     * preceded by a backslash, that's followed by a word character, or whose
+     * group doesn't exist is kept literally.
+     * <p>
      * Instances are thread-safe.
      * 
      * @author Steven R. Emmerson
      */
     @ThreadSafe
-    static final class Replacer {
-        private final Matcher matcher;
+    static final class Template {
+        /**
+         * The original string.
+         */
+        private final String   string;
+        /**
+         * The literal strings. {@code literals[i]} precedes the i-th group
+         * reference. There's one more literal than references.
+         */
+        private final String[] literals;
+        /**
+         * The indexes of the referenced capturing groups.
+         */
+        private final int[]    groups;
+        /**
+         * The references as written (e.g., "$1"), for groups that don't exist.
+         */
+        private final String[] references;
 
         /**
-         * Constructs from the {@link Matcher} returned by
-         * {@link DataProduct#matcher(java.util.regex.Pattern)}.
+         * Parses a string.
          * 
-         * @param matcher
-         *            The {@link Matcher} returned by
-         *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
+         * @param string
+         *            The string to be parsed.
+         * @throws NullPointerException
+         *             if {@code string == null}.
          */
-        Replacer(final Matcher matcher) {
-            this.matcher = matcher;
+        Template(final String string) {
+            final List<String> literals = new ArrayList<String>();
+            final List<Integer> groups = new ArrayList<Integer>();
+            final List<String> references = new ArrayList<String>();
+            final StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < string.length()) {
+                final char c = string.charAt(i);
+                int end = i + 1;
+                if (c == '$' && (i == 0 || string.charAt(i - 1) != '\\')) {
+                    while (end < string.length()
+                            && Character.isDigit(string.charAt(end))) {
+                        end++;
+                    }
+                    if (end > i + 1 && end - i <= 10
+                            && (end == string.length() || !isWordChar(string
+                                    .charAt(end)))) {
+                        literals.add(literal.toString());
+                        literal.setLength(0);
+                        groups.add(Integer.valueOf(string.substring(i + 1,
+                                end)));
+                        references.add(string.substring(i, end));
+                        i = end;
+                        continue;
+                    }
+                }
+                literal.append(string, i, end);
+                i = end;
+            }
+            literals.add(literal.toString());
+            this.string = string;
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.groups = new int[groups.size()];
+            for (int j = 0; j < this.groups.length; j++) {
+                this.groups[j] = groups.get(j);
+            }
+            this.references = references.toArray(new String[references
+                    .size()]);
         }
 
         /**
-         * Replaces all references to matched subsequences.
+         * Indicates if this instance contains references to capturing groups.
          * 
-         * @param string
-         *            The string to have its references replaced.
-         * @return The given string with all references replaced.
+         * @return {@code true} if and only if this instance contains
+         *         references to capturing groups.
          */
-        String replace(final String string) {
-            String str = string;
+        boolean hasReferences() {
+            return groups.length > 0;
+        }
+
+        /**
+         * Indicates if a character is a word character according to
+         * {@link Pattern}.
+         * 
+         * @param c
+         *            The character.
+         * @return {@code true} if and only if the character is a word
+         *         character.
+         */
+        private static boolean isWordChar(final char c) {
+            return Character.isLetterOrDigit(c) || c == '_';
+        }
+
+        /**
+         * Returns the expansion of this instance.
+         * 
+         * @param matcher
+         *            The {@link Matcher} returned by
+         *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
+         * @return This instance with all group references replaced by the
+         *         matched subsequences.
+         */
+        String expand(final Matcher matcher) {
+            if (groups.length == 0) {
+                return string;
+            }
             final int groupCount = matcher.groupCount();
-            for (int groupIndex = 1; groupIndex <= groupCount; groupIndex++) {
-                final Pattern capturingGroupPat = Pattern
-                        .compile("([^\\\\]?)\\$" + groupIndex + "\\b");
-                final String replacement = "$1"
-                        + Matcher.quoteReplacement(matcher.group(groupIndex));
-                str = capturingGroupPat.matcher(str).replaceAll(replacement);
+            final StringBuilder buf = new StringBuilder(string.length() + 32);
+            for (int i = 0; i < groups.length; i++) {
+                buf.append(literals[i]);
+                final int group = groups[i];
+                if (group < 1 || group > groupCount) {
+                    buf.append(references[i]);
+                }
+                else {
+                    final String subsequence = matcher.group(group);
+                    if (subsequence != null) {
+                        buf.append(subsequence);
+                    }
+                }
             }
-            return str;
+            return buf.append(literals[groups.length]).toString();
+        }
+
+        @Override
+        public String toString() {
+            return string;
         }
     }
 
+    /**
+     * Is told the outcome of an action that completes asynchronously (see
+     * {@link Action#start(Matcher, DataProduct, Completion)}).
+     * <p>
+     * Implementations must be thread-safe.
+     */
+    static abstract class Completion {
+        /**
+         * Handles the successful completion of the action.
+         */
+        abstract void succeeded();
+
+        /**
+         * Handles the failure of the action.
+         * 
+         * @param cause
+         *            The cause of the failure.
+         */
+        abstract void failed(Exception cause);
+    }
+
+    /**
+     * Starts the action on a data-product. An action that completes in the
+     * current thread returns {@code true} and doesn't use the completion. An
+     * action that completes in another thread returns {@code false} and tells
+     * the completion of the outcome exactly once. This implementation calls
+     * {@link #execute(Matcher, DataProduct)} and returns {@code true}.
+     * 
+     * @param matcher
+     *            The {@link Matcher} returned from
+     *            {@link DataProduct#matcher(java.util.regex.Pattern)}. Not
+     *            used after this method returns.
+     * @param dataProduct
+     *            The data-product to be acted upon.
+     * @param completion
+     *            What to tell the outcome of an asynchronous action.
+     * @return {@code true} if and only if the action completed before this
+     *         method returned.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs or the action couldn't be started.
+     */
+    boolean start(final Matcher matcher, final DataProduct dataProduct,
+            final Completion completion) throws IOException,
+            InterruptedException {
+        execute(matcher, dataProduct);
+        return true;
+    }
+
     /**
      * Performs the action on a data-product.
      * 
@@ -82,16 +232,23 @@ public abstract class Action {
             throws IOException, InterruptedException;
 
     /**
-     * Returns a replacer of references to the subsequences of capturing groups.
+     * Indicates if {@link #execute(Matcher, DataProduct)} may be called by
+     * several threads at once. This implementation returns {@code false}.
      * 
-     * @param matcher
-     *            The result of
-     *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
-     * @return a replacer of references to the subsequences of capture groups of
-     *         the given {@link Matcher}.
+     * @return {@code true} if and only if this instance is thread-safe.
+     */
+    boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Releases any resources held by this instance. The instance may be used
+     * afterwards. This implementation does nothing.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
      */
-    protected static Replacer getReplacer(final Matcher matcher) {
-        return new Replacer(matcher);
+    void close() throws InterruptedException {
     }
 
     @Override
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Appends a data-product to a file. This is the native equivalent of decoding
+ * with "cat >> file" but without a process per data-product.
+ * <p>
+ * The most recently used destination files are kept open so that, e.g., all
+ * the data-products of an hour can be appended to an hourly file without
+ * opening and closing it for each one. A file is closed when it becomes the
+ * least recently used one and too many files are open, or when
+ * {@link #close()} is called. Data are written at the position at which the
+ * previous data-product ended, so this instance should be the only writer of
+ * its destination files while they're open.
+ * <p>
+ * Appending isn't idempotent. A {@link Processor} with a journal doesn't
+ * execute a completed action again on a recovered data-product, but a
+ * data-product that was appended just before a crash, whose completion wasn't
+ * yet recorded, is appended again.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class AppendAction extends Action {
+    /**
+     * An open destination file.
+     */
+    private static final class Destination {
+        /**
+         * The I/O channel to the file.
+         */
+        private final FileChannel channel;
+        /**
+         * The position at which to append the next data-product.
+         */
+        private long              position;
+
+        Destination(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            position = channel.size();
+        }
+    }
+
+    /**
+     * The default maximum number of open destination files.
+     */
+    static final int                     DEFAULT_MAX_OPEN = 32;
+    /**
+     * The logger.
+     */
+    private static final Logger          logger           = Util.getLogger();
+    /**
+     * Pathname of the destination file. May contain references to capturing
+     * groups.
+     */
+    private final Template               path;
+    /**
+     * The maximum number of open destination files.
+     */
+    private final int                    maxOpen;
+    /**
+     * The open destination files in least-recently-used order.
+     */
+    @GuardedBy("this")
+    private final Map<Path, Destination> destinations;
+
+    /**
+     * Constructs from the pathname of the destination file and the maximum
+     * number of open destination files.
+     * 
+     * @param path
+     *            Pathname of the destination file. May contain references to
+     *            the subsequences of capturing groups matched by
+     *            {@link DataProduct#matcher(Pattern)} of the form "$i", where
+     *            "i" is the i-th capturing group.
+     * @param maxOpen
+     *            The maximum number of destination files to keep open.
+     * @throws IllegalArgumentException
+     *             if {@code maxOpen <= 0}.
+     * @throws NullPointerException
+     *             if {@code path == null}.
+     */
+    AppendAction(final String path, final int maxOpen) {
+        if (path == null) {
+            throw new NullPointerException();
+        }
+        if (maxOpen <= 0) {
+            throw new IllegalArgumentException("Invalid maximum number of "
+                    + "open files: " + maxOpen);
+        }
+        this.path = new Template(path);
+        this.maxOpen = maxOpen;
+        destinations = new LinkedHashMap<Path, Destination>(16, 0.75f, true);
+    }
+
+    /**
+     * Constructs from the pathname of the destination file. At most
+     * {@value #DEFAULT_MAX_OPEN} destination files will be kept open.
+     * 
+     * @param path
+     *            Pathname of the destination file. May contain references to
+     *            the subsequences of capturing groups matched by
+     *            {@link DataProduct#matcher(Pattern)} of the form "$i", where
+     *            "i" is the i-th capturing group.
+     * @throws NullPointerException
+     *             if {@code path == null}.
+     */
+    AppendAction(final String path) {
+        this(path, DEFAULT_MAX_OPEN);
+    }
+
+    @Override
+    synchronized void execute(final Matcher matcher,
+            final DataProduct dataProduct) throws IOException {
+        assert dataProduct.matches(matcher.pattern());
+        final Path destPath = Paths.get(path.expand(matcher));
+        final Destination dest = getDestination(destPath);
+        final long start = dest.position;
+        final long size = dataProduct.size();
+        try {
+            final SeekableByteChannel inChannel = dataProduct
+                    .getReadonlyChannel();
+            try {
+                while (dest.position < start + size) {
+                    final long count = dest.channel.transferFrom(inChannel,
+                            dest.position, start + size - dest.position);
+                    if (count <= 0) {
+                        throw new IOException("Data-product " + dataProduct
+                                + " is shorter than " + size + " bytes");
+                    }
+                    dest.position += count;
+                }
+            }
+            finally {
+                inChannel.close();
+            }
+        }
+        catch (final IOException e) {
+            // Don't leave a partial data-product in the file
+            destinations.remove(destPath);
+            try {
+                dest.channel.truncate(start);
+                dest.channel.close();
+            }
+            catch (final IOException ignored) {
+            }
+            throw e;
+        }
+        logger.debug("Appended {} to {}", dataProduct, destPath);
+    }
+
+    /**
+     * Returns the open destination file with a given pathname, opening it and
+     * closing the least recently used one if necessary.
+     * 
+     * @param destPath
+     *            The pathname of the destination file.
+     * @return The open destination file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private Destination getDestination(final Path destPath) throws IOException {
+        Destination dest = destinations.get(destPath);
+        if (dest == null) {
+            if (destinations.size() >= maxOpen) {
+                final Map.Entry<Path, Destination> eldest = destinations
+                        .entrySet().iterator().next();
+                destinations.remove(eldest.getKey());
+                close(eldest.getKey(), eldest.getValue());
+            }
+            final Path parent = destPath.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            logger.info("Appending to {}", destPath);
+            dest = new Destination(FileChannel.open(destPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            destinations.put(destPath, dest);
+        }
+        return dest;
+    }
+
+    /**
+     * Closes a destination file. Logs any error.
+     * 
+     * @param destPath
+     *            The pathname of the destination file.
+     * @param dest
+     *            The destination file.
+     */
+    private static void close(final Path destPath, final Destination dest) {
+        try {
+            dest.channel.close();
+        }
+        catch (final IOException e) {
+            logger.error("Couldn't close " + destPath, e);
+        }
+    }
+
+    /**
+     * Returns the number of open destination files.
+     * 
+     * @return The number of open destination files.
+     */
+    synchronized int getOpenCount() {
+        return destinations.size();
+    }
+
+    @Override
+    boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Closes all open destination files. The instance may be used afterwards.
+     */
+    @Override
+    synchronized void close() {
+        final List<Map.Entry<Path, Destination>> entries = new ArrayList<Map.Entry<Path, Destination>>(
+                destinations.entrySet());
+        destinations.clear();
+        for (final Map.Entry<Path, Destination> entry : entries) {
+            close(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AppendAction [path=" + path + ", maxOpen=" + maxOpen + "]";
+    }
+}
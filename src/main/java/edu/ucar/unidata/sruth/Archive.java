@@ -19,9 +19,12 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
@@ -41,6 +44,10 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -48,6 +55,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
@@ -109,6 +117,81 @@ final class Archive {
          * Distributes tracker-specific files via the network.
          */
         private class Distributor extends Thread {
+            /**
+             * The identifier of the topology of the last distributed subsets.
+             */
+            private long subsetsId;
+            /**
+             * The versions of the last distributed subsets of the topology by
+             * data-filter.
+             */
+            private final Map<Filter, Long> subsetVersions = new HashMap<Filter, Long>();
+
+            /**
+             * Distributes the subset of the network topology of every
+             * data-filter in the topology whose subset changed since it was
+             * last distributed, except for the data-filters of the tracker's
+             * own files. The files of data-filters that are no longer
+             * in the topology are removed.
+             * 
+             * @param topology
+             *            The network topology.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            private void distribute(final Topology topology)
+                    throws IOException {
+                final long id;
+                final Set<Filter> filters;
+                synchronized (topology) {
+                    id = topology.getId();
+                    filters = topology.getFilters();
+                }
+                // The subscribers of the tracker's files get their part of
+                // the topology from the tracker
+                final Filter trackerFilter = getFilter();
+                for (final Iterator<Filter> iter = filters.iterator(); iter
+                        .hasNext();) {
+                    if (trackerFilter.includes(iter.next())) {
+                        iter.remove();
+                    }
+                }
+                if (id != subsetsId) {
+                    subsetVersions.clear();
+                    subsetsId = id;
+                }
+                for (final Iterator<Map.Entry<Filter, DistributedFile<Topology>>> iter = subsetFiles
+                        .entrySet().iterator(); iter.hasNext();) {
+                    final Map.Entry<Filter, DistributedFile<Topology>> entry = iter
+                            .next();
+                    if (!filters.contains(entry.getKey())) {
+                        iter.remove();
+                        subsetVersions.remove(entry.getKey());
+                        archive.remove(entry.getValue().getArchivePath());
+                    }
+                }
+                for (final Filter filter : filters) {
+                    final Long version = subsetVersions.get(filter);
+                    if (version != null) {
+                        final TopologyDelta delta = topology.getDelta(id,
+                                version);
+                        if (delta != null && delta.subset(filter).size() == 0) {
+                            continue;
+                        }
+                    }
+                    final Topology subset = topology.versionedSubset(filter);
+                    final DistributedFile<Topology> file = getSubsetFile(filter);
+                    if (file.set(subset)) {
+                        subsetVersions.put(filter, subset.getVersion());
+                    }
+                    else {
+                        logger.debug(
+                                "Topology-file not distributed because it's not sufficiently new: {}",
+                                file.getArchivePath());
+                    }
+                }
+            }
+
             @Override
             public void run() {
                 for (;;) {
@@ -121,11 +204,7 @@ final class Archive {
                     try {
                         final Topology topology = topologyLock.take();
                         try {
-                            if (!topologyFile.set(topology)) {
-                                logger.debug(
-                                        "Topology-file not distributed because it's not sufficiently new: {}",
-                                        topologyFile.getArchivePath());
-                            }
+                            distribute(topology);
                         }
                         catch (final IOException e) {
                             logger.error("Couldn't save network topology", e);
@@ -265,13 +344,21 @@ final class Archive {
          */
         private final Archive                            archive;
         /**
-         * The distributed topology file.
+         * The distributed topology files of data-filters by data-filter. Each
+         * contains a snapshot of the subset of the network topology that's
+         * relevant to its data-filter.
          */
-        private final DistributedFile<Topology>          topologyFile;
+        private final ConcurrentMap<Filter, DistributedFile<Topology>> subsetFiles = new ConcurrentHashMap<Filter, DistributedFile<Topology>>();
         /**
          * The distributed reporting address file.
          */
         private final DistributedFile<InetSocketAddress> reportingAddressFile;
+        /**
+         * The distributed reporting address file at its former location,
+         * directly in the tracker-specific directory. Only written, for the
+         * nodes that still read it there.
+         */
+        private final DistributedFile<InetSocketAddress> legacyReportingAddressFile;
         /**
          * The object-lock for distributing the topology. NB: This is a
          * single-element, discarding queue rather than a Hoare monitor.
@@ -316,56 +403,105 @@ final class Archive {
             trackerPath = archive.getAdminDir().resolve(
                     new ArchivePath(Paths.get(trackerAddress.getHostString()
                             + "-" + trackerAddress.getPort())));
-            final ArchivePath topologyArchivePath = trackerPath
-                    .resolve("topology");
-            topologyFile = new DistributedFile<Topology>(topologyArchivePath,
-                    Topology.class);
-            final ArchivePath reportingAddressArchivePath = trackerPath
-                    .resolve("reportingAddress");
             reportingAddressFile = new DistributedFile<InetSocketAddress>(
-                    reportingAddressArchivePath, InetSocketAddress.class);
+                    getReportingDir().resolve("reportingAddress"),
+                    InetSocketAddress.class);
+            legacyReportingAddressFile = new DistributedFile<InetSocketAddress>(
+                    trackerPath.resolve("reportingAddress"),
+                    InetSocketAddress.class);
+        }
+
+        /**
+         * Returns the subset of the tracker-specific network topology
+         * information that's relevant to a data-filter, obtained via the
+         * network. The actual object is returned -- not a copy. This method
+         * should only be called by a subscriber.
+         * 
+         * @param filter
+         *            The data-filter.
+         * @return the tracker-specific network topology information that's
+         *         relevant to the data-filter.
+         * @throws NoSuchFileException
+         *             if the topology file of the data-filter doesn't exist in
+         *             the archive (e.g., because no server has registered with
+         *             the data-filter yet).
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        Topology getTopology(final Filter filter) throws NoSuchFileException,
+                IOException {
+            return getSubsetFile(filter).get();
+        }
+
+        /**
+         * Returns the distributed topology file of a data-filter, creating it
+         * if necessary.
+         * 
+         * @param filter
+         *            The data-filter.
+         * @return The distributed topology file of the data-filter.
+         */
+        private DistributedFile<Topology> getSubsetFile(final Filter filter) {
+            DistributedFile<Topology> file = subsetFiles.get(filter);
+            if (file == null) {
+                file = new DistributedFile<Topology>(
+                        getSubsetArchivePath(filter), Topology.class);
+                final DistributedFile<Topology> prevFile = subsetFiles
+                        .putIfAbsent(filter, file);
+                if (prevFile != null) {
+                    file = prevFile;
+                }
+            }
+            return file;
         }
 
         /**
          * Returns the path in the archive of the distributed file that contains
-         * tracker-specific network topology information.
+         * the subset of the network topology that's relevant to a data-filter.
          * 
-         * @return the identifier of the distributed file that contains
-         *         tracker-specific network topology information.
+         * @param filter
+         *            The data-filter.
+         * @return The path in the archive of the topology file of the
+         *         data-filter.
          */
-        ArchivePath getTopologyArchivePath() {
-            return topologyFile.getArchivePath();
+        ArchivePath getSubsetArchivePath(final Filter filter) {
+            return getSubsetDir(filter).resolve("topology");
         }
 
         /**
-         * Returns the time of the last update of the tracker-specific network
-         * topology. {@link #getTopology()} might modify this time. This method
-         * should only be called by a subscriber.
+         * Returns the path in the archive of the directory of the distributed
+         * topology file of a data-filter. The name of the directory is the
+         * URL-encoding of the glob pattern of the data-filter. Each file has
+         * its own directory so that a subscriber can receive every version of
+         * the file (see {@link #addSubscription(Predicate)}).
          * 
-         * @return the time of the last update of the tracker-specific network
-         *         topology.
-         * @throws IOException
-         *             if an I/O error occurs.
+         * @param filter
+         *            The data-filter.
+         * @return The path in the archive of the directory of the topology
+         *         file of the data-filter.
          */
-        ArchiveTime getTopologyArchiveTime() throws IOException {
-            return topologyFile.getArchiveTime();
+        private ArchivePath getSubsetDir(final Filter filter) {
+            final String glob = filter.getGlob();
+            try {
+                return trackerPath.resolve("filters").resolve(
+                        URLEncoder.encode(glob.isEmpty()
+                                ? "*"
+                                : glob, "UTF-8").replace("*", "%2A"));
+            }
+            catch (final UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
         }
 
         /**
-         * Returns the tracker-specific network topology information obtained
-         * via the network. Might modify the value returned by
-         * {@link #getTopologyArchiveTime()}. The actual object is returned --
-         * not a copy. This method should only be called by a subscriber.
+         * Returns the path in the archive of the directory of the distributed
+         * reporting-address file.
          * 
-         * @return the tracker-specific network topology information.
-         * @throws NoSuchFileException
-         *             if the tracker-specific topology file doesn't exist in
-         *             the archive.
-         * @throws IOException
-         *             if an I/O error occurs.
+         * @return The path in the archive of the directory of the
+         *         reporting-address file.
          */
-        Topology getTopology() throws NoSuchFileException, IOException {
-            return topologyFile.get();
+        private ArchivePath getReportingDir() {
+            return trackerPath.resolve("reporting");
         }
 
         /**
@@ -385,11 +521,14 @@ final class Archive {
         }
 
         /**
-         * Distributes the network topology throughout the network by saving the
-         * network topology object in a file that will be subsequently
-         * distributed if sufficient time has elapsed since the distribution of
-         * the previous topology. This method should only be called by a
-         * publisher of data.
+         * Distributes the network topology throughout the network by saving
+         * the subset of the network topology of each of its data-filters in
+         * its own file, if it changed, which will be subsequently distributed
+         * if sufficient time has elapsed since the distribution of the
+         * previous file. The topology of the whole network isn't distributed
+         * because no subscriber receives it (see
+         * {@link #addSubscription(Predicate)}). This method should only be
+         * called by a publisher of data.
          * 
          * @param topology
          *            The network topology.
@@ -417,7 +556,9 @@ final class Archive {
 
         /**
          * Distributes the Internet socket address for reporting server
-         * unavailability.
+         * unavailability. The address is also distributed at its former
+         * location so that nodes that haven't been upgraded can still report
+         * unavailable servers.
          * 
          * @param reportingAddress
          *            The Internet socket address for reporting server
@@ -430,6 +571,7 @@ final class Archive {
         void distribute(final InetSocketAddress reportingAddress)
                 throws FileSystemException, IOException {
             reportingAddressFile.set(reportingAddress);
+            legacyReportingAddressFile.set(reportingAddress);
         }
 
         /**
@@ -443,6 +585,33 @@ final class Archive {
             return Filter.getInstance(trackerPath.toString());
         }
 
+        /**
+         * Adds to a predicate the distributed, tracker-specific files that a
+         * subscriber with the predicate needs: the reporting-address file and
+         * the topology file of each data-filter of the predicate. The files of
+         * other data-filters and the topology of the whole network aren't
+         * added, so what a subscriber receives doesn't grow with the network.
+         * <p>
+         * The directories of the files are added rather than the files
+         * because a data-filter that matches only one file is removed once
+         * the file is received (see {@link Predicate#removeIfPossible(FileInfo)}).
+         * 
+         * @param predicate
+         *            The predicate of the subscriber.
+         * @return The predicate that results from the additions. Might differ
+         *         from {@code predicate}.
+         */
+        Predicate addSubscription(Predicate predicate) {
+            final Set<Filter> filters = predicate.getFilters();
+            predicate = predicate.add(Filter.getInstance(getReportingDir()
+                    .toString()));
+            for (final Filter filter : filters) {
+                predicate = predicate.add(Filter.getInstance(getSubsetDir(
+                        filter).toString()));
+            }
+            return predicate;
+        }
+
         /*
          * (non-Javadoc)
          * 
@@ -543,15 +712,17 @@ final class Archive {
             }
             watchService = rootDir.getFileSystem().newWatchService();
             try {
-                registerDirectoryTree(rootDir);
+                for (final Path volume : volumes.getRootDirs()) {
+                    registerDirectoryTree(volume);
+                }
                 for (;;) {
                     final WatchKey key = watchService.take();
                     for (final WatchEvent<?> event : key.pollEvents()) {
                         final WatchEvent.Kind<?> kind = event.kind();
                         if (kind == StandardWatchEventKinds.OVERFLOW) {
                             logger.error(
-                                    "Couldn't keep-up watching file-tree rooted at \"{}\"",
-                                    rootDir);
+                                    "Couldn't keep-up watching file-trees rooted at {}",
+                                    volumes.getRootDirs());
                         }
                         else {
                             final Path name = (Path) event.context();
@@ -612,7 +783,7 @@ final class Archive {
                 @Override
                 public FileVisitResult preVisitDirectory(final Path dir,
                         final BasicFileAttributes attributes) {
-                    if (ArchiveFile.isHidden(rootDir, dir)) {
+                    if (isHidden(dir)) {
                         return FileVisitResult.SKIP_SUBTREE;
                     }
                     try {
@@ -649,7 +820,7 @@ final class Archive {
             try {
                 ArchiveTime.adjustTime(path);
                 final FileInfo fileInfo;
-                final ArchivePath archivePath = new ArchivePath(path, rootDir);
+                final ArchivePath archivePath = volumes.relativize(path);
                 final FileId fileId = new FileId(archivePath, new ArchiveTime(
                         attributes));
                 if (archivePath.startsWith(adminDir)) {
@@ -686,7 +857,7 @@ final class Archive {
              * Distributed administrative files must not be deleted at remote
              * sites.
              */
-            final ArchivePath archivePath = new ArchivePath(path, rootDir);
+            final ArchivePath archivePath = volumes.relativize(path);
             if (!archivePath.startsWith(adminDir)) {
                 final WatchKey k = keys.remove(path);
                 if (null != k) {
@@ -742,7 +913,7 @@ final class Archive {
                         public FileVisitResult preVisitDirectory(
                                 final Path dir,
                                 final BasicFileAttributes attributes) {
-                            if (ArchiveFile.isHidden(rootDir, dir)) {
+                            if (isHidden(dir)) {
                                 return FileVisitResult.SKIP_SUBTREE;
                             }
                             try {
@@ -763,7 +934,7 @@ final class Archive {
          */
         @Override
         public String toString() {
-            return "ArchiveWatcher [rootDir=" + rootDir + "]";
+            return "ArchiveWatcher [volumes=" + volumes + "]";
         }
     }
 
@@ -1198,7 +1369,8 @@ final class Archive {
      * @author Steven R. Emmerson
      */
     @ThreadSafe
-    private static final class SegmentedArchiveFile extends ArchiveFile {
+    private static final class SegmentedArchiveFile extends ArchiveFile
+            implements ArchiveStore.SegmentedFile {
         /**
          * The set of existing pieces.
          */
@@ -1551,7 +1723,7 @@ final class Archive {
          * 
          * @return the time associated with this instance.
          */
-        ArchiveTime getTime() {
+        public ArchiveTime getTime() {
             lock();
             try {
                 return fileInfo.getTime();
@@ -1566,7 +1738,7 @@ final class Archive {
          * 
          * @return the file's metadata.
          */
-        FileInfo getFileInfo() {
+        public FileInfo getFileInfo() {
             lock();
             try {
                 return fileInfo;
@@ -1577,19 +1749,20 @@ final class Archive {
         }
 
         /**
-         * Indicates if the given piece of data will make this file complete.
+         * Indicates if the given pieces of data will make this file complete.
          * 
-         * @param pieceSpec
-         *            Information on the piece of data
+         * @param pieces
+         *            The pieces of data
          * @return {@code true} if and only if the file is currently incomplete
-         *         and the given piece of data will make it complete
+         *         and the given pieces of data will make it complete
          */
-        boolean willMakeComplete(final PieceSpec pieceSpec) {
+        public boolean willMakeComplete(final List<Piece> pieces) {
             lock();
             try {
-                final int index = pieceSpec.getIndex();
-                return !indexes.isSet(index)
-                        && (indexes.getSetCount() == indexes.getSize() - 1);
+                final int count = ArchiveStore.newPieces(indexes, pieces)
+                        .size();
+                return count > 0
+                        && indexes.getSetCount() + count == indexes.getSize();
             }
             finally {
                 unlock();
@@ -1597,13 +1770,14 @@ final class Archive {
         }
 
         /**
-         * Writes a piece of data. If the data-piece completes the file, then
+         * Writes pieces of data. Runs of adjacent pieces are written by a
+         * single gathering write. If the data-pieces complete the file, then
          * the file is moved from the hidden file-tree to the visible file-tree
          * in a manner that is robust in the face of removal of necessary
          * directories by another thread.
          * 
-         * @param piece
-         *            The piece of data.
+         * @param pieces
+         *            The pieces of data.
          * @return {@code true} if and only if the file is complete, in which
          *         case the file is now visible.
          * @throws FileSystemException
@@ -1613,17 +1787,39 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs.
          * @throws NullPointerException
-         *             if {@code piece == null}.
+         *             if {@code pieces == null}.
          */
-        boolean putPiece(final Piece piece) throws FileSystemException,
-                IOException {
+        public boolean putPieces(final List<Piece> pieces)
+                throws FileSystemException, IOException {
             lock();
             try {
-                final int index = piece.getIndex();
-                if (!indexes.isSet(index)) {
-                    randomFile.seek(piece.getOffset());
-                    randomFile.write(piece.getData());
-                    indexes = indexes.setBit(index);
+                final List<Piece> newPieces = ArchiveStore.newPieces(indexes,
+                        pieces);
+                if (!newPieces.isEmpty()) {
+                    final FileChannel channel = randomFile.getChannel();
+                    for (int start = 0, end; start < newPieces.size(); start = end) {
+                        end = start + 1;
+                        while (end < newPieces.size()
+                                && newPieces.get(end).getIndex() == newPieces
+                                        .get(end - 1).getIndex() + 1) {
+                            end++;
+                        }
+                        final ByteBuffer[] buffers = new ByteBuffer[end - start];
+                        long remaining = 0;
+                        for (int i = start; i < end; i++) {
+                            final ByteBuffer buffer = ByteBuffer
+                                    .wrap(newPieces.get(i).getData());
+                            buffers[i - start] = buffer;
+                            remaining += buffer.remaining();
+                        }
+                        channel.position(newPieces.get(start).getOffset());
+                        while (remaining > 0) {
+                            remaining -= channel.write(buffers);
+                        }
+                    }
+                    for (final Piece piece : newPieces) {
+                        indexes = indexes.setBit(piece.getIndex());
+                    }
                     if (indexes.areAllSet()) {
                         close();
                         assert isVisible;
@@ -1647,7 +1843,7 @@ final class Archive {
          * @throws IllegalArgumentException
          *             if the index is outside the valid range of indexes
          */
-        boolean hasPiece(final int index) {
+        public boolean hasPiece(final int index) {
             lock();
             try {
                 return indexes.isSet(index);
@@ -1667,8 +1863,8 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs.
          */
-        Piece getPiece(final PieceSpec pieceSpec) throws FileSystemException,
-                IOException {
+        public Piece getPiece(final PieceSpec pieceSpec)
+                throws FileSystemException, IOException {
             lock();
             try {
                 assert indexes.isSet(pieceSpec.getIndex());
@@ -1683,6 +1879,31 @@ final class Archive {
             }
         }
 
+        /**
+         * Returns a read-only mapping of the visible file. The data is read
+         * from the page cache rather than copied.
+         * 
+         * @throws IllegalStateException
+         *             if the file isn't visible.
+         * @throws FileSystemException
+         *             if too many files are open.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        public ByteBuffer getContents() throws FileSystemException,
+                IOException {
+            lock();
+            try {
+                if (!isVisible) {
+                    throw new IllegalStateException("Not visible: " + path);
+                }
+                return DataProduct.map(path);
+            }
+            finally {
+                unlock();
+            }
+        }
+
         /**
          * Closes this instance if necessary. If the file is complete, then it
          * is made visible. Idempotent.
@@ -1691,7 +1912,7 @@ final class Archive {
          *             if an I/O error occurs.
          */
         @Override
-        protected void close() throws IOException {
+        public void close() throws IOException {
             lock();
             try {
                 if (randomFile != null) {
@@ -1767,14 +1988,14 @@ final class Archive {
         /**
          * Locks this instance.
          */
-        void lock() {
+        public void lock() {
             lock.lock();
         }
 
         /**
          * Unlocks this instance.
          */
-        void unlock() {
+        public void unlock() {
             lock.unlock();
         }
 
@@ -1785,7 +2006,7 @@ final class Archive {
          *             if an I/O error occurs.
          */
         @Override
-        protected void deleteIfExists() throws IOException {
+        public void deleteIfExists() throws IOException {
             lock();
             try {
                 try {
@@ -1799,33 +2020,52 @@ final class Archive {
                 unlock();
             }
         }
+    }
 
-        /**
-         * Ensures that an archive-file doesn't exist.
-         * 
-         * @param rootDir
-         *            Absolute pathname of the root-directory of the archive
-         * @param archivePath
-         *            Archive-pathname of the file
-         * @throws IllegalArgumentException
-         *             if {@code !rootDir.isAbsolute()}
-         * @throws FileSystemException
-         *             if too many files are open
-         * @throws IOException
-         *             if an I/O error occurs
-         * @throws NullPointerException
-         *             if {@code archivePath == null}.
-         */
-        static void deleteIfExists(final Path rootDir,
-                final ArchivePath archivePath) throws IOException {
-            final Path path = archivePath.getAbsolutePath(rootDir);
-            try {
-                Files.deleteIfExists(path);
-            }
-            catch (final NoSuchFileException e) {
-                logger.trace("File doesn't exist: {}", archivePath);
+    /**
+     * The storage engine that keeps each data-product as a file in the
+     * file-tree of the archive. Incomplete files are hidden; complete files are
+     * visible.
+     * <p>
+     * Instances are thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class FileTreeStore extends ArchiveStore {
+        @Override
+        SegmentedFile open(final FileInfo fileInfo, final boolean readonly)
+                throws FileSystemException, IOException {
+            return SegmentedArchiveFile.newInstance(
+                    volumes.getRootDir(fileInfo.getPath()), fileInfo, readonly);
+        }
+
+        @Override
+        ArchiveTime getTime(final ArchivePath archivePath)
+                throws NoSuchFileException, FileSystemException, IOException {
+            return BulkArchiveFile.getTime(volumes.getRootDir(archivePath),
+                    archivePath);
+        }
+
+        @Override
+        void delete(final ArchivePath archivePath) throws FileSystemException,
+                IOException {
+            BulkArchiveFile.delete(volumes.getRootDir(archivePath),
+                    archivePath);
+        }
+
+        @Override
+        void walk(final FilePieceSpecSetConsumer consumer, final Filter filter)
+                throws IOException, InterruptedException {
+            for (final Path volume : volumes.getRootDirs()) {
+                walkDirectory(volume, consumer, filter);
             }
         }
+
+        @Override
+        public String toString() {
+            return "FileTreeStore [volumes=" + volumes + "]";
+        }
     }
 
     /**
@@ -1838,7 +2078,7 @@ final class Archive {
     @ThreadSafe
     final class ArchiveFileManager {
         private final class ArchiveFileMap extends
-                LinkedHashMap<ArchivePath, SegmentedArchiveFile> {
+                LinkedHashMap<ArchivePath, ArchiveStore.SegmentedFile> {
             /**
              * The serial version identifier.
              */
@@ -1856,9 +2096,10 @@ final class Archive {
 
             @Override
             protected boolean removeEldestEntry(
-                    final Map.Entry<ArchivePath, SegmentedArchiveFile> entry) {
+                    final Map.Entry<ArchivePath, ArchiveStore.SegmentedFile> entry) {
                 if (size() > maxNumOpenFiles) {
-                    final ArchiveFile archiveFile = entry.getValue();
+                    final ArchiveStore.SegmentedFile archiveFile = entry
+                            .getValue();
                     try {
                         archiveFile.close();
                     }
@@ -1877,7 +2118,7 @@ final class Archive {
         }
 
         /**
-         * The set of open, segmented archive-files.
+         * The set of open, segmented archive-files of all storage engines.
          */
         @GuardedBy("itself")
         private final ArchiveFileMap openSegmentedFiles;
@@ -1916,8 +2157,8 @@ final class Archive {
          */
         BulkArchiveFile getForReading(final ArchivePath archivePath)
                 throws FileNotFoundException, FileSystemException, IOException {
-            final BulkArchiveFile file = new BulkArchiveFile(rootDir,
-                    archivePath, true);
+            final BulkArchiveFile file = new BulkArchiveFile(
+                    volumes.getRootDir(archivePath), archivePath, true);
             return file;
         }
 
@@ -1936,8 +2177,8 @@ final class Archive {
          */
         BulkArchiveFile getForWriting(final ArchivePath archivePath)
                 throws FileNotFoundException, FileSystemException, IOException {
-            final BulkArchiveFile file = new BulkArchiveFile(rootDir,
-                    archivePath, false);
+            final BulkArchiveFile file = new BulkArchiveFile(
+                    volumes.getRootDir(archivePath), archivePath, false);
             return file;
         }
 
@@ -1962,10 +2203,10 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs
          */
-        public SegmentedArchiveFile get(final FileInfo fileInfo,
+        public ArchiveStore.SegmentedFile get(final FileInfo fileInfo,
                 final boolean readonly) throws FileInfoMismatchException,
                 FileSystemException, IOException {
-            SegmentedArchiveFile file;
+            ArchiveStore.SegmentedFile file;
             final ArchivePath archivePath = fileInfo.getPath();
             synchronized (openSegmentedFiles) {
                 for (;;) {
@@ -1975,8 +2216,8 @@ final class Archive {
                         if (file == null) {
                             return null;
                         }
-                        final ArchiveFile prevFile = openSegmentedFiles.put(
-                                archivePath, file);
+                        final ArchiveStore.SegmentedFile prevFile = openSegmentedFiles
+                                .put(archivePath, file);
                         assert prevFile == null;
                     }
                     /*
@@ -2039,13 +2280,14 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs
          */
-        private SegmentedArchiveFile getArchiveFile(final FileInfo fileInfo,
-                final boolean readonly) throws FileSystemException, IOException {
+        private ArchiveStore.SegmentedFile getArchiveFile(
+                final FileInfo fileInfo, final boolean readonly)
+                throws FileSystemException, IOException {
+            final ArchiveStore store = getStore(fileInfo.getPath());
             synchronized (openSegmentedFiles) {
                 for (;;) {
                     try {
-                        return SegmentedArchiveFile.newInstance(rootDir,
-                                fileInfo, readonly);
+                        return store.open(fileInfo, readonly);
                     }
                     catch (final FileSystemException e) {
                         // Too many open files
@@ -2067,10 +2309,10 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs.
          */
-        private SegmentedArchiveFile removeLru() throws IOException {
+        private ArchiveStore.SegmentedFile removeLru() throws IOException {
             synchronized (openSegmentedFiles) {
-                final SegmentedArchiveFile file;
-                final Iterator<Map.Entry<ArchivePath, SegmentedArchiveFile>> iter = openSegmentedFiles
+                final ArchiveStore.SegmentedFile file;
+                final Iterator<Map.Entry<ArchivePath, ArchiveStore.SegmentedFile>> iter = openSegmentedFiles
                         .entrySet().iterator();
                 if (!iter.hasNext()) {
                     return null;
@@ -2098,14 +2340,14 @@ final class Archive {
         ArchiveTime getTime(final ArchivePath archivePath)
                 throws FileSystemException, IOException {
             synchronized (openSegmentedFiles) {
-                final SegmentedArchiveFile file = openSegmentedFiles
+                final ArchiveStore.SegmentedFile file = openSegmentedFiles
                         .get(archivePath);
                 if (file != null) {
                     return file.getTime();
                 }
                 for (;;) {
                     try {
-                        return BulkArchiveFile.getTime(rootDir, archivePath);
+                        return getStore(archivePath).getTime(archivePath);
                     }
                     catch (final FileSystemException e) {
                         if (removeLru() == null) {
@@ -2117,7 +2359,8 @@ final class Archive {
         }
 
         /**
-         * Deletes a bulk archive-file.
+         * Deletes an archive-file, complete or not. Closes it first if it's
+         * open.
          * 
          * @param archivePath
          *            Pathname of the archive-file.
@@ -2125,9 +2368,17 @@ final class Archive {
          *             if an I/O error occurs
          */
         void delete(final ArchivePath archivePath) throws IOException {
+            synchronized (openSegmentedFiles) {
+                final ArchiveStore.SegmentedFile file = openSegmentedFiles
+                        .remove(archivePath);
+                if (file != null) {
+                    file.close();
+                }
+            }
+            final ArchiveStore store = getStore(archivePath);
             for (;;) {
                 try {
-                    BulkArchiveFile.delete(rootDir, archivePath);
+                    store.delete(archivePath);
                     break;
                 }
                 catch (final FileSystemException e) {
@@ -2154,17 +2405,17 @@ final class Archive {
         void deleteIfExists(final ArchivePath archivePath)
                 throws FileSystemException, IOException {
             synchronized (openSegmentedFiles) {
-                final SegmentedArchiveFile file = openSegmentedFiles
+                final ArchiveStore.SegmentedFile file = openSegmentedFiles
                         .get(archivePath);
                 if (file != null) {
                     file.deleteIfExists();
                     openSegmentedFiles.remove(archivePath);
                 }
                 else {
+                    final ArchiveStore store = getStore(archivePath);
                     for (;;) {
                         try {
-                            SegmentedArchiveFile.deleteIfExists(rootDir,
-                                    archivePath);
+                            store.delete(archivePath);
                             break;
                         }
                         catch (final FileSystemException e) {
@@ -2184,7 +2435,7 @@ final class Archive {
          */
         void closeAll() throws IOException {
             synchronized (openSegmentedFiles) {
-                for (final Iterator<Map.Entry<ArchivePath, SegmentedArchiveFile>> iter = openSegmentedFiles
+                for (final Iterator<Map.Entry<ArchivePath, ArchiveStore.SegmentedFile>> iter = openSegmentedFiles
                         .entrySet().iterator(); iter.hasNext();) {
                     iter.next().getValue().close();
                     iter.remove();
@@ -2201,6 +2452,11 @@ final class Archive {
      * The name of the hidden directory that will be ignored for the most part.
      */
     private static final Path                    HIDDEN_DIR                     = Paths.get(".sruth");
+    /**
+     * The pathname of the directory, relative to the hidden directory, of
+     * files that persist across sessions.
+     */
+    private static final Path                    STATE_DIR                      = Paths.get("state");
     /**
      * The canonical size, in bytes, of a piece of data (131072).
      */
@@ -2212,9 +2468,62 @@ final class Archive {
     private static final int                     ACTIVE_FILE_CACHE_SIZE_DEFAULT = 512;
     private static final String                  ACTIVE_FILE_CACHE_SIZE_KEY     = "active file cache size";
     /**
-     * The pathname of the root of the file-tree.
+     * The total size, in bytes, of the complete files in the archive above
+     * which least-recently-used files are evicted. A non-positive value means
+     * that files are only removed when their time-to-live expires.
+     */
+    private static final long                    HIGH_WATER_MARK;
+    private static final long                    HIGH_WATER_MARK_DEFAULT        = 0;
+    private static final String                  HIGH_WATER_MARK_KEY            = "archive high-water mark";
+    /**
+     * The total size, in bytes, of the complete files in the archive down to
+     * which least-recently-used files are evicted. The default is 90% of the
+     * high-water mark.
+     */
+    private static final long                    LOW_WATER_MARK;
+    private static final String                  LOW_WATER_MARK_KEY             = "archive low-water mark";
+    /**
+     * The total size, in bytes, of the data-products that are kept only in
+     * memory above which least-recently-used ones are evicted. They're evicted
+     * down to 90% of this value. The default is a quarter of the maximum
+     * amount of memory that the JVM will use.
+     */
+    private static final long                    MEMORY_HIGH_WATER_MARK;
+    private static final String                  MEMORY_HIGH_WATER_MARK_KEY     = "archive memory high-water mark";
+    /**
+     * The type of storage engine for data-products.
+     */
+    private static final ArchiveStore.Type       STORE_TYPE;
+    private static final ArchiveStore.Type       STORE_TYPE_DEFAULT             = ArchiveStore.Type.FILE_TREE;
+    private static final String                  STORE_TYPE_KEY                 = "archive store";
+    /**
+     * The size, in bytes, of a segment file of the log-structured storage
+     * engine.
+     */
+    private static final long                    SEGMENT_SIZE;
+    private static final long                    SEGMENT_SIZE_DEFAULT           = 0x4000000;
+    private static final String                  SEGMENT_SIZE_KEY               = "archive segment size";
+    /**
+     * The period, in seconds, for which data-products are kept in the index by
+     * archive-time.
+     */
+    private static final long                    INDEX_RETENTION;
+    private static final long                    INDEX_RETENTION_DEFAULT        = 7 * 24 * 3600;
+    private static final String                  INDEX_RETENTION_KEY            = "archive index retention";
+    /**
+     * The default selection criteria for data-products that are kept only in
+     * memory.
+     */
+    private static final Filter                  MEMORY_FILTER;
+    private static final String                  MEMORY_FILTER_KEY              = "archive memory filter";
+    /**
+     * The pathname of the root of the file-tree of the primary volume.
      */
     private final Path                           rootDir;
+    /**
+     * The volumes over which the files of the archive are striped.
+     */
+    private final ArchiveVolumes                 volumes;
     /**
      * The file-deleter.
      */
@@ -2234,10 +2543,44 @@ final class Archive {
      */
     private final ArchivePath                    adminDir                       = new ArchivePath(
                                                                                         Util.PACKAGE_NAME);
+    /**
+     * The storage engine for administrative files.
+     */
+    private final FileTreeStore                  fileTreeStore                  = new FileTreeStore();
+    /**
+     * The storage engine for data-products.
+     */
+    private final ArchiveStore                   store;
+    /**
+     * The storage engine for data-products that are kept only in memory.
+     */
+    private final ArchiveStore                   memoryStore;
+    /**
+     * The selection criteria for data-products that are kept only in memory.
+     */
+    private volatile Filter                      memoryFilter                   = MEMORY_FILTER;
     /**
      * The manager of the archive-files.
      */
     private final ArchiveFileManager             archiveFileManager;
+    /**
+     * The manager of the total size of the archive or {@code null} if the size
+     * of the archive is unbounded.
+     */
+    private final ArchiveCapacityManager         capacityManager;
+    /**
+     * The index of complete data-products by archive-time.
+     */
+    private final ArchiveTimeIndex               timeIndex;
+    /**
+     * The thread that initializes the index by archive-time with the existing
+     * data-products or {@code null} if the index was already initialized.
+     */
+    private final Thread                         timeIndexer;
+    /**
+     * Whether or not this instance is being closed.
+     */
+    private volatile boolean                     isClosing;
 
     static {
         final Preferences prefs = Preferences.userNodeForPackage(Archive.class);
@@ -2248,6 +2591,51 @@ final class Archive {
                     + ACTIVE_FILE_CACHE_SIZE_KEY + "\": "
                     + ACTIVE_FILE_CACHE_SIZE);
         }
+        HIGH_WATER_MARK = prefs.getLong(HIGH_WATER_MARK_KEY,
+                HIGH_WATER_MARK_DEFAULT);
+        LOW_WATER_MARK = prefs.getLong(LOW_WATER_MARK_KEY,
+                HIGH_WATER_MARK / 10 * 9);
+        if (HIGH_WATER_MARK > 0
+                && (LOW_WATER_MARK < 0 || LOW_WATER_MARK > HIGH_WATER_MARK)) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + LOW_WATER_MARK_KEY + "\": " + LOW_WATER_MARK);
+        }
+        MEMORY_HIGH_WATER_MARK = prefs.getLong(MEMORY_HIGH_WATER_MARK_KEY,
+                Runtime.getRuntime().maxMemory() / 4);
+        if (MEMORY_HIGH_WATER_MARK <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + MEMORY_HIGH_WATER_MARK_KEY + "\": "
+                    + MEMORY_HIGH_WATER_MARK);
+        }
+        final String storeType = prefs.get(STORE_TYPE_KEY,
+                STORE_TYPE_DEFAULT.name());
+        try {
+            STORE_TYPE = ArchiveStore.Type.valueOf(storeType);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + STORE_TYPE_KEY + "\": " + storeType);
+        }
+        SEGMENT_SIZE = prefs.getLong(SEGMENT_SIZE_KEY, SEGMENT_SIZE_DEFAULT);
+        if (SEGMENT_SIZE < PIECE_SIZE) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + SEGMENT_SIZE_KEY + "\": " + SEGMENT_SIZE);
+        }
+        INDEX_RETENTION = prefs.getLong(INDEX_RETENTION_KEY,
+                INDEX_RETENTION_DEFAULT);
+        if (INDEX_RETENTION <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + INDEX_RETENTION_KEY + "\": " + INDEX_RETENTION);
+        }
+        // No glob pattern means that every data-product is persisted
+        final String memoryFilter = prefs.get(MEMORY_FILTER_KEY, null);
+        try {
+            MEMORY_FILTER = Filter.getInstance(memoryFilter);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + MEMORY_FILTER_KEY + "\": " + memoryFilter);
+        }
     }
 
     /**
@@ -2299,18 +2687,324 @@ final class Archive {
      *             if {@code rootDir == null}.
      */
     Archive(final Path rootDir, final int maxNumOpenFiles) throws IOException {
-        if (null == rootDir) {
-            throw new NullPointerException();
-        }
+        this(rootDir, maxNumOpenFiles, HIGH_WATER_MARK, LOW_WATER_MARK);
+    }
+
+    /**
+     * Constructs from the pathname of the root of the file-tree, the maximum
+     * number of open files to have, and the high- and low-water marks for the
+     * total size of the complete files in the archive. If the high-water mark
+     * is positive, then the archive is scanned for existing files so that their
+     * sizes are included in the total.
+     * 
+     * @param rootDir
+     *            The pathname of the root of the file-tree.
+     * @param maxNumOpenFiles
+     *            The maximum number of open files.
+     * @param highWater
+     *            The total size, in bytes, above which least-recently-used
+     *            files are evicted. A non-positive value means that the size of
+     *            the archive is unbounded.
+     * @param lowWater
+     *            The total size, in bytes, down to which least-recently-used
+     *            files are evicted. Ignored if {@code highWater <= 0}.
+     * @throws IllegalArgumentException
+     *             if {@code maxNumOpenFiles <= 0}
+     * @throws IllegalArgumentException
+     *             if {@code highWater > 0 && (lowWater < 0 || lowWater >
+     *             highWater)}
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code rootDir == null}.
+     */
+    Archive(final Path rootDir, final int maxNumOpenFiles,
+            final long highWater, final long lowWater) throws IOException {
+        this(Collections.singletonList(rootDir), maxNumOpenFiles, highWater,
+                lowWater);
+    }
+
+    /**
+     * Constructs from the pathnames of the root-directories of the volumes over
+     * which the files of the archive will be striped. The maximum number of
+     * open files and the high- and low-water marks are determined by
+     * user-preferences.
+     * 
+     * @param rootDirs
+     *            The pathnames of the root-directories of the volumes. The
+     *            first one is the primary volume, which contains the
+     *            administrative files.
+     * @throws IllegalArgumentException
+     *             if {@code rootDirs} is empty or if one root-directory
+     *             contains another.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code rootDirs == null} or if {@code rootDirs} contains
+     *             {@code null}.
+     */
+    Archive(final List<Path> rootDirs) throws IOException {
+        this(rootDirs, ACTIVE_FILE_CACHE_SIZE, HIGH_WATER_MARK, LOW_WATER_MARK);
+    }
+
+    /**
+     * Constructs from the pathnames of the root-directories of the volumes over
+     * which the files of the archive will be striped, the maximum number of
+     * open files to have, and the high- and low-water marks for the total size
+     * of the complete files in the archive. Files are placed on volumes by a
+     * stable hash of their archive pathnames; administrative files are placed
+     * on the primary volume.
+     * 
+     * @param rootDirs
+     *            The pathnames of the root-directories of the volumes. The
+     *            first one is the primary volume.
+     * @param maxNumOpenFiles
+     *            The maximum number of open files.
+     * @param highWater
+     *            The total size, in bytes, above which least-recently-used
+     *            files are evicted. A non-positive value means that the size of
+     *            the archive is unbounded.
+     * @param lowWater
+     *            The total size, in bytes, down to which least-recently-used
+     *            files are evicted. Ignored if {@code highWater <= 0}.
+     * @throws IllegalArgumentException
+     *             if {@code rootDirs} is empty or if one root-directory
+     *             contains another.
+     * @throws IllegalArgumentException
+     *             if {@code maxNumOpenFiles <= 0}
+     * @throws IllegalArgumentException
+     *             if {@code highWater > 0 && (lowWater < 0 || lowWater >
+     *             highWater)}
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code rootDirs == null} or if {@code rootDirs} contains
+     *             {@code null}.
+     */
+    Archive(final List<Path> rootDirs, final int maxNumOpenFiles,
+            final long highWater, final long lowWater) throws IOException {
+        this(rootDirs, maxNumOpenFiles, highWater, lowWater, STORE_TYPE);
+    }
+
+    /**
+     * Constructs from the pathnames of the root-directories of the volumes of
+     * the archive, the maximum number of open files to have, the high- and
+     * low-water marks for the total size of the complete files in the archive,
+     * and the type of storage engine for data-products. Administrative files
+     * are always kept in the file-tree of the primary volume.
+     * 
+     * @param rootDirs
+     *            The pathnames of the root-directories of the volumes. The
+     *            first one is the primary volume.
+     * @param maxNumOpenFiles
+     *            The maximum number of open files.
+     * @param highWater
+     *            The total size, in bytes, above which least-recently-used
+     *            files are evicted. A non-positive value means that the size of
+     *            the archive is unbounded.
+     * @param lowWater
+     *            The total size, in bytes, down to which least-recently-used
+     *            files are evicted. Ignored if {@code highWater <= 0}.
+     * @param storeType
+     *            The type of storage engine for data-products. Only
+     *            {@link ArchiveStore.Type#FILE_TREE} makes data-products
+     *            visible as files, which is necessary for publishing and for
+     *            local processing.
+     * @throws IllegalArgumentException
+     *             if {@code rootDirs} is empty or if one root-directory
+     *             contains another.
+     * @throws IllegalArgumentException
+     *             if {@code maxNumOpenFiles <= 0}
+     * @throws IllegalArgumentException
+     *             if {@code highWater > 0 && (lowWater < 0 || lowWater >
+     *             highWater)}
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code rootDirs == null || storeType == null} or if
+     *             {@code rootDirs} contains {@code null}.
+     */
+    Archive(final List<Path> rootDirs, final int maxNumOpenFiles,
+            final long highWater, final long lowWater,
+            final ArchiveStore.Type storeType) throws IOException {
         if (maxNumOpenFiles <= 0) {
             throw new IllegalArgumentException(
                     "Invalid maximum number of open file: " + maxNumOpenFiles);
         }
-        final Path hiddenDir = rootDir.resolve(HIDDEN_DIR);
-        final Path fileDeletionQueuePath = hiddenDir
+        volumes = new ArchiveVolumes(rootDirs, adminDir, HIDDEN_DIR);
+        rootDir = volumes.getPrimary();
+        /*
+         * The file-deletion queue resides on the primary volume and contains
+         * pathnames relative to the primary volume regardless of the volume on
+         * which a file actually resides.
+         */
+        final Path fileDeletionQueuePath = rootDir.resolve(HIDDEN_DIR)
                 .resolve("fileDeletionQueue");
+        final List<Path> keepPaths = Arrays.asList(fileDeletionQueuePath,
+                getStateDir());
+        for (final Path volume : volumes.getRootDirs()) {
+            initHiddenDir(volume.resolve(HIDDEN_DIR), keepPaths);
+        }
+        switch (storeType) {
+        case MEMORY:
+            store = new MemoryArchiveStore(MEMORY_HIGH_WATER_MARK,
+                    MEMORY_HIGH_WATER_MARK / 10 * 9);
+            break;
+        case LOG:
+            store = new LogArchiveStore(rootDir.resolve(HIDDEN_DIR).resolve(
+                    "segments"), SEGMENT_SIZE);
+            break;
+        default:
+            store = fileTreeStore;
+        }
+        memoryStore = store instanceof MemoryArchiveStore
+                ? store
+                : new MemoryArchiveStore(MEMORY_HIGH_WATER_MARK,
+                        MEMORY_HIGH_WATER_MARK / 10 * 9);
+        archiveFileManager = new ArchiveFileManager(maxNumOpenFiles);
+        timeIndex = new ArchiveTimeIndex(getStateDir().resolve("timeIndex"),
+                1000 * INDEX_RETENTION);
+        delayedPathActionQueue = new DelayedPathActionQueue(rootDir,
+                new PathDelayQueue(fileDeletionQueuePath),
+                new DelayedPathActionQueue.Action() {
+                    @Override
+                    void act(final Path path) throws IOException {
+                        final ArchivePath archivePath = new ArchivePath(path,
+                                rootDir);
+                        archiveFileManager.delete(archivePath);
+                        if (capacityManager != null) {
+                            capacityManager.removed(archivePath);
+                        }
+                    }
+
+                    @Override
+                    public String toString() {
+                        return "DELETE";
+                    }
+                });
+        if (highWater <= 0) {
+            capacityManager = null;
+        }
+        else {
+            capacityManager = new ArchiveCapacityManager(adminDir, highWater,
+                    lowWater, new ArchiveCapacityManager.Evictor() {
+                        @Override
+                        void evict(final ArchivePath archivePath)
+                                throws IOException {
+                            /*
+                             * Cancel the file's time-to-live deletion so that
+                             * it can't delete a later file with the same
+                             * pathname.
+                             */
+                            delayedPathActionQueue.cancel(archivePath
+                                    .getAbsolutePath(rootDir));
+                            archiveFileManager.deleteIfExists(archivePath);
+                        }
+                    });
+            addExistingFiles(volumes.getRootDirs(), capacityManager);
+        }
+        if (timeIndex.isInitialized()) {
+            timeIndexer = null;
+        }
+        else {
+            timeIndexer = new Thread("TimeIndexer") {
+                @Override
+                public void run() {
+                    indexExistingFiles();
+                }
+            };
+            timeIndexer.setDaemon(true);
+            timeIndexer.start();
+        }
+    }
+
+    /**
+     * Adds the existing, complete data-products of the archive that are within
+     * the retention period of the index by archive-time to that index as
+     * they're found and then records that the index is initialized. Executed
+     * by its own thread when the index isn't initialized (e.g., after an
+     * upgrade) so that a replay includes the data-products that were archived
+     * before the index existed without delaying the opening of the archive.
+     * Data-products that are archived meanwhile might be indexed twice, which
+     * is harmless (see {@link ArchiveTimeIndex}), and so is an incomplete
+     * execution, which is repeated when the archive is next opened. Doesn't
+     * index administrative files. Logs errors.
+     */
+    private void indexExistingFiles() {
+        final long oldest = System.currentTimeMillis() - 1000
+                * INDEX_RETENTION;
+        final long[] count = new long[1];
+        final IOException[] error = new IOException[1];
+        try {
+            walkArchive(new FilePieceSpecSetConsumer() {
+                @Override
+                public void consume(final FilePieceSpecSet spec)
+                        throws InterruptedException {
+                    if (isClosing) {
+                        throw new InterruptedException();
+                    }
+                    final FileInfo fileInfo = spec.getFileInfo();
+                    if (!fileInfo.getPath().startsWith(adminDir)
+                            && fileInfo.getTime().getMillis() > oldest) {
+                        try {
+                            timeIndex.add(fileInfo);
+                        }
+                        catch (final IOException e) {
+                            // Stops the walk
+                            error[0] = e;
+                            throw new InterruptedException();
+                        }
+                        count[0]++;
+                    }
+                }
+            }, Filter.EVERYTHING);
+            timeIndex.setInitialized();
+            logger.info("Indexed {} existing data-products of {}", count[0],
+                    this);
+        }
+        catch (final InterruptedException e) {
+            if (error[0] != null) {
+                logger.error("Couldn't index " + this, error[0]);
+            }
+            else {
+                logger.info("Indexing of {} stopped after {} data-products",
+                        this, count[0]);
+            }
+        }
+        catch (final IOException e) {
+            logger.error("Couldn't index " + this, e);
+        }
+    }
+
+    /**
+     * Waits until the index by archive-time has been initialized with the
+     * data-products that existed when this instance was created or until the
+     * initialization has failed.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void awaitTimeIndex() throws InterruptedException {
+        if (timeIndexer != null) {
+            timeIndexer.join();
+        }
+    }
+
+    /**
+     * Ensures that a hidden directory exists, is purged of files from a
+     * previous session, and is hidden on DOS file-systems.
+     * 
+     * @param hiddenDir
+     *            Pathname of the hidden directory.
+     * @param keepPaths
+     *            Pathnames of the only files or directories to keep.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void initHiddenDir(final Path hiddenDir,
+            final List<Path> keepPaths) throws IOException {
         Files.createDirectories(hiddenDir);
-        purgeHiddenDir(hiddenDir, fileDeletionQueuePath);
+        purgeHiddenDir(hiddenDir, keepPaths);
         /*
          * According to the Java 7 tutorial, the following is valid:
          * 
@@ -2330,22 +3024,64 @@ final class Archive {
         catch (final FileSystemException ignored) {
             // The file-system isn't DOS
         }
-        this.rootDir = rootDir;
-        archiveFileManager = new ArchiveFileManager(maxNumOpenFiles);
-        delayedPathActionQueue = new DelayedPathActionQueue(rootDir,
-                new PathDelayQueue(fileDeletionQueuePath),
-                new DelayedPathActionQueue.Action() {
-                    @Override
-                    void act(final Path path) throws IOException {
-                        archiveFileManager
-                                .delete(new ArchivePath(path, rootDir));
-                    }
+    }
 
+    /**
+     * Adds the existing, complete files of an archive to a capacity manager in
+     * order of increasing modification-time so that the oldest files are
+     * evicted first. Doesn't visit hidden files. Logs no-such-file exceptions
+     * rather than throwing them.
+     * 
+     * @param rootDirs
+     *            The pathnames of the root-directories of the volumes.
+     * @param capacityManager
+     *            The capacity manager.
+     * @throws IOException
+     *             if an I/O error occurs other than a no-such-file exception.
+     */
+    private static void addExistingFiles(final List<Path> rootDirs,
+            final ArchiveCapacityManager capacityManager) throws IOException {
+        final Map<ArchivePath, BasicFileAttributes> files = new HashMap<ArchivePath, BasicFileAttributes>();
+        final EnumSet<FileVisitOption> opts = EnumSet
+                .of(FileVisitOption.FOLLOW_LINKS);
+        for (final Path rootDir : rootDirs) {
+            Files.walkFileTree(rootDir, opts, Integer.MAX_VALUE,
+                    new SimpleVisitor() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(
+                                final Path dir,
+                                final BasicFileAttributes attributes) {
+                            return ArchiveFile.isHidden(rootDir, dir)
+                                    ? FileVisitResult.SKIP_SUBTREE
+                                    : FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(final Path path,
+                                final BasicFileAttributes attributes) {
+                            if (attributes.isRegularFile()) {
+                                files.put(new ArchivePath(path, rootDir),
+                                        attributes);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        }
+        final List<Map.Entry<ArchivePath, BasicFileAttributes>> entries = new ArrayList<Map.Entry<ArchivePath, BasicFileAttributes>>(
+                files.entrySet());
+        Collections.sort(entries,
+                new Comparator<Map.Entry<ArchivePath, BasicFileAttributes>>() {
                     @Override
-                    public String toString() {
-                        return "DELETE";
+                    public int compare(
+                            final Map.Entry<ArchivePath, BasicFileAttributes> e1,
+                            final Map.Entry<ArchivePath, BasicFileAttributes> e2) {
+                        return e1.getValue().lastModifiedTime()
+                                .compareTo(e2.getValue().lastModifiedTime());
                     }
                 });
+        for (final Map.Entry<ArchivePath, BasicFileAttributes> entry : entries) {
+            capacityManager.added(entry.getKey(), entry.getValue().size());
+        }
     }
 
     /**
@@ -2355,22 +3091,30 @@ final class Archive {
      * 
      * @param hiddenDir
      *            Pathname of the hidden directory
-     * @param keepPath
-     *            Pathname of the only file to keep.
+     * @param keepPaths
+     *            Pathnames of the only files or directories to keep.
      * @throws IOException
      *             if an I/O error occurs other than a no-such-file exception.
      */
-    private static void purgeHiddenDir(final Path hiddenDir, final Path keepPath)
-            throws IOException {
+    private static void purgeHiddenDir(final Path hiddenDir,
+            final List<Path> keepPaths) throws IOException {
         final EnumSet<FileVisitOption> opts = EnumSet
                 .of(FileVisitOption.FOLLOW_LINKS);
         Files.walkFileTree(hiddenDir, opts, Integer.MAX_VALUE,
                 new SimpleVisitor() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(final Path dir,
+                            final BasicFileAttributes attributes) {
+                        return keepPaths.contains(dir)
+                                ? FileVisitResult.SKIP_SUBTREE
+                                : FileVisitResult.CONTINUE;
+                    }
+
                     @Override
                     public FileVisitResult visitFile(final Path path,
                             final BasicFileAttributes attributes)
                             throws IOException {
-                        if (!path.equals(keepPath)) {
+                        if (!keepPaths.contains(path)) {
                             try {
                                 Files.delete(path);
                             }
@@ -2388,7 +3132,7 @@ final class Archive {
                         if (e != null) {
                             throw e;
                         }
-                        if (!dir.equals(hiddenDir)) {
+                        if (!dir.equals(hiddenDir) && !isAncestor(dir)) {
                             try {
                                 Files.delete(dir);
                             }
@@ -2400,18 +3144,106 @@ final class Archive {
                         }
                         return FileVisitResult.CONTINUE;
                     }
+
+                    /**
+                     * Indicates whether or not a directory contains a file or
+                     * directory to keep.
+                     */
+                    private boolean isAncestor(final Path dir) {
+                        for (final Path keepPath : keepPaths) {
+                            if (keepPath.startsWith(dir)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
                 });
     }
 
     /**
-     * Returns the pathname of the root directory of the file-tree.
+     * Returns the pathname of the root directory of the file-tree of the
+     * primary volume.
      * 
-     * @return Pathname of the root directory of the file-tree.
+     * @return Pathname of the root directory of the file-tree of the primary
+     *         volume.
      */
     Path getRootDir() {
         return rootDir;
     }
 
+    /**
+     * Returns the pathname of the directory in which files that aren't part of
+     * the archive but must persist across sessions can be kept. The directory
+     * is in the hidden directory of the primary volume and isn't purged at the
+     * start of a session.
+     * 
+     * @return Pathname of the directory for persistent, non-archive files.
+     */
+    Path getStateDir() {
+        return rootDir.resolve(HIDDEN_DIR).resolve(STATE_DIR);
+    }
+
+    /**
+     * Returns the pathnames of the root directories of the file-trees of all
+     * the volumes. The first one is the primary volume.
+     * 
+     * @return Pathnames of the root directories of all the volumes.
+     */
+    List<Path> getRootDirs() {
+        return volumes.getRootDirs();
+    }
+
+    /**
+     * Indicates whether or not an absolute pathname is hidden.
+     * 
+     * @param path
+     *            The absolute pathname of a file or directory in the archive.
+     * @return {@code true} if and only if the pathname is hidden.
+     */
+    private boolean isHidden(final Path path) {
+        return ArchiveFile.isHidden(volumes.getRootDir(path), path);
+    }
+
+    /**
+     * Returns the storage engine for an archive pathname.
+     * 
+     * @param archivePath
+     *            The archive pathname.
+     * @return The storage engine for {@code archivePath}.
+     */
+    private ArchiveStore getStore(final ArchivePath archivePath) {
+        if (archivePath.startsWith(adminDir)) {
+            return fileTreeStore;
+        }
+        return memoryFilter.matches(archivePath)
+                ? memoryStore
+                : store;
+    }
+
+    /**
+     * Sets the selection criteria for data-products that are kept only in
+     * memory. Such data-products are never written to disk: they're passed to
+     * the data-product listeners with their data in memory and are lost when
+     * the archive is closed. Administrative files are always persisted. Should
+     * be called before the archive receives data-products because the
+     * criteria determine where data-products are found. The initial criteria
+     * are given by the glob pattern of the user-preference "archive memory
+     * filter", which is unset by default (i.e., every data-product is
+     * persisted).
+     * 
+     * @param filter
+     *            The selection criteria. {@link Filter#NOTHING} persists all
+     *            data-products.
+     * @throws NullPointerException
+     *             if {@code filter == null}.
+     */
+    void setMemoryFilter(final Filter filter) {
+        if (filter == null) {
+            throw new NullPointerException();
+        }
+        memoryFilter = filter;
+    }
+
     /**
      * Returns the pathname of the administrative-files directory relative to
      * this archive.
@@ -2439,7 +3271,7 @@ final class Archive {
      * @see #resolve(ArchivePath)
      */
     ArchivePath relativize(final Path path) {
-        return new ArchivePath(path, rootDir);
+        return volumes.relativize(path);
     }
 
     /**
@@ -2451,7 +3283,7 @@ final class Archive {
      * @see #relativize(Path)
      */
     Path resolve(final ArchivePath path) {
-        return path.getAbsolutePath(rootDir);
+        return volumes.resolve(path);
     }
 
     /**
@@ -2483,7 +3315,7 @@ final class Archive {
      */
     boolean exists(final PieceSpec pieceSpec) throws FileSystemException,
             IOException {
-        SegmentedArchiveFile file;
+        ArchiveStore.SegmentedFile file;
         try {
             file = archiveFileManager.get(pieceSpec.getFileInfo(), true);
             if (file == null) {
@@ -2515,7 +3347,7 @@ final class Archive {
      */
     Piece getPiece(final PieceSpec pieceSpec) throws FileSystemException,
             IOException {
-        final SegmentedArchiveFile file;
+        final ArchiveStore.SegmentedFile file;
         try {
             file = archiveFileManager.get(pieceSpec.getFileInfo(), true);
         }
@@ -2527,6 +3359,9 @@ final class Archive {
         if (file == null) {
             return null;
         }
+        if (capacityManager != null) {
+            capacityManager.accessed(pieceSpec.getArchivePath());
+        }
         try {
             return file.getPiece(pieceSpec);
         }
@@ -2560,44 +3395,106 @@ final class Archive {
     boolean putPiece(final Piece piece) throws FileSystemException,
             NoSuchFileException, FileInfoMismatchException, IOException,
             InterruptedException {
+        return putPieces(Collections.singletonList(piece));
+    }
+
+    /**
+     * Writes pieces of data that all belong to the same file. If a newer
+     * version of the file exists, then the data isn't written. Notifies
+     * data-product listeners if the file becomes complete. May block during
+     * notifications, which are made without holding a lock on the file or on
+     * the set of listeners.
+     * 
+     * @param pieces
+     *            Pieces of data to be written. All must have the same
+     *            file-information.
+     * @return {@code true} if and only if the file is now complete.
+     * @throws FileSystemException
+     *             if too many files are open.
+     * @throws NoSuchFileException
+     *             if the destination file was deleted.
+     * @throws FileInfoMismatchException
+     *             if the file-information of the archive-file is inconsistent
+     *             with that of the given pieces
+     * @throws IOException
+     *             if an I/O error occurred.
+     * @throws InterruptedException
+     *             if the current thread is interrupted
+     * @throws IllegalArgumentException
+     *             if {@code pieces} is empty.
+     * @throws NullPointerException
+     *             if {@code pieces == null}.
+     */
+    boolean putPieces(final List<Piece> pieces) throws FileSystemException,
+            NoSuchFileException, FileInfoMismatchException, IOException,
+            InterruptedException {
+        if (pieces.isEmpty()) {
+            throw new IllegalArgumentException("No pieces");
+        }
+        final Piece piece = pieces.get(0);
         final FileInfo fileInfo = piece.getFileInfo();
-        final SegmentedArchiveFile file = archiveFileManager.get(fileInfo,
-                false);
+        final ArchiveStore.SegmentedFile file = archiveFileManager.get(
+                fileInfo, false);
         if (file == null) {
             // A newer version of the file exists.
             logger.trace("Newer file version exists: {}", fileInfo);
             return false;
         }
+        final List<DataProductListener> listeners;
+        final DataProduct product;
         try {
             final int timeToLive = piece.getTimeToLive();
             if (timeToLive >= 0) {
                 /**
-                 * The file is added to the file-deletion queue before the piece
-                 * is written to the file to avoid the possibility that a
-                 * complete, visible file might exist without a corresponding
+                 * The file is added to the file-deletion queue before the
+                 * pieces are written to the file to avoid the possibility that
+                 * a complete, visible file might exist without a corresponding
                  * entry in the queue.
                  */
-                if (file.willMakeComplete(piece.getInfo())) {
+                if (file.willMakeComplete(pieces)) {
                     delayedPathActionQueue.actUponEventurally(
                             fileInfo.getAbsolutePath(rootDir),
                             1000 * timeToLive);
                 }
             }
-            final boolean isComplete = file.putPiece(piece);
-            if (isComplete) {
-                synchronized (dataProductListeners) {
-                    for (final DataProductListener listener : dataProductListeners) {
-                        final DataProduct product = new DataProduct(rootDir,
-                                fileInfo);
-                        listener.process(product);
-                    }
+            if (!file.putPieces(pieces)) {
+                return false;
+            }
+            if (capacityManager != null) {
+                capacityManager.added(fileInfo.getPath(),
+                        fileInfo.getSize());
+            }
+            if (!fileInfo.getPath().startsWith(adminDir)) {
+                try {
+                    timeIndex.add(fileInfo);
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't index " + fileInfo, e);
                 }
             }
-            return isComplete;
+            synchronized (dataProductListeners) {
+                listeners = new ArrayList<DataProductListener>(
+                        dataProductListeners);
+            }
+            /*
+             * Data-products that aren't files are passed with their data in
+             * memory, which is obtained while the file is still locked.
+             */
+            product = listeners.isEmpty()
+                    ? null
+                    : new DataProduct(volumes.getRootDir(fileInfo.getPath()),
+                            fileInfo,
+                            getStore(fileInfo.getPath()) == fileTreeStore
+                                    ? null
+                                    : file.getContents());
         }
         finally {
             file.unlock();
         }
+        for (final DataProductListener listener : listeners) {
+            listener.process(product);
+        }
+        return true;
     }
 
     /**
@@ -2698,6 +3595,10 @@ final class Archive {
                 archiveFileManager.delete(archivePath);
             }
         }
+        if (capacityManager != null) {
+            capacityManager.added(archivePath,
+                    Files.size(resolve(archivePath)));
+        }
     }
 
     /**
@@ -2782,6 +3683,22 @@ final class Archive {
     void remove(final ArchivePath archivePath) throws FileSystemException,
             IOException {
         archiveFileManager.deleteIfExists(archivePath);
+        if (capacityManager != null) {
+            capacityManager.removed(archivePath);
+        }
+    }
+
+    /**
+     * Returns the total size of the complete files in this archive that are
+     * subject to eviction or {@code -1} if the size of this archive is
+     * unbounded.
+     * 
+     * @return The total size of the complete files in bytes or {@code -1}.
+     */
+    long getTotalSize() {
+        return capacityManager == null
+                ? -1
+                : capacityManager.getTotalSize();
     }
 
     /**
@@ -2807,7 +3724,8 @@ final class Archive {
      * @return The hidden form of {@code path}.
      */
     Path getHiddenPath(final Path path) {
-        return ArchiveFile.hide(rootDir, new ArchivePath(path, rootDir));
+        final ArchivePath archivePath = volumes.relativize(path);
+        return ArchiveFile.hide(volumes.getRootDir(archivePath), archivePath);
     }
 
     /**
@@ -2818,7 +3736,8 @@ final class Archive {
      * @return The visible form of {@code path}.
      */
     Path getVisiblePath(final Path path) {
-        return ArchiveFile.reveal(rootDir, new ArchivePath(path, rootDir));
+        final ArchivePath archivePath = volumes.relativize(path);
+        return ArchiveFile.reveal(volumes.getRootDir(archivePath), archivePath);
     }
 
     /**
@@ -2853,6 +3772,7 @@ final class Archive {
     private void walkDirectory(final Path root,
             final FilePieceSpecSetConsumer consumer, final Filter filter)
             throws IOException, InterruptedException {
+        final Path volumeRoot = volumes.getRootDir(root);
         final class ArchiveVisitor extends SimpleVisitor {
             @Override
             public FileVisitResult preVisitDirectory(final Path dir,
@@ -2860,7 +3780,7 @@ final class Archive {
                 if (Thread.currentThread().isInterrupted()) {
                     return FileVisitResult.TERMINATE;
                 }
-                if (ArchiveFile.isHidden(rootDir, dir)) {
+                if (ArchiveFile.isHidden(volumeRoot, dir)) {
                     return FileVisitResult.SKIP_SUBTREE;
                 }
                 logger.trace("Visiting directory: {}", dir);
@@ -2878,7 +3798,7 @@ final class Archive {
                     try {
                         archiveTime.setTime(path);
                         final ArchivePath archivePath = new ArchivePath(path,
-                                rootDir);
+                                volumeRoot);
                         if (filter.matches(archivePath)) {
                             final FileId fileId = new FileId(archivePath,
                                     archiveTime);
@@ -2923,7 +3843,8 @@ final class Archive {
     /**
      * Visits all the file-based data-specifications in the archive that match a
      * selection criteria. Doesn't visit files in hidden directories. Returns
-     * only when all files have been visited.
+     * only when all files on all volumes and in the storage engine have been
+     * visited.
      * 
      * @param consumer
      *            The consumer of file-based data-specifications.
@@ -2936,7 +3857,13 @@ final class Archive {
      */
     void walkArchive(final FilePieceSpecSetConsumer consumer,
             final Filter filter) throws IOException, InterruptedException {
-        walkDirectory(rootDir, consumer, filter);
+        fileTreeStore.walk(consumer, filter);
+        if (store != fileTreeStore) {
+            store.walk(consumer, filter);
+        }
+        if (memoryStore != store) {
+            memoryStore.walk(consumer, filter);
+        }
     }
 
     /**
@@ -2984,7 +3911,8 @@ final class Archive {
     }
 
     /**
-     * Closes this instance. Closes all open files and stops the file-deleter.
+     * Closes this instance. Closes all open files and stops the file-deleter and
+     * the capacity manager.
      * 
      * @throws IOException
      *             if an I/O error occurs.
@@ -2992,14 +3920,124 @@ final class Archive {
      *             if the current thread is interrupted
      */
     void close() throws IOException, InterruptedException {
+        /*
+         * The indexer isn't interrupted because that would close the channel
+         * of the index that it's writing.
+         */
+        isClosing = true;
+        awaitTimeIndex();
         try {
+            if (capacityManager != null) {
+                capacityManager.stop();
+            }
             delayedPathActionQueue.stop();
         }
         finally {
-            archiveFileManager.closeAll();
+            try {
+                archiveFileManager.closeAll();
+            }
+            finally {
+                try {
+                    if (store != fileTreeStore) {
+                        store.close();
+                    }
+                    if (memoryStore != store) {
+                        memoryStore.close();
+                    }
+                }
+                finally {
+                    timeIndex.close();
+                }
+            }
         }
     }
 
+    /**
+     * Returns the data of a complete data-product.
+     * 
+     * @param fileInfo
+     *            Information on the data-product.
+     * @return The data of the data-product as a read-only buffer.
+     * @throws NoSuchFileException
+     *             if the complete data-product doesn't exist.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private ByteBuffer getContents(final FileInfo fileInfo)
+            throws NoSuchFileException, IOException {
+        final ArchiveStore.SegmentedFile file;
+        try {
+            file = archiveFileManager.get(fileInfo, true);
+        }
+        catch (final FileInfoMismatchException e) {
+            // A different version of the data-product exists
+            throw new NoSuchFileException(fileInfo.getPath().toString());
+        }
+        if (file == null) {
+            throw new NoSuchFileException(fileInfo.getPath().toString());
+        }
+        try {
+            return file.getContents();
+        }
+        catch (final IllegalStateException e) {
+            // The data-product is incomplete
+            throw new NoSuchFileException(fileInfo.getPath().toString());
+        }
+        finally {
+            file.unlock();
+        }
+    }
+
+    /**
+     * Passes the existing data-products whose archive-time is later than a
+     * given time to a listener in order of archive-time. Uses the index by
+     * archive-time rather than walking the file-tree. Data-products that no
+     * longer exist or that have been replaced by a newer version are skipped.
+     * Administrative files are not passed.
+     * 
+     * @param since
+     *            The archive-time after which data-products are passed.
+     * @param listener
+     *            The listener for the data-products.
+     * @return The number of data-products passed to the listener.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    long replay(final ArchiveTime since, final DataProductListener listener)
+            throws IOException, InterruptedException {
+        final long[] count = new long[1];
+        timeIndex.visit(since, new ArchiveTimeIndex.Visitor() {
+            @Override
+            void visit(final FileInfo fileInfo) throws InterruptedException {
+                final ArchivePath archivePath = fileInfo.getPath();
+                final ArchiveStore archiveStore = getStore(archivePath);
+                final DataProduct product;
+                try {
+                    if (!archiveStore.getTime(archivePath).equals(
+                            fileInfo.getTime())) {
+                        // A different version of the data-product exists
+                        return;
+                    }
+                    product = new DataProduct(
+                            volumes.getRootDir(archivePath), fileInfo,
+                            archiveStore == fileTreeStore
+                                    ? null
+                                    : getContents(fileInfo));
+                }
+                catch (final IOException e) {
+                    // The data-product no longer exists
+                    return;
+                }
+                listener.process(product);
+                count[0]++;
+            }
+        });
+        logger.info("Replayed {} data-products newer than {}", count[0], since);
+        return count[0];
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -3007,6 +4045,7 @@ final class Archive {
      */
     @Override
     public String toString() {
-        return "Archive [rootDir=" + rootDir + "]";
+        return "Archive [rootDirs=" + volumes.getRootDirs() + ", store="
+                + store + "]";
     }
 }
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps the total size of the complete files in an archive below a high-water
+ * mark by evicting the least-recently-used files down to a low-water mark.
+ * Eviction is done in bulk by a separate thread so that it doesn't occur on
+ * the data-path. Files in the administrative directory of the archive are
+ * neither counted nor evicted.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ArchiveCapacityManager {
+    /**
+     * Removes a file from the archive.
+     */
+    static abstract class Evictor {
+        /**
+         * Removes a file from the archive.
+         * 
+         * @param archivePath
+         *            The archive pathname of the file to be removed.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        abstract void evict(ArchivePath archivePath) throws IOException;
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger             logger        = Util.getLogger();
+    /**
+     * The global thread index.
+     */
+    private static final AtomicInteger      threadIndex   = new AtomicInteger(
+                                                                  0);
+    /**
+     * The sizes of the complete files in least-recently-used order.
+     */
+    @GuardedBy("this")
+    private final LinkedHashMap<ArchivePath, Long> sizes  = new LinkedHashMap<ArchivePath, Long>(
+                                                                  1024, 0.75f,
+                                                                  true);
+    /**
+     * The total size, in bytes, of the complete files.
+     */
+    @GuardedBy("this")
+    private long                            totalSize     = 0;
+    /**
+     * The number of evicted files.
+     */
+    @GuardedBy("this")
+    private long                            evictedCount  = 0;
+    /**
+     * The archive pathname of the administrative directory.
+     */
+    private final ArchivePath               adminDir;
+    /**
+     * The size, in bytes, above which eviction starts.
+     */
+    private final long                      highWater;
+    /**
+     * The size, in bytes, at which eviction stops.
+     */
+    private final long                      lowWater;
+    /**
+     * The remover of files.
+     */
+    private final Evictor                   evictor;
+    /**
+     * The thread that evicts files.
+     */
+    private final Thread                    thread;
+
+    /**
+     * Constructs from the administrative directory, the high- and low-water
+     * marks, and the remover of files. Starts running in a new thread.
+     * 
+     * @param adminDir
+     *            The archive pathname of the administrative directory. Files
+     *            under this directory are never evicted.
+     * @param highWater
+     *            The total size, in bytes, above which files are evicted.
+     * @param lowWater
+     *            The total size, in bytes, down to which files are evicted.
+     * @param evictor
+     *            The remover of files.
+     * @throws IllegalArgumentException
+     *             if {@code highWater <= 0 || lowWater < 0 || lowWater > highWater}
+     * @throws NullPointerException
+     *             if {@code adminDir == null || evictor == null}.
+     */
+    ArchiveCapacityManager(final ArchivePath adminDir, final long highWater,
+            final long lowWater, final Evictor evictor) {
+        if (adminDir == null || evictor == null) {
+            throw new NullPointerException();
+        }
+        if (highWater <= 0 || lowWater < 0 || lowWater > highWater) {
+            throw new IllegalArgumentException("Invalid water marks: high="
+                    + highWater + ", low=" + lowWater);
+        }
+        this.adminDir = adminDir;
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+        this.evictor = evictor;
+        thread = new Thread("ArchiveCapacityManager-"
+                + threadIndex.getAndIncrement()) {
+            @Override
+            public void run() {
+                try {
+                    ArchiveCapacityManager.this.run();
+                }
+                catch (final InterruptedException e) {
+                    logger.trace("Interrupted: {}", this);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Executes this instance. Doesn't return. Waits until the total size
+     * exceeds the high-water mark and then evicts files, least-recently-used
+     * first, until the total size is at or below the low-water mark.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void run() throws InterruptedException {
+        for (;;) {
+            final List<ArchivePath> victims = takeVictims();
+            for (final ArchivePath archivePath : victims) {
+                try {
+                    logger.debug("Evicting file: {}", archivePath);
+                    evictor.evict(archivePath);
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't evict file \"" + archivePath + "\"",
+                            e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the total size exceeds the high-water mark and then removes
+     * and returns enough of the least-recently-used files to bring the total
+     * size down to the low-water mark.
+     * 
+     * @return The files to be evicted.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private synchronized List<ArchivePath> takeVictims()
+            throws InterruptedException {
+        while (totalSize <= highWater) {
+            wait();
+        }
+        final List<ArchivePath> victims = new ArrayList<ArchivePath>();
+        for (final Iterator<Map.Entry<ArchivePath, Long>> iter = sizes
+                .entrySet().iterator(); iter.hasNext() && totalSize > lowWater;) {
+            final Map.Entry<ArchivePath, Long> entry = iter.next();
+            totalSize -= entry.getValue();
+            victims.add(entry.getKey());
+            iter.remove();
+        }
+        evictedCount += victims.size();
+        logger.debug("Evicting {} files", victims.size());
+        return victims;
+    }
+
+    /**
+     * Accounts for a complete file. If the file is already known, then its
+     * size is replaced and it becomes the most-recently-used file.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     * @param size
+     *            The size of the file in bytes.
+     */
+    synchronized void added(final ArchivePath archivePath, final long size) {
+        if (archivePath.startsWith(adminDir)) {
+            return;
+        }
+        final Long prevSize = sizes.put(archivePath, size);
+        if (prevSize != null) {
+            totalSize -= prevSize;
+        }
+        totalSize += size;
+        if (totalSize > highWater) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks a file as having just been used.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     */
+    synchronized void accessed(final ArchivePath archivePath) {
+        sizes.get(archivePath);
+    }
+
+    /**
+     * Accounts for the removal of a file. Does nothing if the file is unknown.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     */
+    synchronized void removed(final ArchivePath archivePath) {
+        final Long size = sizes.remove(archivePath);
+        if (size != null) {
+            totalSize -= size;
+        }
+    }
+
+    /**
+     * Returns the total size of the known files.
+     * 
+     * @return The total size of the known files in bytes.
+     */
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns the number of evicted files.
+     * 
+     * @return The number of evicted files.
+     */
+    synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Stops this instance. Idempotent.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void stop() throws InterruptedException {
+        if (thread.isAlive()) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "ArchiveCapacityManager [totalSize=" + totalSize
+                + ", highWater=" + highWater + ", lowWater=" + lowWater
+                + ", evictedCount=" + evictedCount + "]";
+    }
+}
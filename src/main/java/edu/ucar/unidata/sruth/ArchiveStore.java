@@ -0,0 +1,280 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A storage engine for the data-products of an archive. An archive delegates
+ * the piecewise storage and retrieval of data-products to an instance of this
+ * class. Administrative files are always kept in the file-tree of the archive
+ * regardless of the storage engine.
+ * <p>
+ * Implementations must be thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+abstract class ArchiveStore {
+    /**
+     * The types of storage engines.
+     */
+    enum Type {
+        /**
+         * Each data-product is a file in the file-tree of the archive. Complete
+         * files are visible to local processing.
+         */
+        FILE_TREE,
+        /**
+         * Data-products are kept in memory and are lost when the archive is
+         * closed. Suitable for latency-critical relays and for testing.
+         */
+        MEMORY,
+        /**
+         * Pieces of data-products are appended to large segment files in the
+         * hidden directory of the primary volume. Suitable for high rates of
+         * small data-products. Data-products don't persist across sessions.
+         */
+        LOG
+    }
+
+    /**
+     * A data-product in the store that's accessed piecewise. Instances are
+     * returned by {@link ArchiveStore#open(FileInfo, boolean)} in an unlocked
+     * state; all other methods except {@link #lock()} should be called only
+     * while the instance is locked.
+     */
+    interface SegmentedFile {
+        /**
+         * Locks this instance.
+         */
+        void lock();
+
+        /**
+         * Unlocks this instance.
+         */
+        void unlock();
+
+        /**
+         * Returns the file's metadata.
+         * 
+         * @return The file's metadata.
+         */
+        FileInfo getFileInfo();
+
+        /**
+         * Returns the time associated with this instance.
+         * 
+         * @return The time associated with this instance.
+         */
+        ArchiveTime getTime();
+
+        /**
+         * Indicates if the given pieces of data will make this file complete.
+         * 
+         * @param pieces
+         *            The pieces of data.
+         * @return {@code true} if and only if the file is currently incomplete
+         *         and the given pieces of data will make it complete.
+         */
+        boolean willMakeComplete(List<Piece> pieces);
+
+        /**
+         * Writes pieces of data. Pieces that the file already contains are
+         * ignored. Implementations should write adjacent pieces together if
+         * possible.
+         * 
+         * @param pieces
+         *            The pieces of data.
+         * @return {@code true} if and only if the file is complete.
+         * @throws FileSystemException
+         *             if too many files are open.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        boolean putPieces(List<Piece> pieces) throws FileSystemException,
+                IOException;
+
+        /**
+         * Indicates if the file contains a particular piece of data.
+         * 
+         * @param index
+         *            Index of the piece of data.
+         * @return {@code true} if and only if the file contains the piece of
+         *         data.
+         */
+        boolean hasPiece(int index);
+
+        /**
+         * Returns a piece of data.
+         * 
+         * @param pieceSpec
+         *            Information on the piece of data.
+         * @return The piece of data.
+         * @throws FileSystemException
+         *             if too many files are open.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        Piece getPiece(PieceSpec pieceSpec) throws FileSystemException,
+                IOException;
+
+        /**
+         * Returns the data of the complete file as a read-only buffer. The
+         * buffer is either assembled from the pieces of the file or is a
+         * read-only mapping of the file and remains valid after this instance
+         * is closed or deleted.
+         * 
+         * @return The data of the file.
+         * @throws IllegalStateException
+         *             if the file is incomplete.
+         * @throws FileSystemException
+         *             if too many files are open.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        ByteBuffer getContents() throws FileSystemException, IOException;
+
+        /**
+         * Releases any resources held by this instance. The data-product
+         * remains in the store. Idempotent.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void close() throws IOException;
+
+        /**
+         * Removes the data-product from the store. Closes this instance first
+         * if necessary.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void deleteIfExists() throws IOException;
+    }
+
+    /**
+     * Orders pieces of data by their index.
+     */
+    private static final Comparator<Piece> INDEX_ORDER = new Comparator<Piece>() {
+                                                           @Override
+                                                           public int compare(
+                                                                   final Piece p1,
+                                                                   final Piece p2) {
+                                                               return p1
+                                                                       .getIndex()
+                                                                       - p2.getIndex();
+                                                           }
+                                                       };
+
+    /**
+     * Returns the pieces of data that a file doesn't yet contain, without
+     * duplicates and in order of increasing index.
+     * 
+     * @param indexes
+     *            The set of pieces that the file contains.
+     * @param pieces
+     *            The pieces of data.
+     * @return The pieces of data that the file doesn't contain.
+     */
+    static List<Piece> newPieces(final FiniteBitSet indexes,
+            final List<Piece> pieces) {
+        final List<Piece> newPieces = new ArrayList<Piece>(pieces.size());
+        final BitSet seen = new BitSet();
+        for (final Piece piece : pieces) {
+            final int index = piece.getIndex();
+            if (!indexes.isSet(index) && !seen.get(index)) {
+                seen.set(index);
+                newPieces.add(piece);
+            }
+        }
+        Collections.sort(newPieces, INDEX_ORDER);
+        return newPieces;
+    }
+
+    /**
+     * Returns a data-product in an unlocked state or {@code null} if the
+     * data-product only needs to be read and doesn't exist. The
+     * file-information of the returned instance is that of the stored
+     * data-product and might differ from the given file-information.
+     * 
+     * @param fileInfo
+     *            Information on the data-product.
+     * @param readonly
+     *            Whether or not the data-product only needs to be read.
+     * @return The data-product or {@code null}.
+     * @throws FileSystemException
+     *             if too many files are open.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    abstract SegmentedFile open(FileInfo fileInfo, boolean readonly)
+            throws FileSystemException, IOException;
+
+    /**
+     * Returns the archive-time of a data-product.
+     * 
+     * @param archivePath
+     *            The archive pathname of the data-product.
+     * @return The archive-time of the data-product.
+     * @throws NoSuchFileException
+     *             if the data-product doesn't exist.
+     * @throws FileSystemException
+     *             if too many files are open.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    abstract ArchiveTime getTime(ArchivePath archivePath)
+            throws NoSuchFileException, FileSystemException, IOException;
+
+    /**
+     * Removes a data-product, complete or not, that isn't open. Does nothing if
+     * the data-product doesn't exist.
+     * 
+     * @param archivePath
+     *            The archive pathname of the data-product.
+     * @throws FileSystemException
+     *             if too many files are open.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    abstract void delete(ArchivePath archivePath) throws FileSystemException,
+            IOException;
+
+    /**
+     * Visits the complete data-products that match a selection criteria.
+     * Returns when all such data-products have been visited.
+     * 
+     * @param consumer
+     *            The consumer of file-based data-specifications.
+     * @param filter
+     *            The selection criteria.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    abstract void walk(FilePieceSpecSetConsumer consumer, Filter filter)
+            throws IOException, InterruptedException;
+
+    /**
+     * Closes this instance, releasing any resources. Open data-products should
+     * be closed first. This implementation does nothing.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void close() throws IOException {
+    }
+}
@@ -169,6 +169,15 @@ final class ArchiveTime implements Serializable, Comparable<ArchiveTime> {
         archiveTime.setTime(path);
     }
 
+    /**
+     * Returns the time of this instance in milliseconds since the epoch.
+     * 
+     * @return The time of this instance in milliseconds since the epoch.
+     */
+    long getMillis() {
+        return time;
+    }
+
     @Override
     public int compareTo(final ArchiveTime that) {
         return Long.compare(time, that.time);
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * An index of the complete data-products of an archive by their
+ * {@link ArchiveTime}. The index comprises one file per hour of archive-time,
+ * so the data-products newer than a given time can be visited in time order
+ * without walking the file-tree of the archive. Within an hour, data-products
+ * are in the order in which they were completed.
+ * <p>
+ * Hourly files older than the retention period are deleted. The index might
+ * reference data-products that no longer exist; it's the client's
+ * responsibility to check. An entry that's added more than once is visited
+ * once.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ArchiveTimeIndex {
+    /**
+     * Visits the entries of the index.
+     */
+    static abstract class Visitor {
+        /**
+         * Visits an entry of the index.
+         * 
+         * @param fileInfo
+         *            Information on the data-product.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        abstract void visit(FileInfo fileInfo) throws InterruptedException;
+    }
+
+    /**
+     * The number of milliseconds in an hour.
+     */
+    private static final long               HOUR         = 3600 * 1000;
+    /**
+     * The maximum number of open hourly files.
+     */
+    private static final int                MAX_OPEN     = 4;
+    /**
+     * The maximum size of a valid entry in bytes.
+     */
+    private static final int                MAX_ENTRY_SIZE = 1 << 16;
+    /**
+     * The name of the file whose existence indicates that the index has been
+     * initialized.
+     */
+    private static final String             INITIALIZED  = "initialized";
+    /**
+     * The logger for this class.
+     */
+    private static final Logger             logger       = Util.getLogger();
+    /**
+     * The pathname of the directory of hourly files.
+     */
+    private final Path                      dir;
+    /**
+     * The retention period in milliseconds.
+     */
+    private final long                      retention;
+    /**
+     * The open hourly files, by hour, in least-recently-used order.
+     */
+    @GuardedBy("this")
+    private final Map<Long, FileChannel>    channels     = new LinkedHashMap<Long, FileChannel>(
+                                                                 16, 0.75f,
+                                                                 true);
+
+    /**
+     * Constructs from the pathname of the directory and the retention period.
+     * Creates the directory if necessary.
+     * 
+     * @param dir
+     *            The pathname of the directory of hourly files.
+     * @param retention
+     *            The retention period in milliseconds.
+     * @throws IllegalArgumentException
+     *             if {@code retention <= 0}.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    ArchiveTimeIndex(final Path dir, final long retention) throws IOException {
+        if (retention <= 0) {
+            throw new IllegalArgumentException("Invalid retention: "
+                    + retention);
+        }
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.retention = retention;
+    }
+
+    /**
+     * Adds a complete data-product to the index.
+     * 
+     * @param fileInfo
+     *            Information on the data-product.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void add(final FileInfo fileInfo) throws IOException {
+        final long hour = fileInfo.getTime().getMillis() / HOUR;
+        FileChannel channel = channels.get(hour);
+        if (channel == null) {
+            if (channels.size() >= MAX_OPEN) {
+                final Long eldest = channels.keySet().iterator().next();
+                channels.remove(eldest).close();
+            }
+            prune();
+            channel = FileChannel.open(dir.resolve(Long.toString(hour)),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            channels.put(hour, channel);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(0); // placeholder for the size
+        final ObjectOutputStream objectOutput = new ObjectOutputStream(output);
+        objectOutput.writeObject(fileInfo);
+        objectOutput.close();
+        final ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        buf.putInt(0, buf.limit() - 4);
+        // Appends in a single write so that concurrent readers see whole
+        // entries
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Indicates if this instance has been initialized (e.g., with the
+     * data-products that were archived before the index existed). The
+     * indication persists across instances.
+     * 
+     * @return {@code true} if and only if {@link #setInitialized()} has been
+     *         called on this or a previous instance with the same directory.
+     */
+    boolean isInitialized() {
+        return Files.exists(dir.resolve(INITIALIZED));
+    }
+
+    /**
+     * Records that this instance has been initialized.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #isInitialized()
+     */
+    synchronized void setInitialized() throws IOException {
+        final Path path = dir.resolve(INITIALIZED);
+        if (!Files.exists(path)) {
+            Files.createFile(path);
+        }
+    }
+
+    /**
+     * Deletes the hourly files that are older than the retention period.
+     */
+    @GuardedBy("this")
+    private void prune() {
+        final long oldest = (System.currentTimeMillis() - retention) / HOUR;
+        for (final long hour : getHours()) {
+            if (hour >= oldest) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(dir.resolve(Long.toString(hour)));
+            }
+            catch (final IOException e) {
+                logger.warn("Couldn't delete index file {}: {}", hour,
+                        e.toString());
+            }
+        }
+    }
+
+    /**
+     * Returns the hours of the existing hourly files in increasing order.
+     * 
+     * @return The hours of the existing hourly files.
+     */
+    private List<Long> getHours() {
+        final List<Long> hours = new ArrayList<Long>();
+        try {
+            final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+            try {
+                for (final Path path : stream) {
+                    try {
+                        hours.add(Long.valueOf(path.getFileName().toString()));
+                    }
+                    catch (final NumberFormatException ignored) {
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (final IOException e) {
+            logger.error("Couldn't list index directory " + dir, e);
+        }
+        Collections.sort(hours);
+        return hours;
+    }
+
+    /**
+     * Visits the data-products whose archive-time is later than a given time.
+     * Hourly files are visited in time order. Entries that are added during
+     * the visit might or might not be visited. A repeated entry of an hourly
+     * file is skipped, so only the entries of one hour are remembered.
+     * 
+     * @param since
+     *            The archive-time after which data-products are visited.
+     * @param visitor
+     *            The visitor of data-products.
+     * @return The number of visited data-products.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    long visit(final ArchiveTime since, final Visitor visitor)
+            throws IOException, InterruptedException {
+        final long firstHour = since.getMillis() / HOUR;
+        long count = 0;
+        for (final long hour : getHours()) {
+            if (hour < firstHour) {
+                continue;
+            }
+            final DataInputStream input;
+            try {
+                input = new DataInputStream(new BufferedInputStream(Files
+                        .newInputStream(dir.resolve(Long.toString(hour)))));
+            }
+            catch (final IOException e) {
+                // The file was pruned
+                continue;
+            }
+            try {
+                final Set<FileInfo> visited = new HashSet<FileInfo>();
+                for (;;) {
+                    final FileInfo fileInfo = read(input);
+                    if (fileInfo == null) {
+                        break;
+                    }
+                    if (fileInfo.getTime().compareTo(since) > 0
+                            && visited.add(fileInfo)) {
+                        visitor.visit(fileInfo);
+                        count++;
+                    }
+                }
+            }
+            finally {
+                input.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next entry of an hourly file.
+     * 
+     * @param input
+     *            The input stream of the hourly file.
+     * @return The next entry or {@code null} if there are no more valid
+     *         entries.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private FileInfo read(final DataInputStream input) throws IOException {
+        final byte[] bytes;
+        try {
+            final int size = input.readInt();
+            if (size < 0 || size > MAX_ENTRY_SIZE) {
+                logger.warn("Corrupt entry in index of {}", dir);
+                return null;
+            }
+            bytes = new byte[size];
+            input.readFully(bytes);
+        }
+        catch (final EOFException e) {
+            return null;
+        }
+        final ObjectInputStream objectInput = new ObjectInputStream(
+                new ByteArrayInputStream(bytes));
+        try {
+            return (FileInfo) objectInput.readObject();
+        }
+        catch (final ClassNotFoundException e) {
+            throw new IOException("Invalid index entry", e);
+        }
+        finally {
+            objectInput.close();
+        }
+    }
+
+    /**
+     * Closes this instance. The instance may be used afterwards.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void close() throws IOException {
+        for (final FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveTimeIndex [dir=" + dir + "]";
+    }
+}
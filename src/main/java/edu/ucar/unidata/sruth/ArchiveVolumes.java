@@ -0,0 +1,311 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The root-directories (i.e., volumes) over which the files of an archive are
+ * striped. Each file is placed on the volume with the highest hash of its
+ * archive pathname and the volume's pathname (i.e., rendezvous hashing), so
+ * adding a volume only relocates the files that the new volume wins and
+ * removing one only relocates the files that it had. Because the volumes of an
+ * existing archive might have changed, a file that isn't on its volume, in
+ * either visible or hidden form, is looked for on the other volumes before
+ * it's placed. The volumes of recently-used files are remembered so that the
+ * file-system is only searched the first time a file is used. Administrative
+ * files are always placed on the first (i.e., primary) volume.
+ * <p>
+ * Each volume has its own hidden directory so that revealing a complete file
+ * remains an atomic rename within a single file-system.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ArchiveVolumes {
+    /**
+     * The maximum number of files whose volumes are remembered.
+     */
+    private static final int             RESOLVED_COUNT = 4096;
+    /**
+     * The absolute pathnames of the root-directories.
+     */
+    private final List<Path>             rootDirs;
+    /**
+     * The archive pathname of the administrative-files directory.
+     */
+    private final ArchivePath            adminDir;
+    /**
+     * The pathname of the hidden directory relative to a root-directory.
+     */
+    private final Path                   hiddenDir;
+    /**
+     * The root-directories of recently-used files, from least to most
+     * recently used.
+     */
+    @GuardedBy("this")
+    private final Map<ArchivePath, Path> resolved       = new LinkedHashMap<ArchivePath, Path>(
+                                                                16, 0.75f,
+                                                                true) {
+                                                            private static final long serialVersionUID = 1L;
+
+                                                            @Override
+                                                            protected boolean removeEldestEntry(
+                                                                    final Map.Entry<ArchivePath, Path> eldest) {
+                                                                return size() > RESOLVED_COUNT;
+                                                            }
+                                                        };
+
+    /**
+     * Constructs from the pathnames of the root-directories, the archive
+     * pathname of the administrative-files directory, and the pathname of the
+     * hidden directory.
+     * 
+     * @param rootDirs
+     *            The pathnames of the root-directories. The first one is the
+     *            primary volume. Relative pathnames are made absolute.
+     * @param adminDir
+     *            The archive pathname of the administrative-files directory.
+     * @param hiddenDir
+     *            The pathname of the hidden directory relative to a
+     *            root-directory.
+     * @throws IllegalArgumentException
+     *             if {@code rootDirs} is empty or if one root-directory
+     *             contains another.
+     * @throws NullPointerException
+     *             if {@code rootDirs == null || adminDir == null ||
+     *             hiddenDir == null} or if {@code rootDirs} contains
+     *             {@code null}.
+     */
+    ArchiveVolumes(final List<Path> rootDirs, final ArchivePath adminDir,
+            final Path hiddenDir) {
+        if (rootDirs.isEmpty()) {
+            throw new IllegalArgumentException("No root-directories");
+        }
+        if (adminDir == null || hiddenDir == null) {
+            throw new NullPointerException();
+        }
+        final List<Path> dirs = new ArrayList<Path>(rootDirs.size());
+        for (final Path rootDir : rootDirs) {
+            final Path dir = rootDir.toAbsolutePath();
+            for (final Path other : dirs) {
+                if (dir.startsWith(other) || other.startsWith(dir)) {
+                    throw new IllegalArgumentException(
+                            "Overlapping root-directories: \"" + other
+                                    + "\", \"" + dir + "\"");
+                }
+            }
+            dirs.add(dir);
+        }
+        this.rootDirs = Collections.unmodifiableList(dirs);
+        this.adminDir = adminDir;
+        this.hiddenDir = hiddenDir;
+    }
+
+    /**
+     * Returns the pathname of the primary root-directory.
+     * 
+     * @return The pathname of the primary root-directory.
+     */
+    Path getPrimary() {
+        return rootDirs.get(0);
+    }
+
+    /**
+     * Returns the pathnames of all the root-directories. The first one is the
+     * primary volume.
+     * 
+     * @return The pathnames of all the root-directories.
+     */
+    List<Path> getRootDirs() {
+        return rootDirs;
+    }
+
+    /**
+     * Returns the number of volumes.
+     * 
+     * @return The number of volumes.
+     */
+    int size() {
+        return rootDirs.size();
+    }
+
+    /**
+     * Returns the pathname of the root-directory of the volume that contains,
+     * or will contain, a file. The volume of a recently-used file is
+     * remembered. Otherwise, a file that doesn't exist, in either visible or
+     * hidden form, on the volume on which it would be placed is looked for on
+     * the other volumes.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     * @return The pathname of the root-directory of the file's volume.
+     */
+    Path getRootDir(final ArchivePath archivePath) {
+        if (rootDirs.size() == 1 || archivePath.startsWith(adminDir)) {
+            return rootDirs.get(0);
+        }
+        synchronized (this) {
+            final Path rootDir = resolved.get(archivePath);
+            if (rootDir != null) {
+                return rootDir;
+            }
+        }
+        // The file-system is searched without holding the lock
+        final Path rootDir = find(archivePath);
+        synchronized (this) {
+            resolved.put(archivePath, rootDir);
+        }
+        return rootDir;
+    }
+
+    /**
+     * Returns the pathname of the root-directory of the volume that contains a
+     * file, in either visible or hidden form, or on which the file is placed
+     * if it doesn't exist.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     * @return The pathname of the root-directory of the file's volume.
+     */
+    private Path find(final ArchivePath archivePath) {
+        final Path placement = getPlacement(archivePath);
+        if (!exists(placement, archivePath)) {
+            for (final Path rootDir : rootDirs) {
+                if (rootDir != placement && exists(rootDir, archivePath)) {
+                    return rootDir;
+                }
+            }
+        }
+        return placement;
+    }
+
+    /**
+     * Indicates if a file exists, in either visible or hidden form, on a
+     * volume.
+     * 
+     * @param rootDir
+     *            The pathname of the root-directory of the volume.
+     * @param archivePath
+     *            The archive pathname of the file.
+     * @return {@code true} if and only if the file exists on the volume.
+     */
+    private boolean exists(final Path rootDir, final ArchivePath archivePath) {
+        return Files.exists(archivePath.getAbsolutePath(rootDir))
+                || Files.exists(rootDir.resolve(hiddenDir).resolve(
+                        archivePath.getPath()));
+    }
+
+    /**
+     * Returns the pathname of the root-directory of the volume on which a
+     * non-administrative file is placed if it doesn't already exist. Doesn't
+     * access the file-system.
+     * 
+     * @param archivePath
+     *            The archive pathname of the file.
+     * @return The pathname of the root-directory of the volume on which the
+     *         file is placed.
+     */
+    Path getPlacement(final ArchivePath archivePath) {
+        final int pathHash = archivePath.toString().hashCode();
+        Path placement = null;
+        int maxWeight = 0;
+        for (final Path rootDir : rootDirs) {
+            final int weight = weight(pathHash, rootDir);
+            if (placement == null || weight > maxWeight) {
+                placement = rootDir;
+                maxWeight = weight;
+            }
+        }
+        return placement;
+    }
+
+    /**
+     * Returns the weight of a volume for a file. The bits of the hash-codes
+     * are mixed (as in the finalizer of MurmurHash3) so that the weights of
+     * the volumes are independent.
+     * 
+     * @param pathHash
+     *            The hash-code of the archive pathname of the file.
+     * @param rootDir
+     *            The pathname of the root-directory of the volume.
+     * @return The weight of the volume for the file.
+     */
+    private static int weight(final int pathHash, final Path rootDir) {
+        int h = 31 * pathHash + rootDir.toString().hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Returns the pathname of the root-directory of the volume that contains an
+     * absolute pathname.
+     * 
+     * @param path
+     *            The absolute pathname.
+     * @return The pathname of the root-directory of the containing volume.
+     * @throws IllegalArgumentException
+     *             if {@code path} doesn't lie in any volume.
+     */
+    Path getRootDir(final Path path) {
+        for (final Path rootDir : rootDirs) {
+            if (path.startsWith(rootDir)) {
+                return rootDir;
+            }
+        }
+        throw new IllegalArgumentException("Pathname not in archive: \""
+                + path + "\"");
+    }
+
+    /**
+     * Returns the archive pathname corresponding to an absolute pathname.
+     * 
+     * @param path
+     *            The absolute pathname.
+     * @return The corresponding archive pathname.
+     * @throws IllegalArgumentException
+     *             if {@code path} doesn't lie in any volume.
+     */
+    ArchivePath relativize(final Path path) {
+        return new ArchivePath(path, getRootDir(path));
+    }
+
+    /**
+     * Returns the absolute pathname corresponding to an archive pathname.
+     * 
+     * @param archivePath
+     *            The archive pathname.
+     * @return The corresponding absolute pathname.
+     */
+    Path resolve(final ArchivePath archivePath) {
+        return archivePath.getAbsolutePath(getRootDir(archivePath));
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ArchiveVolumes [rootDirs=" + rootDirs + "]";
+    }
+}
@@ -0,0 +1,496 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Writes pieces of data to an archive asynchronously so that the threads that
+ * receive pieces from the network don't block on disk I/O or on the processing
+ * of completed data-products. Pieces are queued to a fixed number of worker
+ * threads; all pieces of a file are handled by the same worker, in the order
+ * in which they were queued. A worker writes all the queued pieces of a file
+ * in one call to the archive so that adjacent pieces can be written together.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @param <T>
+ *            The type of the context that accompanies a piece of data (e.g.,
+ *            the peer that received it).
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ArchiveWriter<T> {
+    /**
+     * Is notified about the outcome of writing a piece of data. Called by a
+     * worker thread.
+     * 
+     * @param <T>
+     *            The type of the context that accompanies a piece of data.
+     */
+    static abstract class Listener<T> {
+        /**
+         * Handles a piece of data that was written to the archive.
+         * 
+         * @param context
+         *            The context that accompanied the piece of data.
+         * @param piece
+         *            The piece of data.
+         * @param isComplete
+         *            Whether or not the piece's file is complete.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        abstract void written(T context, Piece piece, boolean isComplete)
+                throws InterruptedException;
+
+        /**
+         * Handles a piece of data that couldn't be written to the archive.
+         * 
+         * @param context
+         *            The context that accompanied the piece of data.
+         * @param piece
+         *            The piece of data.
+         * @param e
+         *            The reason the piece couldn't be written.
+         */
+        abstract void failed(T context, Piece piece, Exception e);
+    }
+
+    /**
+     * A queued piece of data.
+     */
+    private static final class Task<T> {
+        private final T     context;
+        private final Piece piece;
+        /**
+         * When this instance was queued in nanoseconds.
+         */
+        private final long  queuedTime = System.nanoTime();
+
+        Task(final T context, final Piece piece) {
+            this.context = context;
+            this.piece = piece;
+        }
+    }
+
+    /**
+     * Writes the queued pieces of a subset of files. Terminates after being
+     * idle for a while or after writing the pieces that precede the
+     * {@link ArchiveWriter#closeTask} in its queue.
+     */
+    private final class Worker extends Thread {
+        /**
+         * The index of the worker's queue.
+         */
+        private final int                    index;
+        /**
+         * The queue of pieces to be written.
+         */
+        private final BlockingQueue<Task<T>> queue;
+
+        Worker(final int index) {
+            super("ArchiveWriter-" + index);
+            this.index = index;
+            queue = queues.get(index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final List<Task<T>> batch = new ArrayList<Task<T>>(queueCapacity);
+            try {
+                for (;;) {
+                    final Task<T> task = queue.poll(IDLE_TIMEOUT,
+                            TimeUnit.SECONDS);
+                    if (task == null) {
+                        synchronized (ArchiveWriter.this) {
+                            if (queue.isEmpty()) {
+                                workers.set(index, null);
+                                return;
+                            }
+                        }
+                    }
+                    else {
+                        batch.add(task);
+                        queue.drainTo(batch);
+                        final boolean isClosing = batch.remove(closeTask);
+                        write(batch);
+                        batch.clear();
+                        if (isClosing) {
+                            return;
+                        }
+                    }
+                }
+            }
+            catch (final InterruptedException e) {
+                logger.trace("Interrupted: {}", getName());
+            }
+            finally {
+                synchronized (ArchiveWriter.this) {
+                    if (workers.get(index) == this) {
+                        workers.set(index, null);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes a batch of pieces, grouped by file. Different versions of a
+         * file are written separately.
+         * 
+         * @param batch
+         *            The pieces to be written.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        private void write(final List<Task<T>> batch)
+                throws InterruptedException {
+            final Map<FileId, List<Task<T>>> files = new LinkedHashMap<FileId, List<Task<T>>>();
+            for (final Task<T> task : batch) {
+                final FileId fileId = task.piece.getFileInfo().getFileId();
+                List<Task<T>> tasks = files.get(fileId);
+                if (tasks == null) {
+                    tasks = new ArrayList<Task<T>>();
+                    files.put(fileId, tasks);
+                }
+                tasks.add(task);
+            }
+            for (final List<Task<T>> tasks : files.values()) {
+                final List<Piece> pieces = new ArrayList<Piece>(tasks.size());
+                for (final Task<T> task : tasks) {
+                    pieces.add(task.piece);
+                }
+                boolean isComplete = false;
+                Exception failure = null;
+                try {
+                    isComplete = archive.putPieces(pieces);
+                }
+                catch (final FileInfoMismatchException e) {
+                    failure = e;
+                }
+                catch (final IOException e) {
+                    failure = e;
+                }
+                catch (final RuntimeException e) {
+                    // The worker must survive to drain its queue
+                    failure = e;
+                }
+                queueDepth.addAndGet(-tasks.size());
+                final long now = System.nanoTime();
+                final int last = tasks.size() - 1;
+                for (int i = 0; i <= last; i++) {
+                    final Task<T> task = tasks.get(i);
+                    recordLatency(now - task.queuedTime);
+                    if (failure == null) {
+                        try {
+                            listener.written(task.context, task.piece,
+                                    isComplete && i == last);
+                        }
+                        catch (final RuntimeException e) {
+                            fail(task, e);
+                        }
+                    }
+                    else {
+                        fail(task, failure);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reports a piece of data that couldn't be written or whose writing
+         * couldn't be handled.
+         * 
+         * @param task
+         *            The queued piece of data.
+         * @param e
+         *            The reason.
+         */
+        private void fail(final Task<T> task, final Exception e) {
+            try {
+                listener.failed(task.context, task.piece, e);
+            }
+            catch (final RuntimeException e2) {
+                logger.error("Couldn't handle failure to write "
+                        + task.piece.getInfo(), e2);
+            }
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger        = Util.getLogger();
+    /**
+     * The number of seconds that a worker thread may be idle before it
+     * terminates.
+     */
+    private static final long   IDLE_TIMEOUT  = 10;
+    /**
+     * The archive.
+     */
+    private final Archive       archive;
+    /**
+     * The listener for the outcomes of writing pieces.
+     */
+    private final Listener<T>   listener;
+    /**
+     * The number of worker threads.
+     */
+    private final int           workerCount;
+    /**
+     * The capacity of the queue of each worker.
+     */
+    private final int           queueCapacity;
+    /**
+     * The queues of pieces to be written: one per worker thread.
+     */
+    private final List<BlockingQueue<Task<T>>> queues;
+    /**
+     * The worker threads. A worker is started when a piece is queued for it
+     * and terminates when idle.
+     */
+    @GuardedBy("this")
+    private final List<Worker>  workers;
+    /**
+     * The task that tells a worker to terminate once it has written the pieces
+     * that precede it.
+     */
+    private final Task<T>       closeTask     = new Task<T>(null, null);
+    /**
+     * Whether or not this instance is closed.
+     */
+    private volatile boolean    isClosed;
+    /**
+     * The number of queued, unwritten pieces.
+     */
+    private final AtomicInteger queueDepth    = new AtomicInteger(0);
+    /**
+     * The number of written pieces, successful or not.
+     */
+    private final AtomicLong    writtenCount  = new AtomicLong(0);
+    /**
+     * The total latency from queuing to writing in nanoseconds.
+     */
+    private final AtomicLong    totalLatency  = new AtomicLong(0);
+    /**
+     * The maximum latency from queuing to writing in nanoseconds.
+     */
+    private final AtomicLong    maxLatency    = new AtomicLong(0);
+
+    /**
+     * Constructs from the archive, the listener for outcomes, the number of
+     * worker threads, and the capacity of the queue of each worker. Worker
+     * threads aren't started until the first piece is queued.
+     * 
+     * @param archive
+     *            The archive.
+     * @param listener
+     *            The listener for the outcomes of writing pieces.
+     * @param workerCount
+     *            The number of worker threads.
+     * @param queueCapacity
+     *            The maximum number of queued pieces per worker thread.
+     * @throws IllegalArgumentException
+     *             if {@code workerCount <= 0 || queueCapacity <= 0}.
+     * @throws NullPointerException
+     *             if {@code archive == null || listener == null}.
+     */
+    ArchiveWriter(final Archive archive, final Listener<T> listener,
+            final int workerCount, final int queueCapacity) {
+        if (archive == null || listener == null) {
+            throw new NullPointerException();
+        }
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Invalid number of workers: "
+                    + workerCount);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid queue capacity: "
+                    + queueCapacity);
+        }
+        this.archive = archive;
+        this.listener = listener;
+        this.workerCount = workerCount;
+        this.queueCapacity = queueCapacity;
+        queues = new ArrayList<BlockingQueue<Task<T>>>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            queues.add(new ArrayBlockingQueue<Task<T>>(queueCapacity));
+        }
+        workers = new ArrayList<Worker>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(null);
+        }
+    }
+
+    /**
+     * Ensures that a worker thread is running.
+     * 
+     * @param index
+     *            The index of the worker thread.
+     */
+    private synchronized Worker ensureWorkerStarted(final int index) {
+        Worker worker = workers.get(index);
+        if (worker == null) {
+            worker = new Worker(index);
+            workers.set(index, worker);
+            worker.start();
+        }
+        return worker;
+    }
+
+    /**
+     * Queues a piece of data for writing. Blocks while the queue of the
+     * responsible worker is full.
+     * 
+     * @param context
+     *            The context to accompany the piece of data.
+     * @param piece
+     *            The piece of data.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IllegalStateException
+     *             if {@link #close()} has been called.
+     * @throws NullPointerException
+     *             if {@code piece == null}.
+     */
+    void write(final T context, final Piece piece) throws InterruptedException {
+        if (isClosed) {
+            throw new IllegalStateException("Closed: " + this);
+        }
+        final int index = (piece.getArchivePath().hashCode() & Integer.MAX_VALUE)
+                % workerCount;
+        /*
+         * The worker is started before the piece is queued so that a full
+         * queue is always being drained.
+         */
+        ensureWorkerStarted(index);
+        queueDepth.incrementAndGet();
+        try {
+            queues.get(index).put(new Task<T>(context, piece));
+        }
+        catch (final InterruptedException e) {
+            queueDepth.decrementAndGet();
+            throw e;
+        }
+        /*
+         * The worker is also started after the piece is queued so that an idle
+         * worker can't terminate with a non-empty queue.
+         */
+        ensureWorkerStarted(index);
+    }
+
+    /**
+     * Closes this instance. Writes the queued pieces of data and waits for the
+     * worker threads to terminate. Should be called after the threads that
+     * queue pieces have stopped and before the archive is closed. Idempotent.
+     * <p>
+     * This method is potentially slow.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void close() throws InterruptedException {
+        isClosed = true;
+        for (int index = 0; index < workerCount; index++) {
+            ensureWorkerStarted(index);
+            queues.get(index).put(closeTask);
+            final Worker worker;
+            synchronized (this) {
+                // The worker that takes the close-task terminates
+                worker = queues.get(index).isEmpty()
+                        ? workers.get(index)
+                        : ensureWorkerStarted(index);
+            }
+            if (worker != null) {
+                worker.join();
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a piece of data.
+     * 
+     * @param latency
+     *            The time from queuing to writing in nanoseconds.
+     */
+    private void recordLatency(final long latency) {
+        writtenCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        for (long max = maxLatency.get(); latency > max
+                && !maxLatency.compareAndSet(max, latency); max = maxLatency
+                .get()) {
+        }
+    }
+
+    /**
+     * Returns the number of queued pieces that haven't been written.
+     * 
+     * @return The number of queued, unwritten pieces.
+     */
+    int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the number of pieces whose writing was attempted.
+     * 
+     * @return The number of pieces whose writing was attempted.
+     */
+    long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the mean latency from queuing to writing.
+     * 
+     * @return The mean latency in nanoseconds or {@code 0} if no pieces have
+     *         been written.
+     */
+    long getMeanLatency() {
+        final long count = writtenCount.get();
+        return count == 0
+                ? 0
+                : totalLatency.get() / count;
+    }
+
+    /**
+     * Returns the maximum latency from queuing to writing.
+     * 
+     * @return The maximum latency in nanoseconds.
+     */
+    long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ArchiveWriter [workerCount=" + workerCount + ", queueDepth="
+                + getQueueDepth() + ", writtenCount=" + getWrittenCount()
+                + ", meanLatency=" + getMeanLatency() + " ns, maxLatency="
+                + getMaxLatency() + " ns]";
+    }
+}
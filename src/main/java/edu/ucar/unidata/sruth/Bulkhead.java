@@ -0,0 +1,311 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Executes another action on its own, bounded set of threads so that a
+ * backlogged action (e.g., a slow decoder) can't delay other actions.
+ * {@link #start(Matcher, DataProduct, Action.Completion)} returns as soon as
+ * the data-product is queued and the outcome is reported when the action has
+ * finished. A data-product that arrives when the queue is full is rejected and
+ * counted; the rejection is signaled by a {@link BulkheadFullException} so that
+ * the caller can offer the data-product again later without treating it as a
+ * failure of the action.
+ * <p>
+ * Data-products are acted upon in the order in which they were queued only if
+ * the concurrency limit is one. A concurrency limit greater than one requires
+ * an action that's thread-safe (see {@link Action#isThreadSafe()}).
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class Bulkhead extends Action {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger    logger        = Util.getLogger();
+    /**
+     * The number of seconds that an idle thread is kept.
+     */
+    private static final long      KEEP_ALIVE    = 60;
+    /**
+     * The action to execute.
+     */
+    private final Action           action;
+    /**
+     * The maximum number of concurrent executions.
+     */
+    private final int              concurrency;
+    /**
+     * The maximum number of queued data-products.
+     */
+    private final int              queueSize;
+    /**
+     * The executor. Created when needed.
+     */
+    @GuardedBy("this")
+    private ThreadPoolExecutor     executor;
+    /**
+     * The number of rejected data-products.
+     */
+    private final AtomicLong       rejectedCount = new AtomicLong(0);
+    /**
+     * The latencies from queuing to completion of the action.
+     */
+    private final LatencyHistogram latencies     = new LatencyHistogram();
+
+    /**
+     * Constructs from the action to execute, the maximum number of concurrent
+     * executions, and the maximum number of queued data-products.
+     * 
+     * @param action
+     *            The action to execute.
+     * @param concurrency
+     *            The maximum number of concurrent executions of the action.
+     * @param queueSize
+     *            The maximum number of data-products waiting to be acted upon.
+     * @throws IllegalArgumentException
+     *             if {@code concurrency <= 0 || queueSize <= 0}.
+     * @throws IllegalArgumentException
+     *             if {@code concurrency > 1} and the action isn't thread-safe.
+     * @throws NullPointerException
+     *             if {@code action == null}.
+     */
+    Bulkhead(final Action action, final int concurrency, final int queueSize) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: "
+                    + concurrency);
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Invalid queue size: "
+                    + queueSize);
+        }
+        if (concurrency > 1 && !action.isThreadSafe()) {
+            throw new IllegalArgumentException(
+                    "Action isn't thread-safe; concurrency must be 1: "
+                            + action);
+        }
+        this.action = action;
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Returns the executor, creating it if necessary.
+     * 
+     * @return The executor.
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(concurrency, concurrency,
+                    KEEP_ALIVE, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "Bulkhead-" + action);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Queues a data-product for the action. The outcome is reported to the
+     * completion when the action has finished.
+     * 
+     * @param matcher
+     *            The {@link Matcher} returned from
+     *            {@link DataProduct#matcher(java.util.regex.Pattern)}. Not
+     *            used after this method returns.
+     * @param dataProduct
+     *            The data-product to be acted upon.
+     * @param completion
+     *            What to tell the outcome of the action.
+     * @return {@code false}.
+     * @throws BulkheadFullException
+     *             if the data-product was rejected because the queue is full.
+     */
+    @Override
+    boolean start(final Matcher matcher, final DataProduct dataProduct,
+            final Completion completion) throws BulkheadFullException {
+        /*
+         * The matcher is reused by the caller, so a new one is given to the
+         * action.
+         */
+        final Matcher ownMatcher = dataProduct.matcher(matcher.pattern());
+        if (!ownMatcher.matches()) {
+            throw new AssertionError();
+        }
+        final long queuedTime = System.nanoTime();
+        try {
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        action.execute(ownMatcher, dataProduct);
+                    }
+                    catch (final IOException e) {
+                        completion.failed(e);
+                        return;
+                    }
+                    catch (final RuntimeException e) {
+                        completion.failed(e);
+                        return;
+                    }
+                    catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        completion.failed(e);
+                        return;
+                    }
+                    latencies.record(System.nanoTime() - queuedTime);
+                    completion.succeeded();
+                }
+            });
+        }
+        catch (final RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            logger.debug("Rejected by {}: {}", this, dataProduct);
+            throw new BulkheadFullException(this, e);
+        }
+        return false;
+    }
+
+    /**
+     * Executes the action on a data-product on this instance's threads and
+     * waits for it to finish.
+     * 
+     * @param matcher
+     *            The {@link Matcher} returned from
+     *            {@link DataProduct#matcher(java.util.regex.Pattern)}. Not
+     *            used after this method returns.
+     * @param dataProduct
+     *            The data-product to be acted upon.
+     * @throws IOException
+     *             if the data-product was rejected or the action failed.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    @Override
+    void execute(final Matcher matcher, final DataProduct dataProduct)
+            throws IOException, InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        start(matcher, dataProduct, new Completion() {
+            @Override
+            void succeeded() {
+                done.countDown();
+            }
+
+            @Override
+            void failed(final Exception cause) {
+                failure.set(cause);
+                done.countDown();
+            }
+        });
+        done.await();
+        final Exception cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause != null) {
+            throw new IOException("Couldn't process data-product: "
+                    + dataProduct, cause);
+        }
+    }
+
+    /**
+     * Returns the number of data-products waiting to be acted upon.
+     * 
+     * @return The number of queued data-products.
+     */
+    synchronized int getQueueDepth() {
+        return executor == null
+                ? 0
+                : executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of data-products that were rejected because the
+     * queue was full.
+     * 
+     * @return The number of rejected data-products.
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the histogram of latencies from queuing to completion of the
+     * action.
+     * 
+     * @return The histogram of latencies.
+     */
+    LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Waits for the queued data-products to be acted upon and then closes the
+     * action. The instance may be used afterwards.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    @Override
+    void close() throws InterruptedException {
+        final ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        action.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead [action=" + action + ", concurrency=" + concurrency
+                + ", queueDepth=" + getQueueDepth() + ", rejected="
+                + getRejectedCount() + ", latencies=" + latencies + "]";
+    }
+}
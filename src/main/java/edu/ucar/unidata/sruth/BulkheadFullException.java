@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+
+/**
+ * Thrown to indicate that a {@link Bulkhead} didn't accept a data-product
+ * because its queue is full. This is backpressure rather than a failure of
+ * the action: the data-product should be offered again later.
+ * 
+ * Instances are immutable.
+ * 
+ * @author Steven R. Emmerson
+ */
+final class BulkheadFullException extends IOException {
+    /**
+     * The serial version identifier
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs from the bulkhead and the cause.
+     *
+     * @param bulkhead
+     *            The bulkhead whose queue is full.
+     * @param cause
+     *            The cause.
+     */
+    BulkheadFullException(final Bulkhead bulkhead, final Throwable cause) {
+        super("Queue full: " + bulkhead, cause);
+    }
+}
@@ -16,6 +16,7 @@ import java.util.LinkedList;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -74,10 +75,57 @@ final class ClearingHouse {
         }
     }
 
+    /**
+     * Handles the outcomes of asynchronously writing pieces of data.
+     */
+    private final class WriteListener extends ArchiveWriter.Listener<Peer> {
+        @Override
+        void written(final Peer peer, final Piece piece,
+                final boolean isComplete) throws InterruptedException {
+            if (isComplete) {
+                predicate.removeIfPossible(piece.getFileInfo());
+                receivedFileCount.incrementAndGet();
+            }
+            peer.written(piece);
+            notifyOtherPeers(peer, piece.getInfo());
+            pendingRequests.remove(piece.getInfo());
+        }
+
+        @Override
+        void failed(final Peer peer, final Piece piece, final Exception e) {
+            if (e instanceof FileInfoMismatchException) {
+                peer.mismatched((FileInfoMismatchException) e);
+            }
+            else if (e instanceof FileNotFoundException) {
+                // The file has been deleted
+                logger.debug("Can't add data to removed file \"{}\"",
+                        piece.getArchivePath());
+            }
+            else {
+                logger.error("Couldn't write " + piece.getInfo(), e);
+            }
+            pendingRequests.remove(piece.getInfo());
+        }
+    }
+
     /**
      * The logger for this class.
      */
-    private static final Logger   logger            = Util.getLogger();
+    private static final Logger   logger                    = Util.getLogger();
+    /**
+     * The number of threads that write received pieces of data to the
+     * archive.
+     */
+    private static final int      WRITER_COUNT;
+    private static final int      WRITER_COUNT_DEFAULT      = 2;
+    private static final String   WRITER_COUNT_KEY          = "archive writer count";
+    /**
+     * The maximum number of received pieces of data that can be queued for
+     * each writer thread. Receiving threads block when the queue is full.
+     */
+    private static final int      WRITER_QUEUE_SIZE;
+    private static final int      WRITER_QUEUE_SIZE_DEFAULT = 128;
+    private static final String   WRITER_QUEUE_SIZE_KEY     = "archive writer queue size";
     /**
      * The data archive.
      */
@@ -90,17 +138,41 @@ final class ClearingHouse {
      * All the peers using this instance.
      */
     @GuardedBy("itself")
-    private final SortedSet<Peer> peers             = new TreeSet<Peer>(
-                                                            PeerComparator.INSTANCE);
+    private final SortedSet<Peer> peers                     = new TreeSet<Peer>(
+                                                              PeerComparator.INSTANCE);
     /**
      * The number of completely received files.
      */
-    private final AtomicLong      receivedFileCount = new AtomicLong(0);
+    private final AtomicLong      receivedFileCount         = new AtomicLong(0);
+    /**
+     * The number of bytes of data-pieces sent to remote peers.
+     */
+    private final AtomicLong      sentByteCount             = new AtomicLong(0);
     /**
      * The set of pending data-piece requests (i.e., requests that have been
      * sent but whose referenced data-pieces have not yet arrived)
      */
-    private final SpecSet         pendingRequests   = new SpecSet();
+    private final SpecSet         pendingRequests           = new SpecSet();
+    /**
+     * The asynchronous writer of received pieces of data.
+     */
+    private final ArchiveWriter<Peer> writer;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(ClearingHouse.class);
+        WRITER_COUNT = prefs.getInt(WRITER_COUNT_KEY, WRITER_COUNT_DEFAULT);
+        if (WRITER_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + WRITER_COUNT_KEY + "\": " + WRITER_COUNT);
+        }
+        WRITER_QUEUE_SIZE = prefs.getInt(WRITER_QUEUE_SIZE_KEY,
+                WRITER_QUEUE_SIZE_DEFAULT);
+        if (WRITER_QUEUE_SIZE <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + WRITER_QUEUE_SIZE_KEY + "\": " + WRITER_QUEUE_SIZE);
+        }
+    }
 
     /**
      * Constructs from the data archive and a specification of the
@@ -119,6 +191,22 @@ final class ClearingHouse {
         }
         this.archive = archive;
         this.predicate = predicate;
+        writer = new ArchiveWriter<Peer>(archive, new WriteListener(),
+                WRITER_COUNT, WRITER_QUEUE_SIZE);
+    }
+
+    /**
+     * Closes this instance. Writes the received pieces of data that are still
+     * queued. Should be called after the peers have stopped and before the
+     * archive is closed.
+     * <p>
+     * This method is potentially slow.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void close() throws InterruptedException {
+        writer.close();
     }
 
     /**
@@ -237,18 +325,25 @@ final class ClearingHouse {
     }
 
     /**
-     * Processes a piece of data that was received by a local peer. May cause
-     * the resulting, complete data-product to be processed. May block queuing
-     * data-product for processing.
+     * Processes a piece of data that was received by a local peer. The piece is
+     * normally queued for writing by a separate thread and this method returns
+     * immediately unless the queue is full. A piece of a file that would
+     * satisfy a filter by itself is written synchronously so that
+     * {@link #allDataReceived()} is accurate when this method returns.
+     * Writing a piece may cause the resulting, complete data-product to be
+     * processed. The peer is told when the piece has been written (see
+     * {@link Peer#written(Piece)}) and, if the piece was written
+     * asynchronously, if its file-information doesn't match that of the
+     * extant file (see {@link Peer#mismatched(FileInfoMismatchException)}).
      * 
      * @param peer
      *            The local peer that received the piece of data.
      * @param piece
      *            The piece of data that was received by the local peer.
-     * @return {@code true} if and only if the given data-piece was used.
      * @throws FileInfoMismatchException
-     *             if the file-information of the given piece doesn't match that
-     *             of the extant file except for the {@link FileId}.
+     *             if the piece was written synchronously and its
+     *             file-information doesn't match that of the extant file
+     *             except for the {@link FileId}.
      * @throws IllegalStateException
      *             if {@code peer} is unknown.
      * @throws InterruptedException
@@ -256,36 +351,75 @@ final class ClearingHouse {
      * @throws IOException
      *             if an I/O error occurs.
      */
-    boolean process(final Peer peer, final Piece piece)
+    void process(final Peer peer, final Piece piece)
             throws FileInfoMismatchException, IOException, InterruptedException {
-        boolean wasUsed;
-        if (!predicate.matches(piece.getFileInfo())) {
-            wasUsed = false;
+        final FileInfo fileInfo = piece.getFileInfo();
+        if (!predicate.matches(fileInfo)) {
+            pendingRequests.remove(piece.getInfo());
+            return;
         }
-        else {
-            try {
-                if (archive.putPiece(piece)) {
-                    predicate.removeIfPossible(piece.getFileInfo());
-                    receivedFileCount.incrementAndGet();
-                }
-                final PieceSpec pieceSpec = piece.getInfo();
-                synchronized (peers) {
-                    for (final Peer otherPeer : peers) {
-                        if (PeerComparator.INSTANCE.compare(peer, otherPeer) != 0) {
-                            otherPeer.notifyRemoteIfDesired(pieceSpec);
-                        }
-                    }
-                }
+        if (!predicate.matchesOnly(fileInfo)) {
+            writer.write(peer, piece);
+            return;
+        }
+        try {
+            if (archive.putPiece(piece)) {
+                predicate.removeIfPossible(fileInfo);
+                receivedFileCount.incrementAndGet();
             }
-            catch (final FileNotFoundException e) {
-                // The file has been deleted
-                logger.debug("Can't add data to removed file \"{}\"",
-                        piece.getArchivePath());
+            peer.written(piece);
+            notifyOtherPeers(peer, piece.getInfo());
+        }
+        catch (final FileNotFoundException e) {
+            // The file has been deleted
+            logger.debug("Can't add data to removed file \"{}\"",
+                    piece.getArchivePath());
+        }
+        finally {
+            pendingRequests.remove(piece.getInfo());
+        }
+    }
+
+    /**
+     * Notifies the peers other than the one that received a piece of data about
+     * the piece.
+     * 
+     * @param peer
+     *            The local peer that received the piece of data.
+     * @param pieceSpec
+     *            Information on the piece of data.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void notifyOtherPeers(final Peer peer, final PieceSpec pieceSpec)
+            throws InterruptedException {
+        synchronized (peers) {
+            for (final Peer otherPeer : peers) {
+                if (PeerComparator.INSTANCE.compare(peer, otherPeer) != 0) {
+                    otherPeer.notifyRemoteIfDesired(pieceSpec);
+                }
             }
-            wasUsed = true;
         }
-        pendingRequests.remove(piece.getInfo());
-        return wasUsed;
+    }
+
+    /**
+     * Returns the number of received pieces of data that are waiting to be
+     * written to the archive.
+     * 
+     * @return The number of received pieces waiting to be written.
+     */
+    int getWriteQueueDepth() {
+        return writer.getQueueDepth();
+    }
+
+    /**
+     * Returns the mean time between the queuing of a received piece of data
+     * and its writing to the archive.
+     * 
+     * @return The mean write latency in nanoseconds.
+     */
+    long getMeanWriteLatency() {
+        return writer.getMeanLatency();
     }
 
     /**
@@ -344,6 +478,26 @@ final class ClearingHouse {
         return receivedFileCount.get();
     }
 
+    /**
+     * Records the sending of a data-piece to a remote peer.
+     * 
+     * @param piece
+     *            The data-piece.
+     */
+    void sent(final Piece piece) {
+        sentByteCount.addAndGet(piece.getSize());
+    }
+
+    /**
+     * Returns the number of bytes of data-pieces sent to remote peers since
+     * this instance was created.
+     * 
+     * @return The number of bytes sent.
+     */
+    long getSentByteCount() {
+        return sentByteCount.get();
+    }
+
     /**
      * Returns the current number of contributing peers.
      * 
@@ -383,6 +537,6 @@ final class ClearingHouse {
     public String toString() {
         return getClass().getSimpleName() + "[archive=" + archive + ", peers=("
                 + peers.size() + "), pending request=("
-                + pendingRequests.size() + ")]";
+                + pendingRequests.size() + "), writer=" + writer + "]";
     }
 }
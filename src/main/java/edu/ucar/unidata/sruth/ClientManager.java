@@ -13,8 +13,10 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.file.NoSuchFileException;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -24,6 +26,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
 
@@ -62,6 +65,12 @@ final class ClientManager implements Callable<Void> {
          * The "isRunning" latch.
          */
         private final CountDownLatch isRunningLatch = new CountDownLatch(1);
+        /**
+         * Whether or not the network topology has changed since this instance
+         * last waited.
+         */
+        @GuardedBy("this")
+        private boolean              topologyChanged;
 
         /**
          * Constructs from nothing.
@@ -93,6 +102,21 @@ final class ClientManager implements Callable<Void> {
                     filteredProxy.register();
                     registered = true;
                 }
+                catch (final TrackerBusyException e) {
+                    /*
+                     * The tracker spreads out the retries of the nodes it
+                     * turns away. A little jitter keeps nodes that were told
+                     * the same time apart.
+                     */
+                    final long retryAfter = e
+                            .getRetryAfter(TimeUnit.MILLISECONDS);
+                    logger.debug("Tracker {} is busy. Retrying in {} ms...",
+                            trackerProxy.getAddress(), retryAfter);
+                    Thread.sleep(retryAfter
+                            + ThreadLocalRandom.current().nextLong(
+                                    retryAfter / 4 + 1));
+                    continue;
+                }
                 catch (final SocketTimeoutException e) {
                     logger.debug(
                             "Connection attempt to tracker timed-out: {}. Continuing...",
@@ -188,11 +212,20 @@ final class ClientManager implements Callable<Void> {
         }
 
         /**
-         * Removes the worst-performing client.
+         * Removes the worst-performing client. The client of the parent
+         * assigned by the tracker is kept if there's another client.
          */
         private synchronized void removeWorstClient() {
             if (!rankedClients.isEmpty()) {
-                final RankedClient rankedClient = rankedClients.first();
+                final InetSocketAddress parent = filteredProxy.getParent();
+                final Iterator<RankedClient> iter = rankedClients.iterator();
+                RankedClient rankedClient = iter.next();
+                if (parent != null
+                        && iter.hasNext()
+                        && AddressComparator.INSTANCE.compare(parent,
+                                rankedClient.client.getServerAddress()) == 0) {
+                    rankedClient = iter.next();
+                }
                 rankedClients.remove(rankedClient);
                 final Client client = rankedClient.client;
                 client.cancel();
@@ -236,35 +269,124 @@ final class ClientManager implements Callable<Void> {
          * Returns information on the best server to connect to next.
          * 
          * @param topology
-         *            The current state of the network. May be modified by this
-         *            method.
+         *            The current state of the network. Not modified.
          * @return Address of the next server to connect to or {@code null} if
          *         no such server exists.
          */
         private InetSocketAddress computeBestServer(final Topology topology) {
             /*
-             * Remove servers from the network that should not be considered.
+             * Exclude servers from the network that should not be considered.
              */
+            final Set<InetSocketAddress> excluded = new TreeSet<InetSocketAddress>(
+                    AddressComparator.INSTANCE);
             synchronized (this) {
                 for (final Client client : clients) {
-                    topology.remove(client.getServerAddress());
+                    excluded.add(client.getServerAddress());
                 }
-                topology.remove(invalidServers);
+                excluded.addAll(invalidServers);
                 final Collection<Peer> extantPeers = clearingHouse
                         .getPeers(filter);
                 for (final Peer peer : extantPeers) {
-                    topology.remove(peer.getRemoteServerSocketAddress());
+                    excluded.add(peer.getRemoteServerSocketAddress());
+                }
+            }
+            excluded.add(localServer);
+            /*
+             * The parent assigned by the tracker comes first. The source-server
+             * is only used by its children in the distribution overlay unless
+             * there's no alternative.
+             */
+            final InetSocketAddress parent = filteredProxy.getParent();
+            InetSocketAddress bestServer;
+            if (parent != null && !excluded.contains(parent)
+                    && !isPeer(parent)) {
+                bestServer = parent;
+            }
+            else {
+                final InetSocketAddress source = filteredProxy.getSource();
+                final boolean sourceWithheld = source != null
+                        && excluded.add(source);
+                bestServer = selectServer(topology, excluded);
+                if (bestServer == null && sourceWithheld) {
+                    excluded.remove(source);
+                    bestServer = selectServer(topology, excluded);
                 }
             }
-            topology.remove(localServer);
-            final InetSocketAddress bestServer = topology.getBestServer(filter);
             logger.debug("Best server is {}", bestServer);
             return bestServer;
         }
 
+        /**
+         * Returns the server to connect to from amongst the servers that
+         * aren't excluded.
+         * 
+         * @param topology
+         *            The current state of the network. Not modified.
+         * @param excluded
+         *            The servers that must not be returned. Modified.
+         * @return Address of the server to connect to or {@code null} if no
+         *         such server exists.
+         */
+        private InetSocketAddress selectServer(final Topology topology,
+                final Set<InetSocketAddress> excluded) {
+            for (;;) {
+                final InetSocketAddress server = serverSelector.select(
+                        topology, filter, excluded);
+                /*
+                 * Selection can take a while because it might measure
+                 * round-trip times. During that time, the selected server
+                 * might have connected to this node, in which case connecting
+                 * to it would duplicate the peering.
+                 */
+                if (server == null || !isPeer(server)) {
+                    return server;
+                }
+                excluded.add(server);
+            }
+        }
+
+        /**
+         * Indicates if a server is the remote server of an extant peer of this
+         * instance's filter.
+         * 
+         * @param server
+         *            The address of the server.
+         * @return {@code true} if and only if the server is the remote server
+         *         of an extant peer.
+         */
+        private boolean isPeer(final InetSocketAddress server) {
+            for (final Peer peer : clearingHouse.getPeers(filter)) {
+                if (AddressComparator.INSTANCE.compare(server,
+                        peer.getRemoteServerSocketAddress()) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Wakes this instance if it's waiting for a server to become available
+         * because the network topology has changed.
+         */
+        synchronized void topologyChanged() {
+            topologyChanged = true;
+            notifyAll();
+        }
+
+        /**
+         * Wakes this instance if it's waiting for a client to terminate.
+         */
+        synchronized void clientTerminated() {
+            notifyAll();
+        }
+
         /**
          * Waits until done or a timeout occurs or (optionally) a new client is
-         * needed.
+         * needed. If a new client isn't needed, then the network topology
+         * changing also ends the wait and the timeout is a backoff: the actual
+         * wait is randomly between one half and all of it so that nodes that
+         * failed together (e.g., because the tracker or source-node restarted)
+         * don't retry together.
          * <p>
          * This operation is potentially slow.
          * 
@@ -281,12 +403,19 @@ final class ClientManager implements Callable<Void> {
                 final boolean returnIfNeedClient, final int timeout)
                 throws InterruptedException {
             long delay = 1000 * timeout;
+            if (!returnIfNeedClient && delay > 0) {
+                delay = delay / 2
+                        + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            }
             while (!Thread.currentThread().isInterrupted()
-                    && (!returnIfNeedClient || enoughClients()) && delay > 0) {
+                    && (!returnIfNeedClient || enoughClients())
+                    && (returnIfNeedClient || !topologyChanged) && delay > 0) {
                 final long start = System.currentTimeMillis();
-                wait(delay); // notified by terminating client and stop()
+                // notified by terminating client, topology change, and stop()
+                wait(delay);
                 delay -= (System.currentTimeMillis() - start);
             }
+            topologyChanged = false;
             return (delay > 0)
                     ? 0
                     : Math.min(Math.max(2 * timeout, 1), REPLACEMENT_PERIOD);
@@ -498,6 +627,9 @@ final class ClientManager implements Callable<Void> {
                     redistributeRequests(specs);
                     ClientManager.this.notifyAll();
                 }
+                // Outside the lock on this client-manager to preserve lock
+                // order
+                clientCreator.clientTerminated();
             }
             return allDataReceived;
         }
@@ -592,6 +724,10 @@ final class ClientManager implements Callable<Void> {
      */
     @GuardedBy("this")
     private final List<Client>                 clients                                      = new LinkedList<Client>();
+    /**
+     * The selector of servers to connect to.
+     */
+    private final ServerSelector               serverSelector                               = new ServerSelector();
     /**
      * The set of offline servers.
      */
@@ -687,6 +823,15 @@ final class ClientManager implements Callable<Void> {
         return localServer;
     }
 
+    /**
+     * Notifies this instance that the relevant part of the network topology
+     * has changed, so that a server that has just become available can be
+     * used immediately.
+     */
+    void topologyChanged() {
+        clientCreator.topologyChanged();
+    }
+
     /**
      * Runs this instance. Returns if and only if all desired-data was received.
      * 
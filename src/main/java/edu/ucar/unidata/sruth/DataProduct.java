@@ -7,32 +7,144 @@ package edu.ucar.unidata.sruth;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
 
 /**
  * A data-product.
- * 
+ * <p>
+ * A data-product can carry its data in memory, in which case the data is read
+ * from memory rather than from the file-tree of the archive and the
+ * data-product might not exist as a file.
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
 @ThreadSafe
 final class DataProduct {
+    /**
+     * A read-only I/O channel to a buffer.
+     */
+    @NotThreadSafe
+    private static final class BufferChannel implements SeekableByteChannel {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buf;
+        /**
+         * Whether or not this instance is open.
+         */
+        private boolean          isOpen = true;
+
+        /**
+         * Constructs from a buffer.
+         * 
+         * @param buf
+         *            The buffer. Its position and limit will be modified.
+         */
+        BufferChannel(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Throws an exception if this instance is closed.
+         * 
+         * @throws ClosedChannelException
+         *             if this instance is closed.
+         */
+        private void vetOpen() throws ClosedChannelException {
+            if (!isOpen) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            vetOpen();
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(dst.remaining(), buf.remaining());
+            final ByteBuffer src = buf.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            buf.position(buf.position() + n);
+            return n;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            vetOpen();
+            return buf.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(final long newPosition)
+                throws IOException {
+            vetOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Invalid position: "
+                        + newPosition);
+            }
+            buf.position((int) Math.min(newPosition, buf.limit()));
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            vetOpen();
+            return buf.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(final long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return isOpen;
+        }
+
+        @Override
+        public void close() {
+            isOpen = false;
+        }
+    }
+
     /**
      * The absolute pathname of the root-directory of the archive.
      */
-    private final Path     archivePath;
+    private final Path       archivePath;
     /**
      * Information on the file.
      */
-    private final FileInfo fileInfo;
+    private final FileInfo   fileInfo;
+    /**
+     * The data of the data-product or {@code null} if the data must be read
+     * from the file.
+     */
+    private final ByteBuffer contents;
 
     /**
      * Constructs from the absolute pathname of the root-directory of the
@@ -50,14 +162,75 @@ final class DataProduct {
      *             if {@code archivePath == null || fileInfo == null}.
      */
     DataProduct(final Path archivePath, final FileInfo fileInfo) {
+        this(archivePath, fileInfo, null);
+    }
+
+    /**
+     * Constructs from the absolute pathname of the root-directory of the
+     * archive, the pathname of the file relative to the root-directory, and
+     * the data of the data-product.
+     * 
+     * @param archivePath
+     *            The pathname of the root-directory of the archive.
+     * @param fileInfo
+     *            Information on the file.
+     * @param contents
+     *            The data of the data-product or {@code null}, in which case
+     *            the data will be read from the file. Must not be modified
+     *            afterwards.
+     * @throws IllegalArgumentException
+     *             if {@code archivePath} isn't absolute.
+     * @throws IllegalArgumentException
+     *             if {@code contents != null} and the amount of data differs
+     *             from the size of the file.
+     * @throws NullPointerException
+     *             if {@code archivePath == null || fileInfo == null}.
+     */
+    DataProduct(final Path archivePath, final FileInfo fileInfo,
+            final ByteBuffer contents) {
         if (!archivePath.isAbsolute()) {
             throw new IllegalArgumentException("Not absolute: " + archivePath);
         }
         if (fileInfo == null) {
             throw new NullPointerException();
         }
+        if (contents != null && contents.remaining() != fileInfo.getSize()) {
+            throw new IllegalArgumentException("Data has " + contents.remaining()
+                    + " bytes; should have " + fileInfo.getSize());
+        }
         this.archivePath = archivePath;
         this.fileInfo = fileInfo;
+        this.contents = contents == null
+                ? null
+                : contents.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a read-only mapping of a file.
+     * 
+     * @param path
+     *            The pathname of the file.
+     * @return A read-only mapping of the file.
+     * @throws IOException
+     *             if the file is too large to be mapped.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static ByteBuffer map(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to be mapped: " + path);
+            }
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .asReadOnlyBuffer();
+        }
+        finally {
+            channel.close();
+        }
     }
 
     /**
@@ -69,6 +242,15 @@ final class DataProduct {
         return fileInfo;
     }
 
+    /**
+     * Returns the absolute pathname of the root-directory of the archive.
+     * 
+     * @return The absolute pathname of the root-directory of the archive.
+     */
+    Path getRootDir() {
+        return archivePath;
+    }
+
     /**
      * Returns the size of the data-product in bytes.
      * 
@@ -100,8 +282,34 @@ final class DataProduct {
         return fileInfo.matcher(pattern);
     }
 
+    /**
+     * Indicates if this instance carries its data in memory.
+     * 
+     * @return {@code true} if and only if this instance carries its data in
+     *         memory.
+     */
+    boolean hasContents() {
+        return contents != null;
+    }
+
+    /**
+     * Returns the data of this instance as a read-only buffer. If this instance
+     * doesn't carry its data in memory, then the file is mapped read-only.
+     * 
+     * @return The data of this instance. The caller may modify the position
+     *         and limit of the returned buffer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    ByteBuffer getContents() throws IOException {
+        return contents == null
+                ? map(fileInfo.getAbsolutePath(archivePath))
+                : contents.duplicate();
+    }
+
     /**
      * Returns the absolute pathname of the file that contains the data-product.
+     * The file might not exist if this instance carries its data in memory.
      * 
      * @return the absolute pathname of the file that contains the data-product.
      */
@@ -118,10 +326,52 @@ final class DataProduct {
      *             if an I/O error occurs.
      */
     SeekableByteChannel getReadonlyChannel() throws IOException {
+        if (contents != null) {
+            return new BufferChannel(contents.duplicate());
+        }
         final Path path = fileInfo.getAbsolutePath(archivePath);
         return Files.newByteChannel(path, StandardOpenOption.READ);
     }
 
+    /**
+     * Writes this instance's data to an output stream. Works whether or not
+     * this instance carries its data in memory. The output stream isn't
+     * flushed or closed.
+     * 
+     * @param output
+     *            The output stream.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void writeTo(final OutputStream output) throws IOException {
+        final SeekableByteChannel input = getReadonlyChannel();
+        try {
+            final WritableByteChannel channel = Channels.newChannel(output);
+            final ByteBuffer buf = ByteBuffer.allocate(8192);
+            while (input.read(buf) >= 0) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                buf.clear();
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Indicates if this instance's data is still available.
+     * 
+     * @return {@code true} if and only if this instance carries its data in
+     *         memory or its file exists.
+     */
+    boolean exists() {
+        return contents != null
+                || Files.exists(fileInfo.getAbsolutePath(archivePath));
+    }
+
     /*
      * (non-Javadoc)
      * 
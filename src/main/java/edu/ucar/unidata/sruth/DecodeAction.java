@@ -5,35 +5,180 @@
  */
 package edu.ucar.unidata.sruth;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
 
 /**
  * Pipes a data-product to a command.
+ * <p>
+ * By default, a new decoder process is started for each data-product and the
+ * data-product appears on its standard input stream. Alternatively, a pool of
+ * long-lived decoder processes can be used, in which case each data-product is
+ * written to the standard input stream of one of the processes as a frame
+ * consisting of a header line and the data-product's bytes. The header line
+ * is the size of the data-product in bytes as a decimal number, a space, the
+ * archive pathname of the data-product, and a newline (UTF-8). A decoder
+ * process should terminate when its standard input stream is closed. A
+ * decoder process that can't be written to is restarted.
  * 
- * Instances are thread-compatible but not thread-safe.
+ * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
-@NotThreadSafe
+@ThreadSafe
 public final class DecodeAction extends Action {
+    /**
+     * A long-lived decoder process.
+     */
+    @ThreadSafe
+    private final class DecoderProcess {
+        /**
+         * The decoder process or {@code null}.
+         */
+        @GuardedBy("this")
+        private Process      process;
+        /**
+         * The standard input stream of the decoder process.
+         */
+        @GuardedBy("this")
+        private OutputStream input;
+
+        /**
+         * Ensures that the decoder process is running.
+         * 
+         * @throws IOException
+         *             if the decoder process can't be started.
+         */
+        private synchronized void ensureStarted() throws IOException {
+            if (process != null && !isAlive(process)) {
+                logger.error("Decoder \"{}\" terminated with status {}. "
+                        + "Restarting it.", Util.formatCommand(command),
+                        process.exitValue());
+                destroy();
+            }
+            if (process == null) {
+                final ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectOutput(Redirect.INHERIT);
+                process = builder.start();
+                input = new BufferedOutputStream(process.getOutputStream());
+                logErrors(process);
+            }
+        }
+
+        /**
+         * Writes a data-product to the decoder process. Restarts the decoder
+         * process and tries again if the data-product can't be written.
+         * 
+         * @param dataProduct
+         *            The data-product.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        synchronized void decode(final DataProduct dataProduct)
+                throws IOException {
+            for (int attempt = 0;; attempt++) {
+                ensureStarted();
+                try {
+                    final String header = dataProduct.size() + " "
+                            + dataProduct.getFileInfo().getPath() + "\n";
+                    input.write(header.getBytes(UTF8));
+                    dataProduct.writeTo(input);
+                    input.flush();
+                    return;
+                }
+                catch (final IOException e) {
+                    destroy();
+                    if (attempt > 0) {
+                        throw e;
+                    }
+                    logger.error("Couldn't write to decoder \"{}\": {}. "
+                            + "Restarting it.", Util.formatCommand(command),
+                            e.toString());
+                }
+            }
+        }
+
+        /**
+         * Closes the standard input stream of the decoder process and waits a
+         * while for the process to terminate before destroying it. Idempotent.
+         * 
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        synchronized void close() throws InterruptedException {
+            if (process != null) {
+                try {
+                    input.close();
+                }
+                catch (final IOException ignored) {
+                }
+                for (int i = 0; i < CLOSE_TIMEOUT / 100 && isAlive(process); i++) {
+                    Thread.sleep(100);
+                }
+                destroy();
+            }
+        }
+
+        /**
+         * Destroys the decoder process.
+         */
+        private synchronized void destroy() {
+            if (process != null) {
+                process.destroy();
+                process = null;
+                input = null;
+            }
+        }
+    }
+
     /**
      * The logger for this class.
      */
-    private static Logger  logger = Util.getLogger();
+    private static Logger                       logger        = Util.getLogger();
+    /**
+     * The character-set of frame headers.
+     */
+    private static final Charset                UTF8          = Charset.forName("UTF-8");
+    /**
+     * The time, in milliseconds, to wait for a decoder process to terminate
+     * after its standard input stream is closed.
+     */
+    private static final long                   CLOSE_TIMEOUT = 5000;
     /**
      * The decoder command.
      */
-    private final String[] command;
+    private final String[]                      command;
+    /**
+     * The arguments of the decoder command, parsed for references to capturing
+     * groups.
+     */
+    private final Template[]                    templates;
+    /**
+     * The long-lived decoder processes. Empty if a decoder process is started
+     * for each data-product.
+     */
+    private final List<DecoderProcess>          processes;
+    /**
+     * The long-lived decoder processes that aren't in use, in the order in
+     * which they'll be used.
+     */
+    private final BlockingQueue<DecoderProcess> idleProcesses;
 
     /**
      * Constructs from the decoder command.
@@ -47,7 +192,50 @@ public final class DecodeAction extends Action {
      *             if {@code command == null}.
      */
     public DecodeAction(final String[] command) {
+        this(command, 0);
+    }
+
+    /**
+     * Constructs from the decoder command and the number of long-lived
+     * decoder processes.
+     * 
+     * @param command
+     *            The individual arguments of the decoder command. If
+     *            {@code processCount > 0}, then the arguments must not contain
+     *            references to capturing groups.
+     * @param processCount
+     *            The number of long-lived decoder processes or {@code 0} if a
+     *            decoder process should be started for each data-product.
+     * @throws IllegalArgumentException
+     *             if {@code processCount < 0} or if
+     *             {@code processCount > 0} and an argument contains a
+     *             reference to a capturing group.
+     * @throws NullPointerException
+     *             if {@code command == null}.
+     */
+    public DecodeAction(final String[] command, final int processCount) {
+        if (processCount < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid number of decoder processes: " + processCount);
+        }
         this.command = command.clone();
+        templates = parse(this.command);
+        processes = new ArrayList<DecoderProcess>(processCount);
+        idleProcesses = new LinkedBlockingQueue<DecoderProcess>();
+        if (processCount > 0) {
+            for (final Template template : templates) {
+                if (template.hasReferences()) {
+                    throw new IllegalArgumentException(
+                            "Long-lived decoder argument can't reference capturing groups: \""
+                                    + template + "\"");
+                }
+            }
+        }
+        for (int i = 0; i < processCount; i++) {
+            final DecoderProcess process = new DecoderProcess();
+            processes.add(process);
+            idleProcesses.add(process);
+        }
     }
 
     /**
@@ -62,17 +250,64 @@ public final class DecodeAction extends Action {
      *             if {@code command == null}.
      */
     public DecodeAction(final List<String> command) {
-        this.command = command.toArray(new String[command.size()]);
+        this(command, 0);
+    }
+
+    /**
+     * Constructs from the decoder command and the number of long-lived
+     * decoder processes.
+     * 
+     * @param command
+     *            The individual arguments of the decoder command. If
+     *            {@code processCount > 0}, then the arguments must not contain
+     *            references to capturing groups.
+     * @param processCount
+     *            The number of long-lived decoder processes or {@code 0} if a
+     *            decoder process should be started for each data-product.
+     * @throws IllegalArgumentException
+     *             if {@code processCount < 0} or if
+     *             {@code processCount > 0} and an argument contains a
+     *             reference to a capturing group.
+     * @throws NullPointerException
+     *             if {@code command == null}.
+     */
+    public DecodeAction(final List<String> command, final int processCount) {
+        this(command.toArray(new String[command.size()]), processCount);
+    }
+
+    /**
+     * Parses the arguments of a decoder command for references to capturing
+     * groups.
+     * 
+     * @param command
+     *            The individual arguments of the decoder command.
+     * @return The parsed arguments.
+     */
+    private static Template[] parse(final String[] command) {
+        final Template[] templates = new Template[command.length];
+        for (int i = 0; i < command.length; i++) {
+            templates[i] = new Template(command[i]);
+        }
+        return templates;
     }
 
     @Override
     protected void execute(final Matcher matcher, final DataProduct dataProduct)
             throws IOException, InterruptedException {
         assert dataProduct.matches(matcher.pattern());
-        final Replacer replacer = getReplacer(matcher);
-        final String[] cmd = command.clone();
+        if (!processes.isEmpty()) {
+            final DecoderProcess process = idleProcesses.take();
+            try {
+                process.decode(dataProduct);
+            }
+            finally {
+                idleProcesses.add(process);
+            }
+            return;
+        }
+        final String[] cmd = new String[templates.length];
         for (int argIndex = 0; argIndex < cmd.length; argIndex++) {
-            cmd[argIndex] = replacer.replace(cmd[argIndex]);
+            cmd[argIndex] = templates[argIndex].expand(matcher);
         }
         decode(dataProduct, cmd);
     }
@@ -95,14 +330,20 @@ public final class DecodeAction extends Action {
             throws IOException, InterruptedException {
         final ProcessBuilder builder = new ProcessBuilder(decoder);
         /*
-         * Redirect the decoder's input stream to the data-product file,
-         * redirect the decoder's output stream to this process' output stream,
-         * and redirect the decoder's error stream back to this process.
+         * Redirect the decoder's input stream to the data-product file (if
+         * the data-product isn't in memory), redirect the decoder's output
+         * stream to this process' output stream, and redirect the decoder's
+         * error stream back to this process.
          */
-        builder.redirectInput(dataProduct.getAbsolutePath());
+        if (!dataProduct.hasContents()) {
+            builder.redirectInput(dataProduct.getAbsolutePath());
+        }
         builder.redirectOutput(Redirect.INHERIT);
         final Process process = builder.start();
         try {
+            if (dataProduct.hasContents()) {
+                writeInput(process, dataProduct);
+            }
             /*
              * Log the decoder's error stream.
              */
@@ -136,6 +377,113 @@ public final class DecodeAction extends Action {
         }
     }
 
+    @Override
+    boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Closes the long-lived decoder processes, if any. They will be restarted
+     * if this instance is subsequently executed.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    @Override
+    void close() throws InterruptedException {
+        for (final DecoderProcess process : processes) {
+            process.close();
+        }
+    }
+
+    /**
+     * Indicates if a process is running.
+     * 
+     * @param process
+     *            The process.
+     * @return {@code true} if and only if the process is running.
+     */
+    private static boolean isAlive(final Process process) {
+        try {
+            process.exitValue();
+            return false;
+        }
+        catch (final IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Writes a data-product to the standard input stream of a decoder process
+     * on a separate thread, so that the decoder's error stream can be read at
+     * the same time, and then closes the stream.
+     * 
+     * @param process
+     *            The decoder process.
+     * @param dataProduct
+     *            The data-product.
+     */
+    private void writeInput(final Process process,
+            final DataProduct dataProduct) {
+        final OutputStream input = process.getOutputStream();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dataProduct.writeTo(input);
+                }
+                catch (final IOException e) {
+                    // The decoder's status will tell if this matters
+                    logger.debug("Couldn't write {} to decoder: {}",
+                            dataProduct, e.toString());
+                }
+                finally {
+                    try {
+                        input.close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
+            }
+        }, "DecoderInput-" + command[0]);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Logs the standard error stream of a long-lived decoder process on a
+     * separate thread.
+     * 
+     * @param process
+     *            The decoder process.
+     */
+    private void logErrors(final Process process) {
+        final BufferedReader errorStream = new BufferedReader(
+                new InputStreamReader(process.getErrorStream()));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String line = errorStream.readLine(); line != null; line = errorStream
+                            .readLine()) {
+                        logger.error(line);
+                    }
+                }
+                catch (final IOException ignored) {
+                }
+                finally {
+                    try {
+                        errorStream.close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
+            }
+        }, "DecoderErrors-" + command[0]);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -144,6 +492,7 @@ public final class DecodeAction extends Action {
     @Override
     public String toString() {
         return getClass().getSimpleName() + " [command=\""
-                + Util.formatCommand(command) + "\"]";
+                + Util.formatCommand(command) + "\", processes="
+                + processes.size() + "]";
     }
 }
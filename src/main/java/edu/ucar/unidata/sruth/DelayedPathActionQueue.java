@@ -204,6 +204,27 @@ final class DelayedPathActionQueue {
         }
     }
 
+    /**
+     * Cancels the pending action on a pathname. Does nothing if the pathname
+     * isn't pending. A pathname that's already being acted upon can't be
+     * cancelled.
+     * 
+     * @param path
+     *            Pathname of the file.
+     * @throws IOException
+     *             if an I/O error occurred or occurs.
+     */
+    synchronized void cancel(final Path path) throws IOException {
+        if (exception != null) {
+            throw exception;
+        }
+        final int count = queue.remove(path);
+        if (count > 0) {
+            pendingCount -= count;
+            notifyAll();
+        }
+    }
+
     /**
      * Returns the number of pathnames that have not yet been acted upon.
      * 
@@ -8,6 +8,7 @@ package edu.ucar.unidata.sruth;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,24 +16,34 @@ import java.nio.file.StandardOpenOption;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
 
 /**
- * Files a data-product.
- * 
- * Instances are thread-compatible but not thread-safe.
+ * Files a data-product. A data-product is either copied or, if so constructed,
+ * hard-linked into place. A hard link avoids writing the data a second time
+ * but only works if the destination is on the same file-system as the archive;
+ * otherwise, the data-product is copied. Because the archive never modifies a
+ * complete file, a hard-linked data-product is unaffected by subsequent
+ * archive activity; conversely, a hard-linked file should not be modified in
+ * place by its consumer.
+ * <p>
+ * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
-@NotThreadSafe
+@ThreadSafe
 public final class FileAction extends Action {
     /**
      * Pathname of the destination file. May contain references to capturing
      * groups.
      */
-    private final String        path;
+    private final Template      path;
+    /**
+     * Whether or not to hard-link rather than copy.
+     */
+    private final boolean       link;
     /**
      * The logger.
      */
@@ -50,20 +61,76 @@ public final class FileAction extends Action {
      *             if {@code path == null}.
      */
     public FileAction(final String path) {
+        this(path, false);
+    }
+
+    /**
+     * Constructs from the pathname of the destination file and whether or not
+     * data-products should be hard-linked rather than copied.
+     * 
+     * @param path
+     *            Pathname of the destination file. May contain references to
+     *            the subsequences of capturing groups matched by
+     *            {@link DataProduct#matcher(Pattern)} of the form "$i", where
+     *            "i" is the i-th capturing group.
+     * @param link
+     *            Whether or not to hard-link data-products into place. If
+     *            {@code true} and a hard link can't be made (e.g., the
+     *            destination is on a different file-system), then the
+     *            data-product is copied.
+     * @throws NullPointerException
+     *             if {@code path == null}.
+     */
+    public FileAction(final String path, final boolean link) {
         if (path == null) {
             throw new NullPointerException();
         }
-        this.path = path;
+        this.path = new Template(path);
+        this.link = link;
     }
 
     @Override
     protected void execute(final Matcher matcher, final DataProduct dataProduct)
             throws IOException {
         assert dataProduct.matches(matcher.pattern());
-        final Replacer replacer = getReplacer(matcher);
-        final String pathname = replacer.replace(path);
-        final Path destPath = Paths.get(pathname);
-        write(dataProduct, destPath);
+        final Path destPath = Paths.get(path.expand(matcher));
+        if (!link || !link(dataProduct, destPath)) {
+            write(dataProduct, destPath);
+        }
+    }
+
+    /**
+     * Hard-links a data-product into place, replacing any existing file.
+     * 
+     * @param dataProduct
+     *            The data-product to be linked.
+     * @param destPath
+     *            The pathname of the link.
+     * @return {@code true} if and only if the link was made.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static boolean link(final DataProduct dataProduct,
+            final Path destPath) throws IOException {
+        final Path srcPath = dataProduct.getAbsolutePath().toPath();
+        Files.createDirectories(destPath.getParent());
+        Files.deleteIfExists(destPath);
+        try {
+            Files.createLink(destPath, srcPath);
+        }
+        catch (final FileSystemException e) {
+            // E.g., different file-systems or too many links
+            logger.debug("Couldn't link {} to {}: {}", new Object[] { destPath,
+                    srcPath, e.toString() });
+            return false;
+        }
+        catch (final UnsupportedOperationException e) {
+            logger.debug("Couldn't link {} to {}: {}", new Object[] { destPath,
+                    srcPath, e.toString() });
+            return false;
+        }
+        logger.info("Linked {}", destPath);
+        return true;
     }
 
     /**
@@ -108,6 +175,11 @@ public final class FileAction extends Action {
         }
     }
 
+    @Override
+    boolean isThreadSafe() {
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -115,6 +187,6 @@ public final class FileAction extends Action {
      */
     @Override
     public String toString() {
-        return "FileAction [path=" + path + "]";
+        return "FileAction [path=" + path + ", link=" + link + "]";
     }
 }
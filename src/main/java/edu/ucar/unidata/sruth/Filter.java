@@ -377,6 +377,45 @@ public class Filter implements Comparable<Filter>, Message {
                 : -1;
     }
 
+    /**
+     * Returns the number of components of the glob pattern of this instance.
+     * 
+     * @return The number of components or {@code 0} if this instance matches
+     *         everything or nothing.
+     */
+    int getComponentCount() {
+        return components == null
+                ? 0
+                : components.length;
+    }
+
+    /**
+     * Returns a component of the glob pattern of this instance.
+     * 
+     * @param index
+     *            The index of the component.
+     * @return The component: either a name or "*".
+     * @throws IndexOutOfBoundsException
+     *             if {@code index} is invalid.
+     */
+    String getComponent(final int index) {
+        if (components == null) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return components[index];
+    }
+
+    /**
+     * Returns the glob pattern of this instance.
+     * 
+     * @return The glob pattern of this instance or {@code null} if this
+     *         instance matches nothing.
+     * @see #getInstance(String)
+     */
+    String getGlob() {
+        return glob;
+    }
+
     /*
      * (non-Javadoc)
      * 
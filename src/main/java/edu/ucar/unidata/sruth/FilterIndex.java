@@ -0,0 +1,409 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * An index of the filters of a {@link Topology} and their servers. The index
+ * is a trie over the components of the filters' glob patterns. The filters
+ * that include a given filter are found by walking the trie along the given
+ * filter's components and the "*" components. This visits at most a few nodes
+ * per component instead of every filter. Each filter's servers are kept in an
+ * array-backed list, so a server can be chosen at random in constant time.
+ * <p>
+ * Instances are not thread-safe: access must be synchronized by the client.
+ * 
+ * @author Steven R. Emmerson
+ */
+@NotThreadSafe
+final class FilterIndex {
+    /**
+     * The servers of a filter. Supports constant-time addition, removal, and
+     * random access.
+     */
+    @NotThreadSafe
+    static final class Servers {
+        /**
+         * The maximum number of random probes for a server that isn't
+         * excluded before the servers are scanned.
+         */
+        private static final int                     MAX_PROBES = 8;
+        /**
+         * The servers in no particular order.
+         */
+        private final List<InetSocketAddress>        list       = new ArrayList<InetSocketAddress>();
+        /**
+         * The index of each server in the list.
+         */
+        private final Map<InetSocketAddress, Integer> positions  = new HashMap<InetSocketAddress, Integer>();
+
+        /**
+         * Adds a server.
+         * 
+         * @param server
+         *            The server.
+         * @return {@code true} if and only if the server was added.
+         */
+        private boolean add(final InetSocketAddress server) {
+            if (positions.containsKey(server)) {
+                return false;
+            }
+            positions.put(server, list.size());
+            list.add(server);
+            return true;
+        }
+
+        /**
+         * Removes a server.
+         * 
+         * @param server
+         *            The server.
+         * @return {@code true} if and only if the server was removed.
+         */
+        private boolean remove(final InetSocketAddress server) {
+            final Integer position = positions.remove(server);
+            if (position == null) {
+                return false;
+            }
+            final InetSocketAddress last = list.remove(list.size() - 1);
+            if (position < list.size()) {
+                list.set(position, last);
+                positions.put(last, position);
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of servers.
+         * 
+         * @return The number of servers.
+         */
+        int size() {
+            return list.size();
+        }
+
+        /**
+         * Returns the servers.
+         * 
+         * @return The servers. Unmodifiable and backed by this instance.
+         */
+        List<InetSocketAddress> asList() {
+            return Collections.unmodifiableList(list);
+        }
+
+        /**
+         * Indicates if at least one server isn't excluded.
+         * 
+         * @param excluded
+         *            The excluded servers.
+         * @return {@code true} if and only if at least one server isn't
+         *         excluded.
+         */
+        boolean hasAvailable(final Set<InetSocketAddress> excluded) {
+            if (excluded.size() < list.size()) {
+                return true;
+            }
+            int count = 0;
+            for (final InetSocketAddress server : excluded) {
+                if (positions.containsKey(server)) {
+                    count++;
+                }
+            }
+            return count < list.size();
+        }
+
+        /**
+         * Returns a server chosen at random from the servers that aren't
+         * excluded.
+         * 
+         * @param random
+         *            The pseudo-random number generator.
+         * @param excluded
+         *            The excluded servers.
+         * @return A server that isn't excluded or {@code null} if all are.
+         */
+        InetSocketAddress pick(final Random random,
+                final Set<InetSocketAddress> excluded) {
+            final int size = list.size();
+            if (size == 0) {
+                return null;
+            }
+            for (int i = 0; i < MAX_PROBES; i++) {
+                final InetSocketAddress server = list.get(random.nextInt(size));
+                if (!excluded.contains(server)) {
+                    return server;
+                }
+            }
+            // Many servers are excluded: choose from the rest
+            final List<InetSocketAddress> rest = new ArrayList<InetSocketAddress>();
+            for (final InetSocketAddress server : list) {
+                if (!excluded.contains(server)) {
+                    rest.add(server);
+                }
+            }
+            return rest.isEmpty()
+                    ? null
+                    : rest.get(random.nextInt(rest.size()));
+        }
+
+        /**
+         * Returns servers chosen at random from the servers that aren't
+         * excluded.
+         * 
+         * @param random
+         *            The pseudo-random number generator.
+         * @param excluded
+         *            The excluded servers.
+         * @param max
+         *            The maximum number of servers to return.
+         * @return Up to {@code max} distinct servers that aren't excluded in
+         *         random order.
+         */
+        List<InetSocketAddress> sample(final Random random,
+                final Set<InetSocketAddress> excluded, final int max) {
+            final List<InetSocketAddress> sample = new ArrayList<InetSocketAddress>(
+                    max);
+            final int size = list.size();
+            if (size <= 2 * max) {
+                for (final InetSocketAddress server : list) {
+                    if (!excluded.contains(server)) {
+                        sample.add(server);
+                    }
+                }
+                Collections.shuffle(sample, random);
+                return sample.size() > max
+                        ? new ArrayList<InetSocketAddress>(sample.subList(0,
+                                max))
+                        : sample;
+            }
+            for (int i = 0; i < MAX_PROBES * max && sample.size() < max; i++) {
+                final InetSocketAddress server = list.get(random.nextInt(size));
+                if (!excluded.contains(server) && !sample.contains(server)) {
+                    sample.add(server);
+                }
+            }
+            if (sample.isEmpty()) {
+                // Many servers are excluded: choose from the rest
+                final InetSocketAddress server = pick(random, excluded);
+                if (server != null) {
+                    sample.add(server);
+                }
+            }
+            return sample;
+        }
+
+        @Override
+        public String toString() {
+            return list.toString();
+        }
+    }
+
+    /**
+     * A node of the trie.
+     */
+    private static final class Node {
+        /**
+         * The child nodes by component.
+         */
+        private final Map<String, Node> children = new HashMap<String, Node>(
+                                                         4);
+        /**
+         * The filter whose glob pattern ends at this node or {@code null}.
+         */
+        private Filter                  filter;
+        /**
+         * The servers of the filter or {@code null}.
+         */
+        private Servers                 servers;
+    }
+
+    /**
+     * The component under which {@link Filter#NOTHING} is indexed. No filter
+     * has it, so {@link Filter#NOTHING} includes no filter.
+     */
+    private static final String NOTHING_COMPONENT = null;
+    /**
+     * The root of the trie.
+     */
+    private final Node          root              = new Node();
+    /**
+     * The number of filters.
+     */
+    private int                 size;
+
+    /**
+     * Returns the node of a filter.
+     * 
+     * @param filter
+     *            The filter.
+     * @param create
+     *            Whether or not to create the node if it doesn't exist.
+     * @return The node of the filter or {@code null} if it doesn't exist and
+     *         {@code create} is {@code false}.
+     */
+    private Node getNode(final Filter filter, final boolean create) {
+        Node node = root;
+        final int count = filter == Filter.NOTHING
+                ? 1
+                : filter.getComponentCount();
+        for (int i = 0; i < count; i++) {
+            final String component = filter == Filter.NOTHING
+                    ? NOTHING_COMPONENT
+                    : filter.getComponent(i);
+            Node child = node.children.get(component);
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                child = new Node();
+                node.children.put(component, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Adds a mapping between a filter and a server.
+     * 
+     * @param filter
+     *            The filter.
+     * @param server
+     *            The server.
+     * @return {@code true} if and only if the mapping was added.
+     */
+    boolean add(final Filter filter, final InetSocketAddress server) {
+        final Node node = getNode(filter, true);
+        if (node.servers == null) {
+            node.filter = filter;
+            node.servers = new Servers();
+            size++;
+        }
+        return node.servers.add(server);
+    }
+
+    /**
+     * Removes a mapping between a filter and a server. Removes the filter if
+     * it has no more servers.
+     * 
+     * @param filter
+     *            The filter.
+     * @param server
+     *            The server.
+     * @return {@code true} if and only if the mapping was removed.
+     */
+    boolean remove(final Filter filter, final InetSocketAddress server) {
+        final Node node = getNode(filter, false);
+        if (node == null || node.servers == null
+                || !node.servers.remove(server)) {
+            return false;
+        }
+        if (node.servers.size() == 0) {
+            // The empty node is kept: filters are few and tend to recur
+            node.filter = null;
+            node.servers = null;
+            size--;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the servers of a filter.
+     * 
+     * @param filter
+     *            The filter.
+     * @return The servers of the filter or {@code null} if the filter has no
+     *         servers.
+     */
+    Servers get(final Filter filter) {
+        final Node node = getNode(filter, false);
+        return node == null
+                ? null
+                : node.servers;
+    }
+
+    /**
+     * Returns the filters that include a given filter (see
+     * {@link Filter#includes(Filter)}).
+     * 
+     * @param filter
+     *            The given filter.
+     * @return The filters that include the given filter in their natural
+     *         order, which lists a filter before any filter that it includes.
+     */
+    List<Filter> getIncluding(final Filter filter) {
+        final List<Filter> including = new ArrayList<Filter>();
+        addIncluding(root, filter, 0, including);
+        Collections.sort(including);
+        return including;
+    }
+
+    /**
+     * Adds the filters at or below a node that include a given filter.
+     * 
+     * @param node
+     *            The node, whose depth is the number of matched components.
+     * @param filter
+     *            The given filter.
+     * @param depth
+     *            The depth of the node.
+     * @param including
+     *            The filters that include the given filter.
+     */
+    private static void addIncluding(final Node node, final Filter filter,
+            final int depth, final List<Filter> including) {
+        if (node.filter != null && node.filter.includes(filter)) {
+            including.add(node.filter);
+        }
+        if (depth < filter.getComponentCount()) {
+            final String component = filter.getComponent(depth);
+            Node child = node.children.get(component);
+            if (child != null) {
+                addIncluding(child, filter, depth + 1, including);
+            }
+            if (!"*".equals(component)) {
+                child = node.children.get("*");
+                if (child != null) {
+                    addIncluding(child, filter, depth + 1, including);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the filters.
+     */
+    void clear() {
+        root.children.clear();
+        root.filter = null;
+        root.servers = null;
+        size = 0;
+    }
+
+    /**
+     * Returns the number of filters.
+     * 
+     * @return The number of filters.
+     */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "FilterIndex [size=" + size + "]";
+    }
+}
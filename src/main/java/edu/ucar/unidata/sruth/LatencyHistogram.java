@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A histogram of latencies with logarithmically-sized bins: bin {@code i}
+ * counts the latencies in the range [2<sup>i-1</sup>, 2<sup>i</sup>)
+ * nanoseconds. Recording is lock-free.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class LatencyHistogram {
+    /**
+     * The number of bins.
+     */
+    private static final int      BIN_COUNT = 64;
+    /**
+     * The bins.
+     */
+    private final AtomicLongArray bins      = new AtomicLongArray(BIN_COUNT);
+
+    /**
+     * Returns the bin of a latency.
+     * 
+     * @param latency
+     *            The latency in nanoseconds.
+     * @return The index of the bin of the latency.
+     */
+    private static int binOf(final long latency) {
+        return latency <= 0
+                ? 0
+                : BIN_COUNT - Long.numberOfLeadingZeros(latency);
+    }
+
+    /**
+     * Records a latency.
+     * 
+     * @param latency
+     *            The latency in nanoseconds.
+     */
+    void record(final long latency) {
+        bins.incrementAndGet(Math.min(binOf(latency), BIN_COUNT - 1));
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     * 
+     * @return The number of recorded latencies.
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            count += bins.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns an upper bound on a percentile of the recorded latencies.
+     * 
+     * @param percent
+     *            The percentile (e.g., 99).
+     * @return The upper bound of the bin that contains the percentile in
+     *         nanoseconds or {@code 0} if no latencies have been recorded.
+     * @throws IllegalArgumentException
+     *             if {@code percent < 0 || percent > 100}.
+     */
+    long getPercentile(final double percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Invalid percentile: "
+                    + percent);
+        }
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percent / 100);
+        long sum = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            sum += bins.get(i);
+            if (sum >= rank && sum > 0) {
+                return i >= BIN_COUNT - 1
+                        ? Long.MAX_VALUE
+                        : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [count=" + getCount() + ", p50<="
+                + getPercentile(50) + " ns, p99<=" + getPercentile(99)
+                + " ns]";
+    }
+}
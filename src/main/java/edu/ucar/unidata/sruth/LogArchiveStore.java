@@ -0,0 +1,798 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A storage engine that appends the pieces of data-products to large segment
+ * files and keeps an index of the pieces in memory. This avoids the per-product
+ * creation, renaming, and deletion of files and directories that dominates
+ * the cost of storing small data-products in the file-tree. A segment is
+ * reused once all the pieces that it contains have been deleted (e.g., because
+ * their time-to-live expired).
+ * <p>
+ * Because data-products with different lifetimes share segments, a few
+ * long-lived pieces could otherwise keep mostly-dead segments from being
+ * reused. So a full segment whose live pieces take less than
+ * 1/{@value #COMPACT_RATIO} of it is compacted: its live pieces are copied to
+ * the active segment and it's reused. Compaction is done by the thread that
+ * deletes or writes a piece, after it has released the lock on its own
+ * data-product, and skips data-products that are locked by other threads
+ * until the next time. Thus, apart from the active segment and at most
+ * {@value #MAX_FREE} empty ones, the segment files are at most about
+ * {@value #COMPACT_RATIO} times as large as the live data.
+ * <p>
+ * Data-products aren't visible as files and don't persist across sessions.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class LogArchiveStore extends ArchiveStore {
+    /**
+     * A segment file.
+     */
+    @ThreadSafe
+    private final class Segment {
+        /**
+         * The pathname of the segment file.
+         */
+        private final Path        path;
+        /**
+         * The I/O channel for the segment file.
+         */
+        private final FileChannel channel;
+        /**
+         * The byte-offset at which the next piece will be appended.
+         */
+        @GuardedBy("LogArchiveStore.this")
+        private long              writePos;
+        /**
+         * The number of live pieces in the segment.
+         */
+        @GuardedBy("LogArchiveStore.this")
+        private int               liveCount;
+        /**
+         * The number of bytes of the live pieces in the segment.
+         */
+        @GuardedBy("LogArchiveStore.this")
+        private long              liveBytes;
+        /**
+         * The data-products that have, or had, pieces in the segment since it
+         * was last reused.
+         */
+        @GuardedBy("LogArchiveStore.this")
+        private final Set<LogFile> owners = new HashSet<LogFile>();
+        /**
+         * Whether or not the segment is in the compaction queue.
+         */
+        @GuardedBy("LogArchiveStore.this")
+        private boolean           isQueued;
+
+        /**
+         * Constructs from the pathname of the segment file. Creates and
+         * pre-allocates the segment file.
+         * 
+         * @param path
+         *            The pathname of the segment file.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        Segment(final Path path) throws IOException {
+            this.path = path;
+            final RandomAccessFile file = new RandomAccessFile(path.toFile(),
+                    "rw");
+            try {
+                file.setLength(segmentSize);
+            }
+            catch (final IOException e) {
+                file.close();
+                throw e;
+            }
+            channel = file.getChannel();
+        }
+
+        /**
+         * Writes a piece of data at a given byte-offset.
+         * 
+         * @param data
+         *            The piece of data.
+         * @param offset
+         *            The byte-offset in the segment.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void write(final byte[] data, final long offset) throws IOException {
+            final ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+        }
+
+        /**
+         * Reads a piece of data from a given byte-offset.
+         * 
+         * @param data
+         *            The buffer for the piece of data. Will be filled.
+         * @param offset
+         *            The byte-offset in the segment.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void read(final byte[] data, final long offset) throws IOException {
+            read(ByteBuffer.wrap(data), offset);
+        }
+
+        /**
+         * Reads data from a given byte-offset into a buffer.
+         * 
+         * @param buf
+         *            The buffer for the data. Will be filled from its position
+         *            to its limit.
+         * @param offset
+         *            The byte-offset in the segment.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void read(final ByteBuffer buf, final long offset) throws IOException {
+            final int start = buf.position();
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position() - start) < 0) {
+                    throw new IOException("Premature end of segment \"" + path
+                            + "\" at byte "
+                            + (offset + buf.position() - start));
+                }
+            }
+        }
+
+        /**
+         * Closes and deletes the segment file.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void delete() throws IOException {
+            try {
+                channel.close();
+            }
+            finally {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Segment [path=" + path + "]";
+        }
+    }
+
+    /**
+     * A data-product whose pieces reside in segments.
+     */
+    @ThreadSafe
+    private final class LogFile implements SegmentedFile {
+        /**
+         * Information on the data-product.
+         */
+        private final FileInfo      fileInfo;
+        /**
+         * The segments that contain the pieces, by piece-index.
+         */
+        @GuardedBy("lock")
+        private final Segment[]     segments;
+        /**
+         * The byte-offsets of the pieces in their segments, by piece-index.
+         */
+        @GuardedBy("lock")
+        private final long[]        offsets;
+        /**
+         * The set of existing pieces.
+         */
+        @GuardedBy("lock")
+        private FiniteBitSet        indexes;
+        /**
+         * Whether or not the data-product has been deleted.
+         */
+        @GuardedBy("lock")
+        private boolean             isDeleted;
+        /**
+         * Reentrant lock for this instance.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Constructs from information on the data-product.
+         * 
+         * @param fileInfo
+         *            Information on the data-product.
+         */
+        LogFile(final FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+            final int pieceCount = fileInfo.getPieceCount();
+            segments = new Segment[pieceCount];
+            offsets = new long[pieceCount];
+            indexes = FiniteBitSet.newInstance(pieceCount);
+        }
+
+        @Override
+        public void lock() {
+            lock.lock();
+        }
+
+        @Override
+        public void unlock() {
+            lock.unlock();
+        }
+
+        @Override
+        public FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        @Override
+        public ArchiveTime getTime() {
+            return fileInfo.getTime();
+        }
+
+        @Override
+        public boolean willMakeComplete(final List<Piece> pieces) {
+            lock();
+            try {
+                final int count = newPieces(indexes, pieces).size();
+                return count > 0
+                        && indexes.getSetCount() + count == indexes.getSize();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public boolean putPieces(final List<Piece> pieces) throws IOException {
+            final boolean isComplete;
+            lock();
+            try {
+                if (!isDeleted) {
+                    for (final Piece piece : newPieces(indexes, pieces)) {
+                        putPiece(piece);
+                    }
+                }
+                isComplete = indexes.areAllSet();
+            }
+            finally {
+                unlock();
+            }
+            compact();
+            return isComplete;
+        }
+
+        /**
+         * Appends a new piece of data to the log. Must be called while locked.
+         * 
+         * @param piece
+         *            The piece of data.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void putPiece(final Piece piece) throws IOException {
+            final int index = piece.getIndex();
+            append(index, piece.getData());
+            indexes = indexes.setBit(index);
+        }
+
+        /**
+         * Appends the data of a piece to the log and records its location.
+         * Must be called while locked.
+         * 
+         * @param index
+         *            The index of the piece.
+         * @param data
+         *            The data of the piece.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void append(final int index, final byte[] data)
+                throws IOException {
+            final Segment segment;
+            final long offset;
+            synchronized (LogArchiveStore.this) {
+                segment = allocate(data.length);
+                offset = segment.writePos;
+                segment.writePos += data.length;
+                segment.liveCount++;
+                segment.liveBytes += data.length;
+                segment.owners.add(this);
+            }
+            try {
+                segment.write(data, offset);
+            }
+            catch (final IOException e) {
+                LogArchiveStore.this.release(segment, data.length);
+                throw e;
+            }
+            segments[index] = segment;
+            offsets[index] = offset;
+        }
+
+        /**
+         * Moves the pieces of this instance that are in a segment to the
+         * active segment. Must be called while locked.
+         * 
+         * @param segment
+         *            The segment from which to move pieces.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void move(final Segment segment) throws IOException {
+            synchronized (LogArchiveStore.this) {
+                if (segment == active) {
+                    // The segment was reused
+                    return;
+                }
+            }
+            for (int index = 0; index < segments.length; index++) {
+                if (segments[index] == segment) {
+                    final byte[] data = new byte[fileInfo.getSize(index)];
+                    segment.read(data, offsets[index]);
+                    append(index, data);
+                    LogArchiveStore.this.release(segment, data.length);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasPiece(final int index) {
+            lock();
+            try {
+                return indexes.isSet(index);
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public Piece getPiece(final PieceSpec pieceSpec) throws IOException {
+            lock();
+            try {
+                final int index = pieceSpec.getIndex();
+                assert indexes.isSet(index);
+                final byte[] data = new byte[pieceSpec.getSize()];
+                segments[index].read(data, offsets[index]);
+                return new Piece(pieceSpec, data);
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Assembles the data of this instance from its pieces in the segments.
+         */
+        @Override
+        public ByteBuffer getContents() throws IOException {
+            lock();
+            try {
+                if (!indexes.areAllSet()) {
+                    throw new IllegalStateException("Incomplete: " + fileInfo);
+                }
+                if (fileInfo.getSize() > Integer.MAX_VALUE) {
+                    throw new IOException("File too large for a buffer: "
+                            + fileInfo);
+                }
+                final ByteBuffer contents = ByteBuffer.allocate((int) fileInfo
+                        .getSize());
+                for (int index = 0; index < segments.length; index++) {
+                    contents.limit(contents.position()
+                            + fileInfo.getSize(index));
+                    segments[index].read(contents, offsets[index]);
+                }
+                contents.flip();
+                return contents.asReadOnlyBuffer();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Indicates if this instance has all its data.
+         * 
+         * @return {@code true} if and only if this instance is complete.
+         */
+        boolean isComplete() {
+            lock();
+            try {
+                return indexes.areAllSet();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Does nothing because the index of the data-product remains in
+         * memory.
+         */
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void deleteIfExists() throws IOException {
+            files.remove(fileInfo.getPath(), this);
+            release();
+            compact();
+        }
+
+        /**
+         * Releases the pieces of this instance from their segments. Idempotent.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        void release() throws IOException {
+            lock();
+            try {
+                if (!isDeleted) {
+                    isDeleted = true;
+                    for (int i = 0; i < segments.length; i++) {
+                        if (segments[i] != null) {
+                            LogArchiveStore.this.release(segments[i],
+                                    fileInfo.getSize(i));
+                            segments[i] = null;
+                        }
+                    }
+                    indexes = FiniteBitSet.newInstance(segments.length);
+                }
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "LogFile [fileInfo=" + fileInfo + "]";
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger                       logger       = Util.getLogger();
+    /**
+     * The maximum number of empty segments to keep for reuse.
+     */
+    private static final int                          MAX_FREE     = 4;
+    /**
+     * The ratio of the size of a segment to the size of its live pieces above
+     * which a full segment is compacted.
+     */
+    private static final int                          COMPACT_RATIO = 4;
+    /**
+     * The pathname of the directory that contains the segment files.
+     */
+    private final Path                                dir;
+    /**
+     * The size of a segment file in bytes.
+     */
+    private final long                                segmentSize;
+    /**
+     * The data-products in the store.
+     */
+    private final ConcurrentMap<ArchivePath, LogFile> files        = new ConcurrentHashMap<ArchivePath, LogFile>();
+    /**
+     * The segment to which pieces are being appended.
+     */
+    @GuardedBy("this")
+    private Segment                                   active;
+    /**
+     * The empty segments available for reuse.
+     */
+    @GuardedBy("this")
+    private final LinkedList<Segment>                 freeSegments = new LinkedList<Segment>();
+    /**
+     * The index of the next segment file to be created.
+     */
+    @GuardedBy("this")
+    private long                                      nextIndex    = 0;
+    /**
+     * All the segments.
+     */
+    @GuardedBy("this")
+    private final List<Segment>                       allSegments  = new ArrayList<Segment>();
+    /**
+     * The full segments to be compacted.
+     */
+    @GuardedBy("this")
+    private final List<Segment>                       compactionQueue = new ArrayList<Segment>();
+
+    /**
+     * Constructs from the pathname of the directory for the segment files and
+     * the size of a segment file. Creates the directory if necessary.
+     * 
+     * @param dir
+     *            The pathname of the directory for the segment files.
+     * @param segmentSize
+     *            The size of a segment file in bytes. Must be at least as large
+     *            as the largest piece of data.
+     * @throws IllegalArgumentException
+     *             if {@code segmentSize <= 0}.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code dir == null}.
+     */
+    LogArchiveStore(final Path dir, final long segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Invalid segment size: "
+                    + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Returns a segment with enough room for a piece of data. The returned
+     * segment becomes the active segment.
+     * 
+     * @param size
+     *            The size of the piece of data in bytes.
+     * @return A segment with room for the piece of data.
+     * @throws IOException
+     *             if the piece is larger than a segment or an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private Segment allocate(final int size) throws IOException {
+        if (size > segmentSize) {
+            throw new IOException("Piece larger than segment: " + size + " > "
+                    + segmentSize);
+        }
+        if (active == null || active.writePos + size > segmentSize) {
+            final Segment previous = active;
+            if (freeSegments.isEmpty()) {
+                active = new Segment(dir.resolve("segment-" + nextIndex++));
+                allSegments.add(active);
+                logger.debug("New segment: {}", active);
+            }
+            else {
+                active = freeSegments.removeFirst();
+            }
+            if (previous != null) {
+                if (previous.liveCount == 0) {
+                    recycle(previous);
+                }
+                else {
+                    queueIfMostlyDead(previous);
+                }
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Releases a piece of data from its segment. The segment is reused if it
+     * becomes empty and isn't the active segment; otherwise, it's queued for
+     * compaction if it has become mostly dead.
+     * 
+     * @param segment
+     *            The segment that contains the piece of data.
+     * @param size
+     *            The size of the piece of data in bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private synchronized void release(final Segment segment, final int size)
+            throws IOException {
+        assert segment.liveCount > 0;
+        segment.liveBytes -= size;
+        if (--segment.liveCount == 0 && segment != active) {
+            recycle(segment);
+        }
+        else if (segment != active) {
+            queueIfMostlyDead(segment);
+        }
+    }
+
+    /**
+     * Queues a full segment for compaction if its live pieces take less than
+     * 1/{@value #COMPACT_RATIO} of it.
+     * 
+     * @param segment
+     *            The full segment.
+     */
+    @GuardedBy("this")
+    private void queueIfMostlyDead(final Segment segment) {
+        if (!segment.isQueued
+                && segment.liveBytes * COMPACT_RATIO < segmentSize) {
+            segment.isQueued = true;
+            compactionQueue.add(segment);
+        }
+    }
+
+    /**
+     * Compacts the queued segments by moving their live pieces to the active
+     * segment, which allows them to be reused. A segment with a data-product
+     * that's locked by another thread is queued again. Must not be called
+     * while holding the lock on this instance.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void compact() throws IOException {
+        final List<Segment> queued;
+        synchronized (this) {
+            if (compactionQueue.isEmpty()) {
+                return;
+            }
+            queued = new ArrayList<Segment>(compactionQueue);
+            compactionQueue.clear();
+        }
+        for (final Segment segment : queued) {
+            final List<LogFile> owners;
+            synchronized (this) {
+                segment.isQueued = false;
+                if (segment == active || segment.liveCount == 0) {
+                    // The segment was reused
+                    continue;
+                }
+                owners = new ArrayList<LogFile>(segment.owners);
+            }
+            boolean allMoved = true;
+            for (final LogFile owner : owners) {
+                // Waiting could deadlock with a thread that holds the lock
+                if (!owner.lock.tryLock()) {
+                    allMoved = false;
+                    continue;
+                }
+                try {
+                    owner.move(segment);
+                }
+                finally {
+                    owner.unlock();
+                }
+            }
+            synchronized (this) {
+                if (allMoved) {
+                    logger.debug("Compacted segment: {}", segment);
+                }
+                else if (segment.liveCount > 0 && segment != active) {
+                    segment.isQueued = true;
+                    compactionQueue.add(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes an empty segment available for reuse or deletes it if enough
+     * segments are already available.
+     * 
+     * @param segment
+     *            The empty segment.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void recycle(final Segment segment) throws IOException {
+        segment.writePos = 0;
+        segment.liveBytes = 0;
+        segment.owners.clear();
+        if (freeSegments.size() < MAX_FREE) {
+            freeSegments.add(segment);
+        }
+        else {
+            logger.debug("Deleting segment: {}", segment);
+            allSegments.remove(segment);
+            segment.delete();
+        }
+    }
+
+    /**
+     * Returns the number of segment files.
+     * 
+     * @return The number of segment files.
+     */
+    synchronized int getSegmentCount() {
+        return allSegments.size();
+    }
+
+    @Override
+    SegmentedFile open(final FileInfo fileInfo, final boolean readonly) {
+        final ArchivePath archivePath = fileInfo.getPath();
+        LogFile file = files.get(archivePath);
+        if (file == null && !readonly) {
+            file = new LogFile(fileInfo);
+            final LogFile prevFile = files.putIfAbsent(archivePath, file);
+            if (prevFile != null) {
+                file = prevFile;
+            }
+        }
+        return file;
+    }
+
+    @Override
+    ArchiveTime getTime(final ArchivePath archivePath)
+            throws NoSuchFileException {
+        final LogFile file = files.get(archivePath);
+        if (file == null) {
+            throw new NoSuchFileException(archivePath.toString());
+        }
+        return file.getTime();
+    }
+
+    @Override
+    void delete(final ArchivePath archivePath) throws IOException {
+        final LogFile file = files.remove(archivePath);
+        if (file != null) {
+            file.release();
+            compact();
+        }
+    }
+
+    @Override
+    void walk(final FilePieceSpecSetConsumer consumer, final Filter filter)
+            throws InterruptedException {
+        for (final LogFile file : files.values()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            final FileInfo fileInfo = file.getFileInfo();
+            if (file.isComplete() && filter.matches(fileInfo.getPath())) {
+                consumer.consume(FilePieceSpecSet.newInstance(fileInfo, true));
+            }
+        }
+    }
+
+    /**
+     * Discards the contents of this instance and deletes the segment files.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @Override
+    synchronized void close() throws IOException {
+        files.clear();
+        for (final Segment segment : allSegments) {
+            segment.delete();
+        }
+        allSegments.clear();
+        freeSegments.clear();
+        compactionQueue.clear();
+        active = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LogArchiveStore [dir=" + dir + ", segmentSize=" + segmentSize
+                + ", segmentCount=" + allSegments.size() + ", files="
+                + files.size()
+                + "]";
+    }
+}
@@ -0,0 +1,384 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A storage engine that keeps data-products in memory. The contents are lost
+ * when the archive is closed. The total size of the data-products is bounded
+ * by a high-water mark: when a new data-product would exceed it, complete
+ * data-products are evicted in least-recently-used order until the total size
+ * is at or below a low-water mark. Incomplete data-products aren't evicted
+ * because they're still being received, so a new data-product is refused if
+ * evicting every complete data-product wouldn't make enough room for it.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class MemoryArchiveStore extends ArchiveStore {
+    /**
+     * A data-product that resides in memory.
+     */
+    @ThreadSafe
+    private final class MemoryFile implements SegmentedFile {
+        /**
+         * Information on the data-product.
+         */
+        private final FileInfo      fileInfo;
+        /**
+         * The data of the data-product.
+         */
+        @GuardedBy("lock")
+        private final byte[]        data;
+        /**
+         * The set of existing pieces.
+         */
+        @GuardedBy("lock")
+        private FiniteBitSet        indexes;
+        /**
+         * Whether or not this instance has all its data. Read without the
+         * lock so that the store can evict complete instances without
+         * acquiring their locks.
+         */
+        private volatile boolean    complete;
+        /**
+         * Reentrant lock for this instance.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Constructs from information on the data-product.
+         * 
+         * @param fileInfo
+         *            Information on the data-product.
+         * @throws IOException
+         *             if the data-product is too large to be kept in memory.
+         */
+        MemoryFile(final FileInfo fileInfo) throws IOException {
+            if (fileInfo.getSize() > Integer.MAX_VALUE) {
+                throw new IOException("File too large for memory: " + fileInfo);
+            }
+            this.fileInfo = fileInfo;
+            data = new byte[(int) fileInfo.getSize()];
+            indexes = FiniteBitSet.newInstance(fileInfo.getPieceCount());
+            complete = indexes.areAllSet();
+        }
+
+        @Override
+        public void lock() {
+            lock.lock();
+        }
+
+        @Override
+        public void unlock() {
+            lock.unlock();
+        }
+
+        @Override
+        public FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        @Override
+        public ArchiveTime getTime() {
+            return fileInfo.getTime();
+        }
+
+        @Override
+        public boolean willMakeComplete(final List<Piece> pieces) {
+            lock();
+            try {
+                final int count = newPieces(indexes, pieces).size();
+                return count > 0
+                        && indexes.getSetCount() + count == indexes.getSize();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public boolean putPieces(final List<Piece> pieces) {
+            lock();
+            try {
+                for (final Piece piece : newPieces(indexes, pieces)) {
+                    final byte[] bytes = piece.getData();
+                    System.arraycopy(bytes, 0, data, (int) piece.getOffset(),
+                            bytes.length);
+                    indexes = indexes.setBit(piece.getIndex());
+                }
+                complete = indexes.areAllSet();
+                return complete;
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public boolean hasPiece(final int index) {
+            lock();
+            try {
+                return indexes.isSet(index);
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        @Override
+        public Piece getPiece(final PieceSpec pieceSpec) {
+            lock();
+            try {
+                assert indexes.isSet(pieceSpec.getIndex());
+                final byte[] bytes = new byte[pieceSpec.getSize()];
+                System.arraycopy(data, (int) pieceSpec.getOffset(), bytes, 0,
+                        bytes.length);
+                return new Piece(pieceSpec, bytes);
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Returns a read-only view of the data of this instance. No data is
+         * copied.
+         */
+        @Override
+        public ByteBuffer getContents() {
+            lock();
+            try {
+                if (!indexes.areAllSet()) {
+                    throw new IllegalStateException("Incomplete: " + fileInfo);
+                }
+                return ByteBuffer.wrap(data).asReadOnlyBuffer();
+            }
+            finally {
+                unlock();
+            }
+        }
+
+        /**
+         * Indicates if this instance has all its data.
+         * 
+         * @return {@code true} if and only if this instance is complete.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Does nothing because the data-product remains in memory.
+         */
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void deleteIfExists() {
+            synchronized (MemoryArchiveStore.this) {
+                if (files.get(fileInfo.getPath()) == this) {
+                    remove(fileInfo.getPath());
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "MemoryFile [fileInfo=" + fileInfo + "]";
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger                       logger    = Util.getLogger();
+    /**
+     * The total size, in bytes, of the data-products above which complete
+     * data-products are evicted.
+     */
+    private final long                                highWater;
+    /**
+     * The total size, in bytes, of the data-products down to which complete
+     * data-products are evicted.
+     */
+    private final long                                lowWater;
+    /**
+     * The data-products in the store in least-recently-used order.
+     */
+    @GuardedBy("this")
+    private final Map<ArchivePath, MemoryFile>        files     = new LinkedHashMap<ArchivePath, MemoryFile>(
+                                                                        16,
+                                                                        0.75f,
+                                                                        true);
+    /**
+     * The total size, in bytes, of the data-products in the store.
+     */
+    @GuardedBy("this")
+    private long                                      totalSize;
+
+    /**
+     * Constructs from the high-water and low-water marks.
+     * 
+     * @param highWater
+     *            The total size, in bytes, of the data-products above which
+     *            complete data-products are evicted.
+     * @param lowWater
+     *            The total size, in bytes, of the data-products down to which
+     *            complete data-products are evicted.
+     * @throws IllegalArgumentException
+     *             if {@code highWater <= 0 || lowWater < 0 || lowWater >
+     *             highWater}.
+     */
+    MemoryArchiveStore(final long highWater, final long lowWater) {
+        if (highWater <= 0 || lowWater < 0 || lowWater > highWater) {
+            throw new IllegalArgumentException("Invalid high-water or "
+                    + "low-water mark: " + highWater + ", " + lowWater);
+        }
+        this.highWater = highWater;
+        this.lowWater = lowWater;
+    }
+
+    /**
+     * Might evict complete data-products to make room for a new one.
+     * 
+     * @throws IOException
+     *             if the data-product is too large to be kept in memory.
+     */
+    @Override
+    synchronized SegmentedFile open(final FileInfo fileInfo,
+            final boolean readonly) throws IOException {
+        final ArchivePath archivePath = fileInfo.getPath();
+        MemoryFile file = files.get(archivePath);
+        if (file == null && !readonly) {
+            final long size = fileInfo.getSize();
+            if (totalSize + size > highWater) {
+                evict(size);
+            }
+            file = new MemoryFile(fileInfo);
+            files.put(archivePath, file);
+            totalSize += size;
+        }
+        return file;
+    }
+
+    /**
+     * Evicts complete data-products in least-recently-used order until the
+     * total size plus the size of a new data-product is at or below the
+     * low-water mark.
+     * 
+     * @param size
+     *            The size, in bytes, of the new data-product.
+     * @throws IOException
+     *             if the total size plus the size of the new data-product
+     *             would still exceed the high-water mark.
+     */
+    @GuardedBy("this")
+    private void evict(final long size) throws IOException {
+        for (final Iterator<MemoryFile> iter = files.values().iterator(); iter
+                .hasNext()
+                && totalSize + size > lowWater;) {
+            final MemoryFile file = iter.next();
+            if (file.isComplete()) {
+                iter.remove();
+                totalSize -= file.getFileInfo().getSize();
+                logger.debug("Evicted {}", file);
+            }
+        }
+        if (totalSize + size > highWater) {
+            throw new IOException("No room in memory for " + size
+                    + "-byte file: " + this);
+        }
+    }
+
+    /**
+     * Removes a data-product.
+     * 
+     * @param archivePath
+     *            The pathname of the data-product in the archive.
+     */
+    @GuardedBy("this")
+    private void remove(final ArchivePath archivePath) {
+        final MemoryFile file = files.remove(archivePath);
+        if (file != null) {
+            totalSize -= file.getFileInfo().getSize();
+        }
+    }
+
+    @Override
+    synchronized ArchiveTime getTime(final ArchivePath archivePath)
+            throws NoSuchFileException {
+        final MemoryFile file = files.get(archivePath);
+        if (file == null) {
+            throw new NoSuchFileException(archivePath.toString());
+        }
+        return file.getTime();
+    }
+
+    @Override
+    synchronized void delete(final ArchivePath archivePath) {
+        remove(archivePath);
+    }
+
+    /**
+     * Returns the total size of the data-products in this instance.
+     * 
+     * @return The total size, in bytes, of the data-products.
+     */
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    void walk(final FilePieceSpecSetConsumer consumer, final Filter filter)
+            throws InterruptedException {
+        final List<MemoryFile> list;
+        synchronized (this) {
+            list = new ArrayList<MemoryFile>(files.values());
+        }
+        for (final MemoryFile file : list) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            final FileInfo fileInfo = file.getFileInfo();
+            if (file.isComplete() && filter.matches(fileInfo.getPath())) {
+                consumer.consume(FilePieceSpecSet.newInstance(fileInfo, true));
+            }
+        }
+    }
+
+    /**
+     * Discards the contents of this instance.
+     */
+    @Override
+    synchronized void close() {
+        files.clear();
+        totalSize = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryArchiveStore [size=" + files.size() + ", totalSize="
+                + totalSize + ", highWater=" + highWater + "]";
+    }
+}
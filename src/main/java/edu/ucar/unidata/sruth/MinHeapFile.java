@@ -735,6 +735,69 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
         return firstElt;
     }
 
+    /**
+     * Removes the element at a given position in the heap. The last element
+     * takes its place and is then moved up or down as necessary. Does so in a
+     * way that a power failure might cause the heap to contain a duplicate
+     * element, but no other element will be lost.
+     *
+     * @param index
+     *            The position of the element to be removed as used by
+     *            {@link #iterator()}.
+     * @throws IndexOutOfBoundsException
+     *             if {@code index < 0 || index >= size()}.
+     * @throws ClosedChannelException
+     *             if the channel to the file is closed
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws IllegalAccessException
+     *             if an element can't be created.
+     * @throws InstantiationException
+     *             if an element can't be created.
+     */
+    synchronized void remove(final int index) throws ClosedChannelException,
+            IOException, InstantiationException, IllegalAccessException {
+        int eltCount = header.getEltCount();
+        if (index < 0 || index >= eltCount) {
+            throw new IndexOutOfBoundsException("Index=" + index + ", size="
+                    + eltCount);
+        }
+        final E elt = elements.getElt(--eltCount);
+        int childIndex = index;
+        while (childIndex > 0) {
+            final int parentIndex = (childIndex - 1) / 2;
+            final E parent = elements.getElt(parentIndex);
+            if (parent.compareTo(elt) <= 0) {
+                break;
+            }
+            elements.setElt(childIndex, parent);
+            childIndex = parentIndex;
+        }
+        if (childIndex == index) {
+            int parentIndex = index;
+            for (childIndex = 2 * parentIndex + 1; childIndex < eltCount; childIndex = 2 * parentIndex + 1) {
+                E child = elements.getElt(childIndex);
+                if ((childIndex + 1 < eltCount)) {
+                    final E otherChild = elements.getElt(childIndex + 1);
+                    if (child.compareTo(otherChild) > 0) {
+                        child = otherChild;
+                        childIndex++;
+                    }
+                }
+                if (child.compareTo(elt) >= 0) {
+                    break;
+                }
+                elements.setElt(parentIndex, child);
+                parentIndex = childIndex;
+            }
+            childIndex = parentIndex;
+        }
+        if (childIndex < eltCount) {
+            elements.setElt(childIndex, elt);
+        }
+        header.setEltCount(eltCount);
+    }
+
     /**
      * Returns the number of elements in this instance.
      * 
@@ -0,0 +1,860 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * The distribution overlay of a tracker: for each data-filter, a fan-out tree
+ * of the servers of the sink-nodes that registered with that filter, rooted at
+ * the source-server. Each sink-node is assigned a parent in the tree of its
+ * filter, which is the server it should connect to first.
+ * <p>
+ * The degree of every server is bounded: a sink-node's server has at most as
+ * many children as it declared it could serve (but no more than
+ * "maximum overlay fan-out") and the source-server has at most
+ * "maximum source degree" children over all the trees. A new server is
+ * attached to the shallowest server that has room for another child (ties are
+ * broken in favor of the server with the most room), so the height of a tree
+ * grows logarithmically with its size. When a server leaves, each of its
+ * subtrees is re-attached in the same way, largest-capacity first.
+ * <p>
+ * A server is always attached. If the source-server has no room and the tree
+ * of a server has no server with room, then the server is attached to a
+ * server with room in the tree of a data-filter that includes its own, which
+ * has the data. If there's no such server either, then the server is attached
+ * as overflow to the least-loaded server in its tree or, failing that, in the
+ * tree of an including data-filter, which exceeds the degree of that server
+ * until a server leaves. Only a server that's the first to have its data is
+ * attached to the source-server as overflow.
+ * <p>
+ * The servers of a previous session of the tracker can be attached as
+ * unverified. They're the last choice as parents until they're attached again
+ * by their sink-nodes because they might no longer exist.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class Overlay {
+    /**
+     * A server in a tree.
+     */
+    private static final class Member {
+        /**
+         * The tree of the server.
+         */
+        private final Tree              tree;
+        /**
+         * The address of the server.
+         */
+        private final InetSocketAddress server;
+        /**
+         * The maximum number of children.
+         */
+        private int                     capacity;
+        /**
+         * The parent or {@code null} if the parent is the source-server.
+         */
+        private Member                  parent;
+        /**
+         * The children. A child might be in the tree of a data-filter that's
+         * included by this instance's.
+         */
+        private final List<Member>      children = new ArrayList<Member>(4);
+        /**
+         * The number of servers between this one and the source-server
+         * (inclusive): 1 for a child of the source-server; 0 if the server
+         * isn't linked.
+         */
+        private int                     depth;
+        /**
+         * Whether the server was recovered from a previous session of the
+         * tracker and hasn't been attached since.
+         */
+        private boolean                 unverified;
+
+        /**
+         * Constructs from the tree of the server, the address of the server
+         * and its capacity.
+         * 
+         * @param tree
+         *            The tree of the server.
+         * @param server
+         *            The address of the server.
+         * @param capacity
+         *            The maximum number of children.
+         */
+        Member(final Tree tree, final InetSocketAddress server,
+                final int capacity) {
+            this.tree = tree;
+            this.server = server;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Returns the number of additional children this instance could have.
+         * 
+         * @return The number of additional children.
+         */
+        int getRoom() {
+            return Math.max(0, capacity - children.size());
+        }
+
+        @Override
+        public String toString() {
+            return "Member [server=" + server + ", depth=" + depth
+                    + ", children=" + children.size() + "/" + capacity
+                    + (unverified
+                            ? ", unverified"
+                            : "") + "]";
+        }
+    }
+
+    /**
+     * Orders members that could accept a child from best to worst parent:
+     * verified first, then shallowest, then most room, then by address.
+     */
+    private static final Comparator<Member> PARENT_ORDER = new Comparator<Member>() {
+                                                             @Override
+                                                             public int compare(
+                                                                     final Member m1,
+                                                                     final Member m2) {
+                                                                 if (m1.unverified != m2.unverified) {
+                                                                     return m1.unverified
+                                                                             ? 1
+                                                                             : -1;
+                                                                 }
+                                                                 if (m1.depth != m2.depth) {
+                                                                     return m1.depth < m2.depth
+                                                                             ? -1
+                                                                             : 1;
+                                                                 }
+                                                                 final int room1 = m1
+                                                                         .getRoom();
+                                                                 final int room2 = m2
+                                                                         .getRoom();
+                                                                 if (room1 != room2) {
+                                                                     return room1 > room2
+                                                                             ? -1
+                                                                             : 1;
+                                                                 }
+                                                                 return AddressComparator.INSTANCE
+                                                                         .compare(
+                                                                                 m1.server,
+                                                                                 m2.server);
+                                                             }
+                                                         };
+
+    /**
+     * Orders members from best to worst parent for an overflow child, which
+     * exceeds the parent's capacity: verified first, then least children
+     * beyond capacity, then greatest capacity, then shallowest, then by
+     * address.
+     */
+    private static final Comparator<Member> OVERFLOW_ORDER = new Comparator<Member>() {
+                                                               @Override
+                                                               public int compare(
+                                                                       final Member m1,
+                                                                       final Member m2) {
+                                                                   if (m1.unverified != m2.unverified) {
+                                                                       return m1.unverified
+                                                                               ? 1
+                                                                               : -1;
+                                                                   }
+                                                                   final int excess1 = m1.children
+                                                                           .size()
+                                                                           - m1.capacity;
+                                                                   final int excess2 = m2.children
+                                                                           .size()
+                                                                           - m2.capacity;
+                                                                   if (excess1 != excess2) {
+                                                                       return excess1 < excess2
+                                                                               ? -1
+                                                                               : 1;
+                                                                   }
+                                                                   if (m1.capacity != m2.capacity) {
+                                                                       return m1.capacity > m2.capacity
+                                                                               ? -1
+                                                                               : 1;
+                                                                   }
+                                                                   if (m1.depth != m2.depth) {
+                                                                       return m1.depth < m2.depth
+                                                                               ? -1
+                                                                               : 1;
+                                                                   }
+                                                                   return AddressComparator.INSTANCE
+                                                                           .compare(
+                                                                                   m1.server,
+                                                                                   m2.server);
+                                                               }
+                                                           };
+
+    /**
+     * The fan-out tree of a data-filter.
+     */
+    private static final class Tree {
+        /**
+         * The data-filter of the tree.
+         */
+        private final Filter                         filter;
+        /**
+         * The members by server.
+         */
+        private final Map<InetSocketAddress, Member> members = new TreeMap<InetSocketAddress, Member>(
+                                                                     AddressComparator.INSTANCE);
+        /**
+         * The members that could accept another child in the order in which
+         * they're preferred as parents. A member's position depends on its
+         * depth and room, so it must be removed before either changes and
+         * re-added afterwards.
+         */
+        private final TreeSet<Member>                open    = new TreeSet<Member>(
+                                                                     PARENT_ORDER);
+
+        /**
+         * Constructs from the data-filter of the tree.
+         * 
+         * @param filter
+         *            The data-filter of the tree.
+         */
+        Tree(final Filter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Adds a member to the set of possible parents if it has room.
+         * 
+         * @param member
+         *            The member.
+         */
+        void open(final Member member) {
+            if (member.getRoom() > 0) {
+                open.add(member);
+            }
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger           logger                = Util.getLogger();
+    /**
+     * The maximum number of children of the source-server over all trees.
+     */
+    private static final int              SOURCE_DEGREE;
+    private static final String           SOURCE_DEGREE_KEY     = "maximum source degree";
+    private static final int              SOURCE_DEGREE_DEFAULT = 4;
+    /**
+     * The maximum number of children of a sink-node's server in a tree.
+     */
+    private static final int              FAN_OUT;
+    private static final String           FAN_OUT_KEY           = "maximum overlay fan-out";
+    private static final int              FAN_OUT_DEFAULT       = 4;
+
+    static {
+        final Preferences prefs = Preferences.userNodeForPackage(Overlay.class);
+
+        SOURCE_DEGREE = prefs.getInt(SOURCE_DEGREE_KEY, SOURCE_DEGREE_DEFAULT);
+        if (SOURCE_DEGREE <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + SOURCE_DEGREE_KEY + "\"=" + SOURCE_DEGREE);
+        }
+
+        FAN_OUT = prefs.getInt(FAN_OUT_KEY, FAN_OUT_DEFAULT);
+        if (FAN_OUT < 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + FAN_OUT_KEY + "\"=" + FAN_OUT);
+        }
+    }
+
+    /**
+     * The address of the source-server.
+     */
+    private final InetSocketAddress       source;
+    /**
+     * The maximum number of children of the source-server.
+     */
+    private final int                     sourceDegree;
+    /**
+     * The maximum number of children of a sink-node's server.
+     */
+    private final int                     fanOut;
+    /**
+     * The trees by data-filter.
+     */
+    @GuardedBy("this")
+    private final Map<Filter, Tree>       trees                 = new HashMap<Filter, Tree>();
+    /**
+     * The number of children of the source-server over all trees.
+     */
+    @GuardedBy("this")
+    private int                           sourceChildCount;
+
+    /**
+     * Constructs from the address of the source-server. The degrees are
+     * bounded by the user-preferences.
+     * 
+     * @param source
+     *            The address of the source-server.
+     * @throws NullPointerException
+     *             if {@code source == null}.
+     */
+    Overlay(final InetSocketAddress source) {
+        this(source, SOURCE_DEGREE, FAN_OUT);
+    }
+
+    /**
+     * Constructs from the address of the source-server and the bounds on the
+     * degrees.
+     * 
+     * @param source
+     *            The address of the source-server.
+     * @param sourceDegree
+     *            The maximum number of children of the source-server over all
+     *            trees.
+     * @param fanOut
+     *            The maximum number of children of a sink-node's server in a
+     *            tree.
+     * @throws IllegalArgumentException
+     *             if {@code sourceDegree <= 0 || fanOut < 0}.
+     * @throws NullPointerException
+     *             if {@code source == null}.
+     */
+    Overlay(final InetSocketAddress source, final int sourceDegree,
+            final int fanOut) {
+        if (source == null) {
+            throw new NullPointerException();
+        }
+        if (sourceDegree <= 0 || fanOut < 0) {
+            throw new IllegalArgumentException("sourceDegree=" + sourceDegree
+                    + ", fanOut=" + fanOut);
+        }
+        this.source = source;
+        this.sourceDegree = sourceDegree;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Returns the address of the source-server.
+     * 
+     * @return The address of the source-server.
+     */
+    InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the maximum number of children of a server given its load.
+     * 
+     * @param load
+     *            The load on the server or {@code null} if unknown.
+     * @return The maximum number of children of the server.
+     */
+    int getCapacity(final ServerLoad load) {
+        return load == null
+                ? fanOut
+                : Math.min(fanOut, load.getServletCount() + load.getFreeSlots());
+    }
+
+    /**
+     * Attaches a server to the tree of a data-filter and returns its parent.
+     * If the server is already attached, then only its capacity is updated and
+     * it's no longer unverified.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @param capacity
+     *            The maximum number of children the server could have (see
+     *            {@link #getCapacity(ServerLoad)}).
+     * @return The address of the parent of the server.
+     * @throws NullPointerException
+     *             if {@code filter == null || server == null}.
+     */
+    synchronized InetSocketAddress attach(final Filter filter,
+            final InetSocketAddress server, final int capacity) {
+        if (filter == null || server == null) {
+            throw new NullPointerException();
+        }
+        final Tree tree = getTree(filter);
+        Member member = tree.members.get(server);
+        if (member == null) {
+            member = new Member(tree, server, Math.min(capacity, fanOut));
+            tree.members.put(server, member);
+            link(member);
+        }
+        else {
+            tree.open.remove(member);
+            member.capacity = Math.min(capacity, fanOut);
+            member.unverified = false;
+            tree.open(member);
+        }
+        return getAddress(member.parent);
+    }
+
+    /**
+     * Attaches a server from a previous session of the tracker to the tree of
+     * a data-filter. The server is the last choice as a parent until it's
+     * attached by {@link #attach(Filter, InetSocketAddress, int)}. Does nothing
+     * if the server is already attached.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @param capacity
+     *            The maximum number of children the server could have (see
+     *            {@link #getCapacity(ServerLoad)}).
+     * @throws NullPointerException
+     *             if {@code filter == null || server == null}.
+     */
+    synchronized void attachUnverified(final Filter filter,
+            final InetSocketAddress server, final int capacity) {
+        if (filter == null || server == null) {
+            throw new NullPointerException();
+        }
+        final Tree tree = getTree(filter);
+        if (!tree.members.containsKey(server)) {
+            final Member member = new Member(tree, server, Math.min(capacity,
+                    fanOut));
+            member.unverified = true;
+            tree.members.put(server, member);
+            link(member);
+        }
+    }
+
+    /**
+     * Returns the tree of a data-filter, creating it if necessary.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @return The tree of the data-filter.
+     */
+    @GuardedBy("this")
+    private Tree getTree(final Filter filter) {
+        Tree tree = trees.get(filter);
+        if (tree == null) {
+            tree = new Tree(filter);
+            trees.put(filter, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Removes a tree if it has no members.
+     * 
+     * @param tree
+     *            The tree.
+     */
+    @GuardedBy("this")
+    private void removeIfEmpty(final Tree tree) {
+        if (tree.members.isEmpty()) {
+            trees.remove(tree.filter);
+        }
+    }
+
+    /**
+     * Detaches a server from the tree of a data-filter. The server's subtrees
+     * are re-attached elsewhere.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @return {@code true} if and only if the server was attached.
+     */
+    synchronized boolean detach(final Filter filter,
+            final InetSocketAddress server) {
+        final Tree tree = trees.get(filter);
+        if (tree == null) {
+            return false;
+        }
+        final Member member = tree.members.remove(server);
+        if (member == null) {
+            return false;
+        }
+        unlink(member);
+        tree.open.remove(member);
+        removeIfEmpty(tree);
+        /*
+         * The orphaned subtrees are removed from consideration as parents
+         * before any is re-attached so that no subtree is attached beneath
+         * itself.
+         */
+        final List<Member> orphans = new ArrayList<Member>(member.children);
+        for (final Member orphan : orphans) {
+            close(orphan);
+            orphan.parent = null;
+            orphan.depth = 0;
+        }
+        Collections.sort(orphans, new Comparator<Member>() {
+            @Override
+            public int compare(final Member m1, final Member m2) {
+                return m2.capacity - m1.capacity;
+            }
+        });
+        for (final Member orphan : orphans) {
+            link(orphan);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a server from every tree.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return {@code true} if and only if the server was attached to a tree.
+     */
+    synchronized boolean remove(final InetSocketAddress server) {
+        boolean removed = false;
+        for (final Filter filter : new ArrayList<Filter>(trees.keySet())) {
+            removed |= detach(filter, server);
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the parent of a server in the tree of a data-filter.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @return The address of the parent or {@code null} if the server isn't
+     *         attached to the tree.
+     */
+    synchronized InetSocketAddress getParent(final Filter filter,
+            final InetSocketAddress server) {
+        final Member member = getMember(filter, server);
+        return member == null
+                ? null
+                : getAddress(member.parent);
+    }
+
+    /**
+     * Returns the depth of a server in the tree of a data-filter.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @return The number of servers from the source-server to the server
+     *         (exclusive and inclusive, respectively) or {@code 0} if the
+     *         server isn't attached to the tree.
+     */
+    synchronized int getDepth(final Filter filter,
+            final InetSocketAddress server) {
+        final Member member = getMember(filter, server);
+        return member == null
+                ? 0
+                : member.depth;
+    }
+
+    /**
+     * Returns the number of children of a server in the tree of a data-filter.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @param server
+     *            The address of the server.
+     * @return The number of children of the server or {@code 0} if the server
+     *         isn't attached to the tree.
+     */
+    synchronized int getDegree(final Filter filter,
+            final InetSocketAddress server) {
+        final Member member = getMember(filter, server);
+        return member == null
+                ? 0
+                : member.children.size();
+    }
+
+    /**
+     * Returns the number of children of the source-server over all trees.
+     * 
+     * @return The number of children of the source-server.
+     */
+    synchronized int getSourceDegree() {
+        return sourceChildCount;
+    }
+
+    /**
+     * Returns the number of servers in the tree of a data-filter.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @return The number of servers in the tree.
+     */
+    synchronized int size(final Filter filter) {
+        final Tree tree = trees.get(filter);
+        return tree == null
+                ? 0
+                : tree.members.size();
+    }
+
+    /**
+     * Returns the member of a tree corresponding to a server.
+     * 
+     * @param filter
+     *            The data-filter of the tree.
+     * @param server
+     *            The address of the server.
+     * @return The member or {@code null} if the server isn't attached to the
+     *         tree.
+     */
+    @GuardedBy("this")
+    private Member getMember(final Filter filter,
+            final InetSocketAddress server) {
+        final Tree tree = trees.get(filter);
+        return tree == null
+                ? null
+                : tree.members.get(server);
+    }
+
+    /**
+     * Returns the address of a parent.
+     * 
+     * @param parent
+     *            The parent or {@code null} if the parent is the
+     *            source-server.
+     * @return The address of the parent.
+     */
+    private InetSocketAddress getAddress(final Member parent) {
+        return parent == null
+                ? source
+                : parent.server;
+    }
+
+    /**
+     * Links a parentless member (and its subtree) to the best parent: the
+     * source-server if it has room; otherwise, the best parent in the member's
+     * tree; otherwise, the best parent in the trees of data-filters that
+     * include the member's; otherwise, the best overflow parent (see
+     * {@link #getOverflowParent(Member)}); otherwise, the source-server as
+     * overflow. The member's subtree must not be in the set of possible
+     * parents.
+     * 
+     * @param member
+     *            The member.
+     */
+    @GuardedBy("this")
+    private void link(final Member member) {
+        final Tree tree = member.tree;
+        Member parent = null;
+        if (sourceChildCount >= sourceDegree) {
+            parent = tree.open.isEmpty()
+                    ? getIncludingParent(tree.filter)
+                    : tree.open.first();
+            if (parent == null) {
+                parent = getOverflowParent(member);
+                if (parent == null) {
+                    logger.debug("Source-server over capacity: {}", member);
+                }
+                else {
+                    logger.debug("Server over capacity: {}", parent);
+                }
+            }
+        }
+        if (parent == null) {
+            sourceChildCount++;
+        }
+        else {
+            parent.tree.open.remove(parent);
+            parent.children.add(member);
+            parent.tree.open(parent);
+        }
+        member.parent = parent;
+        setDepth(member, parent == null
+                ? 1
+                : parent.depth + 1);
+    }
+
+    /**
+     * Returns the best parent in the trees of the data-filters that include,
+     * but don't equal, a given data-filter.
+     * 
+     * @param filter
+     *            The data-filter.
+     * @return The best parent or {@code null} if there's none.
+     */
+    @GuardedBy("this")
+    private Member getIncludingParent(final Filter filter) {
+        Member best = null;
+        for (final Tree tree : trees.values()) {
+            if (!tree.open.isEmpty() && tree.filter.includes(filter)
+                    && !tree.filter.equals(filter)) {
+                final Member candidate = tree.open.first();
+                if (best == null || PARENT_ORDER.compare(candidate, best) < 0) {
+                    best = candidate;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the least-loaded server that could be the parent of a member
+     * beyond its capacity: from the member's tree if possible; otherwise, from
+     * the trees of the data-filters that include, but don't equal, the
+     * member's. Only servers that are linked to the source-server and aren't
+     * in the member's subtree are considered.
+     * 
+     * @param member
+     *            The member.
+     * @return The best overflow parent or {@code null} if there's none.
+     */
+    @GuardedBy("this")
+    private Member getOverflowParent(final Member member) {
+        Member best = getOverflowParent(member.tree, member);
+        if (best == null) {
+            final Filter filter = member.tree.filter;
+            for (final Tree tree : trees.values()) {
+                if (tree.filter.includes(filter)
+                        && !tree.filter.equals(filter)) {
+                    final Member candidate = getOverflowParent(tree, member);
+                    if (candidate != null
+                            && (best == null || OVERFLOW_ORDER.compare(
+                                    candidate, best) < 0)) {
+                        best = candidate;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the least-loaded server of a tree that could be the parent of a
+     * member beyond its capacity. Only servers that are linked to the
+     * source-server and aren't in the member's subtree are considered.
+     * 
+     * @param tree
+     *            The tree.
+     * @param member
+     *            The member.
+     * @return The best overflow parent in the tree or {@code null} if there's
+     *         none.
+     */
+    private static Member getOverflowParent(final Tree tree,
+            final Member member) {
+        Member best = null;
+        for (final Member candidate : tree.members.values()) {
+            if ((best == null || OVERFLOW_ORDER.compare(candidate, best) < 0)
+                    && isLinkedOutside(candidate, member)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Indicates if a server is linked to the source-server and isn't in the
+     * subtree of a member. An orphan that hasn't been re-attached yet isn't
+     * linked.
+     * 
+     * @param candidate
+     *            The server.
+     * @param member
+     *            The member.
+     * @return {@code true} if and only if {@code candidate} is linked to the
+     *         source-server and is neither {@code member} nor one of its
+     *         descendants.
+     */
+    private static boolean isLinkedOutside(final Member candidate,
+            final Member member) {
+        for (Member next = candidate;; next = next.parent) {
+            if (next == member) {
+                return false;
+            }
+            if (next.parent == null) {
+                return next.depth > 0;
+            }
+        }
+    }
+
+    /**
+     * Unlinks a member (and its subtree) from its parent.
+     * 
+     * @param member
+     *            The member.
+     */
+    @GuardedBy("this")
+    private void unlink(final Member member) {
+        final Member parent = member.parent;
+        if (parent == null) {
+            sourceChildCount--;
+        }
+        else {
+            parent.tree.open.remove(parent);
+            parent.children.remove(member);
+            parent.tree.open(parent);
+        }
+        member.parent = null;
+    }
+
+    /**
+     * Sets the depth of a member and its descendants and adds them to the sets
+     * of possible parents of their trees.
+     * 
+     * @param member
+     *            The member, which must not be in the set of possible parents.
+     * @param depth
+     *            The depth of the member.
+     */
+    private static void setDepth(final Member member, final int depth) {
+        member.depth = depth;
+        final Queue<Member> queue = new ArrayDeque<Member>();
+        queue.add(member);
+        for (Member next; (next = queue.poll()) != null;) {
+            for (final Member child : next.children) {
+                child.depth = next.depth + 1;
+                queue.add(child);
+            }
+            next.tree.open(next);
+        }
+    }
+
+    /**
+     * Removes a member and its descendants from the sets of possible parents
+     * of their trees.
+     * 
+     * @param member
+     *            The member.
+     */
+    private static void close(final Member member) {
+        final Queue<Member> queue = new ArrayDeque<Member>();
+        queue.add(member);
+        for (Member next; (next = queue.poll()) != null;) {
+            next.tree.open.remove(next);
+            queue.addAll(next.children);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Overlay [source=" + source + ", sourceChildCount="
+                + sourceChildCount + ", trees=(" + trees.size() + ")]";
+    }
+}
@@ -12,6 +12,7 @@ import java.nio.channels.ClosedByInterruptException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -259,6 +260,57 @@ final class PathDelayQueue {
         }
     }
 
+    /**
+     * Removes all entries for a pathname from the queue.
+     * 
+     * @param path
+     *            The pathname of the file that should no longer become
+     *            available.
+     * @return The number of removed entries.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized int remove(final Path path) throws IOException {
+        final byte[] bytes = path.toString().getBytes();
+        int count = 0;
+        try {
+            for (int index = indexOf(bytes); index >= 0; index = indexOf(bytes)) {
+                heap.remove(index);
+                count++;
+            }
+        }
+        catch (final InstantiationException impossible) {
+            throw new AssertionError(impossible);
+        }
+        catch (final IllegalAccessException impossible) {
+            throw new AssertionError(impossible);
+        }
+        if (count > 0) {
+            notifyAll();
+            logger.trace("Removed {} entries for {}", count, path);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the position in the heap of the first entry for a pathname.
+     * 
+     * @param path
+     *            The pathname as an array of bytes.
+     * @return The position of the first entry for the pathname or {@code -1}
+     *         if there's no such entry.
+     */
+    private int indexOf(final byte[] path) {
+        int index = 0;
+        for (final Entry entry : heap) {
+            if (Arrays.equals(entry.path, path)) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
     /**
      * Returns the number of entries in the queue.
      * 
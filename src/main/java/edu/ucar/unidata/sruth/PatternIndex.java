@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A map from regular-expression patterns to values that's indexed by the
+ * literal prefix of each pattern. Given a string, only the patterns whose
+ * literal prefix begins the string need be matched against it. This avoids
+ * evaluating every pattern when there are many patterns with distinct
+ * prefixes (e.g., one per data-feed).
+ * <p>
+ * Patterns are compared by identity, like {@link Pattern} itself.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @param <V>
+ *            The type of the values.
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class PatternIndex<V> {
+    /**
+     * A pattern and its value.
+     * 
+     * @param <V>
+     *            The type of the value.
+     */
+    static final class Entry<V> {
+        private final Pattern pattern;
+        private final V       value;
+        /**
+         * The order in which this instance was added to the index.
+         */
+        private final int     sequence;
+
+        private Entry(final Pattern pattern, final V value, final int sequence) {
+            this.pattern = pattern;
+            this.value = value;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Returns the pattern.
+         * 
+         * @return The pattern.
+         */
+        Pattern getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Returns the value.
+         * 
+         * @return The value.
+         */
+        V getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [pattern=" + pattern + ", value=" + value + "]";
+        }
+    }
+
+    /**
+     * A node of the trie of literal prefixes.
+     */
+    private static final class Node<V> {
+        /**
+         * The child nodes, by next character.
+         */
+        private final Map<Character, Node<V>> children = new HashMap<Character, Node<V>>();
+        /**
+         * The entries whose literal prefix ends at this node.
+         */
+        private final List<Entry<V>>          entries  = new ArrayList<Entry<V>>(
+                                                               1);
+    }
+
+    /**
+     * The characters that have a special meaning in a regular expression
+     * outside of a character class.
+     */
+    private static final String            METACHARACTERS = "\\^$.|?*+()[]{}";
+    /**
+     * The characters that quantify the preceding character.
+     */
+    private static final String            QUANTIFIERS    = "?*+{";
+    /**
+     * Orders entries by when they were added.
+     */
+    private final Comparator<Entry<V>>     sequenceOrder  = new Comparator<Entry<V>>() {
+                                                              @Override
+                                                              public int compare(
+                                                                      final Entry<V> e1,
+                                                                      final Entry<V> e2) {
+                                                                  return e1.sequence
+                                                                          - e2.sequence;
+                                                              }
+                                                          };
+    /**
+     * The root of the trie of literal prefixes.
+     */
+    @GuardedBy("this")
+    private final Node<V>                  root           = new Node<V>();
+    /**
+     * The entries by pattern.
+     */
+    @GuardedBy("this")
+    private final Map<Pattern, Entry<V>>   entries        = new HashMap<Pattern, Entry<V>>();
+
+    /**
+     * Returns the literal prefix of a pattern: a string with which every string
+     * that matches the pattern must begin. The returned prefix might be shorter
+     * than the longest such string (e.g., the empty string).
+     * 
+     * @param pattern
+     *            The pattern.
+     * @return The literal prefix of the pattern.
+     */
+    static String literalPrefix(final Pattern pattern) {
+        if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.LITERAL)) != 0) {
+            return "";
+        }
+        final String regex = pattern.pattern();
+        if (regex.indexOf('|') >= 0) {
+            // Alternation might apply to the prefix
+            return "";
+        }
+        final StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^")
+                ? 1
+                : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next >= regex.length()) {
+                    break;
+                }
+                c = regex.charAt(next++);
+                if (Character.isLetterOrDigit(c)) {
+                    // A character class, back-reference, quote, etc.
+                    break;
+                }
+            }
+            else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            }
+            if (next < regex.length()
+                    && QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                // The character is optional or repeated
+                break;
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Returns the value associated with a pattern.
+     * 
+     * @param pattern
+     *            The pattern.
+     * @return The associated value or {@code null} if the pattern isn't in
+     *         this instance.
+     */
+    synchronized V get(final Pattern pattern) {
+        final Entry<V> entry = entries.get(pattern);
+        return entry == null
+                ? null
+                : entry.value;
+    }
+
+    /**
+     * Associates a value with a pattern if the pattern isn't already in this
+     * instance.
+     * 
+     * @param pattern
+     *            The pattern.
+     * @param value
+     *            The value to associate with the pattern.
+     * @return The value previously associated with the pattern or {@code null}
+     *         if the pattern wasn't in this instance, in which case the given
+     *         value was added.
+     * @throws NullPointerException
+     *             if {@code pattern == null}.
+     */
+    synchronized V putIfAbsent(final Pattern pattern, final V value) {
+        final Entry<V> prevEntry = entries.get(pattern);
+        if (prevEntry != null) {
+            return prevEntry.value;
+        }
+        final Entry<V> entry = new Entry<V>(pattern, value, entries.size());
+        entries.put(pattern, entry);
+        Node<V> node = root;
+        for (final char c : literalPrefix(pattern).toCharArray()) {
+            Node<V> child = node.children.get(c);
+            if (child == null) {
+                child = new Node<V>();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.entries.add(entry);
+        return null;
+    }
+
+    /**
+     * Returns the entries whose patterns might match a string, in the order in
+     * which they were added. A returned pattern doesn't necessarily match the
+     * string but every pattern that could match the string is returned.
+     * 
+     * @param string
+     *            The string.
+     * @return The entries whose patterns might match the string.
+     */
+    synchronized List<Entry<V>> candidates(final CharSequence string) {
+        final List<Entry<V>> candidates = new ArrayList<Entry<V>>();
+        Node<V> node = root;
+        int i = 0;
+        do {
+            candidates.addAll(node.entries);
+            node = i < string.length()
+                    ? node.children.get(string.charAt(i++))
+                    : null;
+        } while (node != null);
+        Collections.sort(candidates, sequenceOrder);
+        return candidates;
+    }
+
+    /**
+     * Returns all the entries of this instance in the order in which they were
+     * added.
+     * 
+     * @return All the entries of this instance.
+     */
+    synchronized List<Entry<V>> entries() {
+        final List<Entry<V>> list = new ArrayList<Entry<V>>(entries.values());
+        Collections.sort(list, sequenceOrder);
+        return list;
+    }
+
+    /**
+     * Returns the number of patterns in this instance.
+     * 
+     * @return The number of patterns in this instance.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PatternIndex [size=" + entries.size() + "]";
+    }
+}
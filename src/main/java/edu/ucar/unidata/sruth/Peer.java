@@ -19,6 +19,7 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -82,9 +83,10 @@ final class Peer implements Callable<Boolean> {
                                                                   TimeUnit.SECONDS,
                                                                   new SynchronousQueue<Runnable>());
     /**
-     * A counter of the amount of downloaded data.
+     * A counter of the amount of downloaded data that's been written to the
+     * archive.
      */
-    private volatile long              counter;
+    private final AtomicLong           counter            = new AtomicLong(0);
     /**
      * Whether or not the counter is stopped.
      */
@@ -371,6 +373,7 @@ final class Peer implements Callable<Boolean> {
                 final Piece piece = clearingHouse.getPiece(spec);
                 if (piece != null) {
                     pieceQueue.put(piece);
+                    clearingHouse.sent(piece);
                 }
             }
             catch (final FileInfoMismatchException e) {
@@ -414,18 +417,44 @@ final class Peer implements Callable<Boolean> {
      */
     void process(final Piece piece) throws IOException, InterruptedException {
         try {
-            final boolean wasUsed = clearingHouse.process(Peer.this, piece);
-            if (!counterStopped && wasUsed) {
-                counter += piece.getSize();
-            }
+            clearingHouse.process(Peer.this, piece);
         }
         catch (final FileInfoMismatchException e) {
-            logger.warn("Mismatched file-information: {}: {}", e.toString(),
-                    this);
+            mismatched(e);
         }
         pendingRequests.remove(piece.getInfo());
     }
 
+    /**
+     * Handles a piece of data from the remote peer having been written to the
+     * archive by counting it as downloaded data. May be called by a thread
+     * other than the one that received the piece.
+     * 
+     * @param piece
+     *            The piece of data.
+     */
+    void written(final Piece piece) {
+        if (!counterStopped) {
+            counter.addAndGet(piece.getSize());
+        }
+    }
+
+    /**
+     * Handles the remote peer having sent a piece of data whose
+     * file-information is inconsistent with that of the extant file. The
+     * remote peer can't be trusted, so the connection is closed, which
+     * terminates this instance. May be called by a thread other than the one
+     * that received the piece.
+     * 
+     * @param e
+     *            The mismatch.
+     */
+    void mismatched(final FileInfoMismatchException e) {
+        logger.warn("Mismatched file-information. Disconnecting: {}: {}",
+                e.toString(), this);
+        connection.close();
+    }
+
     /**
      * Sets the name of the current thread.
      */
@@ -466,14 +495,14 @@ final class Peer implements Callable<Boolean> {
      * @return The amount of downloaded data in octets.
      */
     long getCounter() {
-        return counter;
+        return counter.get();
     }
 
     /**
      * Resets and restarts the counter.
      */
     void restartCounter() {
-        counter = 0;
+        counter.set(0);
         counterStopped = false;
     }
 
@@ -52,6 +52,12 @@ public class Predicate implements Iterable<Filter>, Message {
                                                                final FileInfo fileInfo) {
                                                        }
 
+                                                       @Override
+                                                       synchronized boolean matchesOnly(
+                                                               final FileInfo fileInfo) {
+                                                           return false;
+                                                       }
+
                                                        @Override
                                                        synchronized boolean matchesNothing() {
                                                            return false;
@@ -99,6 +105,12 @@ public class Predicate implements Iterable<Filter>, Message {
                                                                final FileInfo fileInfo) {
                                                        }
 
+                                                       @Override
+                                                       synchronized boolean matchesOnly(
+                                                               final FileInfo fileInfo) {
+                                                           return false;
+                                                       }
+
                                                        @Override
                                                        synchronized boolean matchesNothing() {
                                                            return true;
@@ -201,6 +213,25 @@ public class Predicate implements Iterable<Filter>, Message {
         return matches(pieceSpec.getFileInfo());
     }
 
+    /**
+     * Indicates if a filter of this predicate is satisfied by the given file
+     * specification and only by that specification, i.e., if receiving the
+     * file could cause {@link #removeIfPossible(FileInfo)} to remove a filter.
+     * 
+     * @param fileInfo
+     *            Information on the file.
+     * @return {@code true} if and only if a filter of this instance is
+     *         satisfied only by the given file specification.
+     */
+    synchronized boolean matchesOnly(final FileInfo fileInfo) {
+        for (final Filter filter : filters) {
+            if (filter.matchesOnly(fileInfo.getPath())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Removes a specification of a file from this instance, if possible. If a
      * filter of this predicate is satisfied by the given file specification and
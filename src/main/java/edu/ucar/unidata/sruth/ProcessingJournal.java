@@ -0,0 +1,1064 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A durable record of the data-products that have been accepted for processing
+ * but not yet completely processed. After a restart, the outstanding
+ * data-products can be obtained from the journal and processed again.
+ * <p>
+ * The journal is an append-only file of checksummed records keyed by
+ * {@link FileId}. Appends are group-committed: the thread that must wait for
+ * its record to be durable writes and synchronizes every record appended so
+ * far, so one synchronization is shared by all the threads that were waiting
+ * at the time. Records that needn't be durable (e.g., that a data-product was
+ * processed) are buffered until the next commit; losing one merely causes a
+ * data-product to be processed again.
+ * <p>
+ * The progress of each pattern's actions on an outstanding data-product is
+ * recorded, too, so that a recovered data-product is processed from the first
+ * action that hadn't completed rather than from the beginning. Progress
+ * records are buffered like completion records, so an action that completed
+ * just before a crash might be executed again.
+ * <p>
+ * When the file becomes large and is mostly records that no longer matter, a
+ * commit rewrites it with just the outstanding data-products. A data-product
+ * that fails too many times is removed from the journal and copied into the
+ * "dead-letter" subdirectory, together with the reason, for manual inspection.
+ * <p>
+ * Buffered records stay in the buffer until they're in the file, so a failed
+ * commit loses nothing and the next commit tries again. If the file can't be
+ * restored to its state before a failed commit, then the journal fails and
+ * every subsequent commit is rejected.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ProcessingJournal {
+    /**
+     * An outstanding data-product.
+     */
+    static final class Entry {
+        private final DataProduct product;
+        /**
+         * The number of failed attempts at processing the data-product.
+         */
+        private final int                  attempts;
+        /**
+         * The size of the data-product's records in the journal file in
+         * bytes.
+         */
+        private final int                  size;
+        /**
+         * The number of completed actions by pattern.
+         */
+        private final Map<String, Integer> progress;
+
+        private Entry(final DataProduct product, final int attempts,
+                final int size, final Map<String, Integer> progress) {
+            this.product = product;
+            this.attempts = attempts;
+            this.size = size;
+            this.progress = progress;
+        }
+
+        /**
+         * Returns the data-product.
+         * 
+         * @return The data-product.
+         */
+        DataProduct getProduct() {
+            return product;
+        }
+
+        /**
+         * Returns the number of failed attempts at processing the
+         * data-product.
+         * 
+         * @return The number of failed attempts.
+         */
+        int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns the number of actions of each pattern that have completed on
+         * the data-product.
+         * 
+         * @return The number of completed actions by pattern (see
+         *         {@link java.util.regex.Pattern#pattern()}). Unmodifiable.
+         */
+        Map<String, Integer> getProgress() {
+            return progress;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [product=" + product + ", attempts=" + attempts
+                    + ", progress=" + progress + "]";
+        }
+    }
+
+    /**
+     * The types of records.
+     */
+    private static final byte          PENDING      = 0;
+    private static final byte          DONE         = 1;
+    private static final byte          FAILED       = 2;
+    private static final byte          DEAD         = 3;
+    private static final byte          PROGRESS     = 4;
+    /**
+     * The size of the journal file, in bytes, above which it's rewritten if
+     * most of it is records that no longer matter.
+     */
+    private static final long          COMPACT_SIZE = 1 << 20;
+    /**
+     * The number of bytes that precede a record in the journal file: the
+     * length and the checksum.
+     */
+    private static final int           HEADER_SIZE  = 4 + 8;
+    /**
+     * The maximum size, in bytes, of the data of a data-product that's only in
+     * memory and that's journaled with the data-product.
+     */
+    private static final int           MAX_CONTENTS_SIZE = 1 << 24;
+    /**
+     * The maximum size of a valid record in bytes.
+     */
+    private static final int           MAX_RECORD_SIZE = MAX_CONTENTS_SIZE
+                                                               + (1 << 16);
+    /**
+     * The size of the buffer of records, in bytes, above which it's written
+     * without waiting for a commit.
+     */
+    private static final int           BUFFER_SIZE  = 1 << 16;
+    /**
+     * The logger for this class.
+     */
+    private static final Logger        logger       = Util.getLogger();
+    /**
+     * The pathname of the journal file.
+     */
+    private final Path                 path;
+    /**
+     * The pathname of the dead-letter directory.
+     */
+    private final Path                 deadLetterDir;
+    /**
+     * The outstanding data-products in the order in which they were accepted.
+     * Includes the effect of buffered records.
+     */
+    @GuardedBy("this")
+    private final Map<FileId, Entry>   outstanding  = new LinkedHashMap<FileId, Entry>();
+    /**
+     * The total size of the records of the outstanding data-products in bytes.
+     */
+    @GuardedBy("this")
+    private long                       liveSize;
+    /**
+     * The outstanding data-products of the previous session.
+     */
+    @GuardedBy("this")
+    private List<Entry>                recovered;
+    /**
+     * The records that haven't been written to the file, including those
+     * being written by the committing thread.
+     */
+    @GuardedBy("this")
+    private final ByteArrayOutputStream buffer      = new ByteArrayOutputStream();
+    /**
+     * The I/O channel to the journal file. Only accessed by the committing
+     * thread.
+     */
+    private FileChannel                channel;
+    /**
+     * The sequence number of the last appended record.
+     */
+    @GuardedBy("this")
+    private long                       appendedSeq;
+    /**
+     * The sequence number of the last durable record.
+     */
+    @GuardedBy("this")
+    private long                       committedSeq;
+    /**
+     * Whether or not a thread is committing.
+     */
+    @GuardedBy("this")
+    private boolean                    committing;
+    /**
+     * The number of times the file has been synchronized with the storage
+     * device.
+     */
+    @GuardedBy("this")
+    private long                       syncCount;
+    /**
+     * The reason the journal failed or {@code null} if it hasn't.
+     */
+    @GuardedBy("this")
+    private IOException                failure;
+
+    /**
+     * Opens a journal in a directory, creating it if necessary. The
+     * outstanding data-products of a previous session are recovered.
+     * 
+     * @param dir
+     *            The pathname of the directory.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    ProcessingJournal(final Path dir) throws IOException {
+        Files.createDirectories(dir);
+        path = dir.resolve("journal");
+        deadLetterDir = dir.resolve("dead-letter");
+        if (Files.exists(path)) {
+            replay();
+        }
+        recovered = new ArrayList<Entry>(outstanding.values());
+        channel = rewrite(recovered);
+    }
+
+    /**
+     * Reads the journal file into the map of outstanding data-products. Stops
+     * at the first incomplete or corrupt record, which can be the last one if
+     * the previous session crashed.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void replay() throws IOException {
+        final DataInputStream input = new DataInputStream(
+                Files.newInputStream(path));
+        try {
+            for (;;) {
+                final byte[] record;
+                final long checksum;
+                try {
+                    final int length = input.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        logger.warn("Corrupt record in journal {}. Ignoring "
+                                + "rest.", path);
+                        break;
+                    }
+                    record = new byte[length];
+                    checksum = input.readLong();
+                    input.readFully(record);
+                }
+                catch (final EOFException e) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    logger.warn("Corrupt record in journal {}. Ignoring rest.",
+                            path);
+                    break;
+                }
+                apply(record);
+            }
+        }
+        finally {
+            input.close();
+        }
+        logger.info("Recovered {} outstanding data-products from {}",
+                outstanding.size(), path);
+    }
+
+    /**
+     * Applies a record to the map of outstanding data-products.
+     * 
+     * @param record
+     *            The record.
+     * @throws IOException
+     *             if the record is invalid.
+     */
+    private void apply(final byte[] record) throws IOException {
+        final ObjectInputStream input = new ObjectInputStream(
+                new ByteArrayInputStream(record));
+        try {
+            final byte type = input.readByte();
+            if (type == PENDING) {
+                final Path rootDir = Paths.get(input.readUTF());
+                final FileInfo fileInfo = (FileInfo) input.readObject();
+                final int attempts = input.readInt();
+                final int size = input.readInt();
+                final ByteBuffer contents;
+                if (size < 0) {
+                    contents = null;
+                }
+                else {
+                    final byte[] data = new byte[size];
+                    input.readFully(data);
+                    contents = ByteBuffer.wrap(data);
+                }
+                put(new Entry(new DataProduct(rootDir, fileInfo, contents),
+                        attempts, HEADER_SIZE + record.length,
+                        Collections.<String, Integer> emptyMap()));
+            }
+            else {
+                final FileId fileId = (FileId) input.readObject();
+                if (type == FAILED) {
+                    final int attempts = input.readInt();
+                    final Entry entry = outstanding.get(fileId);
+                    if (entry != null) {
+                        put(new Entry(entry.product, attempts, entry.size,
+                                entry.progress));
+                    }
+                }
+                else if (type == PROGRESS) {
+                    final String pattern = input.readUTF();
+                    final int count = input.readInt();
+                    final Entry entry = outstanding.get(fileId);
+                    if (entry != null) {
+                        put(withProgress(entry, pattern, count,
+                                HEADER_SIZE + record.length));
+                    }
+                }
+                else {
+                    remove(fileId);
+                }
+            }
+        }
+        catch (final ClassNotFoundException e) {
+            throw new IOException("Invalid journal record", e);
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Adds or replaces an outstanding data-product.
+     * 
+     * @param entry
+     *            The outstanding data-product.
+     */
+    @GuardedBy("this")
+    private void put(final Entry entry) {
+        final Entry previous = outstanding.put(entry.product.getFileInfo()
+                .getFileId(), entry);
+        if (previous != null) {
+            liveSize -= previous.size;
+        }
+        liveSize += entry.size;
+    }
+
+    /**
+     * Returns an outstanding data-product with the progress of a pattern's
+     * actions updated.
+     * 
+     * @param entry
+     *            The outstanding data-product.
+     * @param pattern
+     *            The pattern (see {@link java.util.regex.Pattern#pattern()}).
+     * @param count
+     *            The number of the pattern's actions that have completed.
+     * @param recordSize
+     *            The size of the progress record in the journal file in bytes.
+     * @return The updated outstanding data-product.
+     */
+    private static Entry withProgress(final Entry entry, final String pattern,
+            final int count, final int recordSize) {
+        final Map<String, Integer> progress = new HashMap<String, Integer>(
+                entry.progress);
+        /*
+         * The previous record of the pattern is superseded by one of the same
+         * size.
+         */
+        final int size = progress.put(pattern, count) == null
+                ? entry.size + recordSize
+                : entry.size;
+        return new Entry(entry.product, entry.attempts, size,
+                Collections.unmodifiableMap(progress));
+    }
+
+    /**
+     * Removes an outstanding data-product.
+     * 
+     * @param fileId
+     *            The identifier of the data-product.
+     * @return The removed data-product or {@code null} if it wasn't
+     *         outstanding.
+     */
+    @GuardedBy("this")
+    private Entry remove(final FileId fileId) {
+        final Entry entry = outstanding.remove(fileId);
+        if (entry != null) {
+            liveSize -= entry.size;
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the journal file anew with just the given entries and opens it
+     * for appending.
+     * 
+     * @param entries
+     *            The outstanding data-products.
+     * @return The I/O channel to the new journal file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private FileChannel rewrite(final List<Entry> entries) throws IOException {
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (final Entry entry : entries) {
+            writeRecord(bytes, pendingRecord(entry.product, entry.attempts));
+            final FileId fileId = entry.product.getFileInfo().getFileId();
+            for (final Map.Entry<String, Integer> progress : entry.progress
+                    .entrySet()) {
+                writeRecord(bytes, progressRecord(fileId, progress.getKey(),
+                        progress.getValue()));
+            }
+        }
+        /*
+         * The channel stays open across the move so that nothing can fail
+         * after the journal file has been replaced.
+         */
+        final FileChannel tmpChannel = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        boolean success = false;
+        try {
+            write(tmpChannel, bytes.toByteArray());
+            tmpChannel.force(true);
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            success = true;
+        }
+        finally {
+            if (!success) {
+                tmpChannel.close();
+            }
+        }
+        return tmpChannel;
+    }
+
+    /**
+     * Appends records to the journal file. If that fails, then the file is
+     * truncated to its previous size so that a partially-written record
+     * doesn't hide the records that are appended after it. If the truncation
+     * fails, too, then the journal fails.
+     * 
+     * @param bytes
+     *            The records.
+     * @param force
+     *            Whether or not to synchronize the file with the storage
+     *            device.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void appendToFile(final byte[] bytes, final boolean force)
+            throws IOException {
+        final long size = channel.size();
+        try {
+            write(channel, bytes);
+            if (force) {
+                channel.force(false);
+            }
+        }
+        catch (final IOException e) {
+            try {
+                channel.truncate(size);
+            }
+            catch (final IOException e2) {
+                logger.error("Couldn't restore journal " + path
+                        + ". Rejecting further commits.", e2);
+                synchronized (this) {
+                    failure = e2;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes bytes to a channel.
+     * 
+     * @param channel
+     *            The channel.
+     * @param bytes
+     *            The bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void write(final FileChannel channel, final byte[] bytes)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Writes a checksummed record to an output stream.
+     * 
+     * @param output
+     *            The output stream.
+     * @param record
+     *            The record.
+     */
+    private static void writeRecord(final ByteArrayOutputStream output,
+            final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        final DataOutputStream data = new DataOutputStream(output);
+        try {
+            data.writeInt(record.length);
+            data.writeLong(crc.getValue());
+            data.write(record);
+            data.flush();
+        }
+        catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the record of an outstanding data-product. The record of a
+     * data-product that's only in memory contains its data (if it's not too
+     * large) so that it can be processed after a restart.
+     * 
+     * @param product
+     *            The data-product.
+     * @param attempts
+     *            The number of failed attempts at processing the data-product.
+     * @return The record.
+     */
+    private static byte[] pendingRecord(final DataProduct product,
+            final int attempts) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeByte(PENDING);
+            output.writeUTF(product.getRootDir().toString());
+            output.writeObject(product.getFileInfo());
+            output.writeInt(attempts);
+            if (product.hasContents() && product.size() <= MAX_CONTENTS_SIZE) {
+                final ByteBuffer contents = product.getContents();
+                final byte[] data = new byte[contents.remaining()];
+                contents.get(data);
+                output.writeInt(data.length);
+                output.write(data);
+            }
+            else {
+                output.writeInt(-1);
+            }
+            output.close();
+        }
+        catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns a record about a data-product that's identified by its
+     * {@link FileId}.
+     * 
+     * @param type
+     *            The type of the record.
+     * @param fileId
+     *            The identifier of the data-product.
+     * @param attempts
+     *            The number of failed attempts at processing the data-product.
+     *            Only written for {@link #FAILED} records.
+     * @return The record.
+     */
+    private static byte[] idRecord(final byte type, final FileId fileId,
+            final int attempts) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeByte(type);
+            output.writeObject(fileId);
+            if (type == FAILED) {
+                output.writeInt(attempts);
+            }
+            output.close();
+        }
+        catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns a record of the progress of a pattern's actions on a
+     * data-product.
+     * 
+     * @param fileId
+     *            The identifier of the data-product.
+     * @param pattern
+     *            The pattern (see {@link java.util.regex.Pattern#pattern()}).
+     * @param count
+     *            The number of the pattern's actions that have completed.
+     * @return The record.
+     */
+    private static byte[] progressRecord(final FileId fileId,
+            final String pattern, final int count) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeByte(PROGRESS);
+            output.writeObject(fileId);
+            output.writeUTF(pattern);
+            output.writeInt(count);
+            output.close();
+        }
+        catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends a record to the buffer.
+     * 
+     * @param record
+     *            The record.
+     * @return The sequence number of the record.
+     */
+    @GuardedBy("this")
+    private long append(final byte[] record) {
+        writeRecord(buffer, record);
+        return ++appendedSeq;
+    }
+
+    /**
+     * Removes records that are in the file from the front of the buffer.
+     * 
+     * @param count
+     *            The number of bytes to remove.
+     */
+    @GuardedBy("this")
+    private void discard(final int count) {
+        final byte[] bytes = buffer.toByteArray();
+        buffer.reset();
+        buffer.write(bytes, count, bytes.length - count);
+    }
+
+    /**
+     * Makes durable all records up to and including a given one. If no other
+     * thread is committing, then the current thread writes and synchronizes
+     * all buffered records; otherwise, it waits for the other thread and
+     * checks again. The records stay buffered until they've been written, so
+     * none is lost if the commit fails.
+     * 
+     * @param seq
+     *            The sequence number of the record.
+     * @param force
+     *            Whether or not to synchronize the file with the storage
+     *            device.
+     * @throws IOException
+     *             if an I/O error occurs or the journal has failed.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void commit(final long seq, final boolean force)
+            throws IOException, InterruptedException {
+        final byte[] bytes;
+        final long upTo;
+        final List<Entry> entries;
+        synchronized (this) {
+            while (committedSeq < seq && committing) {
+                wait();
+            }
+            if (committedSeq >= seq) {
+                return;
+            }
+            if (channel == null) {
+                throw new IOException("Journal is closed: " + path);
+            }
+            if (failure != null) {
+                throw new IOException("Journal failed: " + path, failure);
+            }
+            committing = true;
+            upTo = appendedSeq;
+            bytes = buffer.toByteArray();
+            final long size = channel.size() + bytes.length;
+            entries = size > Math.max(COMPACT_SIZE, 2 * liveSize)
+                    ? new ArrayList<Entry>(outstanding.values())
+                    : null;
+        }
+        boolean success = false;
+        try {
+            if (entries != null) {
+                final FileChannel oldChannel = channel;
+                channel = rewrite(entries);
+                try {
+                    oldChannel.close();
+                }
+                catch (final IOException e) {
+                    logger.warn("Couldn't close old journal file {}: {}",
+                            path, e.toString());
+                }
+            }
+            else {
+                appendToFile(bytes, force);
+                if (force) {
+                    synchronized (this) {
+                        syncCount++;
+                    }
+                }
+            }
+            success = true;
+        }
+        finally {
+            synchronized (this) {
+                committing = false;
+                if (success) {
+                    committedSeq = upTo;
+                    discard(bytes.length);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the outstanding data-products of the previous session in the
+     * order in which they were accepted. Subsequent invocations return an
+     * empty list.
+     * 
+     * @return The outstanding data-products of the previous session.
+     */
+    synchronized List<Entry> takeRecovered() {
+        final List<Entry> entries = recovered;
+        recovered = new ArrayList<Entry>(0);
+        return entries;
+    }
+
+    /**
+     * Returns the outstanding data-products in the order in which they were
+     * accepted.
+     * 
+     * @return The outstanding data-products.
+     */
+    synchronized List<Entry> getOutstanding() {
+        return new ArrayList<Entry>(outstanding.values());
+    }
+
+    /**
+     * Durably records that a data-product has been accepted for processing.
+     * Returns when the record is durable.
+     * 
+     * @param product
+     *            The data-product.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void pending(final DataProduct product) throws IOException,
+            InterruptedException {
+        pending(Collections.singletonList(product));
+    }
+
+    /**
+     * Durably records that data-products have been accepted for processing.
+     * Returns when the records are durable. One synchronization suffices for
+     * all the data-products, so a caller that accepts data-products serially
+     * should record them in batches.
+     * 
+     * @param products
+     *            The data-products.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void pending(final Collection<DataProduct> products) throws IOException,
+            InterruptedException {
+        final long seq = pendingLazily(products);
+        if (seq != 0) {
+            commit(seq, true);
+        }
+    }
+
+    /**
+     * Records that data-products have been accepted for processing without
+     * waiting for the records to be durable. Doesn't perform I/O. The records
+     * are made durable by {@link #sync()}, which should be called before the
+     * data-products are processed.
+     * 
+     * @param products
+     *            The data-products.
+     * @return The sequence number of the last record or {@code 0} if every
+     *         data-product was already outstanding.
+     */
+    synchronized long pendingLazily(final Collection<DataProduct> products) {
+        long seq = 0;
+        for (final DataProduct product : products) {
+            final FileId fileId = product.getFileInfo().getFileId();
+            if (!outstanding.containsKey(fileId)) {
+                final byte[] record = pendingRecord(product, 0);
+                put(new Entry(product, 0, HEADER_SIZE + record.length,
+                        Collections.<String, Integer> emptyMap()));
+                seq = append(record);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Makes durable all the records appended so far.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void sync() throws IOException, InterruptedException {
+        final long seq;
+        synchronized (this) {
+            seq = appendedSeq;
+        }
+        commit(seq, true);
+    }
+
+    /**
+     * Returns the number of times the journal file has been synchronized with
+     * the storage device.
+     * 
+     * @return The number of synchronizations.
+     */
+    synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Records that a data-product has been completely processed. Doesn't wait
+     * for the record to be durable.
+     * 
+     * @param fileId
+     *            The identifier of the data-product.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void done(final FileId fileId) throws IOException, InterruptedException {
+        appendLazily(DONE, fileId, 0);
+    }
+
+    /**
+     * Records a failed attempt at processing a data-product. Doesn't wait for
+     * the record to be durable.
+     * 
+     * @param fileId
+     *            The identifier of the data-product.
+     * @param attempts
+     *            The number of failed attempts so far.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void failed(final FileId fileId, final int attempts) throws IOException,
+            InterruptedException {
+        appendLazily(FAILED, fileId, attempts);
+    }
+
+    /**
+     * Records the number of a pattern's actions that have completed on a
+     * data-product. Doesn't wait for the record to be durable.
+     * 
+     * @param fileId
+     *            The identifier of the data-product.
+     * @param pattern
+     *            The pattern (see {@link java.util.regex.Pattern#pattern()}).
+     * @param count
+     *            The number of the pattern's actions that have completed.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void progress(final FileId fileId, final String pattern, final int count)
+            throws IOException, InterruptedException {
+        final long seq;
+        synchronized (this) {
+            final Entry entry = outstanding.get(fileId);
+            if (entry == null) {
+                return;
+            }
+            final byte[] record = progressRecord(fileId, pattern, count);
+            put(withProgress(entry, pattern, count, HEADER_SIZE
+                    + record.length));
+            seq = append(record);
+            if (buffer.size() < BUFFER_SIZE || committing) {
+                return;
+            }
+        }
+        commit(seq, false);
+    }
+
+    /**
+     * Appends a record about a data-product without waiting for it to be
+     * durable. Writes the buffered records if there are many of them.
+     * 
+     * @param type
+     *            The type of the record.
+     * @param fileId
+     *            The identifier of the data-product.
+     * @param attempts
+     *            The number of failed attempts at processing the data-product.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void appendLazily(final byte type, final FileId fileId,
+            final int attempts) throws IOException, InterruptedException {
+        final long seq;
+        synchronized (this) {
+            final Entry entry = outstanding.get(fileId);
+            if (entry == null) {
+                return;
+            }
+            if (type == FAILED) {
+                put(new Entry(entry.product, attempts, entry.size,
+                        entry.progress));
+            }
+            else {
+                remove(fileId);
+            }
+            seq = append(idRecord(type, fileId, attempts));
+            if (buffer.size() < BUFFER_SIZE || committing) {
+                return;
+            }
+        }
+        commit(seq, false);
+    }
+
+    /**
+     * Removes a data-product that can't be processed from the journal and
+     * copies it into the dead-letter directory together with the reason.
+     * 
+     * @param product
+     *            The data-product.
+     * @param reason
+     *            The reason the data-product couldn't be processed.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void dead(final DataProduct product, final Throwable reason)
+            throws IOException, InterruptedException {
+        final FileId fileId = product.getFileInfo().getFileId();
+        final Path deadPath = product.getFileInfo().getPath().getAbsolutePath(
+                deadLetterDir);
+        Files.createDirectories(deadPath.getParent());
+        try {
+            final OutputStream output = Files.newOutputStream(deadPath);
+            try {
+                product.writeTo(output);
+            }
+            finally {
+                output.close();
+            }
+        }
+        catch (final IOException e) {
+            logger.warn("Couldn't copy {} to dead-letter directory: {}",
+                    product, e.toString());
+        }
+        final Writer writer = new OutputStreamWriter(
+                Files.newOutputStream(deadLetterDir.resolve("reasons"),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                "UTF-8");
+        try {
+            writer.write(new ArchiveTime() + "\t" + fileId + "\t" + reason
+                    + "\n");
+        }
+        finally {
+            writer.close();
+        }
+        final long seq;
+        synchronized (this) {
+            if (remove(fileId) == null) {
+                return;
+            }
+            seq = append(idRecord(DEAD, fileId, 0));
+        }
+        commit(seq, true);
+        logger.error("Moved data-product to dead-letter directory {}: {}",
+                deadLetterDir, product);
+    }
+
+    /**
+     * Makes all records durable and closes the journal. Idempotent.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void close() throws IOException, InterruptedException {
+        final long seq;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            seq = appendedSeq;
+        }
+        try {
+            commit(seq, true);
+        }
+        finally {
+            synchronized (this) {
+                while (committing) {
+                    wait();
+                }
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ProcessingJournal [path=" + path + ", outstanding="
+                + outstanding.size() + "]";
+    }
+}
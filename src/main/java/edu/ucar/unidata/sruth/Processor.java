@@ -5,19 +5,39 @@
  */
 package edu.ucar.unidata.sruth;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -25,30 +45,546 @@ import org.slf4j.Logger;
 /**
  * Processes data-products according to client instructions.
  * <p>
+ * Data-products are accepted into a bounded queue. A dispatching thread
+ * matches each data-product against the registered patterns and hands the
+ * matching actions to a pool of worker threads. All actions of a pattern are
+ * executed by the same worker thread, so data-products are processed by a
+ * pattern's actions in the order in which they were queued; different
+ * patterns are processed concurrently. What happens when the queue is full is
+ * determined by the instance's {@link OverflowPolicy}.
+ * <p>
+ * If an action fails, then the pattern's remaining actions are retried with
+ * exponential backoff, which can reorder the data-product with respect to
+ * later ones. After too many attempts, the data-product is given up on. If the
+ * instance has a {@link ProcessingJournal}, then accepted data-products that
+ * weren't completely processed are processed again after a restart, starting
+ * with each pattern's first action that hadn't completed, and data-products
+ * that were given up on are moved to the journal's dead-letter directory.
+ * Accepted data-products are recorded in the journal by the accepting thread
+ * but made durable by a committing thread, which synchronizes the journal
+ * once for all the data-products accepted in the meantime before queuing
+ * them for dispatch.
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
 @ThreadSafe
 public final class Processor implements Callable<Void> {
+    /**
+     * What to do with a data-product when the processing queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the thread that's queuing the data-product until there's room.
+         */
+        BLOCK,
+        /**
+         * Save the data-product's information in a temporary file until there's
+         * room.
+         */
+        SPILL,
+        /**
+         * Discard the data-product and count it.
+         */
+        DROP
+    }
+
+    /**
+     * The actions of a pattern to be executed on a data-product.
+     */
+    private static final class Task {
+        private final Matcher       matcher;
+        private final DataProduct   product;
+        private final List<Action>  actions;
+        /**
+         * The number of unfinished tasks of the data-product.
+         */
+        private final AtomicInteger remaining;
+        /**
+         * The index of the next action to execute.
+         */
+        private int                 next;
+        /**
+         * The number of failed attempts.
+         */
+        private int                 attempts;
+
+        Task(final Matcher matcher, final DataProduct product,
+                final List<Action> actions, final AtomicInteger remaining,
+                final int attempts) {
+            this.matcher = matcher;
+            this.product = product;
+            this.actions = actions;
+            this.remaining = remaining;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * Executes the actions of a subset of patterns in order.
+     */
+    private final class Lane implements Callable<Void> {
+        /**
+         * The queue of tasks to be executed.
+         */
+        private final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(
+                                                        queueSize);
+
+        @Override
+        public Void call() throws InterruptedException {
+            for (;;) {
+                process(queue.take());
+            }
+        }
+    }
+
+    /**
+     * Makes the records of accepted data-products durable in batches and
+     * queues the data-products for dispatch in the order in which they were
+     * accepted.
+     */
+    private final class Committer implements Callable<Void> {
+        @Override
+        public Void call() throws InterruptedException {
+            final List<DataProduct> batch = new ArrayList<DataProduct>();
+            for (;;) {
+                batch.add(acceptedQueue.take());
+                acceptedQueue.drainTo(batch);
+                try {
+                    journal.sync();
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't record data-products in "
+                            + journal, e);
+                }
+                for (final DataProduct dataProduct : batch) {
+                    enqueue(dataProduct);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Continues a task when an action that completes asynchronously (e.g., a
+     * {@link Bulkhead}) has finished.
+     */
+    private final class TaskCompletion extends Action.Completion {
+        private final Task task;
+
+        TaskCompletion(final Task task) {
+            this.task = task;
+        }
+
+        @Override
+        void succeeded() {
+            task.next++;
+            if (task.next < task.actions.size()) {
+                progressed(task);
+                resume(task);
+            }
+            else {
+                finished(task);
+            }
+        }
+
+        @Override
+        void failed(final Exception cause) {
+            try {
+                Processor.this.failed(task, cause);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A first-in, first-out queue of data-products in a temporary file. The
+     * data of a data-product that's only in memory is spilled with it.
+     */
+    @ThreadSafe
+    private static final class SpillFile {
+        /**
+         * The pathname of the file.
+         */
+        @GuardedBy("this")
+        private Path             path;
+        /**
+         * The file.
+         */
+        @GuardedBy("this")
+        private RandomAccessFile file;
+        /**
+         * The offset of the next data-product to be read.
+         */
+        @GuardedBy("this")
+        private long             readPos;
+        /**
+         * The offset at which the next data-product will be written.
+         */
+        @GuardedBy("this")
+        private long             writePos;
+        /**
+         * The number of data-products in the file.
+         */
+        @GuardedBy("this")
+        private int              count;
+
+        /**
+         * Appends a data-product to the file. Creates the file if necessary.
+         * 
+         * @param product
+         *            The data-product.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        synchronized void add(final DataProduct product) throws IOException {
+            if (file == null) {
+                path = Files.createTempFile(Util.PACKAGE_NAME, ".spill");
+                file = new RandomAccessFile(path.toFile(), "rw");
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeObject(product.getRootDir().toString());
+            output.writeObject(product.getFileInfo());
+            if (product.hasContents()) {
+                final ByteBuffer contents = product.getContents();
+                final byte[] data = new byte[contents.remaining()];
+                contents.get(data);
+                output.writeInt(data.length);
+                output.write(data);
+            }
+            else {
+                output.writeInt(-1);
+            }
+            output.close();
+            file.seek(writePos);
+            file.writeInt(bytes.size());
+            file.write(bytes.toByteArray());
+            writePos = file.getFilePointer();
+            count++;
+        }
+
+        /**
+         * Removes and returns the oldest data-product in the file.
+         * 
+         * @return The oldest data-product or {@code null} if the file is
+         *         empty.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        synchronized DataProduct poll() throws IOException {
+            if (count == 0) {
+                return null;
+            }
+            file.seek(readPos);
+            final byte[] bytes = new byte[file.readInt()];
+            file.readFully(bytes);
+            readPos = file.getFilePointer();
+            if (--count == 0) {
+                file.setLength(0);
+                readPos = writePos = 0;
+            }
+            final ObjectInputStream input = new ObjectInputStream(
+                    new ByteArrayInputStream(bytes));
+            try {
+                final Path rootDir = Paths.get((String) input.readObject());
+                final FileInfo fileInfo = (FileInfo) input.readObject();
+                final int size = input.readInt();
+                if (size < 0) {
+                    return new DataProduct(rootDir, fileInfo);
+                }
+                final byte[] data = new byte[size];
+                input.readFully(data);
+                return new DataProduct(rootDir, fileInfo,
+                        ByteBuffer.wrap(data));
+            }
+            catch (final ClassNotFoundException e) {
+                throw new IOException("Invalid spilled data-product", e);
+            }
+            finally {
+                input.close();
+            }
+        }
+
+        /**
+         * Returns the number of data-products in the file.
+         * 
+         * @return The number of data-products in the file.
+         */
+        synchronized int size() {
+            return count;
+        }
+
+        /**
+         * Deletes the file and its contents. Idempotent.
+         */
+        synchronized void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                    Files.deleteIfExists(path);
+                }
+                catch (final IOException e) {
+                    logger.warn("Couldn't delete spill-file {}: {}", path,
+                            e.toString());
+                }
+                file = null;
+                path = null;
+                readPos = writePos = 0;
+                count = 0;
+            }
+        }
+    }
+
     /**
      * The logger for this package
      */
-    private static final Logger                        logger          = Util.getLogger();
+    private static final Logger                        logger                  = Util.getLogger();
+    /**
+     * The default number of worker threads.
+     */
+    private static final int                           THREAD_COUNT;
+    private static final String                        THREAD_COUNT_KEY        = "processor thread count";
+    /**
+     * The default capacity of the processing queue.
+     */
+    private static final int                           QUEUE_SIZE;
+    private static final int                           QUEUE_SIZE_DEFAULT      = 1024;
+    private static final String                        QUEUE_SIZE_KEY          = "processor queue size";
+    /**
+     * The default overflow policy.
+     */
+    private static final OverflowPolicy                OVERFLOW_POLICY;
+    private static final OverflowPolicy                OVERFLOW_POLICY_DEFAULT = OverflowPolicy.BLOCK;
+    private static final String                        OVERFLOW_POLICY_KEY     = "processor overflow policy";
+    /**
+     * The default maximum number of attempts at processing a data-product.
+     */
+    private static final int                           MAX_ATTEMPTS;
+    private static final int                           MAX_ATTEMPTS_DEFAULT    = 5;
+    private static final String                        MAX_ATTEMPTS_KEY        = "processor maximum attempts";
     /**
-     * Map from filters to actions.
+     * The default delay, in milliseconds, before the first retry. Subsequent
+     * delays double up to {@link #MAX_RETRY_DELAY}.
      */
-    private final ConcurrentMap<Pattern, List<Action>> actions         = new ConcurrentHashMap<Pattern, List<Action>>();
+    private static final long                          RETRY_DELAY;
+    private static final long                          RETRY_DELAY_DEFAULT     = 1000;
+    private static final String                        RETRY_DELAY_KEY         = "processor retry delay";
     /**
-     * The queue of unprocessed data-products. It's synchronous to prevent an
-     * out-of-memory error.
+     * The maximum delay, in milliseconds, before a retry.
      */
-    private final BlockingQueue<DataProduct>           processingQueue = new SynchronousQueue<DataProduct>();
+    private static final long                          MAX_RETRY_DELAY         = 600000;
+    /**
+     * Map from filters to actions. Indexed by literal prefix so that only
+     * candidate patterns are evaluated against a data-product.
+     */
+    private final PatternIndex<List<Action>>           actions                 = new PatternIndex<List<Action>>();
+    /**
+     * The capacity of the processing queue and of the queue of each worker
+     * thread.
+     */
+    private final int                                  queueSize;
+    /**
+     * The queue of unprocessed data-products.
+     */
+    private final BlockingQueue<DataProduct>           processingQueue;
+    /**
+     * The queue of accepted data-products whose records in the journal aren't
+     * yet known to be durable.
+     */
+    private final BlockingQueue<DataProduct>           acceptedQueue;
+    /**
+     * What to do when the processing queue is full.
+     */
+    private final OverflowPolicy                       overflowPolicy;
+    /**
+     * The overflow of the processing queue under the {@link OverflowPolicy#SPILL}
+     * policy.
+     */
+    private final SpillFile                            spillFile               = new SpillFile();
+    /**
+     * The worker threads' queues of tasks.
+     */
+    private final List<Lane>                           lanes;
+    /**
+     * The number of data-products that were discarded.
+     */
+    private final AtomicLong                           droppedCount            = new AtomicLong(0);
+    /**
+     * The number of data-products that were spilled to a temporary file.
+     */
+    private final AtomicLong                           spilledCount            = new AtomicLong(0);
+    /**
+     * The maximum number of attempts at processing a data-product.
+     */
+    private final int                                  maxAttempts;
+    /**
+     * The delay, in milliseconds, before the first retry.
+     */
+    private final long                                 retryDelay;
+    /**
+     * The journal of accepted data-products or {@code null}.
+     */
+    private volatile ProcessingJournal                 journal;
+    /**
+     * The number of failed attempts at processing recovered data-products.
+     */
+    private final ConcurrentMap<FileId, Integer>       priorAttempts           = new ConcurrentHashMap<FileId, Integer>();
+    /**
+     * The number of completed actions by pattern of recovered data-products.
+     */
+    private final ConcurrentMap<FileId, Map<String, Integer>> priorProgress = new ConcurrentHashMap<FileId, Map<String, Integer>>();
+    /**
+     * The executor of delayed retries. Set by {@link #call()}.
+     */
+    private volatile ScheduledExecutorService          retryTimer;
+    /**
+     * Whether or not this instance is being shut down.
+     */
+    private volatile boolean                           isShutdown;
+    /**
+     * The number of data-products that were given up on.
+     */
+    private final AtomicLong                           deadCount               = new AtomicLong(0);
     /**
      * The "isRunning" latch.
      */
-    private final CountDownLatch                       isRunningLatch  = new CountDownLatch(
-                                                                               1);
+    private final CountDownLatch                       isRunningLatch          = new CountDownLatch(1);
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(Processor.class);
+        THREAD_COUNT = prefs.getInt(THREAD_COUNT_KEY, Runtime.getRuntime()
+                .availableProcessors());
+        if (THREAD_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + THREAD_COUNT_KEY + "\": " + THREAD_COUNT);
+        }
+        QUEUE_SIZE = prefs.getInt(QUEUE_SIZE_KEY, QUEUE_SIZE_DEFAULT);
+        if (QUEUE_SIZE <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + QUEUE_SIZE_KEY + "\": " + QUEUE_SIZE);
+        }
+        final String policy = prefs.get(OVERFLOW_POLICY_KEY,
+                OVERFLOW_POLICY_DEFAULT.name());
+        try {
+            OVERFLOW_POLICY = OverflowPolicy.valueOf(policy);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + OVERFLOW_POLICY_KEY + "\": " + policy);
+        }
+        MAX_ATTEMPTS = prefs.getInt(MAX_ATTEMPTS_KEY, MAX_ATTEMPTS_DEFAULT);
+        if (MAX_ATTEMPTS <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + MAX_ATTEMPTS_KEY + "\": " + MAX_ATTEMPTS);
+        }
+        RETRY_DELAY = prefs.getLong(RETRY_DELAY_KEY, RETRY_DELAY_DEFAULT);
+        if (RETRY_DELAY < 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + RETRY_DELAY_KEY + "\": " + RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Constructs from the user-preferences for the number of worker threads,
+     * the capacity of the processing queue, and the overflow policy.
+     */
+    public Processor() {
+        this(THREAD_COUNT, QUEUE_SIZE, OVERFLOW_POLICY);
+    }
+
+    /**
+     * Constructs from the number of worker threads, the capacity of the
+     * processing queue, and the overflow policy.
+     * 
+     * @param threadCount
+     *            The number of worker threads.
+     * @param queueSize
+     *            The capacity of the processing queue and of the queue of
+     *            each worker thread.
+     * @param overflowPolicy
+     *            What to do when the processing queue is full.
+     * @throws IllegalArgumentException
+     *             if {@code threadCount <= 0 || queueSize <= 0}.
+     * @throws NullPointerException
+     *             if {@code overflowPolicy == null}.
+     */
+    public Processor(final int threadCount, final int queueSize,
+            final OverflowPolicy overflowPolicy) {
+        this(threadCount, queueSize, overflowPolicy, MAX_ATTEMPTS, RETRY_DELAY);
+    }
+
+    /**
+     * Constructs from the number of worker threads, the capacity of the
+     * processing queue, the overflow policy, the maximum number of attempts at
+     * processing a data-product, and the delay before the first retry.
+     * 
+     * @param threadCount
+     *            The number of worker threads.
+     * @param queueSize
+     *            The capacity of the processing queue and of the queue of
+     *            each worker thread.
+     * @param overflowPolicy
+     *            What to do when the processing queue is full.
+     * @param maxAttempts
+     *            The maximum number of attempts at processing a data-product.
+     * @param retryDelay
+     *            The delay, in milliseconds, before the first retry.
+     *            Subsequent delays double.
+     * @throws IllegalArgumentException
+     *             if {@code threadCount <= 0 || queueSize <= 0 ||
+     *             maxAttempts <= 0 || retryDelay < 0}.
+     * @throws NullPointerException
+     *             if {@code overflowPolicy == null}.
+     */
+    Processor(final int threadCount, final int queueSize,
+            final OverflowPolicy overflowPolicy, final int maxAttempts,
+            final long retryDelay) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Invalid maximum attempts: "
+                    + maxAttempts);
+        }
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("Invalid retry delay: "
+                    + retryDelay);
+        }
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads: "
+                    + threadCount);
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Invalid queue size: "
+                    + queueSize);
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+        processingQueue = new ArrayBlockingQueue<DataProduct>(queueSize);
+        acceptedQueue = new ArrayBlockingQueue<DataProduct>(queueSize);
+        lanes = new ArrayList<Lane>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            lanes.add(new Lane());
+        }
+    }
+
+    /**
+     * Sets the journal of accepted data-products. Should be called before
+     * {@link #call()}. The journal is closed when {@link #call()} returns.
+     * 
+     * @param journal
+     *            The journal of accepted data-products.
+     */
+    void setJournal(final ProcessingJournal journal) {
+        this.journal = journal;
+    }
 
     /**
      * Adds a processing action to a data-product category.
@@ -73,23 +609,392 @@ public final class Processor implements Callable<Void> {
     @Override
     public Void call() throws InterruptedException {
         logger.trace("Starting up: {}", this);
-        isRunningLatch.countDown();
+        final ExecutorService executor = Executors.newFixedThreadPool(lanes
+                .size() + 1);
+        retryTimer = Executors.newSingleThreadScheduledExecutor();
         try {
+            for (final Lane lane : lanes) {
+                executor.submit(lane);
+            }
+            if (journal != null) {
+                executor.submit(new Committer());
+            }
+            recover();
+            isRunningLatch.countDown();
             for (;;) {
                 /*
                  * TODO: Handle interruption better when the queue is not empty
                  */
-                final DataProduct product = processingQueue.take();
                 try {
-                    matchAndProcess(product);
+                    matchAndDispatch(next());
                 }
                 catch (final IOException e) {
-                    logger.error("Couldn't process data-product: " + product, e);
+                    logger.error("Couldn't process data-product", e);
                 }
             }
         }
         finally {
-            logger.trace("Done: {}", this);
+            isShutdown = true;
+            retryTimer.shutdownNow();
+            executor.shutdownNow();
+            final boolean wasInterrupted = Thread.interrupted();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                closeActions();
+            }
+            finally {
+                spillFile.close();
+                closeJournal();
+                if (wasInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                logger.trace("Done: {}", this);
+            }
+        }
+    }
+
+    /**
+     * Schedules the processing of the data-products that were accepted but not
+     * completely processed before a restart. A data-product that's no longer
+     * in the archive is ignored.
+     */
+    private void recover() {
+        final ProcessingJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        for (final ProcessingJournal.Entry entry : journal.takeRecovered()) {
+            final DataProduct product = entry.getProduct();
+            if (!product.exists()) {
+                finished(product);
+                continue;
+            }
+            final FileId fileId = product.getFileInfo().getFileId();
+            if (entry.getAttempts() > 0) {
+                priorAttempts.put(fileId, entry.getAttempts());
+            }
+            if (!entry.getProgress().isEmpty()) {
+                priorProgress.put(fileId, entry.getProgress());
+            }
+            requeue(product, entry.getAttempts() == 0
+                    ? 0
+                    : getRetryDelay(entry.getAttempts()));
+        }
+    }
+
+    /**
+     * Queues a recovered data-product for dispatch after a delay. The
+     * overflow policy doesn't apply: if the processing queue is full, then
+     * the data-product is queued again after a longer delay so that the timer
+     * thread never blocks.
+     * 
+     * @param product
+     *            The data-product.
+     * @param delay
+     *            The delay in milliseconds.
+     */
+    private void requeue(final DataProduct product, final long delay) {
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!processingQueue.offer(product)) {
+                        requeue(product, getBackoff(delay));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e) {
+            // This instance is being shut down. The journal has the product.
+        }
+    }
+
+    /**
+     * Returns the delay before another attempt at queuing a task or
+     * data-product whose queue was full.
+     * 
+     * @param delay
+     *            The previous delay in milliseconds.
+     * @return The next delay in milliseconds.
+     */
+    private long getBackoff(final long delay) {
+        return Math.min(Math.max(2 * delay, Math.max(retryDelay, 1)),
+                MAX_RETRY_DELAY);
+    }
+
+    /**
+     * Closes the journal, if any. Logs any error.
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void closeJournal() throws InterruptedException {
+        final ProcessingJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't close journal " + journal, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the delay before a retry.
+     * 
+     * @param attempts
+     *            The number of failed attempts so far.
+     * @return The delay, in milliseconds, before the next attempt.
+     */
+    private long getRetryDelay(final int attempts) {
+        final long delay = retryDelay << Math.min(attempts - 1, 30);
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+    /**
+     * Handles the failure of an action. The task is retried after a delay
+     * unless it's been attempted too many times, in which case the
+     * data-product is given up on.
+     * 
+     * @param task
+     *            The task whose action failed.
+     * @param cause
+     *            The cause of the failure.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void failed(final Task task, final Exception cause)
+            throws InterruptedException {
+        task.attempts++;
+        final ProcessingJournal journal = this.journal;
+        if (task.attempts >= maxAttempts) {
+            logger.error("Giving up on data-product after " + task.attempts
+                    + " attempts: " + task.product, cause);
+            if (journal != null) {
+                try {
+                    journal.dead(task.product, cause);
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't record dead data-product "
+                            + task.product + " in " + journal, e);
+                }
+            }
+            deadCount.incrementAndGet();
+            finished(task);
+            return;
+        }
+        final long delay = getRetryDelay(task.attempts);
+        logger.warn("Couldn't process data-product {}. Retrying in {} ms: {}",
+                new Object[] { task.product, delay, cause.toString() });
+        if (journal != null) {
+            try {
+                journal.failed(task.product.getFileInfo().getFileId(),
+                        task.attempts);
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't record failure of " + task.product
+                        + " in " + journal, e);
+            }
+        }
+        retry(task, delay);
+    }
+
+    /**
+     * Handles a task whose next action couldn't accept it because the action
+     * is backlogged (see {@link Bulkhead}). This is backpressure rather than a
+     * failure, so the task is retried after a delay without counting an
+     * attempt; consequently, a backlogged action never causes a data-product
+     * to be given up on.
+     * 
+     * @param task
+     *            The task whose next action is backlogged.
+     */
+    private void deferred(final Task task) {
+        final long delay = getBackoff(0);
+        logger.debug("Action backlogged. Retrying data-product {} in {} ms",
+                task.product, delay);
+        retry(task, delay);
+    }
+
+    /**
+     * Returns a task to its lane after a delay. If the lane's queue is full,
+     * then the task is returned again after a longer delay so that the timer
+     * thread never blocks, which would delay the retries of every lane.
+     * 
+     * @param task
+     *            The task.
+     * @param delay
+     *            The delay in milliseconds.
+     */
+    private void retry(final Task task, final long delay) {
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!getLane(task.matcher.pattern()).queue.offer(task)) {
+                        retry(task, getBackoff(delay));
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (final RejectedExecutionException e) {
+            // This instance is being shut down. The journal has the task.
+        }
+    }
+
+    /**
+     * Executes the remaining actions of a task. If an action completes
+     * asynchronously, then the task is continued by its {@link TaskCompletion}
+     * when the action has finished.
+     * 
+     * @param task
+     *            The task.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void process(final Task task) throws InterruptedException {
+        try {
+            while (task.next < task.actions.size()) {
+                // Foreign method. Don't call while synchronized
+                if (!task.actions.get(task.next).start(task.matcher,
+                        task.product, new TaskCompletion(task))) {
+                    return;
+                }
+                if (++task.next < task.actions.size()) {
+                    progressed(task);
+                }
+            }
+        }
+        catch (final BulkheadFullException e) {
+            deferred(task);
+            return;
+        }
+        catch (final IOException e) {
+            failed(task, e);
+            return;
+        }
+        catch (final RuntimeException e) {
+            // A faulty action mustn't stop the lane
+            failed(task, e);
+            return;
+        }
+        finished(task);
+    }
+
+    /**
+     * Returns a task whose asynchronous action has finished to its lane so that
+     * its remaining actions are executed in order. Gives up if this instance
+     * is shut down.
+     * 
+     * @param task
+     *            The task.
+     */
+    private void resume(final Task task) {
+        final BlockingQueue<Task> queue = getLane(task.matcher.pattern()).queue;
+        try {
+            while (!isShutdown) {
+                if (queue.offer(task, 1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+            // The journal has the task.
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the progress of a task that has completed some, but not all, of
+     * its actions so that the completed actions aren't executed again on a
+     * recovered data-product (e.g., a data-product isn't appended to a file
+     * twice by an {@link AppendAction}).
+     * 
+     * @param task
+     *            The task.
+     */
+    private void progressed(final Task task) {
+        final ProcessingJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.progress(task.product.getFileInfo().getFileId(),
+                        task.matcher.pattern().pattern(), task.next);
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't record progress of " + task.product
+                        + " in " + journal, e);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Handles the completion of a task. If it was the last unfinished task of
+     * its data-product, then the data-product is recorded as processed.
+     * 
+     * @param task
+     *            The completed task.
+     */
+    private void finished(final Task task) {
+        if (task.remaining.decrementAndGet() == 0) {
+            finished(task.product);
+        }
+    }
+
+    /**
+     * Records that a data-product has been completely processed.
+     * 
+     * @param product
+     *            The data-product.
+     */
+    private void finished(final DataProduct product) {
+        final ProcessingJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.done(product.getFileInfo().getFileId());
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't record completion of " + product
+                        + " in " + journal, e);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the lane of a pattern.
+     * 
+     * @param pattern
+     *            The pattern.
+     * @return The lane that executes the pattern's actions.
+     */
+    private Lane getLane(final Pattern pattern) {
+        return lanes.get((pattern.hashCode() & Integer.MAX_VALUE)
+                % lanes.size());
+    }
+
+    /**
+     * Releases the resources held by the actions (e.g., long-lived decoder
+     * processes).
+     * 
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void closeActions() throws InterruptedException {
+        for (final PatternIndex.Entry<List<Action>> entry : actions.entries()) {
+            final List<Action> list = entry.getValue();
+            final List<Action> patternActions;
+            synchronized (list) {
+                patternActions = new ArrayList<Action>(list);
+            }
+            for (final Action action : patternActions) {
+                action.close();
+            }
         }
     }
 
@@ -106,8 +1011,13 @@ public final class Processor implements Callable<Void> {
     }
 
     /**
-     * Queues a data-product for processing. Blocks until the data-product can
-     * be queued.
+     * Queues a data-product for processing. If the processing queue is full,
+     * then the data-product is handled according to this instance's
+     * {@link OverflowPolicy}. If this instance has a journal and the
+     * data-product matches a pattern, then the data-product is recorded in it
+     * and is processed only after the record is durable. This method doesn't
+     * wait for that, so it's fast enough to be called on the receiving path;
+     * it blocks only if too many data-products are awaiting a durable record.
      * 
      * @param dataProduct
      *            The data-product to be processed
@@ -115,12 +1025,135 @@ public final class Processor implements Callable<Void> {
      *             if the current thread is interrupted
      */
     void put(final DataProduct dataProduct) throws InterruptedException {
-        processingQueue.put(dataProduct);
+        put(Collections.singletonList(dataProduct));
+    }
+
+    /**
+     * Queues data-products for processing in order. Equivalent to calling
+     * {@link #put(DataProduct)} on each one except that the matching
+     * data-products are recorded in the journal together.
+     * 
+     * @param dataProducts
+     *            The data-products to be processed
+     * @throws InterruptedException
+     *             if the current thread is interrupted
+     */
+    void put(final List<DataProduct> dataProducts)
+            throws InterruptedException {
+        final ProcessingJournal journal = this.journal;
+        if (journal != null) {
+            final List<DataProduct> matching = new ArrayList<DataProduct>(
+                    dataProducts.size());
+            for (final DataProduct dataProduct : dataProducts) {
+                if (matches(dataProduct)) {
+                    matching.add(dataProduct);
+                }
+            }
+            journal.pendingLazily(matching);
+            for (final DataProduct dataProduct : dataProducts) {
+                acceptedQueue.put(dataProduct);
+            }
+        }
+        else {
+            for (final DataProduct dataProduct : dataProducts) {
+                enqueue(dataProduct);
+            }
+        }
+    }
+
+    /**
+     * Indicates if a data-product matches any registered pattern.
+     * 
+     * @param dataProduct
+     *            The data-product.
+     * @return {@code true} if and only if the data-product matches a pattern.
+     */
+    private boolean matches(final DataProduct dataProduct) {
+        final String path = dataProduct.getFileInfo().getPath().toString();
+        for (final PatternIndex.Entry<List<Action>> entry : actions
+                .candidates(path)) {
+            if (dataProduct.matcher(entry.getPattern()).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a data-product for processing according to this instance's
+     * {@link OverflowPolicy}.
+     * 
+     * @param dataProduct
+     *            The data-product to be processed
+     * @throws InterruptedException
+     *             if the current thread is interrupted
+     */
+    private void enqueue(final DataProduct dataProduct)
+            throws InterruptedException {
+        switch (overflowPolicy) {
+        case BLOCK:
+            processingQueue.put(dataProduct);
+            break;
+        case DROP:
+            if (!processingQueue.offer(dataProduct)) {
+                droppedCount.incrementAndGet();
+                logger.debug("Processing queue full. Dropped {}", dataProduct);
+                finished(dataProduct);
+            }
+            break;
+        case SPILL:
+            synchronized (spillFile) {
+                /*
+                 * Once data-products have been spilled, all subsequent ones
+                 * are spilled until the spill-file is empty in order to
+                 * preserve their order.
+                 */
+                if (spillFile.size() == 0 && processingQueue.offer(dataProduct)) {
+                    return;
+                }
+                try {
+                    spillFile.add(dataProduct);
+                    spilledCount.incrementAndGet();
+                    return;
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't spill data-product: "
+                            + dataProduct, e);
+                }
+            }
+            processingQueue.put(dataProduct);
+            break;
+        default:
+            throw new AssertionError();
+        }
     }
 
     /**
-     * Processes a data-product. A data-product will be acted upon by matching
-     * actions in the order in which the actions were added.
+     * Returns the next data-product to be processed. Blocks until one is
+     * available.
+     * 
+     * @return The next data-product to be processed.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private DataProduct next() throws InterruptedException, IOException {
+        DataProduct product = processingQueue.poll();
+        if (product == null) {
+            product = spillFile.poll();
+            if (product == null) {
+                product = processingQueue.take();
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Matches a data-product against the registered patterns and queues the
+     * actions of the matching patterns for execution. Blocks if a worker
+     * thread's queue is full. The actions of a pattern will be executed in the
+     * order in which they were added.
      * 
      * @param dataProduct
      *            The data-product to process.
@@ -128,25 +1161,91 @@ public final class Processor implements Callable<Void> {
      *         selected for processing.
      * @throws InterruptedException
      *             if the current thread is interrupted.
-     * @throws IOException
-     *             if an I/O error occurs.
      */
-    private boolean matchAndProcess(final DataProduct dataProduct)
-            throws IOException, InterruptedException {
+    private boolean matchAndDispatch(final DataProduct dataProduct)
+            throws InterruptedException {
         boolean processed = false;
-        for (final Map.Entry<Pattern, List<Action>> entry : actions.entrySet()) {
-            final Matcher matcher = dataProduct.matcher(entry.getKey());
+        final String path = dataProduct.getFileInfo().getPath().toString();
+        final FileId fileId = dataProduct.getFileInfo().getFileId();
+        final Integer prior = priorAttempts.remove(fileId);
+        final int attempts = prior == null
+                ? 0
+                : prior;
+        final Map<String, Integer> progress = priorProgress.remove(fileId);
+        /*
+         * The count starts at one so that the data-product can't be finished
+         * before all its tasks have been queued.
+         */
+        final AtomicInteger remaining = new AtomicInteger(1);
+        for (final PatternIndex.Entry<List<Action>> entry : actions
+                .candidates(path)) {
+            final Pattern pattern = entry.getPattern();
+            final Matcher matcher = dataProduct.matcher(pattern);
             if (matcher.matches()) {
-                for (final Action action : entry.getValue()) {
-                    // Foreign method. Don't call while synchronized
-                    action.execute(matcher, dataProduct);
-                    processed = true;
+                final List<Action> list = entry.getValue();
+                final List<Action> patternActions;
+                synchronized (list) {
+                    patternActions = new ArrayList<Action>(list);
                 }
+                remaining.incrementAndGet();
+                final Task task = new Task(matcher, dataProduct,
+                        patternActions, remaining, attempts);
+                if (progress != null) {
+                    final Integer count = progress.get(pattern.pattern());
+                    if (count != null) {
+                        task.next = count;
+                    }
+                }
+                getLane(pattern).queue.put(task);
+                processed = true;
             }
         }
+        if (remaining.decrementAndGet() == 0) {
+            finished(dataProduct);
+        }
         return processed;
     }
 
+    /**
+     * Returns the number of data-products waiting to be dispatched.
+     * 
+     * @return The number of data-products waiting to be dispatched.
+     */
+    int getQueueDepth() {
+        return acceptedQueue.size() + processingQueue.size()
+                + spillFile.size();
+    }
+
+    /**
+     * Returns the number of data-products that were discarded because the
+     * processing queue was full.
+     * 
+     * @return The number of discarded data-products.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of data-products that were given up on because they
+     * couldn't be processed.
+     * 
+     * @return The number of data-products that were given up on.
+     */
+    long getDeadCount() {
+        return deadCount.get();
+    }
+
+    /**
+     * Returns the number of data-products that were spilled to a temporary
+     * file because the processing queue was full.
+     * 
+     * @return The number of spilled data-products.
+     */
+    long getSpilledCount() {
+        return spilledCount.get();
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -154,6 +1253,10 @@ public final class Processor implements Callable<Void> {
      */
     @Override
     public synchronized String toString() {
-        return getClass().getSimpleName() + " [" + actions.size() + " actions]";
+        return getClass().getSimpleName() + " [" + actions.size()
+                + " actions, threads=" + lanes.size() + ", overflowPolicy="
+                + overflowPolicy + ", queueDepth=" + getQueueDepth()
+                + ", dropped=" + getDroppedCount() + ", spilled="
+                + getSpilledCount() + ", dead=" + getDeadCount() + "]";
     }
 }
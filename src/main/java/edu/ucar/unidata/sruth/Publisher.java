@@ -134,7 +134,8 @@ public final class Publisher implements Callable<Void> {
         final InetSocketAddress trackerSocketAddress = new InetSocketAddress(
                 localHostAddress, trackerPort);
         tracker = new Tracker(sourceNode.getServerSocketAddress(),
-                trackerSocketAddress);
+                trackerSocketAddress, new TopologyJournal(archive
+                        .getStateDir().resolve("tracker")));
         distributedTrackerFiles = archive.getDistributedTrackerFiles(tracker
                 .getServerAddress());
         tracker.addNetworkTopologyChangeListener(new PropertyChangeListener() {
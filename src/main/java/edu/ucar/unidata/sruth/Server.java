@@ -296,6 +296,22 @@ abstract class Server extends UninterruptibleTask<Void> {
          */
         @GuardedBy("this")
         private final List<Servlet>      servlets = new LinkedList<Servlet>();
+        /**
+         * The time of the last sample of the number of bytes sent in
+         * nanoseconds.
+         */
+        @GuardedBy("this")
+        private long                     sampleTime;
+        /**
+         * The number of bytes sent at the last sample.
+         */
+        @GuardedBy("this")
+        private long                     sampleByteCount;
+        /**
+         * The upload rate computed at the last sample in bytes per second.
+         */
+        @GuardedBy("this")
+        private long                     uploadRate;
         /**
          * The maximum number of active servlets.
          */
@@ -350,6 +366,8 @@ abstract class Server extends UninterruptibleTask<Void> {
             this.clearingHouse = clearingHouse;
             this.maxNumActiveServlets = maxNumActiveServlets;
             this.maxNumPendingServlets = maxNumPendingServlets;
+            sampleTime = System.nanoTime();
+            sampleByteCount = clearingHouse.getSentByteCount();
             servletExecutor = new CancellingExecutor(0, maxNumActiveServlets
                     + maxNumPendingServlets, 60, TimeUnit.SECONDS,
                     new SynchronousQueue<Runnable>());
@@ -436,6 +454,27 @@ abstract class Server extends UninterruptibleTask<Void> {
             return servlets.size();
         }
 
+        /**
+         * Returns the current load on this instance. The upload rate is the
+         * average since the previous invocation that was at least a second
+         * earlier.
+         * 
+         * @return The current load on this instance.
+         */
+        synchronized ServerLoad getLoad() {
+            final long now = System.nanoTime();
+            final long elapsed = now - sampleTime;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                final long byteCount = clearingHouse.getSentByteCount();
+                uploadRate = (long) ((byteCount - sampleByteCount) * 1e9 / elapsed);
+                sampleTime = now;
+                sampleByteCount = byteCount;
+            }
+            final int servletCount = servlets.size();
+            return new ServerLoad(uploadRate, servletCount, Math.max(0,
+                    maxNumActiveServlets - servletCount));
+        }
+
         /*
          * (non-Javadoc)
          * 
@@ -632,6 +671,15 @@ abstract class Server extends UninterruptibleTask<Void> {
                         servletManager.submit(connection);
                     }
                 }
+                catch (final EOFException e) {
+                    // E.g., a round-trip-time probe by a ServerSelector
+                    logger.trace("Closed before identified: {}", socket);
+                    try {
+                        socket.close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
                 catch (final IOException e) {
                     logger.error("Error on {}: {}", socket, e.toString());
                 }
@@ -700,6 +748,15 @@ abstract class Server extends UninterruptibleTask<Void> {
         return servletManager.size();
     }
 
+    /**
+     * Returns the current load on this instance for reporting to the tracker.
+     * 
+     * @return The current load on this instance.
+     */
+    ServerLoad getLoad() {
+        return servletManager.getLoad();
+    }
+
     /**
      * Handles the creation of new local data by notifying the servlet manager.
      * 
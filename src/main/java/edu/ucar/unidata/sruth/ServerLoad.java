@@ -0,0 +1,213 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The load on a node's server as reported to the tracker during registration:
+ * the rate at which the server is sending data, the number of clients it's
+ * serving, and the number of additional clients it could serve.
+ * <p>
+ * Instances are immutable.
+ * 
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class ServerLoad implements Serializable {
+    /**
+     * The serial version identifier.
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * The factor by which the upload rate must change for two loads to be
+     * dissimilar.
+     */
+    private static final int  RATE_FACTOR      = 2;
+    /**
+     * The upload rate below which differences are ignored in bytes per second.
+     */
+    private static final long MIN_RATE         = 1024;
+    /**
+     * The upload rate in bytes per second.
+     * 
+     * @serial
+     */
+    private final long        uploadRate;
+    /**
+     * The number of active servlets.
+     * 
+     * @serial
+     */
+    private final int         servletCount;
+    /**
+     * The number of additional servlets that could be active.
+     * 
+     * @serial
+     */
+    private final int         freeSlots;
+
+    /**
+     * Constructs from the upload rate, the number of active servlets, and the
+     * number of free servlet slots.
+     * 
+     * @param uploadRate
+     *            The upload rate in bytes per second.
+     * @param servletCount
+     *            The number of active servlets.
+     * @param freeSlots
+     *            The number of additional servlets that could be active.
+     * @throws IllegalArgumentException
+     *             if any argument is negative.
+     */
+    ServerLoad(final long uploadRate, final int servletCount,
+            final int freeSlots) {
+        if (uploadRate < 0 || servletCount < 0 || freeSlots < 0) {
+            throw new IllegalArgumentException("Invalid load: " + uploadRate
+                    + ", " + servletCount + ", " + freeSlots);
+        }
+        this.uploadRate = uploadRate;
+        this.servletCount = servletCount;
+        this.freeSlots = freeSlots;
+    }
+
+    /**
+     * Returns the upload rate.
+     * 
+     * @return The upload rate in bytes per second.
+     */
+    long getUploadRate() {
+        return uploadRate;
+    }
+
+    /**
+     * Returns the number of active servlets.
+     * 
+     * @return The number of active servlets.
+     */
+    int getServletCount() {
+        return servletCount;
+    }
+
+    /**
+     * Returns the number of additional servlets that could be active.
+     * 
+     * @return The number of free servlet slots.
+     */
+    int getFreeSlots() {
+        return freeSlots;
+    }
+
+    /**
+     * Indicates if the server can't accept another client without dropping an
+     * existing one.
+     * 
+     * @return {@code true} if and only if the server has no free slots.
+     */
+    boolean isFull() {
+        return freeSlots == 0;
+    }
+
+    /**
+     * Indicates if this instance is similar enough to another that the change
+     * isn't worth distributing. Two loads are similar if they have the same
+     * numbers of servlets and free slots and their upload rates differ by less
+     * than a factor of {@value #RATE_FACTOR} (rates below {@value #MIN_RATE}
+     * bytes per second are considered equal).
+     * 
+     * @param that
+     *            The other instance or {@code null}.
+     * @return {@code true} if and only if the two instances are similar.
+     */
+    boolean isSimilarTo(final ServerLoad that) {
+        if (that == null || servletCount != that.servletCount
+                || freeSlots != that.freeSlots) {
+            return false;
+        }
+        final long min = Math.max(Math.min(uploadRate, that.uploadRate),
+                MIN_RATE);
+        final long max = Math.max(Math.max(uploadRate, that.uploadRate),
+                MIN_RATE);
+        return max < RATE_FACTOR * min;
+    }
+
+    /**
+     * Writes this instance in the compact form of the {@link TrackerProtocol}.
+     * 
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #read(DataInput)
+     */
+    void write(final DataOutput output) throws IOException {
+        output.writeLong(uploadRate);
+        output.writeShort(Math.min(servletCount, Short.MAX_VALUE));
+        output.writeShort(Math.min(freeSlots, Short.MAX_VALUE));
+    }
+
+    /**
+     * Reads an instance that was written by {@link #write(DataOutput)}.
+     * 
+     * @param input
+     *            The input.
+     * @return The instance.
+     * @throws InvalidMessageException
+     *             if the input is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static ServerLoad read(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final long uploadRate = input.readLong();
+        final int servletCount = input.readShort();
+        final int freeSlots = input.readShort();
+        try {
+            return new ServerLoad(uploadRate, servletCount, freeSlots);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new InvalidMessageException("Invalid server load", e);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + freeSlots;
+        result = prime * result + servletCount;
+        result = prime * result + (int) (uploadRate ^ (uploadRate >>> 32));
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final ServerLoad other = (ServerLoad) obj;
+        return freeSlots == other.freeSlots
+                && servletCount == other.servletCount
+                && uploadRate == other.uploadRate;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerLoad [uploadRate=" + uploadRate + ", servletCount="
+                + servletCount + ", freeSlots=" + freeSlots + "]";
+    }
+}
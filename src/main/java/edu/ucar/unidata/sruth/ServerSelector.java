@@ -0,0 +1,307 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Selects the server to connect to from amongst the candidates that the
+ * network topology offers for a data-filter, preferring servers that are
+ * nearby and under-loaded. Nearness is the round-trip time (RTT) of a TCP
+ * connection to the server, which is measured when first needed and then
+ * remembered for a while. Load is what the server last reported to the tracker
+ * (see {@link ServerLoad}).
+ * <p>
+ * The cost of a candidate is its RTT multiplied by one plus its number of
+ * clients and by one plus its upload rate relative to the largest upload rate
+ * of the candidates. A candidate without free slots costs
+ * {@value #FULL_PENALTY} times as much because it would have to drop a client
+ * to accept another one. The candidate with the least cost is selected.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+class ServerSelector {
+    /**
+     * A measured round-trip time.
+     */
+    @Immutable
+    private static final class Rtt {
+        /**
+         * The round-trip time in nanoseconds or
+         * {@link ServerSelector#UNREACHABLE}.
+         */
+        private final long nanos;
+        /**
+         * When the round-trip time was measured in nanoseconds.
+         */
+        private final long time;
+
+        /**
+         * Constructs from the round-trip time.
+         * 
+         * @param nanos
+         *            The round-trip time in nanoseconds or
+         *            {@link ServerSelector#UNREACHABLE}.
+         */
+        Rtt(final long nanos) {
+            this.nanos = nanos;
+            time = System.nanoTime();
+        }
+
+        /**
+         * Indicates if this instance is too old to use.
+         * 
+         * @param now
+         *            The current time in nanoseconds.
+         * @return {@code true} if and only if this instance is too old.
+         */
+        boolean isStale(final long now) {
+            return now - time > RTT_LIFETIME;
+        }
+    }
+
+    /**
+     * The round-trip time of an unreachable server.
+     */
+    static final long                     UNREACHABLE                = Long.MAX_VALUE;
+    /**
+     * The factor by which the cost of a server without free slots is
+     * increased.
+     */
+    private static final int              FULL_PENALTY               = 4;
+    /**
+     * The number of remembered round-trip times above which stale ones are
+     * forgotten.
+     */
+    private static final int              MAX_RTTS                   = 1024;
+    /**
+     * The logger for this class.
+     */
+    private static final Logger           logger                     = Util.getLogger();
+    /**
+     * The maximum number of candidate servers whose costs are compared.
+     */
+    private static final int              CANDIDATE_COUNT;
+    private static final String           CANDIDATE_COUNT_KEY        = "number of candidate servers";
+    private static final int              CANDIDATE_COUNT_DEFAULT    = 4;
+    /**
+     * The time for which a round-trip time is remembered in nanoseconds.
+     */
+    private static final long             RTT_LIFETIME;
+    private static final String           RTT_LIFETIME_KEY           = "server RTT lifetime in seconds";
+    private static final int              RTT_LIFETIME_DEFAULT       = 600;
+    /**
+     * The timeout for measuring a round-trip time in milliseconds.
+     */
+    private static final int              PROBE_TIMEOUT;
+    private static final String           PROBE_TIMEOUT_KEY          = "server RTT probe timeout in milliseconds";
+    private static final int              PROBE_TIMEOUT_DEFAULT      = 2000;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(ServerSelector.class);
+
+        CANDIDATE_COUNT = prefs.getInt(CANDIDATE_COUNT_KEY,
+                CANDIDATE_COUNT_DEFAULT);
+        if (CANDIDATE_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + CANDIDATE_COUNT_KEY + "\"=" + CANDIDATE_COUNT);
+        }
+
+        final int rttLifetime = prefs.getInt(RTT_LIFETIME_KEY,
+                RTT_LIFETIME_DEFAULT);
+        if (rttLifetime < 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + RTT_LIFETIME_KEY + "\"=" + rttLifetime);
+        }
+        RTT_LIFETIME = TimeUnit.SECONDS.toNanos(rttLifetime);
+
+        PROBE_TIMEOUT = prefs.getInt(PROBE_TIMEOUT_KEY, PROBE_TIMEOUT_DEFAULT);
+        if (PROBE_TIMEOUT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + PROBE_TIMEOUT_KEY + "\"=" + PROBE_TIMEOUT);
+        }
+    }
+
+    /**
+     * The remembered round-trip times.
+     */
+    @GuardedBy("this")
+    private final Map<InetSocketAddress, Rtt> rtts                    = new HashMap<InetSocketAddress, Rtt>();
+
+    /**
+     * Returns the server to connect to for a given data-filter.
+     * <p>
+     * This method is potentially slow because it might measure the round-trip
+     * times of several servers.
+     * 
+     * @param topology
+     *            The network topology. Not modified.
+     * @param filter
+     *            The specification of desired-data.
+     * @param excluded
+     *            The servers that must not be returned.
+     * @return The server to connect to or {@code null} if no such server
+     *         exists.
+     * @throws NullPointerException
+     *             if any argument is {@code null}.
+     */
+    InetSocketAddress select(final Topology topology, final Filter filter,
+            final Set<InetSocketAddress> excluded) {
+        final List<InetSocketAddress> candidates = topology.getBestServers(
+                filter, excluded, CANDIDATE_COUNT);
+        if (candidates.size() <= 1) {
+            return candidates.isEmpty()
+                    ? null
+                    : candidates.get(0);
+        }
+
+        long maxRate = 0;
+        final ServerLoad[] loads = new ServerLoad[candidates.size()];
+        for (int i = 0; i < loads.length; i++) {
+            loads[i] = topology.getLoad(candidates.get(i));
+            if (loads[i] != null) {
+                maxRate = Math.max(maxRate, loads[i].getUploadRate());
+            }
+        }
+
+        InetSocketAddress best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < loads.length; i++) {
+            final InetSocketAddress server = candidates.get(i);
+            final long rtt = getRtt(server);
+            if (rtt != UNREACHABLE) {
+                final double cost = cost(rtt, loads[i], maxRate);
+                logger.trace("Server {}: RTT={} ns, load={}, cost={}",
+                        new Object[] { server, rtt, loads[i], cost });
+                if (cost < bestCost) {
+                    best = server;
+                    bestCost = cost;
+                }
+            }
+        }
+        /*
+         * If every candidate is unreachable, then the first one is returned so
+         * that the failure is handled like any other.
+         */
+        return best == null
+                ? candidates.get(0)
+                : best;
+    }
+
+    /**
+     * Returns the cost of connecting to a server.
+     * 
+     * @param rtt
+     *            The round-trip time to the server in nanoseconds.
+     * @param load
+     *            The load on the server or {@code null} if unknown.
+     * @param maxRate
+     *            The largest upload rate of the candidate servers in bytes per
+     *            second.
+     * @return The cost of connecting to the server.
+     */
+    static double cost(final long rtt, final ServerLoad load,
+            final long maxRate) {
+        double cost = Math.max(rtt, 1);
+        if (load != null) {
+            cost *= 1 + load.getServletCount();
+            if (maxRate > 0) {
+                cost *= 1 + (double) load.getUploadRate() / maxRate;
+            }
+            if (load.isFull()) {
+                cost *= FULL_PENALTY;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the round-trip time to a server, measuring it if it isn't
+     * remembered.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return The round-trip time in nanoseconds or
+         *            {@link ServerSelector#UNREACHABLE}.
+     */
+    private long getRtt(final InetSocketAddress server) {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            final Rtt rtt = rtts.get(server);
+            if (rtt != null && !rtt.isStale(now)) {
+                return rtt.nanos;
+            }
+        }
+        final long nanos = probe(server);
+        synchronized (this) {
+            if (rtts.size() >= MAX_RTTS) {
+                for (final Iterator<Rtt> iter = rtts.values().iterator(); iter
+                        .hasNext();) {
+                    if (iter.next().isStale(now)) {
+                        iter.remove();
+                    }
+                }
+            }
+            rtts.put(server, new Rtt(nanos));
+        }
+        return nanos;
+    }
+
+    /**
+     * Measures the round-trip time to a server as the time it takes to
+     * establish a TCP connection to it.
+     * <p>
+     * This method is potentially slow.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return The round-trip time in nanoseconds or
+         *            {@link ServerSelector#UNREACHABLE}.
+     */
+    long probe(final InetSocketAddress server) {
+        final Socket socket = new Socket();
+        try {
+            final long start = System.nanoTime();
+            socket.connect(server, PROBE_TIMEOUT);
+            return System.nanoTime() - start;
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't probe {}: {}", server, e.toString());
+            return UNREACHABLE;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (final IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ServerSelector [rtts=(" + rtts.size() + ")]";
+    }
+}
@@ -153,8 +153,8 @@ final class SinkNode extends AbstractNode {
 
         final DistributedTrackerFiles distributedTrackerFiles = clearingHouse
                 .getDistributedTrackerFiles(trackerAddress);
-        trackerProxy = new TrackerProxy(trackerAddress,
-                localServer.getSocketAddress(), distributedTrackerFiles);
+        trackerProxy = new TrackerProxy(trackerAddress, localServer,
+                distributedTrackerFiles);
         clientManagers = new ArrayList<ClientManager>(
                 predicate.getFilterCount());
         synchronized (this) {
@@ -267,6 +267,7 @@ final class SinkNode extends AbstractNode {
             finally {
                 executorService.shutdownNow();
                 awaitCompletion();
+                clearingHouse.close();
             }
         }
         finally {
@@ -237,6 +237,7 @@ final class SourceNode extends AbstractNode {
         finally {
             executorService.shutdownNow();
             awaitCompletion();
+            clearingHouse.close();
             Thread.currentThread().setName(origThreadName);
             logger.trace("Done: {}", this);
         }
@@ -13,6 +13,10 @@ import java.net.SocketException;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -21,6 +25,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import net.jcip.annotations.ThreadSafe;
 
@@ -42,6 +47,11 @@ public final class Subscriber implements Callable<Void> {
      * The logger for this class.
      */
     private static final Logger logger    = Util.getLogger();
+    /**
+     * The number of replayed data-products that are given to the processor
+     * at once.
+     */
+    private static final int    REPLAY_BATCH_SIZE = 100;
     /**
      * The sink-node.
      */
@@ -120,9 +130,47 @@ public final class Subscriber implements Callable<Void> {
      *             if a server-side socket couldn't be created.
      */
     public Subscriber(final Path rootDir,
+            final InetSocketAddress trackerAddress, final Predicate predicate,
+            final Processor processor, final int serverPort) throws IOException {
+        this(Collections.singletonList(rootDir), trackerAddress, predicate,
+                processor, serverPort);
+    }
+
+    /**
+     * Constructs from the pathnames of the volumes of the archive, the Internet
+     * address of the tracker, the predicate for the desired data, the processor
+     * of received data, and the port number for the local data-exchange
+     * server. Files are striped across the volumes.
+     * 
+     * @param rootDirs
+     *            Pathnames of the roots of the file-trees of the volumes. The
+     *            first one is the primary volume.
+     * @param trackerAddress
+     *            The address of the tracker.
+     * @param predicate
+     *            The predicate for selecting the desired data.
+     * @param processor
+     *            The processor of received data-products.
+     * @param serverPort
+     *            The port number on which the local data-exchange server will
+     *            listen for connections. If zero, then an ephemeral port will
+     *            be chosen by the operating-system.
+     * @throws IllegalArgumentException
+     *             if {@code rootDirs} is empty or if one pathname contains
+     *             another.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code rootDirs == null || trackerAddress == null ||
+     *             predicate == null || processor == null} or if
+     *             {@code rootDirs} contains {@code null}.
+     * @throws SocketException
+     *             if a server-side socket couldn't be created.
+     */
+    public Subscriber(final List<Path> rootDirs,
             final InetSocketAddress trackerAddress, Predicate predicate,
             final Processor processor, final int serverPort) throws IOException {
-        if (null == rootDir) {
+        if (null == rootDirs) {
             throw new NullPointerException();
         }
         if (null == trackerAddress) {
@@ -134,15 +182,19 @@ public final class Subscriber implements Callable<Void> {
         if (null == processor) {
             throw new NullPointerException();
         }
-        archive = new Archive(rootDir);
+        archive = new Archive(rootDirs);
+        /*
+         * Ensure that accepted data-products are processed even if this
+         * process crashes.
+         */
+        processor.setJournal(new ProcessingJournal(archive.getStateDir()
+                .resolve("processing")));
         /*
-         * Ensure reception of the distributed tracker files.
+         * Ensure reception of the distributed tracker files that are relevant
+         * to the desired data.
          */
-        final DistributedTrackerFiles distributedTrackerFiles = new DistributedTrackerFiles(
-                archive, trackerAddress);
-        final Filter filterServerMapFilter = distributedTrackerFiles
-                .getFilter();
-        predicate = predicate.add(filterServerMapFilter);
+        predicate = new DistributedTrackerFiles(archive, trackerAddress)
+                .addSubscription(predicate);
 
         archive.addDataProductListener(new DataProductListener() {
             @Override
@@ -174,6 +226,44 @@ public final class Subscriber implements Callable<Void> {
         return archive.getRootDir();
     }
 
+    /**
+     * Queues for processing the data-products already in the archive whose
+     * archive-time is later than a given time, in order of archive-time. This
+     * allows the processing of a new set of actions to catch up. May be called
+     * before or during {@link #call()}; blocks if the processing queue is full
+     * and the processor isn't running.
+     * 
+     * @param since
+     *            The archive-time after which data-products are processed.
+     * @return The number of data-products queued for processing.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    long replay(final ArchiveTime since) throws IOException,
+            InterruptedException {
+        /*
+         * The data-products are given to the processor in batches so that
+         * they're journaled together.
+         */
+        final List<DataProduct> batch = new ArrayList<DataProduct>(
+                REPLAY_BATCH_SIZE);
+        final long count = archive.replay(since, new DataProductListener() {
+            @Override
+            public void process(final DataProduct dataProduct)
+                    throws InterruptedException {
+                batch.add(dataProduct);
+                if (batch.size() >= REPLAY_BATCH_SIZE) {
+                    processor.put(batch);
+                    batch.clear();
+                }
+            }
+        });
+        processor.put(batch);
+        return count;
+    }
+
     /**
      * Executes this instance. Returns normally if and only if all desired data
      * has been received.
@@ -205,8 +295,8 @@ public final class Subscriber implements Callable<Void> {
             final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
                     executor);
             /*
-             * Start the data-processing task. TODO: Use one processing thread
-             * per disk controller.
+             * Start the data-processing task. It executes actions on its own
+             * pool of threads.
              */
             final Future<Void> processingFuture = completionService
                     .submit(processor);
@@ -344,7 +434,13 @@ public final class Subscriber implements Callable<Void> {
      *                  becomes a pure relay node in the network.
      *   -d archive     Pathname of the root of the temporary data archive.
      *                  The default is the {@code SRUTH} subdirectory of the
-     *                  user's home-directory.
+     *                  user's home-directory. Several pathnames separated by
+     *                  the platform's path-separator (e.g., ":") stripe the
+     *                  archive across multiple volumes.
+     *   -r seconds     Process the data-products already in the archive that
+     *                  are newer than the given number of seconds ago (e.g.,
+     *                  after changing the actions). The default is to process
+     *                  only newly-received data-products.
      *   -s port        Port number on which the local data-exchange server
      *                  will listen for connections. If zero, then an ephemeral
      *                  port will be chosen by the operating-system (which is
@@ -370,11 +466,13 @@ public final class Subscriber implements Callable<Void> {
     public static void main(final String[] args) throws SecurityException,
             IOException {
         final int INVALID_INVOCATION = 1;
-        Path archivePath = Paths.get(System.getProperty("user.home")
-                + File.separatorChar + Util.PACKAGE_NAME);
+        List<Path> archivePaths = Collections.singletonList(Paths.get(System
+                .getProperty("user.home")
+                + File.separatorChar + Util.PACKAGE_NAME));
         Processor processor = new Processor(); // does nothing
         Subscription subscription = null;
         int serverPort = 0;
+        ArchiveTime replayTime = null;
 
         try {
             int iarg;
@@ -418,7 +516,11 @@ public final class Subscriber implements Callable<Void> {
                          * Process the archive argument.
                          */
                         try {
-                            archivePath = Paths.get(arg);
+                            archivePaths = new ArrayList<Path>();
+                            for (final String dir : arg
+                                    .split(Pattern.quote(File.pathSeparator))) {
+                                archivePaths.add(Paths.get(dir));
+                            }
                         }
                         catch (final InvalidPathException e) {
                             logger.error(
@@ -427,6 +529,26 @@ public final class Subscriber implements Callable<Void> {
                             throw new IllegalArgumentException();
                         }
                     }
+                    else if (optString.equals("r")) {
+                        /*
+                         * Decode the replay argument.
+                         */
+                        try {
+                            final long seconds = Long.parseLong(arg);
+                            if (seconds < 0) {
+                                throw new NumberFormatException();
+                            }
+                            replayTime = new ArchiveTime(FileTime
+                                    .fromMillis(System.currentTimeMillis()
+                                            - 1000 * seconds));
+                        }
+                        catch (final NumberFormatException e) {
+                            logger.error(
+                                    "Couldn't decode replay argument: \"{}\"",
+                                    arg);
+                            throw new IllegalArgumentException();
+                        }
+                    }
                     else if (optString.equals("s")) {
                         /*
                          * Decode the server-port argument.
@@ -483,7 +605,7 @@ public final class Subscriber implements Callable<Void> {
             }
         }
         catch (final IllegalArgumentException e) {
-            logger.info("Usage: ... [-a actions] [-d archive] [-s port] subscription\n"
+            logger.info("Usage: ... [-a actions] [-d archive] [-r seconds] [-s port] subscription\n"
                     + "where:\n"
                     + "    -a actions     URL or pathname of the XML document specifying local\n"
                     + "                   processing actions. The default is to do no local\n"
@@ -491,7 +613,10 @@ public final class Subscriber implements Callable<Void> {
                     + "                   becomes a pure relay node in the network.\n"
                     + "    -d archive     Pathname of the root of the temporary data archive.\n"
                     + "                   The default is the subdirectory \"SRUTH\" of the\n"
-                    + "                   user's home-directory.\n"
+                    + "                   user's home-directory. Several pathnames separated\n"
+                    + "                   by \"" + File.pathSeparator + "\" stripe the archive across volumes.\n"
+                    + "    -r seconds     Process the data-products already in the archive that\n"
+                    + "                   are newer than the given number of seconds ago.\n"
                     + "    -s port        Port number on which the local data-exchange server\n"
                     + "                   will listen for connections. If zero, then an ephemeral\n"
                     + "                   port will be chosen by the operating-system (which is\n"
@@ -505,10 +630,34 @@ public final class Subscriber implements Callable<Void> {
          * Create the subscriber.
          */
         Subscriber subscriber = null;
-        subscriber = new Subscriber(archivePath,
+        subscriber = new Subscriber(archivePaths,
                 subscription.getTrackerAddress(), subscription.getPredicate(),
                 processor, serverPort);
 
+        /*
+         * Catch up on existing data-products concurrently with the reception
+         * of new ones.
+         */
+        if (replayTime != null) {
+            final Subscriber replayer = subscriber;
+            final ArchiveTime since = replayTime;
+            final Thread thread = new Thread("Replay") {
+                @Override
+                public void run() {
+                    try {
+                        replayer.replay(since);
+                    }
+                    catch (final IOException e) {
+                        logger.error("Couldn't replay data-products", e);
+                    }
+                    catch (final InterruptedException ignored) {
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
         /*
          * Execute the subscriber.
          */
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A hashed timing wheel of deadlines. Each item has a deadline and is kept in
+ * the slot of the tick in which the deadline falls. Advancing the wheel visits
+ * only the slots of the elapsed ticks, so scheduling, extending, and expiring
+ * an item all take constant time regardless of the number of items.
+ * <p>
+ * Extending a deadline doesn't move the item: when the item's slot is next
+ * visited, the item is moved to the slot of its new deadline. This makes the
+ * frequent case of renewing a lease before it expires as cheap as updating a
+ * field.
+ * <p>
+ * Times are in nanoseconds as returned by {@link System#nanoTime()}.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @param <T>
+ *            The type of the items.
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TimingWheel<T> {
+    /**
+     * An item and its deadline.
+     */
+    private static final class Entry<T> {
+        /**
+         * The item.
+         */
+        private final T item;
+        /**
+         * The deadline of the item.
+         */
+        private long    deadline;
+
+        /**
+         * Constructs from an item and its deadline.
+         * 
+         * @param item
+         *            The item.
+         * @param deadline
+         *            The deadline of the item.
+         */
+        Entry(final T item, final long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long                   tickDuration;
+    /**
+     * The slots of the wheel. The entries of an item that was cancelled or
+     * rescheduled earlier stay in their slot until it's visited.
+     */
+    @GuardedBy("this")
+    private final List<List<Entry<T>>>   slots;
+    /**
+     * The current entry of each item.
+     */
+    @GuardedBy("this")
+    private final Map<T, Entry<T>>       entries = new HashMap<T, Entry<T>>();
+    /**
+     * The time from which ticks are counted.
+     */
+    private final long                   origin;
+    /**
+     * The last tick whose slot was visited.
+     */
+    @GuardedBy("this")
+    private long                         tick;
+
+    /**
+     * Constructs from the duration of a tick and the number of slots. The
+     * wheel starts at the current time.
+     * 
+     * @param tickDuration
+     *            The duration of a tick.
+     * @param unit
+     *            The unit of {@code tickDuration}.
+     * @param slotCount
+     *            The number of slots. Deadlines further in the future than
+     *            {@code slotCount} ticks are supported but cost an extra
+     *            visit per revolution of the wheel.
+     * @throws IllegalArgumentException
+     *             if {@code tickDuration <= 0 || slotCount <= 0}.
+     */
+    TimingWheel(final long tickDuration, final TimeUnit unit,
+            final int slotCount) {
+        if (tickDuration <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("tickDuration=" + tickDuration
+                    + ", slotCount=" + slotCount);
+        }
+        this.tickDuration = unit.toNanos(tickDuration);
+        slots = new ArrayList<List<Entry<T>>>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+        origin = System.nanoTime();
+    }
+
+    /**
+     * Returns the duration of a tick.
+     * 
+     * @param unit
+     *            The unit of the returned value.
+     * @return The duration of a tick.
+     */
+    long getTickDuration(final TimeUnit unit) {
+        return unit.convert(tickDuration, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the tick in which a time falls.
+     * 
+     * @param time
+     *            The time.
+     * @return The tick in which the time falls.
+     */
+    private long toTick(final long time) {
+        return Math.max(0, time - origin) / tickDuration;
+    }
+
+    /**
+     * Adds an entry to the slot of the tick of its deadline. An entry whose
+     * deadline has passed is added to the slot of the next tick.
+     * 
+     * @param entry
+     *            The entry.
+     */
+    @GuardedBy("this")
+    private void insert(final Entry<T> entry) {
+        final long deadlineTick = Math.max(tick + 1, toTick(entry.deadline));
+        slots.get((int) (deadlineTick % slots.size())).add(entry);
+    }
+
+    /**
+     * Schedules an item. If the item is already scheduled, then its deadline
+     * is changed.
+     * 
+     * @param item
+     *            The item.
+     * @param deadline
+     *            The deadline of the item.
+     * @throws NullPointerException
+     *             if {@code item == null}.
+     */
+    synchronized void schedule(final T item, final long deadline) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        final Entry<T> entry = entries.get(item);
+        if (entry != null && deadline >= entry.deadline) {
+            // Moved lazily when its slot is visited
+            entry.deadline = deadline;
+        }
+        else {
+            // The old entry, if any, is discarded when its slot is visited
+            final Entry<T> newEntry = new Entry<T>(item, deadline);
+            entries.put(item, newEntry);
+            insert(newEntry);
+        }
+    }
+
+    /**
+     * Changes the deadline of an item if it's scheduled.
+     * 
+     * @param item
+     *            The item.
+     * @param deadline
+     *            The new deadline of the item.
+     * @return {@code true} if and only if the item is scheduled.
+     */
+    synchronized boolean reschedule(final T item, final long deadline) {
+        if (!entries.containsKey(item)) {
+            return false;
+        }
+        schedule(item, deadline);
+        return true;
+    }
+
+    /**
+     * Cancels an item.
+     * 
+     * @param item
+     *            The item.
+     * @return {@code true} if and only if the item was scheduled.
+     */
+    synchronized boolean cancel(final T item) {
+        return entries.remove(item) != null;
+    }
+
+    /**
+     * Indicates if an item is scheduled.
+     * 
+     * @param item
+     *            The item.
+     * @return {@code true} if and only if the item is scheduled.
+     */
+    synchronized boolean contains(final T item) {
+        return entries.containsKey(item);
+    }
+
+    /**
+     * Returns the number of scheduled items.
+     * 
+     * @return The number of scheduled items.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Advances the wheel to a given time and returns the items whose
+     * deadlines have passed. The returned items are no longer scheduled.
+     * 
+     * @param now
+     *            The current time.
+     * @return The expired items in no particular order.
+     */
+    synchronized List<T> advance(final long now) {
+        final List<T> expired = new ArrayList<T>();
+        final long nowTick = toTick(now);
+        // A slot needn't be visited more than once per advance
+        final long firstTick = Math.max(tick + 1, nowTick - slots.size() + 1);
+        for (long t = firstTick; t <= nowTick; t++) {
+            final List<Entry<T>> slot = slots.get((int) (t % slots.size()));
+            if (slot.isEmpty()) {
+                continue;
+            }
+            final List<Entry<T>> entriesInSlot = new ArrayList<Entry<T>>(slot);
+            slot.clear();
+            tick = t;
+            for (final Entry<T> entry : entriesInSlot) {
+                if (entries.get(entry.item) != entry) {
+                    continue; // cancelled or rescheduled earlier
+                }
+                if (entry.deadline <= now) {
+                    entries.remove(entry.item);
+                    expired.add(entry.item);
+                }
+                else {
+                    insert(entry);
+                }
+            }
+        }
+        tick = Math.max(tick, nowTick);
+        return expired;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimingWheel [tickDuration=" + tickDuration + ", slots="
+                + slots.size() + ", size=" + entries.size() + "]";
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Admission control by a token bucket. Tokens accumulate at a fixed rate up to
+ * a maximum (the burst size) and each admitted request takes one.
+ * <p>
+ * A request that isn't admitted is told when to try again. The retry times of
+ * rejected requests are spread out over the time that it will take to admit
+ * them all at the bucket's rate, so rejected requesters don't all come back at
+ * once. To that end, the bucket keeps a backlog: the number of rejected
+ * requests that are expected to return, which drains at the bucket's rate.
+ * <p>
+ * Times are in nanoseconds as returned by {@link System#nanoTime()}.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TokenBucket {
+    /**
+     * The rate at which tokens accumulate in tokens per nanosecond.
+     */
+    private final double rate;
+    /**
+     * The maximum number of tokens.
+     */
+    private final double burst;
+    /**
+     * The number of tokens.
+     */
+    @GuardedBy("this")
+    private double       tokens;
+    /**
+     * The number of rejected requests that are expected to return.
+     */
+    @GuardedBy("this")
+    private double       backlog;
+    /**
+     * The time of the last update.
+     */
+    @GuardedBy("this")
+    private long         time;
+    /**
+     * The number of rejected requests.
+     */
+    @GuardedBy("this")
+    private long         rejectionCount;
+    /**
+     * The largest backlog.
+     */
+    @GuardedBy("this")
+    private double       maxBacklog;
+
+    /**
+     * Constructs from the rate at which tokens accumulate and the maximum
+     * number of tokens. The bucket starts full.
+     * 
+     * @param rate
+     *            The rate at which tokens accumulate in tokens per second.
+     * @param burst
+     *            The maximum number of tokens.
+     * @throws IllegalArgumentException
+     *             if {@code rate <= 0 || burst < 1}.
+     */
+    TokenBucket(final double rate, final int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate=" + rate + ", burst="
+                    + burst);
+        }
+        this.rate = rate / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        tokens = burst;
+        time = System.nanoTime();
+    }
+
+    /**
+     * Adds the tokens that have accumulated and drains the backlog up to a
+     * given time.
+     * 
+     * @param now
+     *            The time.
+     */
+    @GuardedBy("this")
+    private void update(final long now) {
+        final long elapsed = now - time;
+        if (elapsed > 0) {
+            final double accrued = elapsed * rate;
+            tokens = Math.min(burst, tokens + accrued);
+            backlog = Math.max(0, backlog - accrued);
+            time = now;
+        }
+    }
+
+    /**
+     * Tries to admit a request.
+     * 
+     * @param now
+     *            The current time.
+     * @return Zero if the request is admitted; otherwise, the time, in
+     *         nanoseconds, after which the request should be tried again.
+     */
+    synchronized long acquire(final long now) {
+        update(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        rejectionCount++;
+        backlog += 1;
+        maxBacklog = Math.max(maxBacklog, backlog);
+        /*
+         * The request gets the token that follows those of the requests that
+         * were rejected before it.
+         */
+        return (long) Math.ceil((backlog - tokens) / rate);
+    }
+
+    /**
+     * Returns the number of rejected requests.
+     * 
+     * @return The number of rejected requests.
+     */
+    synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * Returns the largest backlog, i.e., the largest number of rejected
+     * requests that were expected to return at any one time.
+     * 
+     * @return The largest backlog.
+     */
+    synchronized int getMaxBacklog() {
+        return (int) Math.ceil(maxBacklog);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TokenBucket [rate=" + rate * TimeUnit.SECONDS.toNanos(1)
+                + "/s, burst=" + burst + ", tokens=" + tokens + ", backlog="
+                + backlog + "]";
+    }
+}
@@ -1,11 +1,18 @@
 package edu.ucar.unidata.sruth;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
@@ -22,6 +29,19 @@ import net.jcip.annotations.ThreadSafe;
  * will have at least one associated filter. A filter, however, may have no
  * associated servers.
  * <p>
+ * Every change to an instance increments its version and is remembered for a
+ * while so that another instance with the same identifier and an earlier
+ * version can be brought up-to-date by a compact {@link TopologyDelta} rather
+ * than by a copy of the whole instance.
+ * <p>
+ * The filters are indexed by their components (see {@link FilterIndex}), so
+ * finding the servers of a filter -- and the best server -- takes time that
+ * depends on the filter but not on the number of servers.
+ * <p>
+ * The most recent load reported by each server (see {@link ServerLoad}) is
+ * kept with it. A new load is a change only if it's dissimilar to the previous
+ * one, so that the version isn't incremented by every registration.
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
@@ -32,6 +52,10 @@ final class Topology implements Serializable {
      * The serial version identifier.
      */
     private static final long                                  serialVersionUID = 1L;
+    /**
+     * The maximum number of remembered changes.
+     */
+    static final int                                           MAX_CHANGES      = 4096;
     /**
      * The map from filters to servers.
      * 
@@ -46,11 +70,43 @@ final class Topology implements Serializable {
      */
     @GuardedBy("this")
     private final Map<InetSocketAddress, Set<Filter>>          filterSets       = new HashMap<InetSocketAddress, Set<Filter>>();
+    /**
+     * The map from servers to their most recent loads.
+     * 
+     * @serial
+     */
+    @GuardedBy("this")
+    private final Map<InetSocketAddress, ServerLoad>           loads            = new HashMap<InetSocketAddress, ServerLoad>();
     /**
      * A pseudo-random number generator.
      */
     @GuardedBy("this")
     private final transient Random                             random           = new Random();
+    /**
+     * The identifier of the lineage of versions of this instance.
+     * 
+     * @serial
+     */
+    @GuardedBy("this")
+    private long                                               id               = random.nextLong();
+    /**
+     * The version of this instance.
+     * 
+     * @serial
+     */
+    @GuardedBy("this")
+    private long                                               version;
+    /**
+     * The most recent changes to this instance, oldest first. The last change
+     * produced the current version.
+     */
+    @GuardedBy("this")
+    private final transient Deque<TopologyDelta.Change>        changes          = new ArrayDeque<TopologyDelta.Change>();
+    /**
+     * The index of the filters that have servers.
+     */
+    @GuardedBy("this")
+    private final transient FilterIndex                        index            = new FilterIndex();
 
     /**
      * Constructs from a set of data-selection filters.
@@ -72,7 +128,8 @@ final class Topology implements Serializable {
     }
 
     /**
-     * Copy constructor.
+     * Copy constructor. The copy has the same identifier and version as the
+     * original but doesn't remember any changes.
      * 
      * @param that
      *            The other instance.
@@ -99,6 +156,8 @@ final class Topology implements Serializable {
                         .entrySet()) {
                     add(entry.getKey(), entry.getValue());
                 }
+                loads.putAll(that.loads);
+                setVersion(that.id, that.version);
             }
         }
     }
@@ -113,11 +172,8 @@ final class Topology implements Serializable {
      */
     synchronized Set<InetSocketAddress> getServers(final Filter filter) {
         final Set<InetSocketAddress> nodes = newServerSet();
-        for (final Map.Entry<Filter, Set<InetSocketAddress>> entry : serverSets
-                .entrySet()) {
-            if (entry.getKey().includes(filter)) {
-                nodes.addAll(entry.getValue());
-            }
+        for (final Filter including : index.getIncluding(filter)) {
+            nodes.addAll(index.get(including).asList());
         }
         return nodes;
     }
@@ -137,7 +193,8 @@ final class Topology implements Serializable {
             servers = newServerSet();
             serverSets.put(filter, servers);
         }
-        servers.add(server);
+        final boolean isNew = servers.add(server);
+        index.add(filter, server);
 
         Set<Filter> filters = filterSets.get(server);
         if (filters == null) {
@@ -145,6 +202,10 @@ final class Topology implements Serializable {
             filterSets.put(server, filters);
         }
         filters.add(filter);
+
+        if (isNew) {
+            record(new TopologyDelta.Change(filter, server));
+        }
     }
 
     /**
@@ -166,12 +227,15 @@ final class Topology implements Serializable {
         serverInfos.addAll(servers);
 
         for (final InetSocketAddress server : servers) {
+            index.add(filter, server);
             Set<Filter> filters = filterSets.get(server);
             if (filters == null) {
                 filters = newFilterSet();
                 filterSets.put(server, filters);
             }
-            filters.add(filter);
+            if (filters.add(filter)) {
+                record(new TopologyDelta.Change(filter, server));
+            }
         }
     }
 
@@ -199,7 +263,10 @@ final class Topology implements Serializable {
                 entryServers = newServerSet();
                 serverSets.put(filter, entryServers);
             }
-            entryServers.add(server);
+            index.add(filter, server);
+            if (entryServers.add(server)) {
+                record(new TopologyDelta.Change(filter, server));
+            }
         }
     }
 
@@ -215,6 +282,35 @@ final class Topology implements Serializable {
         return servers;
     }
 
+    /**
+     * Returns the data-filters in this instance. The returned set is not
+     * backed by this instance.
+     * 
+     * @return The data-filters in this instance.
+     */
+    synchronized Set<Filter> getFilters() {
+        final Set<Filter> filters = newFilterSet();
+        filters.addAll(serverSets.keySet());
+        return filters;
+    }
+
+    /**
+     * Returns the data-filters of a server. The returned set is not backed by
+     * this instance.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return The data-filters of the server. Might be empty.
+     */
+    synchronized Set<Filter> getFilters(final InetSocketAddress server) {
+        final Set<Filter> filters = newFilterSet();
+        final Set<Filter> entryFilters = filterSets.get(server);
+        if (entryFilters != null) {
+            filters.addAll(entryFilters);
+        }
+        return filters;
+    }
+
     /**
      * Returns the subset of this instance that satisfies a given filter. The
      * returned instance is not backed-up by this instance. Each server in the
@@ -225,19 +321,37 @@ final class Topology implements Serializable {
      * @return The subset of this instance that satisfies the given filter.
      */
     synchronized Topology subset(final Filter filter) {
-        final Set<InetSocketAddress> servers = getServers(filter);
         final Topology subset = new Topology();
-        for (final InetSocketAddress server : servers) {
-            final Set<Filter> filters = filterSets.get(server);
-            for (final Filter filt : filters) {
-                if (filt.includes(filter)) {
-                    subset.add(filt, server);
+        for (final Filter including : index.getIncluding(filter)) {
+            for (final InetSocketAddress server : index.get(including)
+                    .asList()) {
+                subset.add(including, server);
+                final ServerLoad load = loads.get(server);
+                if (load != null) {
+                    subset.setLoad(server, load);
                 }
             }
         }
         return subset;
     }
 
+    /**
+     * Returns the subset of this instance that satisfies a given filter as of
+     * this instance's current version. Unlike {@link #subset(Filter)}, the
+     * subset has the same identifier and version as this instance, so it can be
+     * brought up-to-date by deltas of this instance that are restricted to the
+     * same filter by {@link TopologyDelta#subset(Filter)}.
+     * 
+     * @param filter
+     *            The filter to satisfy.
+     * @return The versioned subset of this instance.
+     */
+    synchronized Topology versionedSubset(final Filter filter) {
+        final Topology subset = subset(filter);
+        subset.setVersion(id, version);
+        return subset;
+    }
+
     /**
      * Removes a sink-node's server.
      * 
@@ -247,8 +361,10 @@ final class Topology implements Serializable {
     synchronized void remove(final InetSocketAddress server) {
         final Set<Filter> filters = filterSets.remove(server);
         if (filters != null) {
+            loads.remove(server);
             for (final Filter filter : filters) {
                 final Set<InetSocketAddress> servers = serverSets.get(filter);
+                index.remove(filter, server);
                 if (servers != null) {
                     servers.remove(server);
                     if (servers.isEmpty()) {
@@ -256,6 +372,7 @@ final class Topology implements Serializable {
                     }
                 }
             }
+            record(new TopologyDelta.Change(null, server));
         }
     }
 
@@ -281,45 +398,130 @@ final class Topology implements Serializable {
      *         exists.
      * @throws NullPointerException
      *             if {@code filter == null}.
+     * @see #getBestServer(Filter, Set)
      */
     synchronized InetSocketAddress getBestServer(final Filter filter) {
+        return getBestServer(filter,
+                Collections.<InetSocketAddress> emptySet());
+    }
+
+    /**
+     * Returns the best server to connect to for a given data-filter from
+     * amongst the servers that aren't excluded. This instance isn't modified.
+     * 
+     * @param filter
+     *            The specification of desired-data.
+     * @param excluded
+     *            The servers that must not be returned (e.g., the servers
+     *            that are already being used).
+     * @return The best server to connect to or {@code null} if no such server
+     *         exists.
+     * @throws NullPointerException
+     *             if {@code filter == null} or {@code excluded == null}.
+     */
+    synchronized InetSocketAddress getBestServer(final Filter filter,
+            final Set<InetSocketAddress> excluded) {
+        final FilterIndex.Servers candidates = getCandidates(filter, excluded);
+
+        /*
+         * Pick a server at random from amongst the possible candidates.
+         */
+        return candidates == null
+                ? null
+                : candidates.pick(random, excluded);
+    }
+
+    /**
+     * Returns candidates for the best server to connect to for a given
+     * data-filter from amongst the servers that aren't excluded. The candidates
+     * are chosen at random from the servers that would be considered by
+     * {@link #getBestServer(Filter, Set)}.
+     * 
+     * @param filter
+     *            The specification of desired-data.
+     * @param excluded
+     *            The servers that must not be returned.
+     * @param max
+     *            The maximum number of candidates.
+     * @return The candidates in random order. Empty if no such server exists.
+     * @throws NullPointerException
+     *             if {@code filter == null} or {@code excluded == null}.
+     */
+    synchronized List<InetSocketAddress> getBestServers(final Filter filter,
+            final Set<InetSocketAddress> excluded, final int max) {
+        final FilterIndex.Servers candidates = getCandidates(filter, excluded);
+        return candidates == null
+                ? Collections.<InetSocketAddress> emptyList()
+                : candidates.sample(random, excluded, max);
+    }
+
+    /**
+     * Returns the servers of the narrowest filter that satisfies a given
+     * data-filter and has a server that isn't excluded.
+     * 
+     * @param filter
+     *            The specification of desired-data.
+     * @param excluded
+     *            The excluded servers.
+     * @return The servers of the narrowest such filter or {@code null} if no
+     *         such filter exists.
+     */
+    @GuardedBy("this")
+    private FilterIndex.Servers getCandidates(final Filter filter,
+            final Set<InetSocketAddress> excluded) {
         /*
          * HEURISTIC: The best server to connect to is one that can just barely
-         * satisfy the desired data.
+         * satisfy the desired data. The including filters are in their natural
+         * order, so a filter comes before the filters that it includes.
          */
-        final Set<InetSocketAddress> servers = getServers(filter);
-        Filter targetFilter = Filter.EVERYTHING;
-        final Set<InetSocketAddress> candidates = newServerSet();
-        for (final InetSocketAddress server : servers) {
-            final Set<Filter> filters = filterSets.get(server);
-            if (filters != null) {
-                for (final Filter f : filters) {
-                    if (f.includes(filter) && targetFilter.includes(f)) {
-                        if (!targetFilter.equals(f)) {
-                            candidates.clear();
-                            targetFilter = f;
-                        }
-                        candidates.add(server);
-                        break;
-                    }
+        Filter targetFilter = null;
+        FilterIndex.Servers candidates = null;
+        for (final Filter f : index.getIncluding(filter)) {
+            if (targetFilter == null || targetFilter.includes(f)) {
+                final FilterIndex.Servers servers = index.get(f);
+                if (servers.hasAvailable(excluded)) {
+                    targetFilter = f;
+                    candidates = servers;
                 }
             }
         }
+        return candidates;
+    }
 
-        final int size = candidates.size();
-        if (size == 0) {
-            return null;
+    /**
+     * Sets the load on a server. Does nothing if the server isn't in this
+     * instance. The load is a change only if it's dissimilar to the server's
+     * previous load (see {@link ServerLoad#isSimilarTo(ServerLoad)}).
+     * 
+     * @param server
+     *            The address of the server.
+     * @param load
+     *            The load on the server.
+     * @throws NullPointerException
+     *             if {@code load == null}.
+     */
+    synchronized void setLoad(final InetSocketAddress server,
+            final ServerLoad load) {
+        if (load == null) {
+            throw new NullPointerException();
         }
-
-        /*
-         * Pick a server at random from amongst the possible candidates.
-         */
-        int i = random.nextInt(size);
-        final Iterator<InetSocketAddress> iter = candidates.iterator();
-        while (i-- > 0) {
-            iter.next();
+        if (filterSets.containsKey(server)
+                && !load.isSimilarTo(loads.get(server))) {
+            loads.put(server, load);
+            record(new TopologyDelta.Change(server, load));
         }
-        return iter.next();
+    }
+
+    /**
+     * Returns the most recent load on a server.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return The most recent load on the server or {@code null} if it's
+     *         unknown.
+     */
+    synchronized ServerLoad getLoad(final InetSocketAddress server) {
+        return loads.get(server);
     }
 
     /**
@@ -407,6 +609,11 @@ final class Topology implements Serializable {
     synchronized void clear() {
         serverSets.clear();
         filterSets.clear();
+        loads.clear();
+        index.clear();
+        // Forget the changes so that a delta across the clearing is impossible
+        version++;
+        changes.clear();
     }
 
     /**
@@ -420,6 +627,205 @@ final class Topology implements Serializable {
         return serverSets.isEmpty() && filterSets.isEmpty();
     }
 
+    /**
+     * Remembers a change to this instance and increments its version.
+     * 
+     * @param change
+     *            The change.
+     */
+    @GuardedBy("this")
+    private void record(final TopologyDelta.Change change) {
+        if (changes.size() >= MAX_CHANGES) {
+            changes.removeFirst();
+        }
+        changes.addLast(change);
+        version++;
+    }
+
+    /**
+     * Sets the identifier and version of this instance and forgets all
+     * changes.
+     * 
+     * @param id
+     *            The identifier.
+     * @param version
+     *            The version.
+     */
+    private synchronized void setVersion(final long id, final long version) {
+        this.id = id;
+        this.version = version;
+        changes.clear();
+    }
+
+    /**
+     * Returns the identifier of the lineage of versions of this instance.
+     * 
+     * @return The identifier of this instance.
+     */
+    synchronized long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the version of this instance.
+     * 
+     * @return The version of this instance.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the changes that bring an earlier version of this instance up to
+     * the current version.
+     * 
+     * @param id
+     *            The identifier of the earlier version.
+     * @param fromVersion
+     *            The earlier version.
+     * @return The changes since the earlier version or {@code null} if the
+     *         earlier version isn't of this instance or is too old for its
+     *         changes to be remembered.
+     */
+    synchronized TopologyDelta getDelta(final long id, final long fromVersion) {
+        final long oldestVersion = version - changes.size();
+        if (id != this.id || fromVersion < oldestVersion
+                || fromVersion > version) {
+            return null;
+        }
+        final List<TopologyDelta.Change> delta = new ArrayList<TopologyDelta.Change>(
+                (int) (version - fromVersion));
+        final Iterator<TopologyDelta.Change> iter = changes.iterator();
+        for (long v = oldestVersion; v < fromVersion; v++) {
+            iter.next();
+        }
+        while (iter.hasNext()) {
+            delta.add(iter.next());
+        }
+        return new TopologyDelta(id, fromVersion, delta);
+    }
+
+    /**
+     * Brings this instance up to the version at the end of a delta. Changes in
+     * a complete delta that this instance already has are skipped; an
+     * incomplete delta must start at this instance's version.
+     * 
+     * @param delta
+     *            The changes to apply.
+     * @return {@code false} if and only if the delta doesn't apply to this
+     *         instance because it's for a different lineage or because this
+     *         instance's version is outside the range of the delta.
+     */
+    synchronized boolean apply(final TopologyDelta delta) {
+        if (delta.getId() != id || version < delta.getFromVersion()
+                || version > delta.getToVersion()
+                || (version != delta.getFromVersion() && !delta.isComplete())) {
+            return false;
+        }
+        final List<TopologyDelta.Change> list = delta.getChanges();
+        for (int i = (int) (version - delta.getFromVersion()); i < list.size(); i++) {
+            final TopologyDelta.Change change = list.get(i);
+            if (change.isRemoval()) {
+                remove(change.getServer());
+            }
+            else if (change.isLoad()) {
+                setLoad(change.getServer(), change.getLoad());
+            }
+            else {
+                add(change.getFilter(), change.getServer());
+            }
+        }
+        if (version != delta.getToVersion()) {
+            /*
+             * The delta was incomplete or this instance differed from the
+             * original. The original's version is adopted but the remembered
+             * changes would be inconsistent.
+             */
+            setVersion(id, delta.getToVersion());
+        }
+        return true;
+    }
+
+    /**
+     * Writes this instance in the compact form of the {@link TrackerProtocol}.
+     * 
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #read(DataInput)
+     */
+    synchronized void write(final DataOutput output) throws IOException {
+        output.writeLong(id);
+        output.writeLong(version);
+        output.writeInt(serverSets.size());
+        for (final Map.Entry<Filter, Set<InetSocketAddress>> entry : serverSets
+                .entrySet()) {
+            TrackerProtocol.writeFilter(output, entry.getKey());
+            final Set<InetSocketAddress> servers = entry.getValue();
+            output.writeInt(servers.size());
+            for (final InetSocketAddress server : servers) {
+                TrackerProtocol.writeAddress(output, server);
+            }
+        }
+        output.writeInt(loads.size());
+        for (final Map.Entry<InetSocketAddress, ServerLoad> entry : loads
+                .entrySet()) {
+            TrackerProtocol.writeAddress(output, entry.getKey());
+            entry.getValue().write(output);
+        }
+    }
+
+    /**
+     * Reads an instance that was written by {@link #write(DataOutput)}.
+     * 
+     * @param input
+     *            The input.
+     * @return The instance.
+     * @throws InvalidMessageException
+     *             if the input is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static Topology read(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final Topology topology = new Topology();
+        final long id = input.readLong();
+        final long version = input.readLong();
+        if (version < 0) {
+            throw new InvalidMessageException("Invalid version: " + version);
+        }
+        final int filterCount = input.readInt();
+        if (filterCount < 0) {
+            throw new InvalidMessageException("Invalid number of filters: "
+                    + filterCount);
+        }
+        for (int i = 0; i < filterCount; i++) {
+            final Filter filter = TrackerProtocol.readFilter(input);
+            final int serverCount = input.readInt();
+            if (serverCount < 0) {
+                throw new InvalidMessageException(
+                        "Invalid number of servers: " + serverCount);
+            }
+            final Set<InetSocketAddress> servers = topology.newServerSet();
+            for (int j = 0; j < serverCount; j++) {
+                servers.add(TrackerProtocol.readAddress(input));
+            }
+            topology.add(filter, servers);
+        }
+        final int loadCount = input.readInt();
+        if (loadCount < 0) {
+            throw new InvalidMessageException("Invalid number of loads: "
+                    + loadCount);
+        }
+        for (int i = 0; i < loadCount; i++) {
+            final InetSocketAddress server = TrackerProtocol.readAddress(input);
+            topology.setLoad(server, ServerLoad.read(input));
+        }
+        topology.setVersion(id, version);
+        return topology;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -427,8 +833,8 @@ final class Topology implements Serializable {
      */
     @Override
     synchronized public String toString() {
-        return "Topology [serverSets=" + serverSets + ", filterSets="
-                + filterSets + "]";
+        return "Topology [version=" + version + ", serverSets=" + serverSets
+                + ", filterSets=" + filterSets + "]";
     }
 
     /**
@@ -448,6 +854,11 @@ final class Topology implements Serializable {
                 .entrySet()) {
             instance.add(entry.getKey(), entry.getValue());
         }
+        if (loads != null) {
+            // A serialized form from before loads were kept doesn't have them
+            instance.loads.putAll(loads);
+        }
+        instance.setVersion(id, version);
         return instance;
     }
 }
\ No newline at end of file
@@ -0,0 +1,415 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The changes that take a {@link Topology} from one version to a later one.
+ * Each change increments the version of the topology by one, so the version
+ * after the changes of a complete delta is the version before them plus the
+ * number of changes. A delta that's restricted to a data-selection filter is
+ * incomplete: it only has the changes that are relevant to the filter.
+ * <p>
+ * Instances are immutable.
+ * 
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class TopologyDelta implements Serializable {
+    /**
+     * A single change to a topology: the addition of a mapping between a
+     * filter and a server, the removal of a server, or a new load on a server.
+     * <p>
+     * Instances are immutable.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @Immutable
+    static final class Change implements Serializable {
+        /**
+         * The serial version identifier.
+         */
+        private static final long       serialVersionUID = 1L;
+        /**
+         * The filter of an addition or {@code null}.
+         * 
+         * @serial
+         */
+        private final Filter            filter;
+        /**
+         * The new load on the server or {@code null}.
+         * 
+         * @serial
+         */
+        private final ServerLoad        load;
+        /**
+         * The address of the server.
+         * 
+         * @serial
+         */
+        private final InetSocketAddress server;
+
+        /**
+         * Constructs from a filter and a server.
+         * 
+         * @param filter
+         *            The filter of an addition or {@code null} for the
+         *            removal of the server.
+         * @param server
+         *            The address of the server.
+         * @throws NullPointerException
+         *             if {@code server == null}.
+         */
+        Change(final Filter filter, final InetSocketAddress server) {
+            if (server == null) {
+                throw new NullPointerException();
+            }
+            this.filter = filter;
+            this.server = server;
+            load = null;
+        }
+
+        /**
+         * Constructs from a server and its new load.
+         * 
+         * @param server
+         *            The address of the server.
+         * @param load
+         *            The new load on the server.
+         * @throws NullPointerException
+         *             if {@code server == null || load == null}.
+         */
+        Change(final InetSocketAddress server, final ServerLoad load) {
+            if (server == null || load == null) {
+                throw new NullPointerException();
+            }
+            filter = null;
+            this.server = server;
+            this.load = load;
+        }
+
+        /**
+         * Indicates if this change is the removal of a server.
+         * 
+         * @return {@code true} if and only if this change is the removal of a
+         *         server.
+         */
+        boolean isRemoval() {
+            return filter == null && load == null;
+        }
+
+        /**
+         * Indicates if this change is a new load on a server.
+         * 
+         * @return {@code true} if and only if this change is a new load on a
+         *         server.
+         */
+        boolean isLoad() {
+            return load != null;
+        }
+
+        /**
+         * Returns the filter of an addition.
+         * 
+         * @return The filter of an addition or {@code null} if this change
+         *         isn't an addition.
+         */
+        Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Returns the new load on the server.
+         * 
+         * @return The new load on the server or {@code null} if this change
+         *         isn't a new load.
+         */
+        ServerLoad getLoad() {
+            return load;
+        }
+
+        /**
+         * Returns the address of the server.
+         * 
+         * @return The address of the server.
+         */
+        InetSocketAddress getServer() {
+            return server;
+        }
+
+        @Override
+        public String toString() {
+            return (load != null
+                    ? "~" + server + "=" + load
+                    : filter == null
+                            ? "-" + server
+                            : "+" + server + "=" + filter);
+        }
+    }
+
+    /**
+     * The serial version identifier.
+     */
+    private static final long  serialVersionUID = 1L;
+    /**
+     * The compact form of a removal.
+     */
+    private static final int   REMOVAL          = 0;
+    /**
+     * The compact form of an addition.
+     */
+    private static final int   ADDITION         = 1;
+    /**
+     * The compact form of a load.
+     */
+    private static final int   LOAD             = 2;
+    /**
+     * The identifier of the topology to which this instance applies.
+     * 
+     * @serial
+     */
+    private final long         id;
+    /**
+     * The version of the topology before the changes.
+     * 
+     * @serial
+     */
+    private final long         fromVersion;
+    /**
+     * The version of the topology after the changes.
+     * 
+     * @serial
+     */
+    private final long         toVersion;
+    /**
+     * The changes in the order in which they were made.
+     * 
+     * @serial
+     */
+    private final List<Change> changes;
+
+    /**
+     * Constructs a complete instance from the identifier of a topology, its
+     * version, and the changes to it.
+     * 
+     * @param id
+     *            The identifier of the topology.
+     * @param fromVersion
+     *            The version of the topology before the changes.
+     * @param changes
+     *            The changes in the order in which they were made. Copied.
+     * @throws IllegalArgumentException
+     *             if {@code fromVersion < 0}.
+     */
+    TopologyDelta(final long id, final long fromVersion,
+            final List<Change> changes) {
+        this(id, fromVersion, fromVersion + changes.size(), changes);
+    }
+
+    /**
+     * Constructs from the identifier of a topology, its versions before and
+     * after the changes, and the changes to it.
+     * 
+     * @param id
+     *            The identifier of the topology.
+     * @param fromVersion
+     *            The version of the topology before the changes.
+     * @param toVersion
+     *            The version of the topology after the changes.
+     * @param changes
+     *            The changes in the order in which they were made. Copied.
+     * @throws IllegalArgumentException
+     *             if {@code fromVersion < 0} or if the number of changes
+     *             exceeds {@code toVersion - fromVersion}.
+     */
+    TopologyDelta(final long id, final long fromVersion,
+            final long toVersion, final List<Change> changes) {
+        if (fromVersion < 0) {
+            throw new IllegalArgumentException("Invalid version: "
+                    + fromVersion);
+        }
+        if (toVersion - fromVersion < changes.size()) {
+            throw new IllegalArgumentException("Invalid versions: "
+                    + fromVersion + ", " + toVersion);
+        }
+        this.id = id;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.changes = Collections.unmodifiableList(new ArrayList<Change>(
+                changes));
+    }
+
+    /**
+     * Returns the identifier of the topology to which this instance applies.
+     * 
+     * @return The identifier of the topology.
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the version of the topology before the changes.
+     * 
+     * @return The version of the topology before the changes.
+     */
+    long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Returns the version of the topology after the changes.
+     * 
+     * @return The version of the topology after the changes.
+     */
+    long getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * Indicates if this instance has every change between its versions.
+     * 
+     * @return {@code true} if and only if this instance is complete.
+     */
+    boolean isComplete() {
+        return toVersion - fromVersion == changes.size();
+    }
+
+    /**
+     * Returns the changes of this instance that are relevant to the subset of
+     * a topology that satisfies a given filter (see
+     * {@link Topology#subset(Filter)}). All removals and loads are relevant
+     * because a server's filters are unknown.
+     * 
+     * @param filter
+     *            The data-selection filter.
+     * @return The relevant changes. Has the same versions as this instance.
+     */
+    TopologyDelta subset(final Filter filter) {
+        final List<Change> relevant = new ArrayList<Change>();
+        for (final Change change : changes) {
+            if (change.filter == null || change.filter.includes(filter)) {
+                relevant.add(change);
+            }
+        }
+        return new TopologyDelta(id, fromVersion, toVersion, relevant);
+    }
+
+    /**
+     * Returns the changes in the order in which they were made.
+     * 
+     * @return The changes. Unmodifiable.
+     */
+    List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Returns the number of changes.
+     * 
+     * @return The number of changes.
+     */
+    int size() {
+        return changes.size();
+    }
+
+    /**
+     * Writes this instance in the compact form of the {@link TrackerProtocol}.
+     * Each change is an address followed by a kind (0 for a removal, 1 for an
+     * addition, and 2 for a load) and the filter or load, if any.
+     * 
+     * @param output
+     *            The output.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #read(DataInput)
+     */
+    void write(final DataOutput output) throws IOException {
+        output.writeLong(id);
+        output.writeLong(fromVersion);
+        output.writeLong(toVersion);
+        output.writeInt(changes.size());
+        for (final Change change : changes) {
+            TrackerProtocol.writeAddress(output, change.server);
+            if (change.load != null) {
+                output.writeByte(LOAD);
+                change.load.write(output);
+            }
+            else if (change.filter != null) {
+                output.writeByte(ADDITION);
+                TrackerProtocol.writeFilter(output, change.filter);
+            }
+            else {
+                output.writeByte(REMOVAL);
+            }
+        }
+    }
+
+    /**
+     * Reads an instance that was written by {@link #write(DataOutput)}.
+     * 
+     * @param input
+     *            The input.
+     * @return The instance.
+     * @throws InvalidMessageException
+     *             if the input is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static TopologyDelta read(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final long id = input.readLong();
+        final long fromVersion = input.readLong();
+        if (fromVersion < 0) {
+            throw new InvalidMessageException("Invalid version: "
+                    + fromVersion);
+        }
+        final long toVersion = input.readLong();
+        final int count = input.readInt();
+        if (count < 0 || count > toVersion - fromVersion) {
+            throw new InvalidMessageException("Invalid number of changes: "
+                    + count);
+        }
+        final List<Change> changes = new ArrayList<Change>(Math.min(count,
+                1024));
+        for (int i = 0; i < count; i++) {
+            final InetSocketAddress server = TrackerProtocol
+                    .readAddress(input);
+            final int kind = input.readUnsignedByte();
+            if (kind == LOAD) {
+                changes.add(new Change(server, ServerLoad.read(input)));
+            }
+            else if (kind == ADDITION) {
+                changes.add(new Change(TrackerProtocol.readFilter(input),
+                        server));
+            }
+            else if (kind == REMOVAL) {
+                changes.add(new Change(null, server));
+            }
+            else {
+                throw new InvalidMessageException("Invalid kind of change: "
+                        + kind);
+            }
+        }
+        return new TopologyDelta(id, fromVersion, toVersion, changes);
+    }
+
+    @Override
+    public String toString() {
+        return "TopologyDelta [id=" + id + ", fromVersion=" + fromVersion
+                + ", toVersion=" + toVersion + ", changes=" + changes + "]";
+    }
+}
@@ -149,7 +149,7 @@ final class TopologyGetter extends TrackerTask {
         Topology topology;
         try {
             topology = (Topology) ois.readObject();
-            trackerProxy.setRawTopology(topology);
+            trackerProxy.setRawTopology(filter, topology);
             InetSocketAddress reportingAddress;
             reportingAddress = (InetSocketAddress) ois.readObject();
             trackerProxy.setReportingAddress(reportingAddress);
@@ -161,7 +161,8 @@ final class TopologyGetter extends TrackerTask {
     }
 
     /**
-     * Replies to the client. This method is executed by the tracker.
+     * Replies to the client with the part of the network topology that's
+     * relevant to the node's filter. This method is executed by the tracker.
      * <p>
      * This method is uninterruptible and potentially slow.
      * 
@@ -179,7 +180,7 @@ final class TopologyGetter extends TrackerTask {
             throws IOException {
         final OutputStream outputStream = socket.getOutputStream();
         final ObjectOutputStream oos = new ObjectOutputStream(outputStream);
-        final Topology network = tracker.getNetwork();
+        final Topology network = tracker.getNetwork(filter);
         oos.writeObject(network);
         oos.writeObject(tracker.getReportingAddress());
         oos.flush();
@@ -0,0 +1,361 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A durable record of a tracker's network topology, so that a restarted
+ * tracker knows the network without waiting for every node to register again.
+ * <p>
+ * The journal is an append-only file of checksummed records in the compact
+ * form of the {@link TrackerProtocol}: a checkpoint of the whole topology
+ * followed by the deltas that were recorded since. Because deltas carry the
+ * topology's identifier and versions, the recovered topology has the same
+ * identifier and version as the original and remembers its recent changes,
+ * so nodes that resubscribe after a restart get only what they missed.
+ * <p>
+ * When the deltas become large compared to a checkpoint, the file is
+ * rewritten with just a checkpoint.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TopologyJournal {
+    /**
+     * The types of records.
+     */
+    private static final byte   CHECKPOINT      = 0;
+    private static final byte   DELTA           = 1;
+    /**
+     * The size of the deltas, in bytes, above which the file is rewritten if
+     * they're also larger than the checkpoint.
+     */
+    private static final long   COMPACT_SIZE    = 1 << 20;
+    /**
+     * The maximum size of a valid record in bytes.
+     */
+    private static final int    MAX_RECORD_SIZE = TrackerProtocol.MAX_FRAME_LENGTH;
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger          = Util.getLogger();
+    /**
+     * The pathname of the journal file.
+     */
+    private final Path          path;
+    /**
+     * The topology of the previous session or {@code null}.
+     */
+    @GuardedBy("this")
+    private Topology            recovered;
+    /**
+     * The I/O channel to the journal file or {@code null} if the file hasn't
+     * been written by this session or this instance is closed.
+     */
+    @GuardedBy("this")
+    private FileChannel         channel;
+    /**
+     * Whether or not this instance is closed.
+     */
+    @GuardedBy("this")
+    private boolean             isClosed;
+    /**
+     * The size of the last checkpoint in bytes.
+     */
+    @GuardedBy("this")
+    private long                checkpointSize;
+    /**
+     * The identifier of the recorded topology.
+     */
+    @GuardedBy("this")
+    private long                recordedId;
+    /**
+     * The version of the recorded topology or {@code -1} if nothing has been
+     * recorded by this session.
+     */
+    @GuardedBy("this")
+    private long                recordedVersion = -1;
+
+    /**
+     * Opens a journal in a directory, creating the directory if necessary. The
+     * topology of a previous session is recovered.
+     * 
+     * @param dir
+     *            The pathname of the directory.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    TopologyJournal(final Path dir) throws IOException {
+        Files.createDirectories(dir);
+        path = dir.resolve("topology");
+        if (Files.exists(path)) {
+            replay();
+        }
+    }
+
+    /**
+     * Reads the journal file into the recovered topology. Stops at the first
+     * incomplete, corrupt, or inapplicable record, which can be the last one
+     * if the previous session crashed.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void replay() throws IOException {
+        final DataInputStream input = new DataInputStream(
+                Files.newInputStream(path));
+        int deltaCount = 0;
+        try {
+            for (;;) {
+                final byte[] record;
+                final long checksum;
+                try {
+                    final int length = input.readInt();
+                    if (length < 1 || length > MAX_RECORD_SIZE) {
+                        logger.warn("Corrupt record in journal {}. Ignoring "
+                                + "rest.", path);
+                        break;
+                    }
+                    record = new byte[length];
+                    checksum = input.readLong();
+                    input.readFully(record);
+                }
+                catch (final EOFException e) {
+                    break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    logger.warn("Corrupt record in journal {}. Ignoring rest.",
+                            path);
+                    break;
+                }
+                if (!apply(record)) {
+                    logger.warn("Inapplicable record in journal {}. Ignoring "
+                            + "rest.", path);
+                    break;
+                }
+                if (record[0] == DELTA) {
+                    deltaCount++;
+                }
+            }
+        }
+        finally {
+            input.close();
+        }
+        if (recovered != null) {
+            logger.info("Recovered network topology from {}: {} servers, "
+                    + "version {}, {} deltas", new Object[] { path,
+                    recovered.getServers().size(), recovered.getVersion(),
+                    deltaCount });
+        }
+    }
+
+    /**
+     * Applies a record to the recovered topology.
+     * 
+     * @param record
+     *            The record.
+     * @return {@code false} if and only if the record is invalid or doesn't
+     *         apply to the recovered topology.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private boolean apply(final byte[] record) throws IOException {
+        final DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(record));
+        try {
+            final byte type = input.readByte();
+            if (type == CHECKPOINT) {
+                recovered = Topology.read(input);
+                return true;
+            }
+            if (type == DELTA && recovered != null) {
+                return recovered.apply(TopologyDelta.read(input));
+            }
+            return false;
+        }
+        catch (final InvalidMessageException e) {
+            return false;
+        }
+        catch (final EOFException e) {
+            return false;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the topology of the previous session. Subsequent invocations
+     * return {@code null}.
+     * 
+     * @return The topology of the previous session or {@code null} if there
+     *         was none.
+     */
+    synchronized Topology takeRecovered() {
+        final Topology topology = recovered;
+        recovered = null;
+        return topology;
+    }
+
+    /**
+     * Durably records the current state of a topology. Only the changes since
+     * the previous invocation are written unless the topology no longer
+     * remembers them or the file has become large, in which case the file is
+     * rewritten with a checkpoint.
+     * 
+     * @param topology
+     *            The topology.
+     * @throws IOException
+     *             if an I/O error occurs or this instance is closed.
+     */
+    synchronized void record(final Topology topology) throws IOException {
+        if (isClosed) {
+            throw new IOException("Journal is closed: " + path);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        final long id;
+        final long version;
+        synchronized (topology) {
+            id = topology.getId();
+            version = topology.getVersion();
+            if (id == recordedId && version == recordedVersion) {
+                return;
+            }
+            final TopologyDelta delta = channel == null
+                    ? null
+                    : topology.getDelta(recordedId, recordedVersion);
+            if (delta == null
+                    || channel.size() > Math.max(COMPACT_SIZE,
+                            2 * checkpointSize)) {
+                output.writeByte(CHECKPOINT);
+                topology.write(output);
+            }
+            else {
+                output.writeByte(DELTA);
+                delta.write(output);
+            }
+        }
+        output.close();
+        final byte[] record = bytes.toByteArray();
+        if (record[0] == CHECKPOINT) {
+            rewrite(record);
+        }
+        else {
+            write(channel, checksummed(record));
+            channel.force(false);
+        }
+        recordedId = id;
+        recordedVersion = version;
+    }
+
+    /**
+     * Writes the journal file anew with just a checkpoint and opens it for
+     * appending.
+     * 
+     * @param checkpoint
+     *            The checkpoint record.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void rewrite(final byte[] checkpoint) throws IOException {
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final FileChannel tmpChannel = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(tmpChannel, checksummed(checkpoint));
+            tmpChannel.force(true);
+        }
+        finally {
+            tmpChannel.close();
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        checkpointSize = channel.size();
+    }
+
+    /**
+     * Returns a record preceded by its length and checksum.
+     * 
+     * @param record
+     *            The record.
+     * @return The checksummed record.
+     */
+    private static byte[] checksummed(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        return ByteBuffer.allocate(12 + record.length).putInt(record.length)
+                .putLong(crc.getValue()).put(record).array();
+    }
+
+    /**
+     * Writes bytes to a channel.
+     * 
+     * @param channel
+     *            The channel.
+     * @param bytes
+     *            The bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void write(final FileChannel channel, final byte[] bytes)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Closes this instance. Idempotent.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void close() throws IOException {
+        isClosed = true;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TopologyJournal [path=" + path + "]";
+    }
+}
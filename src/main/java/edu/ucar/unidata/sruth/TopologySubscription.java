@@ -0,0 +1,256 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A long-lived subscription to the part of the network topology that's
+ * relevant to a data-selection filter. The tracker pushes the relevant changes
+ * over a dedicated connection and this instance keeps an up-to-date copy of
+ * that part (i.e., the subset of the network topology that satisfies the
+ * filter -- see {@link Topology#subset(Filter)}). The connection is
+ * re-established after an error, and only the changes that were missed are
+ * then sent.
+ * <p>
+ * Instances are thread-safe.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TopologySubscription {
+    /**
+     * Receives notice of changes to the subscribed part of the network
+     * topology.
+     */
+    static abstract class Listener {
+        /**
+         * Called after the subscribed part of the network topology has
+         * changed. Called by the subscription's thread, so it should return
+         * quickly.
+         * 
+         * @param topology
+         *            The subscribed part of the network topology. The actual
+         *            object -- not a copy.
+         */
+        abstract void topologyChanged(Topology topology);
+    }
+
+    /**
+     * Receives changes from the tracker.
+     */
+    private final class Receiver extends Thread {
+        @Override
+        public void run() {
+            while (!isClosed) {
+                try {
+                    receive();
+                }
+                catch (final Exception e) {
+                    if (!isClosed) {
+                        logger.debug("Subscription to {} failed: {}",
+                                trackerAddress, e.toString());
+                    }
+                }
+                finally {
+                    disconnect();
+                }
+                if (isClosed) {
+                    break;
+                }
+                retryDelay = Math.min(Math.max(2 * retryDelay, 1),
+                        MAX_RETRY_DELAY);
+                try {
+                    Thread.sleep(1000L * retryDelay);
+                }
+                catch (final InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The maximum delay between attempts to subscribe in seconds.
+     */
+    private static final int        MAX_RETRY_DELAY = 60;
+    /**
+     * The logger for this class.
+     */
+    private static final Logger     logger          = Util.getLogger();
+    /**
+     * The address of the tracker.
+     */
+    private final InetSocketAddress trackerAddress;
+    /**
+     * The data-selection filter.
+     */
+    private final Filter            filter;
+    /**
+     * The listener for changes.
+     */
+    private final Listener          listener;
+    /**
+     * The thread that receives changes.
+     */
+    private final Thread            receiver        = new Receiver();
+    /**
+     * The socket to the tracker or {@code null} if not connected.
+     */
+    private volatile Socket         socket;
+    /**
+     * Whether or not this instance is closed.
+     */
+    private volatile boolean        isClosed;
+    /**
+     * The delay before the next attempt to subscribe in seconds. Only
+     * accessed by the receiver thread.
+     */
+    private int                     retryDelay;
+    /**
+     * The subscribed part of the network topology or {@code null}.
+     */
+    @GuardedBy("this")
+    private Topology                topology;
+
+    /**
+     * Constructs from the address of the tracker, the data-selection filter,
+     * and a listener for changes. Doesn't connect.
+     * 
+     * @param trackerAddress
+     *            The address of the tracker.
+     * @param filter
+     *            The data-selection filter.
+     * @param listener
+     *            The listener for changes.
+     * @throws NullPointerException
+     *             if any argument is {@code null}.
+     */
+    TopologySubscription(final InetSocketAddress trackerAddress,
+            final Filter filter, final Listener listener) {
+        if (trackerAddress == null || filter == null || listener == null) {
+            throw new NullPointerException();
+        }
+        this.trackerAddress = trackerAddress;
+        this.filter = filter;
+        this.listener = listener;
+        receiver.setName("TopologySubscription-" + filter);
+        receiver.setDaemon(true);
+    }
+
+    /**
+     * Starts receiving changes from the tracker.
+     */
+    void start() {
+        receiver.start();
+    }
+
+    /**
+     * Subscribes to the tracker and applies the changes it sends until an
+     * error occurs or this instance is closed.
+     * 
+     * @throws InvalidMessageException
+     *             if a message from the tracker is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void receive() throws InvalidMessageException, IOException {
+        final Socket sock = new Socket();
+        socket = sock;
+        if (isClosed) {
+            return;
+        }
+        sock.connect(trackerAddress, Connection.SO_TIMEOUT);
+        sock.setKeepAlive(true); // because the connection is mostly idle
+        sock.setTcpNoDelay(true);
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(sock.getInputStream()));
+        final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(sock.getOutputStream()));
+        output.writeByte(TrackerProtocol.MAGIC);
+        output.writeByte(TrackerProtocol.VERSION);
+        final ByteBuffer frame = TrackerProtocol.frame(
+                TrackerProtocol.SUBSCRIBE, TrackerProtocol.subscribePayload(
+                        filter, getTopology()));
+        output.write(frame.array(), 0, frame.limit());
+        output.flush();
+        for (;;) {
+            final DataInputStream replyInput = new DataInputStream(
+                    new ByteArrayInputStream(TrackerProtocol.readFrame(input)));
+            final byte replyType = replyInput.readByte();
+            TrackerProtocol.readAddress(replyInput);
+            final Topology updated;
+            synchronized (this) {
+                try {
+                    updated = TrackerProtocol.update(topology, replyType,
+                            replyInput);
+                }
+                catch (final InvalidMessageException e) {
+                    // The next subscription will get the whole part
+                    topology = null;
+                    throw e;
+                }
+                topology = updated;
+            }
+            retryDelay = 0;
+            listener.topologyChanged(updated);
+        }
+    }
+
+    /**
+     * Closes the connection to the tracker. Idempotent.
+     */
+    private void disconnect() {
+        final Socket sock = socket;
+        if (sock != null) {
+            try {
+                sock.close();
+            }
+            catch (final IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Returns the subscribed part of the network topology. The actual object is
+     * returned -- not a copy.
+     * 
+     * @return The subscribed part of the network topology or {@code null} if
+     *         it hasn't been received.
+     */
+    synchronized Topology getTopology() {
+        return topology;
+    }
+
+    /**
+     * Closes this instance. Idempotent.
+     */
+    void close() {
+        isClosed = true;
+        disconnect();
+        receiver.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "TopologySubscription [trackerAddress=" + trackerAddress
+                + ", filter=" + filter + "]";
+    }
+}
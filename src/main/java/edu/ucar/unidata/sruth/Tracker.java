@@ -5,11 +5,16 @@
  */
 package edu.ucar.unidata.sruth;
 
+import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
 import java.net.BindException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -20,8 +25,23 @@ import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
@@ -29,6 +49,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
@@ -109,6 +131,9 @@ final class Tracker implements Callable<Void> {
                 }
                 catch (final IOException e) {
                     topology.remove(serverAddress);
+                    leases.cancel(serverAddress);
+                    overlay.remove(serverAddress);
+                    fireTopologyChange();
                     logger.debug("Removed server: {}", serverAddress);
                 }
                 finally {
@@ -252,48 +277,494 @@ final class Tracker implements Callable<Void> {
     }
 
     /**
-     * Accepts and handles connections on the tracker socket
+     * Accepts and handles connections on the tracker socket. Connections that
+     * use the compact {@link TrackerProtocol} are handled by a single thread
+     * that multiplexes them via a selector, so many nodes can register
+     * concurrently over persistent connections. Connections that carry a
+     * serialized {@link TrackerTask} are handed to a {@link Trackerlet}.
+     * <p>
+     * Connections that subscribe to the network topology are sent the relevant
+     * changes whenever the topology changes. Changes are coalesced: a
+     * subscriber gets one delta for all the changes that occurred while the
+     * selector was busy.
      * <p>
      * Instances are thread-safe.
      * 
      * @author Steven R. Emmerson
      */
     private final class Accepter extends UninterruptibleTask<Void> {
+        /**
+         * The state of a connection that's handled by the selector.
+         */
+        @NotThreadSafe
+        private final class Session {
+            /**
+             * The connection.
+             */
+            private final SocketChannel    channel;
+            /**
+             * The input buffer. Always ready to be written to.
+             */
+            private ByteBuffer             input  = ByteBuffer
+                                                          .allocate(INITIAL_BUFFER_SIZE);
+            /**
+             * The pending replies.
+             */
+            private final Queue<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+            /**
+             * Whether or not the protocol has been established.
+             */
+            private boolean                isEstablished;
+            /**
+             * The filter of the subscription or {@code null} if the
+             * connection isn't a subscription.
+             */
+            private Filter                 subscription;
+            /**
+             * The identifier of the subscriber's copy of the subscribed part
+             * of the network topology.
+             */
+            private long                   topologyId;
+            /**
+             * The version of the subscriber's copy of the subscribed part of
+             * the network topology or {@code -1} if the subscriber doesn't
+             * have a copy.
+             */
+            private long                   topologyVersion = -1;
+            /**
+             * The servers that were registered via the connection and
+             * attached to the distribution overlay, by filter. They're
+             * detached when the connection closes.
+             */
+            private final Map<Filter, InetSocketAddress> attachments = new HashMap<Filter, InetSocketAddress>();
+
+            /**
+             * Constructs from a connection.
+             * 
+             * @param channel
+             *            The connection.
+             */
+            Session(final SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            /**
+             * Reads from the connection and processes complete requests.
+             * 
+             * @param key
+             *            The selection-key of the connection.
+             * @return {@code false} if and only if the connection should be
+             *         closed.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            boolean read(final SelectionKey key) throws IOException {
+                if (channel.read(input) < 0) {
+                    return false;
+                }
+                input.flip();
+                try {
+                    if (!isEstablished) {
+                        if (input.remaining() >= 1
+                                && input.get(0) == TrackerProtocol.SERIALIZATION_MAGIC) {
+                            final byte[] prefix = new byte[input.remaining()];
+                            input.get(prefix);
+                            key.cancel();
+                            handoffs.put(channel, prefix);
+                            return true;
+                        }
+                        if (input.remaining() < 2) {
+                            return true;
+                        }
+                        if (input.get() != TrackerProtocol.MAGIC
+                                || input.get() != TrackerProtocol.VERSION) {
+                            logger.debug("Unknown protocol on {}", channel);
+                            return false;
+                        }
+                        isEstablished = true;
+                    }
+                    while (input.remaining() >= 4) {
+                        final int length = input.getInt(input.position());
+                        if (length < 1
+                                || length > TrackerProtocol.MAX_FRAME_LENGTH) {
+                            logger.debug("Invalid frame length on {}: {}",
+                                    channel, length);
+                            return false;
+                        }
+                        if (input.remaining() < 4 + length) {
+                            if (input.capacity() < 4 + length) {
+                                final ByteBuffer buf = ByteBuffer
+                                        .allocate(4 + length);
+                                buf.put(input);
+                                buf.flip();
+                                input = buf;
+                            }
+                            break;
+                        }
+                        input.getInt();
+                        final byte type = input.get();
+                        final byte[] payload = new byte[length - 1];
+                        input.get(payload);
+                        if (!process(type, payload)) {
+                            return false;
+                        }
+                    }
+                }
+                finally {
+                    input.compact();
+                }
+                if (!output.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ
+                            | SelectionKey.OP_WRITE);
+                }
+                return true;
+            }
+
+            /**
+             * Processes a request.
+             * 
+             * @param type
+             *            The type of the request.
+             * @param payload
+             *            The payload of the request.
+             * @return {@code false} if and only if the request is invalid.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            private boolean process(final byte type, final byte[] payload)
+                    throws IOException {
+                if (subscription != null) {
+                    logger.debug("Request on subscription {}", channel);
+                    return false;
+                }
+                final DataInputStream requestInput = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                try {
+                    switch (type) {
+                    case TrackerProtocol.REGISTER: {
+                        final Filter filter = TrackerProtocol
+                                .readFilter(requestInput);
+                        final InetSocketAddress server = TrackerProtocol
+                                .readAddress(requestInput);
+                        final long id = requestInput.readLong();
+                        final long version = requestInput.readLong();
+                        // The load is optional
+                        final ServerLoad load = requestInput.available() > 0
+                                ? ServerLoad.read(requestInput)
+                                : null;
+                        final long retryAfter = admission.acquire(System
+                                .nanoTime());
+                        if (retryAfter > 0) {
+                            output.add(TrackerProtocol.frame(
+                                    TrackerProtocol.BUSY,
+                                    TrackerProtocol.busyPayload((int) Math.min(
+                                            Integer.MAX_VALUE,
+                                            TimeUnit.NANOSECONDS.toMillis(retryAfter) + 1))));
+                            return true;
+                        }
+                        /*
+                         * The part of the topology that's relevant to the
+                         * filter is sent before registration like
+                         * TopologyGetter. Only the relevant changes are sent if
+                         * the node has a recent copy.
+                         */
+                        final TopologyDelta delta = version < 0
+                                ? null
+                                : topology.getDelta(id, version);
+                        final byte[] topologyPayload = delta == null
+                                ? TrackerProtocol.topologyPayload(
+                                        getReportingAddress(),
+                                        topology.versionedSubset(filter))
+                                : TrackerProtocol.deltaPayload(
+                                        getReportingAddress(),
+                                        delta.subset(filter));
+                        register(server, filter, load);
+                        registrationCount.incrementAndGet();
+                        final InetSocketAddress parent = attach(filter,
+                                server, load);
+                        output.add(TrackerProtocol.frame(delta == null
+                                ? TrackerProtocol.TOPOLOGY
+                                : TrackerProtocol.TOPOLOGY_DELTA,
+                                TrackerProtocol.registerReplyPayload(
+                                        topologyPayload, parent,
+                                        overlay.getSource(), LEASE_DURATION)));
+                        return true;
+                    }
+                    case TrackerProtocol.RENEW: {
+                        final InetSocketAddress server = TrackerProtocol
+                                .readAddress(requestInput);
+                        final Filter filter = TrackerProtocol
+                                .readFilter(requestInput);
+                        // The load is optional
+                        final ServerLoad load = requestInput.available() > 0
+                                ? ServerLoad.read(requestInput)
+                                : null;
+                        if (!renew(server, load)) {
+                            output.add(TrackerProtocol.frame(
+                                    TrackerProtocol.LEASE,
+                                    TrackerProtocol.leasePayload()));
+                            return true;
+                        }
+                        /*
+                         * The server's parent might have changed since it
+                         * registered, so the current one is returned.
+                         */
+                        final InetSocketAddress parent = attach(filter,
+                                server, load == null
+                                        ? topology.getLoad(server)
+                                        : load);
+                        output.add(TrackerProtocol.frame(
+                                TrackerProtocol.LEASE,
+                                TrackerProtocol.leasePayload(LEASE_DURATION,
+                                        parent, overlay.getSource())));
+                        return true;
+                    }
+                    case TrackerProtocol.SUBSCRIBE: {
+                        final Filter filter = TrackerProtocol
+                                .readFilter(requestInput);
+                        topologyId = requestInput.readLong();
+                        topologyVersion = requestInput.readLong();
+                        subscription = filter;
+                        push(true);
+                        subscribers.add(this);
+                        return true;
+                    }
+                    default:
+                        logger.debug("Unknown request type on {}: {}",
+                                channel, type);
+                        return false;
+                    }
+                }
+                catch (final InvalidMessageException e) {
+                    logger.debug("Invalid request on {}: {}", channel,
+                            e.toString());
+                    return false;
+                }
+                catch (final EOFException e) {
+                    logger.debug("Truncated request on {}", channel);
+                    return false;
+                }
+            }
+
+            /**
+             * Attaches a server to the distribution overlay via this
+             * connection, or updates its capacity if it's already attached,
+             * and returns its parent. The server is detached when the
+             * connection closes. A different server that was attached via
+             * this connection with the same filter is detached.
+             * 
+             * @param filter
+             *            The filter of the server.
+             * @param server
+             *            The address of the server.
+             * @param load
+             *            The load on the server or {@code null} if unknown.
+             * @return The address of the server's parent.
+             */
+            private InetSocketAddress attach(final Filter filter,
+                    final InetSocketAddress server, final ServerLoad load) {
+                final InetSocketAddress parent = overlay.attach(filter,
+                        server, overlay.getCapacity(load));
+                final InetSocketAddress previous = attachments.put(filter,
+                        server);
+                if (previous != null
+                        && AddressComparator.INSTANCE.compare(previous, server) != 0) {
+                    overlay.detach(filter, previous);
+                }
+                return parent;
+            }
+
+            /**
+             * Queues the changes to the subscribed part of the network
+             * topology since the subscriber's copy. The whole part is queued
+             * if the changes have been forgotten.
+             * 
+             * @param always
+             *            Whether or not to queue a reply even if there are no
+             *            relevant changes.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            void push(final boolean always) throws IOException {
+                final TopologyDelta delta = topologyVersion < 0
+                        ? null
+                        : topology.getDelta(topologyId, topologyVersion);
+                if (delta == null) {
+                    final Topology subset = topology
+                            .versionedSubset(subscription);
+                    output.add(TrackerProtocol.frame(TrackerProtocol.TOPOLOGY,
+                            TrackerProtocol.topologyPayload(
+                                    getReportingAddress(), subset)));
+                    topologyId = subset.getId();
+                    topologyVersion = subset.getVersion();
+                }
+                else {
+                    final TopologyDelta relevant = delta.subset(subscription);
+                    /*
+                     * Irrelevant changes are sent before the topology forgets
+                     * them so that the subscriber needn't get the whole part
+                     * again.
+                     */
+                    if (always || relevant.size() > 0
+                            || delta.size() > Topology.MAX_CHANGES / 2) {
+                        output.add(TrackerProtocol.frame(
+                                TrackerProtocol.TOPOLOGY_DELTA,
+                                TrackerProtocol.deltaPayload(
+                                        getReportingAddress(), relevant)));
+                        topologyVersion = relevant.getToVersion();
+                    }
+                }
+            }
+
+            /**
+             * Writes pending replies to the connection. A subscriber whose
+             * replies have all been written is sent any changes that were
+             * withheld while it was behind.
+             * 
+             * @param key
+             *            The selection-key of the connection.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            void write(final SelectionKey key) throws IOException {
+                while (!output.isEmpty()) {
+                    final ByteBuffer buf = output.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        return;
+                    }
+                    output.remove();
+                    if (output.isEmpty() && subscription != null) {
+                        push(false);
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            /**
+             * Closes the connection.
+             */
+            void close() {
+                subscribers.remove(this);
+                for (final Map.Entry<Filter, InetSocketAddress> entry : attachments
+                        .entrySet()) {
+                    overlay.detach(entry.getKey(), entry.getValue());
+                }
+                attachments.clear();
+                try {
+                    channel.close();
+                }
+                catch (final IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * The initial size of the input buffer of a connection in bytes.
+         */
+        private static final int                   INITIAL_BUFFER_SIZE = 512;
+        /**
+         * The maximum number of pending replies of a subscriber before changes
+         * are withheld from it.
+         */
+        private static final int                   MAX_PENDING_PUSHES  = 4;
         /**
          * Executes each task for a single sink-node.
          */
-        private final CancellingExecutor trackerletExecutor = new CancellingExecutor(
-                                                                    0,
-                                                                    25,
-                                                                    60,
-                                                                    TimeUnit.SECONDS,
-                                                                    new SynchronousQueue<Runnable>());
+        private final CancellingExecutor           trackerletExecutor  = new CancellingExecutor(
+                                                                               0,
+                                                                               25,
+                                                                               60,
+                                                                               TimeUnit.SECONDS,
+                                                                               new SynchronousQueue<Runnable>());
+        /**
+         * The multiplexor of connections.
+         */
+        private final Selector                     selector;
+        /**
+         * The connections that carry a serialized tracker-task and the bytes
+         * that have already been read from them.
+         */
+        private final Map<SocketChannel, byte[]>   handoffs            = new HashMap<SocketChannel, byte[]>();
+        /**
+         * The connections that subscribe to the network topology.
+         */
+        private final Set<Session>                 subscribers         = new HashSet<Session>();
+        /**
+         * Whether or not the network topology has changed since the
+         * subscribers were last sent changes.
+         */
+        private final AtomicBoolean                topologyChanged     = new AtomicBoolean();
+        /**
+         * Wakes the selector when the network topology changes.
+         */
+        private final PropertyChangeListener       topologyListener    = new PropertyChangeListener() {
+                                                                           @Override
+                                                                           public void propertyChange(
+                                                                                   final PropertyChangeEvent evt) {
+                                                                               topologyChanged
+                                                                                       .set(true);
+                                                                               selector.wakeup();
+                                                                           }
+                                                                       };
+
+        /**
+         * Constructs from nothing.
+         * 
+         * @throws IOException
+         *             if the selector can't be opened.
+         */
+        Accepter() throws IOException {
+            selector = Selector.open();
+        }
 
         @Override
         public Void call() throws InterruptedException, IOException {
             logger.trace("Starting up: {}", this);
             try {
                 Thread.currentThread().setName("Tracker-accepter");
-                while (!trackerletExecutor.isShutdown()) {
-                    // TODO: limit number of outstanding trackerlets
-                    final Socket socket = trackerSocket.accept();
-                    final Trackerlet trackerlet = new Trackerlet(socket);
-                    try {
-                        trackerletExecutor.submit(trackerlet);
+                trackerChannel.configureBlocking(false);
+                trackerChannel.register(selector, SelectionKey.OP_ACCEPT);
+                addNetworkTopologyChangeListener(topologyListener);
+                while (!isCancelled()) {
+                    selector.select();
+                    handleSelectedKeys();
+                    while (!handoffs.isEmpty()) {
+                        // Deregisters the cancelled keys of the handed-off
+                        // connections
+                        selector.selectNow();
+                        handOff();
+                        handleSelectedKeys();
                     }
-                    catch (final Throwable e) {
-                        try {
-                            socket.close();
-                        }
-                        catch (final IOException ignored) {
-                        }
-                        if (!trackerletExecutor.isShutdown()) {
-                            throw new RuntimeException("Unexpected error", e);
-                        }
+                    if (topologyChanged.getAndSet(false)) {
+                        push();
                     }
                 }
             }
+            catch (final ClosedSelectorException e) {
+                if (!isCancelled()) {
+                    throw e;
+                }
+            }
+            catch (final IOException e) {
+                if (!isCancelled()) {
+                    throw e;
+                }
+            }
             finally {
+                removeNetworkTopologyChangeListener(topologyListener);
+                for (final SelectionKey key : keys()) {
+                    try {
+                        key.channel().close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
+                try {
+                    selector.close();
+                }
+                catch (final IOException ignored) {
+                }
                 trackerletExecutor.shutdownNow();
                 Thread.interrupted();
                 trackerletExecutor.awaitTermination(Long.MAX_VALUE,
@@ -303,9 +774,139 @@ final class Tracker implements Callable<Void> {
             return null;
         }
 
+        /**
+         * Returns the registered keys of the selector.
+         * 
+         * @return The registered keys or an empty set if the selector is
+         *         closed.
+         */
+        private Set<SelectionKey> keys() {
+            try {
+                return new HashSet<SelectionKey>(selector.keys());
+            }
+            catch (final ClosedSelectorException e) {
+                return Collections.emptySet();
+            }
+        }
+
+        /**
+         * Handles the selected keys of the selector.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs on the tracker socket.
+         */
+        private void handleSelectedKeys() throws IOException {
+            final Iterator<SelectionKey> iter = selector.selectedKeys()
+                    .iterator();
+            while (iter.hasNext()) {
+                final SelectionKey key = iter.next();
+                iter.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                final Session session = (Session) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable() && !session.read(key)) {
+                        session.close();
+                    }
+                    else if (key.isValid() && key.isWritable()) {
+                        session.write(key);
+                    }
+                }
+                catch (final IOException e) {
+                    logger.debug("I/O error on {}: {}", session.channel,
+                            e.toString());
+                    session.close();
+                }
+            }
+        }
+
+        /**
+         * Sends the changes to the network topology to the subscribers. A
+         * subscriber that has too many pending replies is skipped: it's sent
+         * the accumulated changes when its pending replies have been written.
+         */
+        private void push() {
+            final Iterator<Session> iter = subscribers.iterator();
+            while (iter.hasNext()) {
+                final Session session = iter.next();
+                if (session.output.size() < MAX_PENDING_PUSHES) {
+                    try {
+                        session.push(false);
+                        if (!session.output.isEmpty()) {
+                            session.channel.keyFor(selector).interestOps(
+                                    SelectionKey.OP_READ
+                                            | SelectionKey.OP_WRITE);
+                        }
+                    }
+                    catch (final Exception e) {
+                        logger.debug("Couldn't update subscriber {}: {}",
+                                session.channel, e.toString());
+                        iter.remove();
+                        session.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Accepts pending connections.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs on the tracker socket.
+         */
+        private void accept() throws IOException {
+            for (SocketChannel channel; (channel = trackerChannel.accept()) != null;) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setKeepAlive(true);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.register(selector, SelectionKey.OP_READ,
+                            new Session(channel));
+                }
+                catch (final IOException e) {
+                    logger.debug("Couldn't accept {}: {}", channel,
+                            e.toString());
+                    try {
+                        channel.close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Hands the connections that carry a serialized tracker-task to
+         * trackerlets.
+         */
+        private void handOff() {
+            for (final Map.Entry<SocketChannel, byte[]> entry : handoffs
+                    .entrySet()) {
+                final SocketChannel channel = entry.getKey();
+                try {
+                    channel.configureBlocking(true);
+                    trackerletExecutor.submit(new Trackerlet(channel.socket(),
+                            entry.getValue()));
+                }
+                catch (final Exception e) {
+                    logger.debug("Couldn't hand-off {}: {}", channel,
+                            e.toString());
+                    try {
+                        channel.close();
+                    }
+                    catch (final IOException ignored) {
+                    }
+                }
+            }
+            handoffs.clear();
+        }
+
         @Override
         protected void stop() {
             trackerletExecutor.shutdownNow();
+            selector.wakeup();
             try {
                 trackerSocket.close();
             }
@@ -339,6 +940,33 @@ final class Tracker implements Callable<Void> {
     private static final long   SERVER_CHECKER_KEEPALIVE;
     private static final String SERVER_CHECKER_KEEPALIVE_KEY           = "server-checker thread keepalive-time in seconds";
     private static final long   SERVER_CHECKER_KEEPALIVE_DEFAULT       = 60;
+    /**
+     * The duration of the lease on a registration in seconds. A server whose
+     * lease isn't renewed in time is removed from the network topology.
+     */
+    private static final int    LEASE_DURATION;
+    private static final String LEASE_DURATION_KEY                     = "registration lease-duration in seconds";
+    private static final int    LEASE_DURATION_DEFAULT                 = 60;
+    /**
+     * The maximum sustained rate of admitted registrations per second.
+     */
+    private static final int    REGISTRATION_RATE;
+    private static final String REGISTRATION_RATE_KEY                  = "maximum registration rate per second";
+    private static final int    REGISTRATION_RATE_DEFAULT              = 500;
+    /**
+     * The maximum number of registrations that are admitted in a burst.
+     */
+    private static final int    REGISTRATION_BURST;
+    private static final String REGISTRATION_BURST_KEY                 = "maximum registration burst";
+    private static final int    REGISTRATION_BURST_DEFAULT             = 500;
+    /**
+     * The maximum number of pending connections to the tracker socket. A
+     * join-storm overflows a small queue and makes nodes wait for their
+     * connection attempts to be retransmitted.
+     */
+    private static final int    ACCEPT_BACKLOG;
+    private static final String ACCEPT_BACKLOG_KEY                     = "tracker accept backlog";
+    private static final int    ACCEPT_BACKLOG_DEFAULT                 = 1024;
 
     static {
         final Preferences prefs = Preferences.userNodeForPackage(Tracker.class);
@@ -357,6 +985,65 @@ final class Tracker implements Callable<Void> {
                     + SERVER_CHECKER_KEEPALIVE_KEY + "\"="
                     + SERVER_CHECKER_KEEPALIVE);
         }
+        LEASE_DURATION = prefs.getInt(LEASE_DURATION_KEY,
+                LEASE_DURATION_DEFAULT);
+        if (LEASE_DURATION <= 0) {
+            throw new IllegalArgumentException("Invalid user preference: \""
+                    + LEASE_DURATION_KEY + "\"=" + LEASE_DURATION);
+        }
+        REGISTRATION_RATE = prefs.getInt(REGISTRATION_RATE_KEY,
+                REGISTRATION_RATE_DEFAULT);
+        if (REGISTRATION_RATE <= 0) {
+            throw new IllegalArgumentException("Invalid user preference: \""
+                    + REGISTRATION_RATE_KEY + "\"=" + REGISTRATION_RATE);
+        }
+        REGISTRATION_BURST = prefs.getInt(REGISTRATION_BURST_KEY,
+                REGISTRATION_BURST_DEFAULT);
+        if (REGISTRATION_BURST <= 0) {
+            throw new IllegalArgumentException("Invalid user preference: \""
+                    + REGISTRATION_BURST_KEY + "\"=" + REGISTRATION_BURST);
+        }
+        ACCEPT_BACKLOG = prefs.getInt(ACCEPT_BACKLOG_KEY,
+                ACCEPT_BACKLOG_DEFAULT);
+        if (ACCEPT_BACKLOG <= 0) {
+            throw new IllegalArgumentException("Invalid user preference: \""
+                    + ACCEPT_BACKLOG_KEY + "\"=" + ACCEPT_BACKLOG);
+        }
+    }
+
+    /**
+     * Removes the servers whose leases have expired. Wakes up once per tick of
+     * the timing wheel of leases, so a server is removed at most a tick after
+     * its lease expires, and all the servers that expired during a tick are
+     * removed by a single change to the network topology.
+     * <p>
+     * Instances are thread-safe.
+     */
+    @ThreadSafe
+    private final class LeaseExpirer implements Callable<Void> {
+        @Override
+        public Void call() throws InterruptedException {
+            logger.trace("Starting up: {}", this);
+            final String origThreadName = Thread.currentThread().getName();
+            Thread.currentThread().setName(toString());
+            try {
+                final long tick = leases.getTickDuration(TimeUnit.MILLISECONDS);
+                for (;;) {
+                    Thread.sleep(tick);
+                    expireLeases(System.nanoTime());
+                    recordTopology();
+                }
+            }
+            finally {
+                Thread.currentThread().setName(origThreadName);
+                logger.trace("Done: {}", this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "LeaseExpirer []";
+        }
     }
 
     /**
@@ -370,6 +1057,10 @@ final class Tracker implements Callable<Void> {
          * The socket.
          */
         private final Socket socket;
+        /**
+         * The bytes that have already been read from the socket.
+         */
+        private final byte[] prefix;
 
         /**
          * Constructs from a socket.
@@ -380,10 +1071,29 @@ final class Tracker implements Callable<Void> {
          *             if {@code socket == null}.
          */
         Trackerlet(final Socket socket) {
+            this(socket, new byte[0]);
+        }
+
+        /**
+         * Constructs from a socket and the bytes that have already been read
+         * from it.
+         * 
+         * @param socket
+         *            The socket.
+         * @param prefix
+         *            The bytes that have already been read from the socket.
+         * @throws NullPointerException
+         *             if {@code socket == null || prefix == null}.
+         */
+        Trackerlet(final Socket socket, final byte[] prefix) {
             if (null == socket) {
                 throw new NullPointerException();
             }
+            if (null == prefix) {
+                throw new NullPointerException();
+            }
             this.socket = socket;
+            this.prefix = prefix;
         }
 
         /**
@@ -406,7 +1116,9 @@ final class Tracker implements Callable<Void> {
                                              // appropriate
                 socket.setKeepAlive(true);
 
-                final InputStream inputStream = socket.getInputStream();
+                final InputStream inputStream = new SequenceInputStream(
+                        new ByteArrayInputStream(prefix),
+                        socket.getInputStream());
                 final ObjectInputStream ois = new ObjectInputStream(inputStream);
                 try {
                     final TrackerTask trackerTask = (TrackerTask) ois
@@ -483,24 +1195,63 @@ final class Tracker implements Callable<Void> {
      * The executor service
      */
     private final CancellingExecutor    executor                       = new CancellingExecutor(
-                                                                               2,
-                                                                               2,
+                                                                               3,
+                                                                               3,
                                                                                0,
                                                                                TimeUnit.SECONDS,
                                                                                new SynchronousQueue<Runnable>());
+    /**
+     * The channel on which this instance listens.
+     */
+    private final ServerSocketChannel   trackerChannel;
     /**
      * The socket on which this instance listens.
      */
     private final ServerSocket          trackerSocket;
+    /**
+     * The number of registrations via the compact protocol.
+     */
+    private final AtomicLong            registrationCount              = new AtomicLong();
     /**
      * The filter/servers map.
      */
     @GuardedBy("this")
-    private final Topology       topology                = new Topology();
+    private final Topology              topology;
+    /**
+     * The durable record of the network topology or {@code null}.
+     */
+    private final TopologyJournal       journal;
+    /**
+     * The servers that were recovered from the journal and haven't renewed
+     * their leases or registered since.
+     */
+    private final Set<InetSocketAddress> unverified                    = Collections
+                                                                               .newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
     /**
      * Information on the source-server.
      */
     private final InetSocketAddress     sourceServer;
+    /**
+     * The distribution overlay.
+     */
+    private final Overlay               overlay;
+    /**
+     * The leases on the registrations of servers. The source-server doesn't
+     * have a lease.
+     */
+    private final TimingWheel<InetSocketAddress> leases = new TimingWheel<InetSocketAddress>(
+                                                                               1,
+                                                                               TimeUnit.SECONDS,
+                                                                               LEASE_DURATION + 1);
+    /**
+     * The admission control on registrations via the compact protocol.
+     * Renewals of leases aren't limited because they're cheap.
+     */
+    private final TokenBucket           admission;
+    /**
+     * The number of servers that were removed because their leases expired.
+     */
+    private final AtomicLong            expiredLeaseCount              = new AtomicLong();
     /**
      * Property change support.
      */
@@ -566,18 +1317,124 @@ final class Tracker implements Callable<Void> {
     Tracker(final InetSocketAddress sourceServer,
             final InetSocketAddress trackerSocketAddress) throws BindException,
             SocketException, IOException {
+        this(sourceServer, trackerSocketAddress, (TopologyJournal) null);
+    }
+
+    /**
+     * Constructs from the Internet socket address of the source-server, the
+     * Internet socket address for the tracker, and the durable record of the
+     * network topology.
+     * 
+     * @param sourceServer
+     *            The Internet socket address of the source-server.
+     * @param trackerSocketAddress
+     *            The Internet socket address for the tracker.
+     * @param journal
+     *            The durable record of the network topology or {@code null}.
+     *            The topology of the previous session is recovered from it
+     *            and it's closed when this instance completes.
+     * @throws BindException
+     *             if the tracker socket couldn't be bound to the given Internet
+     *             socket address
+     * @throws SocketException
+     *             if the {@code SO_REUSEADDR} option on the tracker socket
+     *             couldn't be set
+     * @throws IOException
+     *             if a socket for the tracker couldn't be created
+     * @throws NullPointerException
+     *             if {@code sourceServer == null}.
+     * @throws NullPointerException
+     *             if {@code trackerSocketAddress == null}.
+     */
+    Tracker(final InetSocketAddress sourceServer,
+            final InetSocketAddress trackerSocketAddress,
+            final TopologyJournal journal) throws BindException,
+            SocketException, IOException {
+        this(sourceServer, trackerSocketAddress, new TokenBucket(
+                REGISTRATION_RATE, REGISTRATION_BURST), journal);
+    }
+
+    /**
+     * Constructs from the Internet socket address of the source-server, the
+     * Internet socket address for the tracker, the admission control on
+     * registrations, and the durable record of the network topology.
+     * <p>
+     * The servers of a recovered topology are given leases as if they had
+     * just registered and are attached to the distribution overlay as its
+     * last choice for parents. They're unverified until they renew their
+     * leases or register, and are removed if they don't.
+     * 
+     * @param sourceServer
+     *            The Internet socket address of the source-server.
+     * @param trackerSocketAddress
+     *            The Internet socket address for the tracker.
+     * @param admission
+     *            The admission control on registrations.
+     * @param journal
+     *            The durable record of the network topology or {@code null}.
+     *            The topology of the previous session is recovered from it
+     *            and it's closed when this instance completes.
+     * @throws BindException
+     *             if the tracker socket couldn't be bound to the given Internet
+     *             socket address
+     * @throws SocketException
+     *             if the {@code SO_REUSEADDR} option on the tracker socket
+     *             couldn't be set
+     * @throws IOException
+     *             if a socket for the tracker couldn't be created
+     * @throws NullPointerException
+     *             if {@code sourceServer == null}.
+     * @throws NullPointerException
+     *             if {@code trackerSocketAddress == null}.
+     * @throws NullPointerException
+     *             if {@code admission == null}.
+     */
+    Tracker(final InetSocketAddress sourceServer,
+            final InetSocketAddress trackerSocketAddress,
+            final TokenBucket admission, final TopologyJournal journal)
+            throws BindException, SocketException, IOException {
         if (sourceServer == null) {
             throw new NullPointerException();
         }
         if (trackerSocketAddress == null) {
             throw new NullPointerException();
         }
-        trackerSocket = new ServerSocket();
+        if (admission == null) {
+            throw new NullPointerException();
+        }
+        this.admission = admission;
+        this.journal = journal;
+        final Topology recovered = journal == null
+                ? null
+                : journal.takeRecovered();
+        topology = recovered == null
+                ? new Topology()
+                : recovered;
+        overlay = new Overlay(sourceServer);
+        trackerChannel = ServerSocketChannel.open();
+        trackerSocket = trackerChannel.socket();
         try {
             trackerSocket.setReuseAddress(true);
-            trackerSocket.bind(trackerSocketAddress);
+            trackerSocket.bind(trackerSocketAddress, ACCEPT_BACKLOG);
             topology.add(Filter.EVERYTHING, sourceServer);
             this.sourceServer = sourceServer;
+            if (recovered != null) {
+                final long deadline = System.nanoTime()
+                        + TimeUnit.SECONDS.toNanos(LEASE_DURATION);
+                for (final InetSocketAddress server : topology.getServers()) {
+                    if (!sourceServer.equals(server)) {
+                        leases.schedule(server, deadline);
+                        unverified.add(server);
+                        final int capacity = overlay.getCapacity(topology
+                                .getLoad(server));
+                        for (final Filter filter : topology.getFilters(server)) {
+                            overlay.attachUnverified(filter, server, capacity);
+                        }
+                    }
+                }
+                logger.info("Recovered {} servers. They're unverified until "
+                        + "they renew their leases.", unverified.size());
+            }
             propertySupport = new PropertyChangeSupport(this);
             serverCheckerTask = new ServerCheckerTask();
             return;
@@ -633,7 +1490,10 @@ final class Tracker implements Callable<Void> {
                     .submit(serverCheckerTask);
             try {
                 final Accepter accepterTask = new Accepter();
-                completionService.submit(accepterTask);
+                final Future<Void> accepterFuture = completionService
+                        .submit(accepterTask);
+                final LeaseExpirer expirerTask = new LeaseExpirer();
+                completionService.submit(expirerTask);
 
                 isRunningLatch.countDown();
 
@@ -646,7 +1506,9 @@ final class Tracker implements Callable<Void> {
                         final Throwable cause = e.getCause();
                         final Object task = future == checkerFuture
                                 ? serverCheckerTask
-                                : accepterTask;
+                                : future == accepterFuture
+                                        ? accepterTask
+                                        : expirerTask;
                         if (cause instanceof IOException) {
                             throw new IOException("I/O error: " + task, cause);
                         }
@@ -658,6 +1520,15 @@ final class Tracker implements Callable<Void> {
             finally {
                 executor.shutdownNow();
                 awaitCompletion();
+                if (journal != null) {
+                    recordTopology();
+                    try {
+                        journal.close();
+                    }
+                    catch (final IOException e) {
+                        logger.error("Couldn't close journal " + journal, e);
+                    }
+                }
                 try {
                     trackerSocket.close();
                 }
@@ -698,26 +1569,202 @@ final class Tracker implements Callable<Void> {
     }
 
     /**
-     * Registers a server capable of satisfying a given file-selection filter.
+     * Registers a server capable of satisfying a given file-selection filter
+     * via the legacy {@link TopologyGetter}. Such a node can't renew a lease,
+     * so the registration doesn't have one: the server is removed when it's
+     * reported offline and the {@link ServerCheckerTask} confirms it.
      * 
      * @param server
      *            Address of the sink-node's server.
      * @param filter
      *            The file-selection filter.
-     * @throws IOException
-     *             if an I/O error occurs.
      * @throws NullPointerException
-     *             if {@code serverInfo == null || predicate == null}.
+     *             if {@code server == null || filter == null}.
+     */
+    void register(final InetSocketAddress server, final Filter filter) {
+        synchronized (topology) {
+            topology.add(filter, server);
+            // A lease from a previous session would expire
+            leases.cancel(server);
+            unverified.remove(server);
+        }
+        // Such a node isn't part of the distribution overlay
+        overlay.remove(server);
+        fireTopologyChange();
+    }
+
+    /**
+     * Registers a server capable of satisfying a given file-selection filter
+     * together with the load on the server. The registration has a lease,
+     * which the node must renew.
+     * 
+     * @param server
+     *            Address of the sink-node's server.
+     * @param filter
+     *            The file-selection filter.
+     * @param load
+     *            The load on the server or {@code null} if unknown.
+     * @throws NullPointerException
+     *             if {@code server == null || filter == null}.
+     */
+    void register(final InetSocketAddress server, final Filter filter,
+            final ServerLoad load) {
+        synchronized (topology) {
+            topology.add(filter, server);
+            if (load != null) {
+                topology.setLoad(server, load);
+            }
+            if (!sourceServer.equals(server)) {
+                leases.schedule(server, System.nanoTime()
+                        + TimeUnit.SECONDS.toNanos(LEASE_DURATION));
+                unverified.remove(server);
+            }
+        }
+        fireTopologyChange();
+    }
+
+    /**
+     * Renews the lease on the registration of a server and updates the load
+     * on the server. Subscribers are notified only if the load changed
+     * significantly (see {@link Topology#setLoad(InetSocketAddress, ServerLoad)}).
+     * 
+     * @param server
+     *            The address of the server.
+     * @param load
+     *            The current load on the server or {@code null} if unknown.
+     * @return {@code true} if and only if the lease was renewed. {@code false}
+     *         means that the server isn't registered (e.g., because its lease
+     *         expired) and must be registered again.
+     */
+    boolean renew(final InetSocketAddress server, final ServerLoad load) {
+        if (!leases.reschedule(server,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(LEASE_DURATION))) {
+            return false;
+        }
+        unverified.remove(server);
+        if (load != null) {
+            final boolean changed;
+            synchronized (topology) {
+                final long version = topology.getVersion();
+                topology.setLoad(server, load);
+                changed = topology.getVersion() != version;
+            }
+            if (changed) {
+                fireTopologyChange();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Durably records the network topology in the journal, if there is one.
+     * Only the changes since the last time are written. An I/O error is
+     * logged: the tracker keeps working without an up-to-date journal.
      */
-    void register(final InetSocketAddress server, final Filter filter)
-            throws IOException {
-        topology.add(filter, server);
+    private void recordTopology() {
+        if (journal != null) {
+            try {
+                journal.record(topology);
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't record network topology in " + journal,
+                        e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of servers that were recovered from the journal and
+     * haven't renewed their leases or registered since.
+     * 
+     * @return The number of unverified servers.
+     */
+    int getUnverifiedCount() {
+        return unverified.size();
+    }
+
+    /**
+     * Removes the servers whose leases expired before a given time from the
+     * network topology and the distribution overlay. The servers are removed
+     * as a batch: subscribers are notified once.
+     * 
+     * @param now
+     *            The time in nanoseconds as returned by
+     *            {@link System#nanoTime()}.
+     * @return The number of servers that were removed.
+     */
+    int expireLeases(final long now) {
+        final Set<InetSocketAddress> expired;
+        synchronized (topology) {
+            expired = new HashSet<InetSocketAddress>(leases.advance(now));
+            if (expired.isEmpty()) {
+                return 0;
+            }
+            topology.remove(expired);
+        }
+        for (final InetSocketAddress server : expired) {
+            overlay.remove(server);
+            unverified.remove(server);
+        }
+        expiredLeaseCount.addAndGet(expired.size());
+        fireTopologyChange();
+        logger.debug("Removed servers whose leases expired: {}", expired);
+        return expired.size();
+    }
+
+    /**
+     * Returns the duration of the lease on a registration.
+     * 
+     * @return The duration of the lease in seconds.
+     */
+    static int getLeaseDuration() {
+        return LEASE_DURATION;
+    }
+
+    /**
+     * Returns the admission control on registrations.
+     * 
+     * @return The admission control on registrations.
+     */
+    TokenBucket getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Returns the number of servers that have been removed because their
+     * leases expired.
+     * 
+     * @return The number of servers whose leases expired.
+     */
+    long getExpiredLeaseCount() {
+        return expiredLeaseCount.get();
+    }
+
+    /**
+     * Notifies the listeners for the network topology of a change.
+     */
+    private void fireTopologyChange() {
+        /*
+         * The topology itself is the new value rather than a copy: listeners
+         * obtain the changes via Topology#getDelta(long, long).
+         */
         propertySupport.firePropertyChange(NETWORK_TOPOLOGY_PROPERTY_NAME,
-                null, new Topology(topology));
+                null, topology);
+    }
+
+    /**
+     * Returns the number of registrations that have been made via the compact
+     * {@link TrackerProtocol}.
+     * 
+     * @return The number of registrations via the compact protocol.
+     */
+    long getRegistrationCount() {
+        return registrationCount.get();
     }
 
     /**
-     * Adds a property-change listener for the network topology.
+     * Adds a property-change listener for the network topology. The new value
+     * of an event is the network topology itself -- not a copy.
      * 
      * @param listener
      *            The listener for network topology change events to be added.
@@ -749,6 +1796,15 @@ final class Tracker implements Callable<Void> {
         return topology;
     }
 
+    /**
+     * Returns the distribution overlay.
+     * 
+     * @return The distribution overlay.
+     */
+    Overlay getOverlay() {
+        return overlay;
+    }
+
     /**
      * Returns the current, filter-specific, state of the network. The returned
      * object isn't backed-up by this instance. Each server in the returned
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown to indicate that the tracker didn't admit a registration because it's
+ * busy. The tracker says when to try again.
+ * 
+ * Instances are immutable.
+ * 
+ * @author Steven R. Emmerson
+ */
+final class TrackerBusyException extends IOException {
+    /**
+     * The serial version identifier
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * The time to wait before trying again in milliseconds.
+     */
+    private final long        retryAfter;
+
+    /**
+     * Constructs from the time to wait before trying again.
+     * 
+     * @param retryAfter
+     *            The time to wait before trying again in milliseconds.
+     */
+    TrackerBusyException(final long retryAfter) {
+        super("Tracker busy; retry after " + retryAfter + " ms");
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the time to wait before trying again.
+     * 
+     * @param unit
+     *            The unit of the returned value.
+     * @return The time to wait before trying again.
+     */
+    long getRetryAfter(final TimeUnit unit) {
+        return unit.convert(retryAfter, TimeUnit.MILLISECONDS);
+    }
+}
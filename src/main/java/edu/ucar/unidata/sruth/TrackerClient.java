@@ -0,0 +1,422 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A persistent connection to a tracker that uses the compact
+ * {@link TrackerProtocol}. The connection is established when first needed and
+ * re-established after an error, so a single instance can be used for the
+ * lifetime of a node.
+ * <p>
+ * The client keeps a copy of the part of the network topology that's relevant
+ * to the filter of the last registration. The copy is brought up-to-date by
+ * the changes that the tracker sends, so only the first registration with a
+ * filter receives the whole part.
+ * <p>
+ * Instances are thread-safe. Requests are serialized.
+ * 
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TrackerClient {
+    /**
+     * The address of the tracker.
+     */
+    private final InetSocketAddress trackerAddress;
+    /**
+     * The socket to the tracker or {@code null} if not connected.
+     */
+    private volatile Socket         socket;
+    /**
+     * The input from the tracker.
+     */
+    @GuardedBy("this")
+    private DataInputStream         input;
+    /**
+     * The output to the tracker.
+     */
+    @GuardedBy("this")
+    private DataOutputStream        output;
+    /**
+     * The address for reporting offline servers.
+     */
+    @GuardedBy("this")
+    private InetSocketAddress       reportingAddress;
+    /**
+     * The parent of the node in the distribution overlay.
+     */
+    @GuardedBy("this")
+    private InetSocketAddress       parent;
+    /**
+     * The address of the source-server.
+     */
+    @GuardedBy("this")
+    private InetSocketAddress       source;
+    /**
+     * The duration of the lease on the registration in seconds or zero if the
+     * registration doesn't expire.
+     */
+    @GuardedBy("this")
+    private int                     leaseDuration;
+    /**
+     * The copy of the relevant part of the network topology or {@code null}.
+     */
+    @GuardedBy("this")
+    private Topology                topology;
+    /**
+     * The filter to which {@link #topology} is relevant.
+     */
+    @GuardedBy("this")
+    private Filter                  topologyFilter;
+    /**
+     * Whether or not this instance is closed.
+     */
+    private volatile boolean        isClosed;
+
+    /**
+     * Constructs from the address of the tracker. Doesn't connect.
+     * 
+     * @param trackerAddress
+     *            The address of the tracker.
+     * @throws NullPointerException
+     *             if {@code trackerAddress == null}.
+     */
+    TrackerClient(final InetSocketAddress trackerAddress) {
+        if (trackerAddress == null) {
+            throw new NullPointerException();
+        }
+        this.trackerAddress = trackerAddress;
+    }
+
+    /**
+     * Connects to the tracker if necessary.
+     * <p>
+     * This method is potentially slow and uninterruptible.
+     * 
+     * @throws SocketException
+     *             if {@link #close()} has been called.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void connect() throws IOException {
+        if (socket == null) {
+            final Socket sock = new Socket();
+            socket = sock;
+            if (isClosed) {
+                disconnect();
+                throw new SocketException("Closed: " + this);
+            }
+            sock.connect(trackerAddress, Connection.SO_TIMEOUT);
+            sock.setSoTimeout(Connection.SO_TIMEOUT);
+            sock.setKeepAlive(true);
+            sock.setTcpNoDelay(true); // because requests are small
+            input = new DataInputStream(new BufferedInputStream(
+                    sock.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(
+                    sock.getOutputStream()));
+            output.writeByte(TrackerProtocol.MAGIC);
+            output.writeByte(TrackerProtocol.VERSION);
+        }
+    }
+
+    /**
+     * Closes the connection to the tracker. Idempotent.
+     */
+    private void disconnect() {
+        final Socket sock = socket;
+        if (sock != null) {
+            try {
+                sock.close();
+            }
+            catch (final IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Sends a request to the tracker and returns the type and payload of the
+     * reply. Disconnects on error so that the next request reconnects.
+     * 
+     * @param type
+     *            The type of the request.
+     * @param payload
+     *            The payload of the request.
+     * @return The type of the reply followed by its payload.
+     * @throws InvalidMessageException
+     *             if the reply is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private synchronized byte[] call(final byte type, final byte[] payload)
+            throws InvalidMessageException, IOException {
+        try {
+            connect();
+            final ByteBuffer frame = TrackerProtocol.frame(type, payload);
+            output.write(frame.array(), 0, frame.limit());
+            output.flush();
+            return TrackerProtocol.readFrame(input);
+        }
+        catch (final IOException e) {
+            disconnect();
+            throw e;
+        }
+        catch (final InvalidMessageException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Registers a node with the tracker and returns the part of the current
+     * network topology that's relevant to the node's filter. The same, updated
+     * object is returned by successive invocations with the same filter.
+     * <p>
+     * This method is potentially slow and uninterruptible.
+     * 
+     * @param filter
+     *            The data-selection filter of the node.
+     * @param localServer
+     *            The address of the node's server.
+     * @return The relevant part of the current network topology.
+     * @throws InvalidMessageException
+     *             if the reply from the tracker is invalid.
+     * @throws SocketException
+     *             if {@link #close()} is called by another thread.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @see #register(Filter, InetSocketAddress, ServerLoad)
+     */
+    Topology register(final Filter filter, final InetSocketAddress localServer)
+            throws InvalidMessageException, IOException {
+        return register(filter, localServer, null);
+    }
+
+    /**
+     * Registers a node with the tracker, reports the load on the node's
+     * server, and returns the part of the current network topology that's
+     * relevant to the node's filter (see {@link Topology#subset(Filter)}). The
+     * same, updated object is returned by successive invocations with the same
+     * filter.
+     * <p>
+     * This method is potentially slow and uninterruptible.
+     * 
+     * @param filter
+     *            The data-selection filter of the node.
+     * @param localServer
+     *            The address of the node's server.
+     * @param load
+     *            The load on the node's server or {@code null} if unknown.
+     * @return The relevant part of the current network topology.
+     * @throws InvalidMessageException
+     *             if the reply from the tracker is invalid.
+     * @throws TrackerBusyException
+     *             if the tracker is too busy to admit the registration.
+     * @throws SocketException
+     *             if {@link #close()} is called by another thread.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized Topology register(final Filter filter,
+            final InetSocketAddress localServer, final ServerLoad load)
+            throws InvalidMessageException, IOException {
+        if (topology != null && !filter.equals(topologyFilter)) {
+            // The copy is irrelevant to the new filter
+            topology = null;
+        }
+        final byte[] reply = call(TrackerProtocol.REGISTER,
+                TrackerProtocol.registerPayload(filter, localServer, topology,
+                        load));
+        final DataInputStream replyInput = new DataInputStream(
+                new ByteArrayInputStream(reply));
+        final byte replyType = replyInput.readByte();
+        if (replyType == TrackerProtocol.BUSY) {
+            throw new TrackerBusyException(replyInput.readInt());
+        }
+        final InetSocketAddress address = TrackerProtocol
+                .readAddress(replyInput);
+        try {
+            topology = TrackerProtocol.update(topology, replyType, replyInput);
+            topologyFilter = filter;
+        }
+        catch (final InvalidMessageException e) {
+            // The next registration will get the whole topology
+            topology = null;
+            throw e;
+        }
+        reportingAddress = address;
+        // The assignment in the distribution overlay is optional
+        if (replyInput.available() > 0) {
+            parent = TrackerProtocol.readAddress(replyInput);
+            source = TrackerProtocol.readAddress(replyInput);
+        }
+        else {
+            parent = null;
+            source = null;
+        }
+        // So is the lease
+        leaseDuration = replyInput.available() > 0
+                ? replyInput.readInt()
+                : 0;
+        return topology;
+    }
+
+    /**
+     * Renews the lease on the registration of a node's server. Much cheaper
+     * than registering again.
+     * <p>
+     * This method is potentially slow and uninterruptible.
+     * 
+     * @param filter
+     *            The data-selection filter with which the node registered.
+     * @param localServer
+     *            The address of the node's server.
+     * @return {@code true} if and only if the lease was renewed. {@code false}
+     *         means that the tracker no longer knows the server (e.g., because
+     *         the lease expired), so the node must register again.
+     * @throws InvalidMessageException
+     *             if the reply from the tracker is invalid.
+     * @throws SocketException
+     *             if {@link #close()} is called by another thread.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    boolean renew(final Filter filter, final InetSocketAddress localServer)
+            throws InvalidMessageException, IOException {
+        return renew(filter, localServer, null);
+    }
+
+    /**
+     * Renews the lease on the registration of a node's server and reports the
+     * current load on the server. Much cheaper than registering again. Also
+     * gets the node's current parent in the distribution overlay (see
+     * {@link #getParent()}).
+     * <p>
+     * This method is potentially slow and uninterruptible.
+     * 
+     * @param filter
+     *            The data-selection filter with which the node registered.
+     * @param localServer
+     *            The address of the node's server.
+     * @param load
+     *            The load on the node's server or {@code null} if unknown.
+     * @return {@code true} if and only if the lease was renewed. {@code false}
+     *         means that the tracker no longer knows the server (e.g., because
+     *         the lease expired), so the node must register again.
+     * @throws InvalidMessageException
+     *             if the reply from the tracker is invalid.
+     * @throws SocketException
+     *             if {@link #close()} is called by another thread.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized boolean renew(final Filter filter,
+            final InetSocketAddress localServer, final ServerLoad load)
+            throws InvalidMessageException, IOException {
+        final byte[] reply = call(TrackerProtocol.RENEW,
+                TrackerProtocol.renewPayload(localServer, filter, load));
+        final DataInputStream replyInput = new DataInputStream(
+                new ByteArrayInputStream(reply));
+        final byte replyType = replyInput.readByte();
+        if (replyType != TrackerProtocol.LEASE) {
+            disconnect();
+            throw new InvalidMessageException("Unexpected reply type: "
+                    + replyType);
+        }
+        final int duration = replyInput.readInt();
+        if (duration < 0) {
+            disconnect();
+            throw new InvalidMessageException("Invalid lease duration: "
+                    + duration);
+        }
+        if (duration == 0) {
+            return false;
+        }
+        leaseDuration = duration;
+        // The current assignment in the distribution overlay is optional
+        if (replyInput.available() > 0) {
+            parent = TrackerProtocol.readAddress(replyInput);
+            source = TrackerProtocol.readAddress(replyInput);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the duration of the lease on the registration that was given by
+     * the tracker.
+     * 
+     * @return The duration of the lease in seconds or zero if the registration
+     *         doesn't expire or {@link #register(Filter, InetSocketAddress)}
+     *         hasn't succeeded.
+     */
+    synchronized int getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * Returns the parent of the node in the distribution overlay that was
+     * assigned by the tracker during the last registration or renewal.
+     * 
+     * @return The address of the node's parent or {@code null} if the tracker
+     *         didn't assign one or
+     *         {@link #register(Filter, InetSocketAddress)} hasn't succeeded.
+     */
+    synchronized InetSocketAddress getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the address of the source-server that was given by the tracker
+     * during the last registration or renewal.
+     * 
+     * @return The address of the source-server or {@code null} if the tracker
+     *         didn't give it or {@link #register(Filter, InetSocketAddress)}
+     *         hasn't succeeded.
+     */
+    synchronized InetSocketAddress getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the address for reporting offline servers that was given by the
+     * tracker.
+     * 
+     * @return The address for reporting offline servers or {@code null} if
+     *         {@link #register(Filter, InetSocketAddress)} hasn't succeeded.
+     */
+    synchronized InetSocketAddress getReportingAddress() {
+        return reportingAddress;
+    }
+
+    /**
+     * Closes this instance. A request that's executing on another thread fails.
+     * Idempotent.
+     */
+    void close() {
+        isClosed = true;
+        disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return "TrackerClient [trackerAddress=" + trackerAddress + "]";
+    }
+}
@@ -0,0 +1,516 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The compact protocol between a node and a tracker. A connection starts with
+ * the two bytes {@link #MAGIC} and {@link #VERSION} from the node and then
+ * carries any number of request/reply exchanges. Each request and reply is a
+ * frame: a four-byte length, a one-byte type, and a type-specific payload
+ * whose length is one less than the frame's length.
+ * <p>
+ * A {@link #SUBSCRIBE} request turns the connection into a subscription: after
+ * the reply, the tracker sends a {@link #TOPOLOGY_DELTA} (or, if the node has
+ * fallen too far behind, a {@link #TOPOLOGY}) whenever the part of the network
+ * topology that's relevant to the node's filter changes. No further requests
+ * are read from the connection.
+ * <p>
+ * The first byte distinguishes a connection that uses this protocol from one
+ * that carries a serialized {@link TrackerTask}, which starts with
+ * {@link #SERIALIZATION_MAGIC}.
+ * <p>
+ * This class is thread-safe because it has no state.
+ * 
+ * @author Steven R. Emmerson
+ */
+final class TrackerProtocol {
+    /**
+     * The first byte of a connection that uses this protocol.
+     */
+    static final byte MAGIC               = 'S';
+    /**
+     * The version of this protocol.
+     */
+    static final byte VERSION             = 1;
+    /**
+     * The first byte of a Java serialization stream.
+     */
+    static final byte SERIALIZATION_MAGIC = (byte) 0xAC;
+    /**
+     * The maximum length of a frame in bytes.
+     */
+    static final int  MAX_FRAME_LENGTH    = 1 << 24;
+    /**
+     * Request type: registers a node's server and filter and gets the part of
+     * the network topology that's relevant to the filter (see
+     * {@link Topology#versionedSubset(Filter)}). Payload: filter, server
+     * address, identifier and version of the node's copy of that part (the
+     * version is negative if the node doesn't have a copy), and, optionally,
+     * the load on the server (see {@link ServerLoad#write(DataOutput)}). The
+     * reply is a {@link #TOPOLOGY} or {@link #TOPOLOGY_DELTA} whose payload is
+     * followed by the node's assignment in the distribution overlay (see
+     * {@link Overlay}): the address of its parent and the address of the
+     * source-server; and then by the duration, in seconds, of the lease on the
+     * registration (zero if the registration doesn't expire). The node must
+     * renew the lease (see {@link #RENEW}) before it expires or the tracker
+     * will remove the node's server from the network topology. If the tracker
+     * is too busy to admit the registration, then the reply is a {@link #BUSY}
+     * instead.
+     */
+    static final byte REGISTER            = 1;
+    /**
+     * Reply type: the network topology. Payload: reporting address, topology.
+     */
+    static final byte TOPOLOGY            = 2;
+    /**
+     * Reply type: the changes to the node's copy of the network topology.
+     * Payload: reporting address, topology delta.
+     */
+    static final byte TOPOLOGY_DELTA      = 3;
+    /**
+     * Request type: subscribes to the part of the network topology that's
+     * relevant to a filter. Payload: filter, identifier and version of the
+     * node's copy of that part (the version is negative if the node doesn't
+     * have a copy).
+     */
+    static final byte SUBSCRIBE           = 4;
+    /**
+     * Request type: renews the lease on the registration of a node's server.
+     * Payload: server address, filter, and, optionally, the current load on
+     * the server (see {@link ServerLoad#write(DataOutput)}), so the network
+     * topology tracks the load between registrations. If the server isn't
+     * attached to the distribution overlay (e.g., because the connection on
+     * which it registered was closed), then it's attached again. The reply is
+     * a {@link #LEASE}.
+     */
+    static final byte RENEW               = 5;
+    /**
+     * Reply type: the lease on the registration of a node's server. Payload:
+     * the duration of the lease in seconds, which is zero if the server isn't
+     * registered (e.g., because its lease expired) and must be registered
+     * again. A non-zero duration is followed by the node's current assignment
+     * in the distribution overlay: the address of its parent, which changes
+     * if the previous parent left, and the address of the source-server.
+     */
+    static final byte LEASE               = 6;
+    /**
+     * Reply type: the tracker didn't admit a registration because too many
+     * nodes are registering. Payload: the time, in milliseconds, after which
+     * the node should try again. The tracker spreads these times out so that
+     * the rejected nodes don't all return at once.
+     */
+    static final byte BUSY                = 7;
+
+    /**
+     * Prevents instantiation.
+     */
+    private TrackerProtocol() {
+    }
+
+    /**
+     * Writes a data-selection filter.
+     * 
+     * @param output
+     *            The output.
+     * @param filter
+     *            The filter.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static void writeFilter(final DataOutput output, final Filter filter)
+            throws IOException {
+        final String glob = filter.getGlob();
+        output.writeBoolean(glob != null);
+        if (glob != null) {
+            output.writeUTF(glob);
+        }
+    }
+
+    /**
+     * Reads a data-selection filter.
+     * 
+     * @param input
+     *            The input.
+     * @return The filter.
+     * @throws InvalidMessageException
+     *             if the filter is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static Filter readFilter(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final String glob = input.readBoolean()
+                ? input.readUTF()
+                : null;
+        try {
+            return Filter.getInstance(glob);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new InvalidMessageException("Invalid filter: \"" + glob
+                    + "\"", e);
+        }
+    }
+
+    /**
+     * Writes an Internet socket address. The IP address is written if it's
+     * known; otherwise, the hostname is written.
+     * 
+     * @param output
+     *            The output.
+     * @param address
+     *            The Internet socket address.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static void writeAddress(final DataOutput output,
+            final InetSocketAddress address) throws IOException {
+        final InetAddress inetAddress = address.getAddress();
+        if (inetAddress == null) {
+            output.writeByte(0);
+            output.writeUTF(address.getHostName());
+        }
+        else {
+            final byte[] bytes = inetAddress.getAddress();
+            output.writeByte(bytes.length);
+            output.write(bytes);
+        }
+        output.writeShort(address.getPort());
+    }
+
+    /**
+     * Reads an Internet socket address.
+     * 
+     * @param input
+     *            The input.
+     * @return The Internet socket address.
+     * @throws InvalidMessageException
+     *             if the address is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static InetSocketAddress readAddress(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final int length = input.readUnsignedByte();
+        if (length == 0) {
+            final String hostName = input.readUTF();
+            return InetSocketAddress.createUnresolved(hostName,
+                    input.readUnsignedShort());
+        }
+        if (length != 4 && length != 16) {
+            throw new InvalidMessageException("Invalid IP address length: "
+                    + length);
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new InetSocketAddress(InetAddress.getByAddress(bytes),
+                input.readUnsignedShort());
+    }
+
+    /**
+     * Returns a frame. The returned buffer is ready to be written.
+     * 
+     * @param type
+     *            The type of the frame.
+     * @param payload
+     *            The payload of the frame.
+     * @return The frame.
+     */
+    static ByteBuffer frame(final byte type, final byte[] payload) {
+        final ByteBuffer frame = ByteBuffer.allocate(5 + payload.length);
+        frame.putInt(1 + payload.length);
+        frame.put(type);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Reads a frame.
+     * 
+     * @param input
+     *            The input.
+     * @return The type of the frame followed by its payload.
+     * @throws InvalidMessageException
+     *             if the length of the frame is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] readFrame(final DataInput input)
+            throws InvalidMessageException, IOException {
+        final int length = input.readInt();
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new InvalidMessageException("Invalid frame length: "
+                    + length);
+        }
+        final byte[] frame = new byte[length];
+        input.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * Brings a copy of the network topology up-to-date from the rest of the
+     * payload of a {@link #TOPOLOGY} or {@link #TOPOLOGY_DELTA} reply.
+     * 
+     * @param topology
+     *            The copy of the network topology or {@code null}. Modified
+     *            by a {@link #TOPOLOGY_DELTA} reply.
+     * @param type
+     *            The type of the reply.
+     * @param input
+     *            The input, positioned after the reporting address.
+     * @return The up-to-date network topology.
+     * @throws InvalidMessageException
+     *             if the type is unexpected or the delta doesn't apply to the
+     *             copy.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static Topology update(final Topology topology, final byte type,
+            final DataInput input) throws InvalidMessageException, IOException {
+        if (type == TOPOLOGY) {
+            return Topology.read(input);
+        }
+        if (type == TOPOLOGY_DELTA) {
+            final TopologyDelta delta = TopologyDelta.read(input);
+            if (topology == null || !topology.apply(delta)) {
+                throw new InvalidMessageException("Inapplicable delta: "
+                        + delta);
+            }
+            return topology;
+        }
+        throw new InvalidMessageException("Unexpected reply type: " + type);
+    }
+
+    /**
+     * Returns the payload of a {@link #REGISTER} request.
+     * 
+     * @param filter
+     *            The data-selection filter of the node.
+     * @param server
+     *            The address of the node's server.
+     * @param topology
+     *            The node's copy of the network topology or {@code null}.
+     * @param load
+     *            The load on the node's server or {@code null} if unknown.
+     * @return The payload of the request.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] registerPayload(final Filter filter,
+            final InetSocketAddress server, final Topology topology,
+            final ServerLoad load) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeFilter(output, filter);
+        writeAddress(output, server);
+        writeVersion(output, topology);
+        if (load != null) {
+            load.write(output);
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of the reply to a {@link #REGISTER} request.
+     * 
+     * @param topologyPayload
+     *            The payload of a {@link #TOPOLOGY} or {@link #TOPOLOGY_DELTA}
+     *            reply.
+     * @param parent
+     *            The address of the node's parent in the distribution overlay.
+     * @param source
+     *            The address of the source-server.
+     * @param leaseDuration
+     *            The duration of the lease on the registration in seconds or
+     *            zero if the registration doesn't expire.
+     * @return The payload of the reply.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] registerReplyPayload(final byte[] topologyPayload,
+            final InetSocketAddress parent, final InetSocketAddress source,
+            final int leaseDuration) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                topologyPayload.length + 32);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.write(topologyPayload);
+        writeAddress(output, parent);
+        writeAddress(output, source);
+        output.writeInt(leaseDuration);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of a {@link #RENEW} request.
+     * 
+     * @param server
+     *            The address of the node's server.
+     * @param filter
+     *            The data-selection filter with which the node registered.
+     * @param load
+     *            The load on the node's server or {@code null} if unknown.
+     * @return The payload of the request.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] renewPayload(final InetSocketAddress server,
+            final Filter filter, final ServerLoad load) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeAddress(output, server);
+        writeFilter(output, filter);
+        if (load != null) {
+            load.write(output);
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of a {@link #LEASE} reply to a server that isn't
+     * registered.
+     * 
+     * @return The payload of the reply.
+     */
+    static byte[] leasePayload() {
+        return ByteBuffer.allocate(4).putInt(0).array();
+    }
+
+    /**
+     * Returns the payload of a {@link #LEASE} reply to a registered server.
+     * 
+     * @param leaseDuration
+     *            The duration of the lease in seconds.
+     * @param parent
+     *            The address of the node's parent in the distribution overlay.
+     * @param source
+     *            The address of the source-server.
+     * @return The payload of the reply.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] leasePayload(final int leaseDuration,
+            final InetSocketAddress parent, final InetSocketAddress source)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(leaseDuration);
+        writeAddress(output, parent);
+        writeAddress(output, source);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of a {@link #BUSY} reply.
+     * 
+     * @param retryAfter
+     *            The time after which to try again in milliseconds.
+     * @return The payload of the reply.
+     */
+    static byte[] busyPayload(final int retryAfter) {
+        return ByteBuffer.allocate(4).putInt(retryAfter).array();
+    }
+
+    /**
+     * Returns the payload of a {@link #SUBSCRIBE} request.
+     * 
+     * @param filter
+     *            The data-selection filter of the node.
+     * @param topology
+     *            The node's copy of the relevant part of the network topology
+     *            or {@code null}.
+     * @return The payload of the request.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] subscribePayload(final Filter filter,
+            final Topology topology) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeFilter(output, filter);
+        writeVersion(output, topology);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the identifier and version of a copy of the network topology.
+     * 
+     * @param output
+     *            The output.
+     * @param topology
+     *            The copy of the network topology or {@code null}.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void writeVersion(final DataOutput output,
+            final Topology topology) throws IOException {
+        if (topology == null) {
+            output.writeLong(0);
+            output.writeLong(-1);
+        }
+        else {
+            synchronized (topology) {
+                output.writeLong(topology.getId());
+                output.writeLong(topology.getVersion());
+            }
+        }
+    }
+
+    /**
+     * Returns the payload of a {@link #TOPOLOGY} reply.
+     * 
+     * @param reportingAddress
+     *            The address for reporting offline servers.
+     * @param topology
+     *            The network topology.
+     * @return The payload of the reply.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] topologyPayload(final InetSocketAddress reportingAddress,
+            final Topology topology) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeAddress(output, reportingAddress);
+        topology.write(output);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the payload of a {@link #TOPOLOGY_DELTA} reply.
+     * 
+     * @param reportingAddress
+     *            The address for reporting offline servers.
+     * @param delta
+     *            The changes to the node's copy of the network topology.
+     * @return The payload of the reply.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    static byte[] deltaPayload(final InetSocketAddress reportingAddress,
+            final TopologyDelta delta) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        writeAddress(output, reportingAddress);
+        delta.write(output);
+        output.close();
+        return bytes.toByteArray();
+    }
+}
@@ -10,13 +10,19 @@ import java.net.ConnectException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.file.NoSuchFileException;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -35,7 +41,11 @@ import edu.ucar.unidata.sruth.Archive.DistributedTrackerFiles;
 @ThreadSafe
 final class TrackerProxy {
     /**
-     * Gets filter-specific information on the network topology.
+     * Gets filter-specific information on the network topology. After
+     * registration, the filter-specific network topology is pushed by the
+     * tracker via a {@link TopologySubscription}, so getting it doesn't require
+     * communicating with the tracker or reading the distributed topology file
+     * unless the subscription hasn't been established.
      */
     class FilteredProxy {
         /**
@@ -56,16 +66,34 @@ final class TrackerProxy {
          */
         @GuardedBy("this")
         private Topology                rawTopology;
+        /**
+         * The version of the raw network topology that was used to compute the
+         * filter-specific network topology
+         */
+        @GuardedBy("this")
+        private long                    rawVersion;
         /**
          * The filter-specific network topology
          */
         @GuardedBy("TrackerProxy.this")
         private Topology                filteredTopology;
         /**
-         * The socket for communicating with the tracker
+         * The persistent connection to the tracker
+         */
+        @GuardedBy("this")
+        private TrackerClient           trackerClient;
+        /**
+         * The subscription to the filter-specific network topology or
+         * {@code null}
          */
         @GuardedBy("this")
-        private Socket                  socket;
+        private TopologySubscription    subscription;
+        /**
+         * The periodic renewal of the lease on the registration or
+         * {@code null}
+         */
+        @GuardedBy("this")
+        private ScheduledFuture<?>      heartbeat;
         /**
          * Whether or not this instance has been de-registered
          */
@@ -86,25 +114,24 @@ final class TrackerProxy {
         }
 
         /**
-         * Opens the socket. Idempotent.
+         * Returns the connection to the tracker, creating it if necessary.
+         * 
+         * @return The connection to the tracker.
          */
-        private synchronized void openSocket() {
-            if (socket == null) {
-                socket = new Socket();
+        private synchronized TrackerClient getTrackerClient() {
+            if (trackerClient == null) {
+                trackerClient = new TrackerClient(trackerAddress);
             }
+            return trackerClient;
         }
 
         /**
-         * Closes the socket. Idempotent.
+         * Closes the connection to the tracker. Idempotent.
          */
-        private synchronized void closeSocket() {
-            if (socket != null) {
-                try {
-                    socket.close();
-                }
-                catch (final IOException ignored) {
-                }
-                socket = null;
+        private synchronized void closeTrackerClient() {
+            if (trackerClient != null) {
+                trackerClient.close();
+                trackerClient = null;
             }
         }
 
@@ -135,21 +162,86 @@ final class TrackerProxy {
          */
         void register() throws SocketTimeoutException, ConnectException,
                 SocketException, IOException, InvalidMessageException {
+            final TrackerClient client;
             synchronized (this) {
                 if (deregistered) {
                     throw new IllegalStateException();
                 }
-                openSocket();
+                client = getTrackerClient();
+            }
+            setTopology(TrackerProxy.this.getTopologyFromTracker(client,
+                    filter, localServer));
+            TrackerProxy.this.register(clientManager);
+            subscribe();
+            startHeartbeat(client.getLeaseDuration());
+        }
+
+        /**
+         * Starts renewing the lease on the registration if that hasn't already
+         * been done. The lease is renewed three times per lease-duration so
+         * that a lost or late heartbeat doesn't cause it to expire.
+         * 
+         * @param leaseDuration
+         *            The duration of the lease in seconds or zero if the
+         *            registration doesn't expire.
+         */
+        private synchronized void startHeartbeat(final int leaseDuration) {
+            if (heartbeat == null && !deregistered && leaseDuration > 0) {
+                final long period = TimeUnit.SECONDS.toMillis(leaseDuration) / 3;
+                heartbeat = heartbeatTimer.scheduleWithFixedDelay(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                renew();
+                            }
+                        }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Renews the lease on the registration. Registers again if the tracker
+         * no longer knows the local server (e.g., because the lease expired
+         * while the tracker was unreachable).
+         * <p>
+         * This method is potentially slow and uninterruptible.
+         */
+        private void renew() {
+            final TrackerClient client;
+            synchronized (this) {
+                if (deregistered) {
+                    return;
+                }
+                client = getTrackerClient();
             }
             try {
-                socket.connect(trackerAddress, Connection.SO_TIMEOUT);
-                TopologyGetter.execute(filter, localServer, socket,
-                        TrackerProxy.this);
-                setTopology(TrackerProxy.this.getTopology());
-                TrackerProxy.this.register(clientManager);
+                if (!client.renew(filter, localServer,
+                        TrackerProxy.this.localServer.getLoad())) {
+                    logger.debug("Lease expired; registering again: {}",
+                            localServer);
+                    setTopology(TrackerProxy.this.getTopologyFromTracker(
+                            client, filter, localServer));
+                }
+            }
+            catch (final Exception e) {
+                logger.debug("Couldn't renew lease with tracker {}: {}",
+                        trackerAddress, e.toString());
             }
-            finally {
-                closeSocket();
+        }
+
+        /**
+         * Subscribes to the filter-specific network topology if that hasn't
+         * already been done.
+         */
+        private synchronized void subscribe() {
+            if (subscription == null && !deregistered) {
+                subscription = new TopologySubscription(trackerAddress,
+                        filter, new TopologySubscription.Listener() {
+                            @Override
+                            void topologyChanged(final Topology topology) {
+                                clientManager.topologyChanged();
+                            }
+                        });
+                subscription.start();
             }
         }
 
@@ -164,15 +256,26 @@ final class TrackerProxy {
         synchronized void deregister() {
             if (!deregistered) {
                 TrackerProxy.this.deregister(clientManager);
-                closeSocket();
+                if (heartbeat != null) {
+                    heartbeat.cancel(false);
+                    heartbeat = null;
+                }
+                closeTrackerClient();
+                if (subscription != null) {
+                    subscription.close();
+                    subscription = null;
+                }
                 deregistered = true;
             }
         }
 
         /**
-         * Returns the filter-specific information on the network topology.
+         * Returns the filter-specific information on the network topology. The
+         * returned object must not be modified by the caller.
          * <p>
-         * This method is potentially slow and uninterruptible.
+         * This method is potentially slow and uninterruptible if the
+         * subscription to the filter-specific network topology hasn't been
+         * established.
          * 
          * @return the filter-specific information on the network topology
          * @throws SocketException
@@ -182,30 +285,65 @@ final class TrackerProxy {
          *             if an I/O error occurs
          */
         Topology getTopology() throws IOException {
-            openSocket();
-            try {
-                final Topology latestTopology = TrackerProxy.this.getTopology(
-                        filter, localServer, socket);
-                synchronized (this) {
-                    if (rawTopology != latestTopology) {
-                        setTopology(latestTopology);
-                    }
-                    return filteredTopology;
+            final TopologySubscription sub;
+            synchronized (this) {
+                sub = subscription;
+            }
+            if (sub != null) {
+                final Topology view = sub.getTopology();
+                if (view != null) {
+                    return view;
                 }
             }
-            finally {
-                closeSocket();
+            final Topology latestTopology = TrackerProxy.this.getTopology(
+                    filter, localServer, getTrackerClient());
+            synchronized (this) {
+                if (rawTopology != latestTopology
+                        || rawVersion != latestTopology.getVersion()) {
+                    setTopology(latestTopology);
+                }
+                return filteredTopology;
             }
         }
 
+        /**
+         * Returns the parent of the local server in the distribution overlay
+         * that was assigned by the tracker during the last registration or
+         * lease renewal (see {@link Overlay}).
+         *
+         * @return The address of the parent or {@code null} if no parent has
+         *         been assigned.
+         */
+        synchronized InetSocketAddress getParent() {
+            return trackerClient == null
+                    ? null
+                    : trackerClient.getParent();
+        }
+
+        /**
+         * Returns the address of the source-server that was given by the
+         * tracker during the last registration.
+         *
+         * @return The address of the source-server or {@code null} if it
+         *         hasn't been given.
+         */
+        synchronized InetSocketAddress getSource() {
+            return trackerClient == null
+                    ? null
+                    : trackerClient.getSource();
+        }
+
         /**
          * Sets the filter-specific information on the network topology.
-         * 
+         *
          * @param rawTopology
          *            The raw network topology
          */
         private synchronized void setTopology(final Topology rawTopology) {
-            filteredTopology = rawTopology.subset(filter);
+            synchronized (rawTopology) {
+                filteredTopology = rawTopology.subset(filter);
+                rawVersion = rawTopology.getVersion();
+            }
             this.rawTopology = rawTopology;
         }
     }
@@ -214,10 +352,30 @@ final class TrackerProxy {
      * The logger for this class.
      */
     private static Logger                 logger         = Util.getLogger();
+    /**
+     * The timer for renewing the leases on registrations. Renewals are short,
+     * so one daemon thread serves every instance.
+     */
+    private static final ScheduledExecutorService heartbeatTimer = Executors
+                                                                         .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                                                                             @Override
+                                                                             public Thread newThread(
+                                                                                     final Runnable runnable) {
+                                                                                 final Thread thread = new Thread(
+                                                                                         runnable,
+                                                                                         "Tracker-heartbeat");
+                                                                                 thread.setDaemon(true);
+                                                                                 return thread;
+                                                                             }
+                                                                         });
     /**
      * The address of the tracker's socket.
      */
     private final InetSocketAddress       trackerAddress;
+    /**
+     * The local server.
+     */
+    private final Server                  localServer;
     /**
      * Whether or not this instance is closed.
      */
@@ -229,10 +387,10 @@ final class TrackerProxy {
     @GuardedBy("this")
     public int                            currentVersion;
     /**
-     * The raw topology
+     * The raw topologies from the distributed topology files by data-filter
      */
     @GuardedBy("this")
-    private Topology                      rawTopology;
+    private final Map<Filter, Topology>   fileTopologies = new HashMap<Filter, Topology>();
     /**
      * The datagram socket for reporting offline servers.
      */
@@ -267,13 +425,13 @@ final class TrackerProxy {
                                                                  });
 
     /**
-     * Constructs from the address of the tracker, the data-filter to use, and
-     * the address of the local server.
+     * Constructs from the address of the tracker, the local server, and the
+     * manager of tracker-specific administrative files.
      * 
      * @param trackerAddress
      *            The address of the tracker.
      * @param localServer
-     *            The address of the local server.
+     *            The local server, whose load is reported to the tracker.
      * @param distributedTrackerFiles
      *            Manager for tracker-specific administrative files.
      * @throws IOException
@@ -286,16 +444,20 @@ final class TrackerProxy {
      *             if {@code distributedTrackerFiles == null}.
      */
     TrackerProxy(final InetSocketAddress trackerAddress,
-            final InetSocketAddress localServer,
+            final Server localServer,
             final DistributedTrackerFiles distributedTrackerFiles)
             throws IOException {
         if (null == trackerAddress) {
             throw new NullPointerException();
         }
+        if (null == localServer) {
+            throw new NullPointerException();
+        }
         if (null == distributedTrackerFiles) {
             throw new NullPointerException();
         }
         this.trackerAddress = trackerAddress;
+        this.localServer = localServer;
         this.distributedTrackerFiles = distributedTrackerFiles;
         datagramSocket = new DatagramSocket();
         packet = new DatagramPacket(new byte[1], 1); // buffer is irrelevant
@@ -345,65 +507,60 @@ final class TrackerProxy {
     }
 
     /**
-     * Returns the raw state of the network.
-     * 
-     * @return the raw state of the network or {@code null}.
-     */
-    synchronized Topology getTopology() {
-        return rawTopology;
-    }
-
-    /**
-     * Returns the raw state of the network. Communicates with the tracker if
-     * necessary. The actual state is returned -- not a copy.
+     * Returns the state of the network. Communicates with the tracker if
+     * necessary; otherwise, the state from the distributed topology file of
+     * the given filter is returned. Either way, at least the part of the
+     * network that's relevant to the filter is returned. The actual state is
+     * returned -- not a copy.
      * <p>
      * This method is potentially uninterruptible and slow.
      * 
      * @param filter
-     *            The specification of locally-desired data. Only used during
-     *            registration with the tracker.
+     *            The specification of locally-desired data.
      * @param localServer
      *            The Internet socket address of the local server
-     * @param socket
-     *            The socket to use to communicate with the tracker, if
+     * @param trackerClient
+     *            The connection to use to communicate with the tracker, if
      *            necessary
-     * @return The current, raw state of the network.
+     * @return The current state of the network.
      * @throws NoSuchFileException
-     *             if the tracker couldn't be contacted and there's no
-     *             tracker-specific topology file in the archive.
+     *             if the tracker couldn't be contacted and there's no topology
+     *             file of the filter in the archive.
      * @throws IllegalStateException
      *             if {@link #close()} has been called.
      * @throws IOException
      *             if an I/O error occurs.
      */
     private synchronized Topology getTopology(final Filter filter,
-            final InetSocketAddress localServer, final Socket socket)
-            throws IOException {
+            final InetSocketAddress localServer,
+            final TrackerClient trackerClient) throws IOException {
         if (localServer == null) {
             throw new NullPointerException();
         }
         if (isClosed) {
             throw new IllegalStateException("Closed: " + this);
         }
-        if ((rawTopology == null) || !topologyIsBeingReceived()) {
-            if (!setTopologyFromTracker(filter, localServer, socket)) {
-                setTopologyFromFile();
-                logger.warn(
-                        "Using stale network topology file {}; last modified {}",
-                        distributedTrackerFiles.getTopologyArchivePath(),
-                        distributedTrackerFiles.getTopologyArchiveTime());
+        Topology topology = fileTopologies.get(filter);
+        if ((topology == null) || !topologyIsBeingReceived()) {
+            final Topology trackerTopology = tryGetTopologyFromTracker(filter,
+                    localServer, trackerClient);
+            if (trackerTopology != null) {
+                return trackerTopology;
             }
+            topology = getTopologyFromFile(filter);
+            logger.warn("Using stale network topology file {}",
+                    distributedTrackerFiles.getSubsetArchivePath(filter));
         }
         else {
             try {
-                setTopologyFromFile();
+                topology = getTopologyFromFile(filter);
             }
             catch (final NoSuchFileException e) {
                 logger.info("Network topology file, {}, doesn't exist",
-                        distributedTrackerFiles.getTopologyArchivePath());
+                        distributedTrackerFiles.getSubsetArchivePath(filter));
             }
         }
-        return rawTopology;
+        return topology;
     }
 
     /**
@@ -423,8 +580,8 @@ final class TrackerProxy {
     }
 
     /**
-     * Tries to set the tracker-specific network topology information by
-     * contacting the tracker.
+     * Tries to get the part of the network topology that's relevant to a
+     * filter by contacting the tracker.
      * <p>
      * This method is potentially uninterruptible and slow.
      * 
@@ -432,35 +589,74 @@ final class TrackerProxy {
      *            The specification of locally-desired data
      * @param localServer
      *            The Internet socket address of the local server
-     * @param socket
-     *            The socket to use to communicate with the tracker
+     * @param trackerClient
+     *            The connection to use to communicate with the tracker
      * 
-     * @return {@code true} if and only if the attempt was successful.
+     * @return The relevant part of the network topology or {@code null} if
+     *         the attempt was unsuccessful.
      */
-    private synchronized boolean setTopologyFromTracker(final Filter filter,
-            final InetSocketAddress localServer, final Socket socket) {
+    private synchronized Topology tryGetTopologyFromTracker(
+            final Filter filter, final InetSocketAddress localServer,
+            final TrackerClient trackerClient) {
         try {
-            socket.connect(trackerAddress, Connection.SO_TIMEOUT);
-            TopologyGetter.execute(filter, localServer, socket, this);
-            return true;
+            return getTopologyFromTracker(trackerClient, filter, localServer);
         }
         catch (final Exception e) {
             // logger.error("Couldn't set network topology from tracker: "
             // + trackerAddress.toString(), e);
             logger.warn("Couldn't set network topology from tracker: {}: {}",
                     trackerAddress, e);
-            return false;
+            return null;
         }
     }
 
     /**
-     * Sets the raw network topology property. Used by {@link FilteredProxy}.
+     * Gets the part of the network topology that's relevant to a filter by
+     * registering with the tracker. The tracker only sends that part, so it
+     * doesn't become the raw network topology of this instance.
+     * <p>
+     * This method is potentially uninterruptible and slow.
+     * 
+     * @param trackerClient
+     *            The connection to the tracker
+     * @param filter
+     *            The specification of locally-desired data
+     * @param localServer
+     *            The Internet socket address of the local server
+     * @return The relevant part of the network topology.
+     * @throws InvalidMessageException
+     *             if the response from the tracker is invalid
+     * @throws SocketException
+     *             if the connection is closed by another thread
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    private Topology getTopologyFromTracker(final TrackerClient trackerClient,
+            final Filter filter, final InetSocketAddress localServer)
+            throws InvalidMessageException, IOException {
+        final Topology topology = trackerClient.register(filter, localServer,
+                this.localServer.getLoad());
+        setReportingAddress(trackerClient.getReportingAddress());
+        return topology;
+    }
+
+    /**
+     * Sets the raw network topology property of a filter. Used by
+     * {@link TopologyGetter}.
      * 
+     * @param filter
+     *            The specification of locally-desired data
      * @param topology
      *            The network topology or {@code null}
      */
-    synchronized void setRawTopology(final Topology topology) {
-        this.rawTopology = topology;
+    synchronized void setRawTopology(final Filter filter,
+            final Topology topology) {
+        if (topology == null) {
+            fileTopologies.remove(filter);
+        }
+        else {
+            fileTopologies.put(filter, topology);
+        }
     }
 
     /**
@@ -481,24 +677,22 @@ final class TrackerProxy {
     }
 
     /**
-     * Ensures that the tracker-specific network topology information is current
-     * by updating it from the external file.
+     * Ensures that the tracker-specific network topology information of a
+     * filter is current by updating it from the external file of the filter.
      * 
+     * @param filter
+     *            The specification of locally-desired data
+     * @return The network topology from the external file.
      * @throws NoSuchFileException
-     *             if the external file doesn't exist.
-     * @throws NoSuchFileException
-     *             if the tracker-specific network topology file doesn't exist
-     *             in the archive.
+     *             if the external file doesn't exist in the archive.
      * @throws IOException
      *             if a severe I/O error occurs.
      */
-    private synchronized void setTopologyFromFile() throws IOException {
-        final Topology currFilterServerMap = distributedTrackerFiles
-                .getTopology();
-        if (currFilterServerMap != rawTopology) {
-            // new filter/server map
-            this.rawTopology = currFilterServerMap;
-        }
+    private synchronized Topology getTopologyFromFile(final Filter filter)
+            throws IOException {
+        final Topology topology = distributedTrackerFiles.getTopology(filter);
+        fileTopologies.put(filter, topology);
+        return topology;
     }
 
     /**
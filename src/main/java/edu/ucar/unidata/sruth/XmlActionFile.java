@@ -17,6 +17,7 @@ import java.util.regex.Pattern;
 import net.jcip.annotations.ThreadSafe;
 
 import org.jdom.Attribute;
+import org.jdom.DataConversionException;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -29,6 +30,12 @@ import org.jdom.input.SAXBuilder;
  */
 @ThreadSafe
 final class XmlActionFile {
+    /**
+     * The default maximum number of data-products waiting for an isolated
+     * action.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+
     /**
      * Returns the {@link Processor} corresponding to XML input.
      * 
@@ -160,6 +167,70 @@ final class XmlActionFile {
         return attr.getValue();
     }
 
+    /**
+     * Returns the value of an optional integer attribute of an element.
+     * 
+     * @param elt
+     *            The element.
+     * @param name
+     *            The name of the attribute.
+     * @param defaultValue
+     *            The value to return if the attribute doesn't exist.
+     * @return The value of the attribute or {@code defaultValue}.
+     * @throws IOException
+     *             if the attribute isn't an integer.
+     */
+    private static int getIntAttribute(final Element elt, final String name,
+            final int defaultValue) throws IOException {
+        final Attribute attr = elt.getAttribute(name);
+        if (attr == null) {
+            return defaultValue;
+        }
+        try {
+            return attr.getIntValue();
+        }
+        catch (final DataConversionException e) {
+            throw new IOException("Invalid \"" + name + "\" attribute: \""
+                    + attr.getValue() + "\"", e);
+        }
+    }
+
+    /**
+     * Adds an action to a processor. If the action's element has a
+     * "concurrency" or "queue" attribute, then the action is isolated in a
+     * {@link Bulkhead} that executes it on at most "concurrency" threads
+     * (default 1) with at most "queue" waiting data-products (default
+     * {@value #DEFAULT_QUEUE_SIZE}).
+     * 
+     * @param elt
+     *            The element of the action.
+     * @param pattern
+     *            The pattern that selects data-products for the action.
+     * @param action
+     *            The action.
+     * @param processor
+     *            The processor of data-products.
+     * @throws IOException
+     *             if the "concurrency" or "queue" attribute is invalid.
+     */
+    private static void addAction(final Element elt, final Pattern pattern,
+            Action action, final Processor processor) throws IOException {
+        if (elt.getAttribute("concurrency") != null
+                || elt.getAttribute("queue") != null) {
+            final int concurrency = getIntAttribute(elt, "concurrency", 1);
+            final int queueSize = getIntAttribute(elt, "queue",
+                    DEFAULT_QUEUE_SIZE);
+            try {
+                action = new Bulkhead(action, concurrency, queueSize);
+            }
+            catch (final IllegalArgumentException e) {
+                throw new IOException("Invalid \"" + elt.getName()
+                        + "\" element", e);
+            }
+        }
+        processor.add(pattern, action);
+    }
+
     /**
      * Processes an "entry" element.
      * 
@@ -181,11 +252,16 @@ final class XmlActionFile {
             else if (eltName.equalsIgnoreCase("decode")) {
                 processDecodeElt(elt, pattern, processor);
             }
+            else if (eltName.equalsIgnoreCase("append")) {
+                processAppendElt(elt, pattern, processor);
+            }
         }
     }
 
     /**
-     * Processes a "file" element.
+     * Processes a "file" element. If the element has a true "link" attribute,
+     * then data-products are hard-linked rather than copied when possible (see
+     * {@link FileAction}).
      * 
      * @param fileElt
      *            The "file" element.
@@ -200,12 +276,55 @@ final class XmlActionFile {
             final Pattern pattern, final Processor processor)
             throws IOException {
         final String path = getAttribute(fileElt, "path");
-        final Action action = new FileAction(path);
-        processor.add(pattern, action);
+        final Attribute attr = fileElt.getAttribute("link");
+        boolean link = false;
+        if (attr != null) {
+            try {
+                link = attr.getBooleanValue();
+            }
+            catch (final DataConversionException e) {
+                throw new IOException("Invalid \"link\" attribute: \""
+                        + attr.getValue() + "\"", e);
+            }
+        }
+        final Action action = new FileAction(path, link);
+        addAction(fileElt, pattern, action, processor);
+    }
+
+    /**
+     * Processes an "append" element. The optional "files" attribute is the
+     * maximum number of destination files to keep open (see
+     * {@link AppendAction}).
+     * 
+     * @param appendElt
+     *            The "append" element.
+     * @param pattern
+     *            The pattern that selects data-products to be appended.
+     * @param processor
+     *            The processor of data-products.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void processAppendElt(final Element appendElt,
+            final Pattern pattern, final Processor processor)
+            throws IOException {
+        final String path = getAttribute(appendElt, "path");
+        final int maxOpen = getIntAttribute(appendElt, "files",
+                AppendAction.DEFAULT_MAX_OPEN);
+        final Action action;
+        try {
+            action = new AppendAction(path, maxOpen);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid \"append\" element", e);
+        }
+        addAction(appendElt, pattern, action, processor);
     }
 
     /**
-     * Processes a "decode" element.
+     * Processes a "decode" element. If the element has a positive "workers"
+     * attribute, then that many long-lived decoder processes are used instead
+     * of one process per data-product (see {@link DecodeAction}).
      * 
      * @param decodeElt
      *            The "decode" element.
@@ -230,7 +349,14 @@ final class XmlActionFile {
                 command.add(string);
             }
         }
-        final Action action = new DecodeAction(command);
-        processor.add(pattern, action);
+        final int processCount = getIntAttribute(decodeElt, "workers", 0);
+        final Action action;
+        try {
+            action = new DecodeAction(command, processCount);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid \"decode\" element", e);
+        }
+        addAction(decodeElt, pattern, action, processor);
     }
 }
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link Action} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ActionTest {
+    private static String expand(final String template, final String regex,
+            final String input) {
+        final Matcher matcher = Pattern.compile(regex).matcher(input);
+        assertTrue(matcher.matches());
+        return new Action.Template(template).expand(matcher);
+    }
+
+    @Test
+    public final void testTemplate() {
+        assertEquals("/data/NEXRAD/KFTG/N0R.bz2", expand(
+                "/data/NEXRAD/$1/$2.bz2", "radar/(\\w+)/(\\w+)", "radar/KFTG/N0R"));
+        assertEquals("no references", expand("no references", "(.*)", "x"));
+        assertEquals("x-x", expand("$1-$1", "(.*)", "x"));
+        // Word-character suffix and non-existent groups are literal
+        assertEquals("$1a", expand("$1a", "(.*)", "x"));
+        assertEquals("$2 $0 $", expand("$2 $0 $", "(.*)", "x"));
+        // A group that didn't participate in the match is empty
+        assertEquals("a", expand("a$1", "(b)?a", "a"));
+    }
+
+    /**
+     * Pins the escaping of a reference by a preceding backslash, which the
+     * former implementation didn't honor: it expanded "\$1" to "\x". The
+     * backslash is kept and there's no way to escape the backslash itself.
+     */
+    @Test
+    public final void testEscape() {
+        assertEquals("\\$1", expand("\\$1", "(.*)", "x"));
+        assertEquals("a\\$1-x", expand("a\\$1-$1", "(.*)", "x"));
+        assertEquals("\\\\$1", expand("\\\\$1", "(.*)", "x"));
+        assertEquals("\\$12", expand("\\$12", "(.*)", "x"));
+    }
+}
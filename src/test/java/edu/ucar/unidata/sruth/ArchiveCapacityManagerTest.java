@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ArchiveCapacityManager} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ArchiveCapacityManagerTest {
+    private static final ArchivePath ADMIN_DIR = new ArchivePath(
+                                                       Util.PACKAGE_NAME);
+
+    private final List<ArchivePath>  evicted   = new LinkedList<ArchivePath>();
+    private ArchiveCapacityManager   manager;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new ArchiveCapacityManager(ADMIN_DIR, 1000, 600,
+                new ArchiveCapacityManager.Evictor() {
+                    @Override
+                    void evict(final ArchivePath archivePath)
+                            throws IOException {
+                        synchronized (evicted) {
+                            evicted.add(archivePath);
+                            evicted.notifyAll();
+                        }
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    private void waitForEvictions(final int count) throws InterruptedException {
+        synchronized (evicted) {
+            final long end = System.currentTimeMillis() + 5000;
+            while (evicted.size() < count && System.currentTimeMillis() < end) {
+                evicted.wait(100);
+            }
+        }
+    }
+
+    @Test
+    public final void testBelowHighWater() {
+        manager.added(new ArchivePath("a"), 400);
+        manager.added(new ArchivePath("b"), 400);
+        assertEquals(800, manager.getTotalSize());
+        manager.removed(new ArchivePath("a"));
+        assertEquals(400, manager.getTotalSize());
+        manager.added(new ArchivePath("b"), 100);
+        assertEquals(100, manager.getTotalSize());
+        assertEquals(0, manager.getEvictedCount());
+    }
+
+    @Test
+    public final void testLeastRecentlyUsedEvicted()
+            throws InterruptedException {
+        final ArchivePath a = new ArchivePath("a");
+        final ArchivePath b = new ArchivePath("b");
+        final ArchivePath c = new ArchivePath("c");
+        manager.added(a, 300);
+        manager.added(b, 300);
+        manager.added(c, 300);
+        manager.accessed(a);
+        manager.added(new ArchivePath("d"), 300);
+        waitForEvictions(2);
+        synchronized (evicted) {
+            assertEquals(2, evicted.size());
+            assertTrue(evicted.contains(b));
+            assertTrue(evicted.contains(c));
+            assertFalse(evicted.contains(a));
+        }
+        assertEquals(600, manager.getTotalSize());
+    }
+
+    @Test
+    public final void testAdminFilesIgnored() throws InterruptedException {
+        manager.added(ADMIN_DIR.resolve("topology"), 5000);
+        assertEquals(0, manager.getTotalSize());
+        manager.added(new ArchivePath("a"), 1001);
+        waitForEvictions(1);
+        synchronized (evicted) {
+            assertEquals(1, evicted.size());
+            assertFalse(evicted.get(0).startsWith(ADMIN_DIR));
+        }
+    }
+}
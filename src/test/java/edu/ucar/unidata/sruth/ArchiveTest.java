@@ -9,6 +9,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -16,10 +17,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.After;
@@ -28,14 +38,19 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 import edu.ucar.unidata.sruth.Archive.DistributedTrackerFiles;
 
 /**
- * Tests the Archive class.
+ * Tests the Archive class. The tests are run against every type of storage
+ * engine so that their throughputs can be compared.
  * 
  * @author Steven R. Emmerson
  */
+@RunWith(Parameterized.class)
 public class ArchiveTest {
     private class Stopwatch {
         private long startTime;
@@ -64,10 +79,26 @@ public class ArchiveTest {
     private static final long           SEED            = Long.MAX_VALUE;                         // System.currentTimeMillis();
     private static final ArchiveTime    archiveTime     = new ArchiveTime();
 
+    private final ArchiveStore.Type     storeType;
+    private final Path                  testDir;
     private Random                      random;
     private Archive                     archive;
     private final LinkedList<PieceSpec> pieceSpecs      = new LinkedList<PieceSpec>();
 
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> storeTypes() {
+        final Collection<Object[]> storeTypes = new ArrayList<Object[]>();
+        for (final ArchiveStore.Type storeType : ArchiveStore.Type.values()) {
+            storeTypes.add(new Object[] { storeType });
+        }
+        return storeTypes;
+    }
+
+    public ArchiveTest(final ArchiveStore.Type storeType) {
+        this.storeType = storeType;
+        testDir = TESTDIR.resolve(storeType.name());
+    }
+
     private static void removeTestDirectory() throws IOException,
             InterruptedException {
         Assert.assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
@@ -94,7 +125,8 @@ public class ArchiveTest {
      */
     @Before
     public void setUp() throws Exception {
-        archive = new Archive(TESTDIR, FILE_COUNT / 4);
+        archive = new Archive(Collections.singletonList(testDir),
+                FILE_COUNT / 4, 0, 0, storeType);
     }
 
     /**
@@ -177,16 +209,58 @@ public class ArchiveTest {
         ois.close();
     }
 
-    private final void testToplogyDistribution() throws InterruptedException {
+    private final void testToplogyDistribution() throws InterruptedException,
+            IOException {
         final Topology topology = new Topology();
+        final Filter feed = Filter.getInstance("feed/*");
+        final Filter other = Filter.getInstance("other/*");
+        final InetSocketAddress feedServer = new InetSocketAddress(38820);
+        final InetSocketAddress otherServer = new InetSocketAddress(38821);
+        topology.add(feed, feedServer);
+        topology.add(other, otherServer);
         final DistributedTrackerFiles admin = archive
                 .getDistributedTrackerFiles(new InetSocketAddress(
                         Tracker.IANA_PORT));
+        topology.add(admin.getFilter(), otherServer);
         admin.distribute(topology);
         admin.distribute(topology);
         Thread.sleep(1000);
-        assertTrue(admin.getTopologyArchivePath().getAbsolutePath(TESTDIR)
+        // Each filter has its own file with only its part of the topology
+        assertTrue(admin.getSubsetArchivePath(feed).getAbsolutePath(testDir)
                 .toFile().exists());
+        assertEquals(Collections.singleton(feedServer),
+                admin.getTopology(feed).getServers());
+        assertEquals(Collections.singleton(otherServer),
+                admin.getTopology(other).getServers());
+        // A filter without a file gets nothing
+        try {
+            admin.getTopology(Filter.getInstance("unknown/*"));
+            fail();
+        }
+        catch (final NoSuchFileException expected) {
+        }
+        // The tracker's own files don't get a topology file
+        assertFalse(admin.getSubsetArchivePath(admin.getFilter())
+                .getAbsolutePath(testDir).toFile().exists());
+
+        // A subscriber receives only the tracker files that it needs
+        final Predicate predicate = admin.addSubscription(new Predicate()
+                .add(feed));
+        assertTrue(predicate.matches(new FileInfo(new FileId(admin
+                .getSubsetArchivePath(feed)), 1)));
+        assertFalse(predicate.matches(new FileInfo(new FileId(admin
+                .getSubsetArchivePath(other)), 1)));
+        // Including every later version of the topology file
+        assertFalse(predicate.matchesOnly(new FileInfo(new FileId(admin
+                .getSubsetArchivePath(feed)), 1)));
+
+        // The reporting address is also at its former location
+        final InetSocketAddress reportingAddress = new InetSocketAddress(
+                38822);
+        admin.distribute(reportingAddress);
+        assertEquals(reportingAddress, admin.getReportingAddress());
+        assertTrue(testDir.resolve(admin.getFilter().getGlob())
+                .resolve("reportingAddress").toFile().exists());
     }
 
     /**
@@ -211,7 +285,7 @@ public class ArchiveTest {
             pieceCount++;
             byteCount += piece.getSize();
         }
-        System.out.println("testPutPiece():");
+        System.out.println("testPutPiece(" + storeType + "):");
         System.out.println("    Number of");
         System.out.println("      Files  = " + FILE_COUNT);
         System.out.println("      Pieces = " + pieceCount);
@@ -249,7 +323,7 @@ public class ArchiveTest {
             byteCount += savedPiece.getSize();
             assertEquals(piece, savedPiece);
         }
-        System.out.println("testGetPiece():");
+        System.out.println("testGetPiece(" + storeType + "):");
         System.out.println("    Number of");
         System.out.println("      Files  = " + FILE_COUNT);
         System.out.println("      Pieces = " + pieceCount);
@@ -305,7 +379,81 @@ public class ArchiveTest {
         ;
         final Consumer consumer = new Consumer();
         archive.walkArchive(consumer, Filter.EVERYTHING);
-        assertEquals(FILE_COUNT + 1, consumer.fileCount); // + topology-file
+        // + the topology-files of the two filters and the reporting-address
+        // file at both of its locations
+        assertEquals(FILE_COUNT + 4, consumer.fileCount);
+    }
+
+    /**
+     * Test method for
+     * {@link Archive#replay(ArchiveTime, DataProductListener)}.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private final void testReplay() throws IOException, InterruptedException {
+        final Stopwatch stopwatch = new Stopwatch();
+        final int[] count = new int[1];
+        stopwatch.start();
+        final long replayed = archive.replay(ArchiveTime.BEGINNING_OF_TIME,
+                new DataProductListener() {
+                    @Override
+                    public void process(final DataProduct dataProduct) {
+                        count[0]++;
+                    }
+                });
+        stopwatch.stop();
+        assertEquals(FILE_COUNT, replayed); // no topology-file
+        assertEquals(FILE_COUNT, count[0]);
+        assertEquals(0, archive.replay(archiveTime, new DataProductListener() {
+            @Override
+            public void process(final DataProduct dataProduct) {
+                count[0]++;
+            }
+        }));
+        System.out.println("testReplay(" + storeType + "): " + replayed
+                + " data-products in " + stopwatch.getElapsedTime() + " s");
+    }
+
+    /**
+     * Tests that a missing index by archive-time is rebuilt from the existing
+     * data-products in the background when the archive is opened, and only
+     * once.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private final void testReplayWithoutIndex() throws IOException,
+            InterruptedException {
+        if (storeType != ArchiveStore.Type.FILE_TREE) {
+            // The data-products don't outlive the archive
+            return;
+        }
+        final Path indexDir = archive.getStateDir().resolve("timeIndex");
+        archive.close();
+        Assert.assertEquals(0, Misc.system("rm", "-rf", indexDir.toString()));
+        final DataProductListener listener = new DataProductListener() {
+            @Override
+            public void process(final DataProduct dataProduct) {
+            }
+        };
+        archive = new Archive(Collections.singletonList(testDir),
+                FILE_COUNT / 4, 0, 0, storeType);
+        archive.awaitTimeIndex();
+        assertEquals(FILE_COUNT, archive.replay(ArchiveTime.BEGINNING_OF_TIME,
+                listener));
+        assertTrue(Files.exists(indexDir.resolve("initialized")));
+        // The index isn't rebuilt, so there are no duplicate entries
+        archive.close();
+        archive = new Archive(Collections.singletonList(testDir),
+                FILE_COUNT / 4, 0, 0, storeType);
+        archive.awaitTimeIndex();
+        assertEquals(FILE_COUNT, archive.replay(ArchiveTime.BEGINNING_OF_TIME,
+                listener));
     }
 
     /**
@@ -345,6 +493,59 @@ public class ArchiveTest {
         testGetPiece();
         testExists();
         testWalkArchive();
+        testReplay();
+        testReplayWithoutIndex();
         testRemove();
     }
+
+    @Test
+    public final void testContents() throws FileInfoMismatchException,
+            IOException, InterruptedException {
+        final List<DataProduct> products = new ArrayList<DataProduct>();
+        archive.setMemoryFilter(Filter.getInstance("memory/*"));
+        archive.addDataProductListener(new DataProductListener() {
+            @Override
+            public void process(final DataProduct dataProduct) {
+                products.add(dataProduct);
+            }
+        });
+        random = new Random(SEED);
+        final byte[] bytes = new byte[FileInfo.getDefaultPieceSize() * 2 + 1];
+        random.nextBytes(bytes);
+        for (final String name : new String[] { "memory/product",
+                "disk/product" }) {
+            final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                    name), archiveTime), bytes.length);
+            for (int i = 0; i < fileInfo.getPieceCount(); i++) {
+                final PieceSpec pieceSpec = new PieceSpec(fileInfo, i);
+                final int offset = (int) pieceSpec.getOffset();
+                archive.putPiece(new Piece(pieceSpec, Arrays.copyOfRange(
+                        bytes, offset, offset + pieceSpec.getSize())));
+            }
+        }
+        assertEquals(2, products.size());
+        for (final DataProduct product : products) {
+            assertEquals(
+                    storeType != ArchiveStore.Type.FILE_TREE
+                            || product.getFileInfo().getPath()
+                                    .startsWith(new ArchivePath("memory")),
+                    product.hasContents());
+            final ByteBuffer contents = product.getContents();
+            assertTrue(contents.isReadOnly());
+            final byte[] actual = new byte[contents.remaining()];
+            contents.get(actual);
+            assertTrue(Arrays.equals(bytes, actual));
+            final SeekableByteChannel channel = product.getReadonlyChannel();
+            try {
+                assertEquals(bytes.length, channel.size());
+            }
+            finally {
+                channel.close();
+            }
+        }
+        assertFalse(Files.exists(testDir.resolve("memory")));
+        assertEquals(
+                storeType == ArchiveStore.Type.FILE_TREE,
+                Files.exists(testDir.resolve("disk")));
+    }
 }
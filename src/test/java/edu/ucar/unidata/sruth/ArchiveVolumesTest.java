@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ArchiveVolumes} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ArchiveVolumesTest {
+    private static final ArchivePath ADMIN_DIR = new ArchivePath(
+                                                       Util.PACKAGE_NAME);
+    private static final Path        HIDDEN_DIR = Paths.get(".sruth");
+    private static final Path        VOL0      = Paths.get("/vol0/archive");
+    private static final Path        VOL1      = Paths.get("/vol1/archive");
+    private static final Path        VOL2      = Paths.get("/vol2/archive");
+
+    private final ArchiveVolumes     volumes   = new ArchiveVolumes(
+                                                       Arrays.asList(VOL0,
+                                                               VOL1, VOL2),
+                                                       ADMIN_DIR, HIDDEN_DIR);
+
+    @Test
+    public final void testStriping() {
+        final Set<Path> used = new HashSet<Path>();
+        for (int i = 0; i < 100; i++) {
+            final ArchivePath archivePath = new ArchivePath("dir/file" + i);
+            final Path rootDir = volumes.getRootDir(archivePath);
+            assertEquals(rootDir, volumes.getRootDir(archivePath));
+            final Path path = volumes.resolve(archivePath);
+            assertTrue(path.startsWith(rootDir));
+            assertEquals(archivePath, volumes.relativize(path));
+            used.add(rootDir);
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public final void testAdminFilesOnPrimary() {
+        assertEquals(VOL0, volumes.getPrimary());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(VOL0,
+                    volumes.getRootDir(ADMIN_DIR.resolve("file" + i)));
+        }
+    }
+
+    @Test
+    public final void testChangedVolumes() throws IOException,
+            InterruptedException {
+        final Path testDir = Files.createTempDirectory(getClass()
+                .getSimpleName());
+        try {
+            final Path vol0 = testDir.resolve("vol0");
+            final Path vol1 = testDir.resolve("vol1");
+            final Path vol2 = testDir.resolve("vol2");
+            final ArchiveVolumes before = new ArchiveVolumes(Arrays.asList(
+                    vol0, vol1), ADMIN_DIR, HIDDEN_DIR);
+            final Map<ArchivePath, Path> rootDirs = new HashMap<ArchivePath, Path>();
+            for (int i = 0; i < 100; i++) {
+                final ArchivePath archivePath = new ArchivePath("dir/file" + i);
+                final Path path = before.resolve(archivePath);
+                Files.createDirectories(path.getParent());
+                Files.createFile(path);
+                rootDirs.put(archivePath, before.getRootDir(archivePath));
+            }
+            // Incomplete files are hidden
+            final Map<ArchivePath, Path> hiddenRootDirs = new HashMap<ArchivePath, Path>();
+            for (int i = 0; i < 100; i++) {
+                final ArchivePath archivePath = new ArchivePath("hidden/file"
+                        + i);
+                final Path rootDir = before.getRootDir(archivePath);
+                final Path path = rootDir.resolve(HIDDEN_DIR).resolve(
+                        archivePath.getPath());
+                Files.createDirectories(path.getParent());
+                Files.createFile(path);
+                hiddenRootDirs.put(archivePath, rootDir);
+            }
+            // Adding a volume relocates only the files that it wins
+            final ArchiveVolumes after = new ArchiveVolumes(Arrays.asList(
+                    vol0, vol1, vol2), ADMIN_DIR, HIDDEN_DIR);
+            int moved = 0;
+            for (final Map.Entry<ArchivePath, Path> entry : rootDirs
+                    .entrySet()) {
+                final Path placement = after.getPlacement(entry.getKey());
+                if (placement.equals(vol2)) {
+                    moved++;
+                }
+                else {
+                    assertEquals(entry.getValue(), placement);
+                }
+                // But existing files are still found where they are
+                assertEquals(entry.getValue(), after.getRootDir(entry
+                        .getKey()));
+            }
+            assertTrue(moved > 0 && moved < 100);
+            for (final Map.Entry<ArchivePath, Path> entry : hiddenRootDirs
+                    .entrySet()) {
+                assertEquals(entry.getValue(), after.getRootDir(entry
+                        .getKey()));
+            }
+            // New files are placed on the new volume, too
+            final Set<Path> used = new HashSet<Path>();
+            for (int i = 100; i < 200; i++) {
+                used.add(after.getRootDir(new ArchivePath("dir/file" + i)));
+            }
+            assertTrue(used.contains(vol2));
+            // The first two volumes are found after reordering, too
+            final ArchiveVolumes reordered = new ArchiveVolumes(Arrays.asList(
+                    vol2, vol1, vol0), ADMIN_DIR, HIDDEN_DIR);
+            for (final Map.Entry<ArchivePath, Path> entry : rootDirs
+                    .entrySet()) {
+                assertEquals(entry.getValue(), reordered.getRootDir(entry
+                        .getKey()));
+            }
+            // The volume of a used file is remembered
+            for (final Map.Entry<ArchivePath, Path> entry : rootDirs
+                    .entrySet()) {
+                Files.delete(entry.getKey().getAbsolutePath(entry.getValue()));
+                assertEquals(entry.getValue(), after.getRootDir(entry
+                        .getKey()));
+            }
+        }
+        finally {
+            Misc.system("rm", "-rf", testDir.toString());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testOverlapping() {
+        new ArchiveVolumes(Arrays.asList(VOL0, VOL0.resolve("sub")),
+                ADMIN_DIR, HIDDEN_DIR);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testNotInArchive() {
+        volumes.relativize(Paths.get("/elsewhere/file"));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ArchiveWriter} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ArchiveWriterTest {
+    private static final Path TESTDIR     = Paths.get(
+                                                  System.getProperty("java.io.tmpdir"))
+                                                  .resolve(
+                                                          ArchiveWriterTest.class
+                                                                  .getSimpleName());
+    private static final int  FILE_COUNT  = 16;
+    private static final int  PIECE_COUNT = 8;
+    private static final int  PIECE_SIZE  = 1000;
+
+    private Archive           archive;
+
+    @Before
+    public void setUp() throws Exception {
+        Assert.assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        archive = new Archive(Collections.singletonList(TESTDIR), FILE_COUNT,
+                0, 0, ArchiveStore.Type.FILE_TREE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        archive.close();
+    }
+
+    @Test
+    public final void testWrite() throws Exception {
+        final CountDownLatch written = new CountDownLatch(FILE_COUNT
+                * PIECE_COUNT);
+        final AtomicInteger completeCount = new AtomicInteger(0);
+        final AtomicInteger failureCount = new AtomicInteger(0);
+        final ArchiveWriter<Integer> writer = new ArchiveWriter<Integer>(
+                archive, new ArchiveWriter.Listener<Integer>() {
+                    @Override
+                    void written(final Integer context, final Piece piece,
+                            final boolean isComplete) {
+                        if (isComplete) {
+                            completeCount.incrementAndGet();
+                        }
+                        written.countDown();
+                    }
+
+                    @Override
+                    void failed(final Integer context, final Piece piece,
+                            final Exception e) {
+                        failureCount.incrementAndGet();
+                        written.countDown();
+                    }
+                }, 2, 4);
+        final ArchiveTime time = new ArchiveTime();
+        final FileInfo[] fileInfos = new FileInfo[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final FileId fileId = new FileId(new ArchivePath("file" + i), time);
+            fileInfos[i] = new FileInfo(fileId, PIECE_COUNT * PIECE_SIZE,
+                    PIECE_SIZE);
+        }
+        // Interleave the pieces of the files, in reverse order
+        for (int j = PIECE_COUNT - 1; j >= 0; j--) {
+            for (int i = 0; i < FILE_COUNT; i++) {
+                final byte[] data = new byte[PIECE_SIZE];
+                data[0] = (byte) j;
+                writer.write(i, new Piece(new PieceSpec(fileInfos[i], j), data));
+            }
+        }
+        assertTrue(written.await(60, TimeUnit.SECONDS));
+        assertEquals(0, failureCount.get());
+        assertEquals(FILE_COUNT, completeCount.get());
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(FILE_COUNT * PIECE_COUNT, writer.getWrittenCount());
+        assertTrue(writer.getMaxLatency() >= writer.getMeanLatency());
+        for (int i = 0; i < FILE_COUNT; i++) {
+            for (int j = 0; j < PIECE_COUNT; j++) {
+                final Piece piece = archive.getPiece(new PieceSpec(
+                        fileInfos[i], j));
+                final byte[] expected = new byte[PIECE_SIZE];
+                expected[0] = (byte) j;
+                assertArrayEquals(expected, piece.getData());
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public final void testListenerFailureAndClose() throws Exception {
+        final AtomicInteger writtenCount = new AtomicInteger(0);
+        final AtomicInteger failureCount = new AtomicInteger(0);
+        final ArchiveWriter<Integer> writer = new ArchiveWriter<Integer>(
+                archive, new ArchiveWriter.Listener<Integer>() {
+                    @Override
+                    void written(final Integer context, final Piece piece,
+                            final boolean isComplete) {
+                        writtenCount.incrementAndGet();
+                        throw new IllegalStateException("Simulated failure");
+                    }
+
+                    @Override
+                    void failed(final Integer context, final Piece piece,
+                            final Exception e) {
+                        assertTrue(e instanceof IllegalStateException);
+                        failureCount.incrementAndGet();
+                    }
+                }, 1, 1);
+        final ArchiveTime time = new ArchiveTime();
+        // More pieces than the queue holds, so the worker must survive
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final FileId fileId = new FileId(new ArchivePath("file" + i), time);
+            final FileInfo fileInfo = new FileInfo(fileId, PIECE_SIZE,
+                    PIECE_SIZE);
+            writer.write(i, new Piece(new PieceSpec(fileInfo, 0),
+                    new byte[PIECE_SIZE]));
+        }
+        // Closing writes the queued pieces
+        writer.close();
+        assertEquals(FILE_COUNT, writtenCount.get());
+        assertEquals(FILE_COUNT, failureCount.get());
+        assertEquals(0, writer.getQueueDepth());
+        try {
+            writer.write(0, new Piece(new PieceSpec(new FileInfo(new FileId(
+                    new ArchivePath("late"), time), PIECE_SIZE, PIECE_SIZE),
+                    0), new byte[PIECE_SIZE]));
+            Assert.fail();
+        }
+        catch (final IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link DecodeAction} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class DecodeActionTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("DecodeActionTest");
+    }
+
+    /**
+     * Returns a data-product that only exists in memory.
+     */
+    private DataProduct newProduct(final byte[] data) {
+        return new DataProduct(dir.resolve("archive"), new FileInfo(
+                new FileId(new ArchivePath("memory/product")), data.length),
+                ByteBuffer.wrap(data));
+    }
+
+    private static Matcher matcher(final DataProduct product) {
+        final Matcher matcher = product.matcher(Pattern.compile(".*"));
+        assertTrue(matcher.matches());
+        return matcher;
+    }
+
+    @Test
+    public void testInMemoryProduct() throws Exception {
+        final Path output = dir.resolve("output");
+        final byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 'x');
+        final DataProduct product = newProduct(data);
+        final DecodeAction action = new DecodeAction(new String[] { "sh",
+                "-c", "cat > " + output });
+        action.execute(matcher(product), product);
+        assertArrayEquals(data, Files.readAllBytes(output));
+    }
+
+    @Test
+    public void testInMemoryProductToLongLivedDecoder() throws Exception {
+        final Path output = dir.resolve("output");
+        final byte[] data = "data".getBytes("US-ASCII");
+        final DataProduct product = newProduct(data);
+        final DecodeAction action = new DecodeAction(new String[] { "sh",
+                "-c", "cat > " + output }, 1);
+        action.execute(matcher(product), product);
+        action.close();
+        assertEquals(data.length + " memory/product\ndata", new String(Files
+                .readAllBytes(output), "US-ASCII"));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link LogArchiveStore} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class LogArchiveStoreTest {
+    private static final Path TESTDIR      = Paths.get(
+                                                   System.getProperty("java.io.tmpdir"))
+                                                   .resolve(
+                                                           LogArchiveStoreTest.class
+                                                                   .getSimpleName());
+    private static final int  PRODUCT_SIZE = 100;
+
+    private LogArchiveStore   store;
+
+    @Before
+    public void setUp() throws Exception {
+        Assert.assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        store = new LogArchiveStore(TESTDIR, 4 * PRODUCT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private static Piece newPiece(final int i) {
+        final FileId fileId = new FileId(new ArchivePath("product" + i),
+                new ArchiveTime());
+        final FileInfo fileInfo = new FileInfo(fileId, PRODUCT_SIZE);
+        final byte[] data = new byte[PRODUCT_SIZE];
+        data[0] = (byte) i;
+        return new Piece(new PieceSpec(fileInfo, 0), data);
+    }
+
+    private void put(final Piece piece) throws Exception {
+        final ArchiveStore.SegmentedFile file = store.open(
+                piece.getFileInfo(), false);
+        file.lock();
+        try {
+            assertTrue(file.putPieces(Collections.singletonList(piece)));
+        }
+        finally {
+            file.unlock();
+        }
+    }
+
+    @Test
+    public final void testPutAndGet() throws Exception {
+        final Piece piece = newPiece(1);
+        assertNull(store.open(piece.getFileInfo(), true));
+        put(piece);
+        final ArchiveStore.SegmentedFile file = store.open(
+                piece.getFileInfo(), true);
+        file.lock();
+        try {
+            assertTrue(file.hasPiece(0));
+            assertArrayEquals(piece.getData(), file.getPiece(piece.getInfo())
+                    .getData());
+        }
+        finally {
+            file.unlock();
+        }
+        store.delete(piece.getArchivePath());
+        assertNull(store.open(piece.getFileInfo(), true));
+    }
+
+    @Test
+    public final void testSegmentReuse() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            put(newPiece(i));
+        }
+        assertEquals(2, store.getSegmentCount());
+        for (int i = 0; i < 4; i++) {
+            store.delete(newPiece(i).getArchivePath());
+        }
+        for (int i = 8; i < 12; i++) {
+            put(newPiece(i));
+        }
+        // The emptied first segment was reused
+        assertEquals(2, store.getSegmentCount());
+        for (int i = 8; i < 12; i++) {
+            final Piece piece = newPiece(i);
+            final ArchiveStore.SegmentedFile file = store.open(
+                    piece.getFileInfo(), true);
+            file.lock();
+            try {
+                assertEquals((byte) i, file.getPiece(piece.getInfo())
+                        .getData()[0]);
+            }
+            finally {
+                file.unlock();
+            }
+        }
+        assertNull(store.open(newPiece(0).getFileInfo(), true));
+    }
+
+    @Test
+    public final void testCompaction() throws Exception {
+        store.close();
+        store = new LogArchiveStore(TESTDIR, 5 * PRODUCT_SIZE);
+        for (int i = 0; i < 10; i++) {
+            put(newPiece(i));
+        }
+        assertEquals(2, store.getSegmentCount());
+        // Leaves the first segment mostly dead
+        for (int i = 0; i < 4; i++) {
+            store.delete(newPiece(i).getArchivePath());
+        }
+        // The last live piece of the first segment was moved to a new segment
+        assertEquals(3, store.getSegmentCount());
+        // ... so the first segment is reused rather than a fourth created
+        for (int i = 10; i < 16; i++) {
+            put(newPiece(i));
+        }
+        assertEquals(3, store.getSegmentCount());
+        for (final int i : new int[] { 4, 15 }) {
+            final Piece piece = newPiece(i);
+            final ArchiveStore.SegmentedFile file = store.open(
+                    piece.getFileInfo(), true);
+            file.lock();
+            try {
+                assertEquals((byte) i, file.getPiece(piece.getInfo())
+                        .getData()[0]);
+            }
+            finally {
+                file.unlock();
+            }
+        }
+    }
+}
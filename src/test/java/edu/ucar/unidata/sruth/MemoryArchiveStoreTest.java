@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link MemoryArchiveStore} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class MemoryArchiveStoreTest {
+    private static final int   PRODUCT_SIZE = 100;
+
+    private MemoryArchiveStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new MemoryArchiveStore(4 * PRODUCT_SIZE, 2 * PRODUCT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private static Piece newPiece(final int i) {
+        final FileId fileId = new FileId(new ArchivePath("product" + i),
+                new ArchiveTime());
+        final FileInfo fileInfo = new FileInfo(fileId, PRODUCT_SIZE);
+        final byte[] data = new byte[PRODUCT_SIZE];
+        data[0] = (byte) i;
+        return new Piece(new PieceSpec(fileInfo, 0), data);
+    }
+
+    private void put(final Piece piece) throws Exception {
+        final ArchiveStore.SegmentedFile file = store.open(
+                piece.getFileInfo(), false);
+        file.lock();
+        try {
+            assertTrue(file.putPieces(Collections.singletonList(piece)));
+        }
+        finally {
+            file.unlock();
+        }
+    }
+
+    @Test
+    public final void testEviction() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            put(newPiece(i));
+        }
+        assertEquals(4 * PRODUCT_SIZE, store.getTotalSize());
+        // Using the first data-product makes the second the least recently
+        // used one
+        assertNotNull(store.open(newPiece(0).getFileInfo(), true));
+        put(newPiece(4));
+        // Evicted down to the low-water mark
+        assertEquals(2 * PRODUCT_SIZE, store.getTotalSize());
+        assertNull(store.open(newPiece(1).getFileInfo(), true));
+        assertNull(store.open(newPiece(2).getFileInfo(), true));
+        assertNull(store.open(newPiece(3).getFileInfo(), true));
+        assertNotNull(store.open(newPiece(0).getFileInfo(), true));
+        assertNotNull(store.open(newPiece(4).getFileInfo(), true));
+    }
+
+    @Test
+    public final void testIncompleteNotEvicted() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            // Opened but never written
+            assertNotNull(store.open(newPiece(i).getFileInfo(), false));
+        }
+        try {
+            store.open(newPiece(4).getFileInfo(), false);
+            fail();
+        }
+        catch (final IOException expected) {
+        }
+        assertEquals(4 * PRODUCT_SIZE, store.getTotalSize());
+        store.delete(newPiece(0).getArchivePath());
+        put(newPiece(4));
+        assertEquals(4 * PRODUCT_SIZE, store.getTotalSize());
+    }
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the distribution overlay of a tracker. Run {@link #main} to simulate
+ * the overlay and, for comparison, random server selection on a large network.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class OverlayTest {
+    private static final Filter            FEED         = Filter.getInstance("feed/*");
+    private static final InetSocketAddress SOURCE       = server(-1);
+    /**
+     * The delay of a hop in seconds.
+     */
+    private static final double            HOP_DELAY    = 0.01;
+    /**
+     * The time for a server of unit capacity to send a data-product to one
+     * client in seconds.
+     */
+    private static final double            SEND_TIME    = 0.1;
+    /**
+     * The capacity of the source-server.
+     */
+    private static final int               SOURCE_SLOTS = 8;
+
+    private static InetSocketAddress server(final int i) {
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+                    10, (byte) (i >> 16), (byte) (i >> 8), (byte) i }), 38800);
+        }
+        catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The statistics of a simulated distribution tree.
+     */
+    private static final class Stats {
+        int    height;
+        double meanDepth;
+        int    sourceDegree;
+        int    maxDegree;
+        double meanLatency;
+        double maxLatency;
+
+        @Override
+        public String toString() {
+            return String.format("height=%d, mean depth=%.2f, source degree=%d, "
+                    + "max degree=%d, mean latency=%.3f s, max latency=%.3f s",
+                    height, meanDepth, sourceDegree, maxDegree, meanLatency,
+                    maxLatency);
+        }
+    }
+
+    /**
+     * Computes the statistics of a distribution tree. A data-product is
+     * forwarded to a server's children once the server has it. A server with
+     * capacity {@code c} and {@code d} children sends to each child at
+     * {@code min(1, c/d)} of the rate of a unit-capacity server.
+     * 
+     * @param parents
+     *            The parent of each server or {@code -1} for the source-server.
+     * @param capacities
+     *            The capacity of each server.
+     * @return The statistics.
+     */
+    private static Stats stats(final int[] parents, final int[] capacities) {
+        final int n = parents.length;
+        final int[] degrees = new int[n];
+        int sourceDegree = 0;
+        for (final int parent : parents) {
+            if (parent < 0) {
+                sourceDegree++;
+            }
+            else {
+                degrees[parent]++;
+            }
+        }
+        final Stats stats = new Stats();
+        stats.sourceDegree = sourceDegree;
+        final int[] depths = new int[n];
+        final double[] latencies = new double[n];
+        for (int i = 0; i < n; i++) {
+            compute(i, parents, capacities, degrees, sourceDegree, depths,
+                    latencies);
+            stats.height = Math.max(stats.height, depths[i]);
+            stats.meanDepth += depths[i];
+            stats.maxDegree = Math.max(stats.maxDegree, degrees[i]);
+            stats.meanLatency += latencies[i];
+            stats.maxLatency = Math.max(stats.maxLatency, latencies[i]);
+        }
+        stats.meanDepth /= n;
+        stats.meanLatency /= n;
+        return stats;
+    }
+
+    /**
+     * Computes the depth and latency of a server and its ancestors if they
+     * haven't been computed.
+     */
+    private static void compute(final int i, final int[] parents,
+            final int[] capacities, final int[] degrees,
+            final int sourceDegree, final int[] depths,
+            final double[] latencies) {
+        if (depths[i] == 0) {
+            final int parent = parents[i];
+            if (parent < 0) {
+                depths[i] = 1;
+                latencies[i] = HOP_DELAY + SEND_TIME
+                        * Math.max(1.0, (double) sourceDegree / SOURCE_SLOTS);
+            }
+            else {
+                compute(parent, parents, capacities, degrees, sourceDegree,
+                        depths, latencies);
+                depths[i] = depths[parent] + 1;
+                latencies[i] = latencies[parent]
+                        + HOP_DELAY
+                        + SEND_TIME
+                        * Math.max(1.0, (double) degrees[parent]
+                                / Math.max(1, capacities[parent]));
+            }
+        }
+    }
+
+    /**
+     * Returns random server capacities: mostly one to eight, sometimes zero.
+     */
+    private static int[] capacities(final int n, final Random random) {
+        final int[] capacities = new int[n];
+        for (int i = 0; i < n; i++) {
+            capacities[i] = random.nextInt(10) == 0
+                    ? 0
+                    : 1 + random.nextInt(8);
+        }
+        return capacities;
+    }
+
+    /**
+     * Simulates the distribution tree of random server selection, in which
+     * each server connects to the source-server or an earlier server with
+     * equal probability.
+     */
+    private static Stats simulateRandom(final int[] capacities,
+            final Random random) {
+        final int[] parents = new int[capacities.length];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = random.nextInt(i + 1) - 1;
+        }
+        return stats(parents, capacities);
+    }
+
+    /**
+     * Simulates the distribution tree of an overlay. Servers join in order;
+     * then a quarter of them leave and join again.
+     */
+    private static Stats simulateOverlay(final Overlay overlay,
+            final int[] capacities, final Random random) {
+        final int n = capacities.length;
+        for (int i = 0; i < n; i++) {
+            overlay.attach(FEED, server(i), capacities[i]);
+        }
+        final List<Integer> churn = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++) {
+            churn.add(i);
+        }
+        Collections.shuffle(churn, random);
+        churn.subList(n / 4, n).clear();
+        for (final int i : churn) {
+            assertTrue(overlay.detach(FEED, server(i)));
+        }
+        for (final int i : churn) {
+            overlay.attach(FEED, server(i), capacities[i]);
+        }
+        return stats(parents(overlay, n), capacities);
+    }
+
+    /**
+     * Returns the parents of the servers of an overlay and verifies the
+     * overlay's depths.
+     */
+    private static int[] parents(final Overlay overlay, final int n) {
+        final Map<InetSocketAddress, Integer> index = new HashMap<InetSocketAddress, Integer>();
+        for (int i = 0; i < n; i++) {
+            index.put(server(i), i);
+        }
+        final int[] parents = new int[n];
+        for (int i = 0; i < n; i++) {
+            final InetSocketAddress parent = overlay.getParent(FEED, server(i));
+            if (SOURCE.equals(parent)) {
+                assertEquals(1, overlay.getDepth(FEED, server(i)));
+                parents[i] = -1;
+            }
+            else {
+                assertEquals(overlay.getDepth(FEED, parent) + 1,
+                        overlay.getDepth(FEED, server(i)));
+                parents[i] = index.get(parent);
+            }
+        }
+        return parents;
+    }
+
+    @Test
+    public void testSourceDegree() {
+        final Overlay overlay = new Overlay(SOURCE, 2, 3);
+        assertEquals(SOURCE, overlay.attach(FEED, server(0), 3));
+        assertEquals(SOURCE, overlay.attach(FEED, server(1), 2));
+        // The shallowest server with the most room
+        assertEquals(server(0), overlay.attach(FEED, server(2), 3));
+        assertEquals(2, overlay.getSourceDegree());
+        assertEquals(2, overlay.getDepth(FEED, server(2)));
+        // Re-registration doesn't move a server
+        assertEquals(server(0), overlay.attach(FEED, server(2), 3));
+        assertEquals(3, overlay.size(FEED));
+    }
+
+    @Test
+    public void testCapacity() {
+        final Overlay overlay = new Overlay(SOURCE, 1, 2);
+        assertEquals(SOURCE, overlay.attach(FEED, server(0), 0));
+        // A full server takes the overflow rather than the source-server
+        assertEquals(server(0), overlay.attach(FEED, server(1), 8));
+        assertEquals(1, overlay.getSourceDegree());
+        assertEquals(2, overlay.size(FEED));
+        // The capacity is bounded by the fan-out
+        assertEquals(server(1), overlay.attach(FEED, server(2), 1));
+        assertEquals(server(1), overlay.attach(FEED, server(3), 0));
+        assertEquals(server(2), overlay.attach(FEED, server(4), 0));
+    }
+
+    @Test
+    public void testDetach() {
+        final Overlay overlay = new Overlay(SOURCE, 1, 2);
+        for (int i = 0; i < 7; i++) {
+            overlay.attach(FEED, server(i), 2);
+        }
+        assertEquals(3, overlay.getDepth(FEED, server(6)));
+        // The subtrees of the root are re-attached: one under the other
+        assertTrue(overlay.detach(FEED, server(0)));
+        assertFalse(overlay.detach(FEED, server(0)));
+        assertEquals(1, overlay.getSourceDegree());
+        assertEquals(6, overlay.size(FEED));
+        int roots = 0;
+        for (int i = 1; i < 7; i++) {
+            final InetSocketAddress parent = overlay.getParent(FEED, server(i));
+            if (SOURCE.equals(parent)) {
+                roots++;
+            }
+            else {
+                assertEquals(overlay.getDepth(FEED, parent) + 1,
+                        overlay.getDepth(FEED, server(i)));
+                assertTrue(overlay.getDegree(FEED, parent) <= 2);
+            }
+        }
+        assertEquals(1, roots);
+        assertTrue(overlay.remove(server(1)));
+        assertNull(overlay.getParent(FEED, server(1)));
+        for (int i = 2; i < 7; i++) {
+            overlay.remove(server(i));
+        }
+        assertEquals(0, overlay.getSourceDegree());
+        assertEquals(0, overlay.size(FEED));
+    }
+
+    @Test
+    public void testFilters() {
+        final Overlay overlay = new Overlay(SOURCE, 2, 2);
+        final Filter other = Filter.getInstance("other/*");
+        // The source-server's degree is bounded over all the trees
+        assertEquals(SOURCE, overlay.attach(FEED, server(0), 2));
+        assertEquals(SOURCE, overlay.attach(other, server(1), 2));
+        assertEquals(server(0), overlay.attach(FEED, server(2), 2));
+        assertEquals(server(1), overlay.attach(other, server(3), 2));
+        // A server can be in several trees
+        assertEquals(server(1), overlay.attach(other, server(2), 2));
+        assertEquals(server(0), overlay.getParent(FEED, server(2)));
+        // Only the first server of a filter that no other filter includes
+        // has nowhere to go but the source-server
+        final Filter first = Filter.getInstance("filter0/*");
+        assertEquals(SOURCE, overlay.attach(first, server(10), 0));
+        assertEquals(server(10), overlay.attach(first, server(11), 2));
+        assertEquals(3, overlay.getSourceDegree());
+    }
+
+    @Test
+    public void testIncludingFilter() {
+        final Overlay overlay = new Overlay(SOURCE, 1, 2);
+        final Filter sub = Filter.getInstance("feed/sub/*");
+        final Filter other = Filter.getInstance("other/*");
+        assertEquals(SOURCE, overlay.attach(FEED, server(0), 2));
+        // A full tree borrows a server whose filter includes its own
+        assertEquals(server(0), overlay.attach(sub, server(1), 0));
+        assertEquals(server(0), overlay.attach(sub, server(2), 2));
+        assertEquals(server(2), overlay.attach(sub, server(3), 2));
+        assertEquals(1, overlay.getSourceDegree());
+        // Otherwise, the least-loaded server of the tree takes the overflow
+        assertEquals(SOURCE, overlay.attach(other, server(4), 0));
+        assertEquals(server(4), overlay.attach(other, server(5), 2));
+        assertEquals(2, overlay.getSourceDegree());
+        // The orphans of a departed server are re-attached, never beneath an
+        // orphan that hasn't been re-attached yet
+        assertTrue(overlay.detach(FEED, server(0)));
+        assertEquals(0, overlay.size(FEED));
+        assertEquals(SOURCE, overlay.getParent(sub, server(2)));
+        assertEquals(server(2), overlay.getParent(sub, server(3)));
+        assertEquals(server(2), overlay.getParent(sub, server(1)));
+        assertEquals(2, overlay.getDepth(sub, server(1)));
+        assertEquals(2, overlay.getSourceDegree());
+    }
+
+    @Test
+    public void testUnverified() {
+        final Overlay overlay = new Overlay(SOURCE, 1, 2);
+        overlay.attachUnverified(FEED, server(0), 2);
+        assertEquals(SOURCE, overlay.getParent(FEED, server(0)));
+        assertEquals(server(0), overlay.attach(FEED, server(1), 2));
+        // A verified server is preferred as a parent even if it's deeper
+        assertEquals(server(1), overlay.attach(FEED, server(2), 2));
+        // Attaching an unverified server verifies it
+        assertEquals(SOURCE, overlay.attach(FEED, server(0), 2));
+        assertEquals(server(0), overlay.attach(FEED, server(3), 2));
+        // An attached server stays verified
+        overlay.attachUnverified(FEED, server(3), 2);
+        assertEquals(server(3), overlay.attach(FEED, server(4), 2));
+    }
+
+    @Test
+    public void testSimulation() {
+        final int n = 2000;
+        final Random random = new Random(1);
+        final int[] capacities = capacities(n, random);
+        final Overlay overlay = new Overlay(SOURCE, 4, 8);
+        final Stats tree = simulateOverlay(overlay, capacities, random);
+        final Stats rand = simulateRandom(capacities, random);
+        System.out.println("testSimulation(): " + n + " nodes: overlay: "
+                + tree);
+        System.out.println("testSimulation(): " + n + " nodes: random:  "
+                + rand);
+        assertEquals(n, overlay.size(FEED));
+        assertEquals(4, tree.sourceDegree);
+        assertTrue(tree.maxDegree <= 8);
+        assertTrue(tree.height <= (int) Math.ceil(Math.log(n) / Math.log(2)));
+        assertTrue(tree.maxLatency < rand.maxLatency);
+        for (int i = 0; i < n; i++) {
+            assertTrue(overlay.getDegree(FEED, server(i)) <= capacities[i]);
+        }
+    }
+
+    public static void main(final String[] args) {
+        final int n = args.length > 0
+                ? Integer.parseInt(args[0])
+                : 10000;
+        final int sourceDegree = args.length > 1
+                ? Integer.parseInt(args[1])
+                : 4;
+        final Random random = new Random(1);
+        final int[] capacities = capacities(n, random);
+        final long start = System.nanoTime();
+        final Stats tree = simulateOverlay(new Overlay(SOURCE, sourceDegree, 8),
+                capacities, random);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.println(n + " nodes: overlay: " + tree + " ("
+                + (int) (1.25 * n) + " attachments and " + n / 4
+                + " detachments in " + elapsed + " s)");
+        System.out.println(n + " nodes: random:  "
+                + simulateRandom(capacities, random));
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link PathDelayQueue} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class PathDelayQueueTest {
+    private static final int COUNT = 20;
+
+    private Path             queuePath;
+    private PathDelayQueue   queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queuePath = Files.createTempFile("PathDelayQueueTest", null);
+        Files.delete(queuePath);
+        queue = new PathDelayQueue(queuePath);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queue.close();
+        Files.deleteIfExists(queuePath);
+    }
+
+    private static Path path(final int i) {
+        return Paths.get("/archive/file" + i);
+    }
+
+    @Test
+    public final void testRemove() throws Exception {
+        // Already "ripe" so that take() doesn't block
+        final long time = System.currentTimeMillis() - 1000 * COUNT;
+        for (int i = COUNT - 1; i >= 0; i--) {
+            queue.add(path(i), time + i);
+        }
+        queue.add(path(7), time + COUNT);
+        assertEquals(COUNT + 1, queue.size());
+
+        assertEquals(2, queue.remove(path(7)));
+        assertEquals(1, queue.remove(path(0)));
+        assertEquals(1, queue.remove(path(COUNT - 1)));
+        assertEquals(0, queue.remove(path(7)));
+        assertEquals(COUNT - 3, queue.size());
+
+        for (int i = 1; i < COUNT - 1; i++) {
+            if (i != 7) {
+                assertEquals(path(i), queue.take());
+            }
+        }
+        assertEquals(0, queue.size());
+    }
+}
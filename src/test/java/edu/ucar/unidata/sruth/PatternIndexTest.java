@@ -0,0 +1,165 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PatternIndex} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class PatternIndexTest {
+    private static final int PATTERN_COUNT = 1000;
+    /**
+     * The number of data-products in one minute of the benchmark.
+     */
+    private static final int PRODUCT_COUNT = 10000;
+
+    @Test
+    public final void testLiteralPrefix() {
+        assertEquals("NEXRAD/", PatternIndex.literalPrefix(Pattern
+                .compile("NEXRAD/(\\w+)/.*")));
+        assertEquals("a.b/", PatternIndex.literalPrefix(Pattern
+                .compile("^a\\.b/c*")));
+        assertEquals("a", PatternIndex.literalPrefix(Pattern.compile("ab?c")));
+        assertEquals("", PatternIndex.literalPrefix(Pattern.compile("a{2}")));
+        assertEquals("", PatternIndex.literalPrefix(Pattern.compile("ab|cd")));
+        assertEquals("", PatternIndex.literalPrefix(Pattern.compile("\\Qab")));
+        assertEquals("", PatternIndex.literalPrefix(Pattern.compile("abc",
+                Pattern.CASE_INSENSITIVE)));
+        assertEquals("", PatternIndex.literalPrefix(Pattern.compile("(?i)abc")));
+    }
+
+    private static List<Pattern> newPatterns() {
+        final List<Pattern> patterns = new ArrayList<Pattern>(PATTERN_COUNT);
+        for (int i = 0; i < PATTERN_COUNT; i++) {
+            switch (i % 4) {
+            case 0:
+                patterns.add(Pattern.compile("feed" + i + "/(.*)\\.grib2"));
+                break;
+            case 1:
+                patterns.add(Pattern.compile("feed" + (i - 1)
+                        + "/station(\\d+)/.*"));
+                break;
+            case 2:
+                patterns.add(Pattern.compile("feed" + i + "/[a-z]+\\.txt"));
+                break;
+            default:
+                patterns.add(Pattern.compile("feed" + i + "/.*"));
+            }
+        }
+        // A few catch-all patterns
+        patterns.add(Pattern.compile(".*\\.bz2"));
+        patterns.add(Pattern.compile("(feed1|feed2)/.*"));
+        return patterns;
+    }
+
+    private static List<String> newPaths(final Random random) {
+        final List<String> paths = new ArrayList<String>(PRODUCT_COUNT);
+        for (int i = 0; i < PRODUCT_COUNT; i++) {
+            final int feed = random.nextInt(PATTERN_COUNT);
+            switch (random.nextInt(4)) {
+            case 0:
+                paths.add("feed" + feed + "/model" + i + ".grib2");
+                break;
+            case 1:
+                paths.add("feed" + feed + "/station" + i + "/obs");
+                break;
+            case 2:
+                paths.add("feed" + feed + "/text.txt");
+                break;
+            default:
+                paths.add("feed" + feed + "/radar" + i + ".bz2");
+            }
+        }
+        return paths;
+    }
+
+    @Test
+    public final void testSameMatchesAsLinearScan() {
+        final List<Pattern> patterns = newPatterns();
+        final PatternIndex<Integer> index = new PatternIndex<Integer>();
+        for (int i = 0; i < patterns.size(); i++) {
+            index.putIfAbsent(patterns.get(i), i);
+        }
+        assertEquals(patterns.size(), index.size());
+        for (final String path : newPaths(new Random(1))) {
+            final List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(path).matches()) {
+                    expected.add(i);
+                }
+            }
+            final List<Integer> actual = new ArrayList<Integer>();
+            for (final PatternIndex.Entry<Integer> entry : index
+                    .candidates(path)) {
+                if (entry.getPattern().matcher(path).matches()) {
+                    actual.add(entry.getValue());
+                }
+            }
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    /**
+     * Compares the time to dispatch one minute's worth of data-products (
+     * {@value #PRODUCT_COUNT}) against {@value #PATTERN_COUNT} patterns by a
+     * linear scan and by the index.
+     */
+    @Test
+    public final void testBenchmark() {
+        final List<Pattern> patterns = newPatterns();
+        final PatternIndex<Integer> index = new PatternIndex<Integer>();
+        for (int i = 0; i < patterns.size(); i++) {
+            index.putIfAbsent(patterns.get(i), i);
+        }
+        final List<String> paths = newPaths(new Random(2));
+
+        long start = System.nanoTime();
+        long linearMatches = 0;
+        for (final String path : paths) {
+            for (final Pattern pattern : patterns) {
+                if (pattern.matcher(path).matches()) {
+                    linearMatches++;
+                }
+            }
+        }
+        final double linearTime = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        long indexedMatches = 0;
+        long evaluations = 0;
+        for (final String path : paths) {
+            for (final PatternIndex.Entry<Integer> entry : index
+                    .candidates(path)) {
+                evaluations++;
+                if (entry.getPattern().matcher(path).matches()) {
+                    indexedMatches++;
+                }
+            }
+        }
+        final double indexedTime = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(linearMatches, indexedMatches);
+        assertTrue(evaluations < (long) PRODUCT_COUNT * patterns.size() / 10);
+        // One minute's worth of data-products must take much less than a minute
+        assertTrue(indexedTime < 6);
+        System.out.println("PatternIndexTest: " + patterns.size()
+                + " patterns, " + PRODUCT_COUNT + " products: linear="
+                + linearTime + " s, indexed=" + indexedTime + " s ("
+                + (double) evaluations / PRODUCT_COUNT
+                + " evaluations/product)");
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ProcessingJournal} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ProcessingJournalTest {
+    private Path dir;
+    private Path rootDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ProcessingJournalTest");
+        rootDir = dir.resolve("archive");
+        Files.createDirectories(rootDir);
+    }
+
+    private DataProduct newProduct(final int i) throws IOException {
+        final String name = "product" + i;
+        Files.write(rootDir.resolve(name), name.getBytes("US-ASCII"));
+        return new DataProduct(rootDir, new FileInfo(new FileId(
+                new ArchivePath(name)), name.length()));
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final Path journalDir = dir.resolve("journal");
+        ProcessingJournal journal = new ProcessingJournal(journalDir);
+        final DataProduct[] products = new DataProduct[4];
+        for (int i = 0; i < products.length; i++) {
+            products[i] = newProduct(i);
+            journal.pending(products[i]);
+        }
+        journal.done(products[0].getFileInfo().getFileId());
+        journal.failed(products[1].getFileInfo().getFileId(), 2);
+        journal.dead(products[2], new IOException("Simulated failure"));
+        journal.close();
+        assertTrue(Files.exists(journalDir.resolve("dead-letter").resolve(
+                "product2")));
+
+        // Simulate a crash in the middle of appending a record
+        Files.write(journalDir.resolve("journal"), new byte[] { 0, 0 },
+                StandardOpenOption.APPEND);
+
+        journal = new ProcessingJournal(journalDir);
+        final List<ProcessingJournal.Entry> entries = journal.takeRecovered();
+        assertEquals(2, entries.size());
+        assertEquals(products[1], entries.get(0).getProduct());
+        assertEquals(2, entries.get(0).getAttempts());
+        assertEquals(products[3], entries.get(1).getProduct());
+        assertEquals(0, entries.get(1).getAttempts());
+        assertEquals(2, journal.getOutstanding().size());
+        assertEquals(0, journal.takeRecovered().size());
+        journal.close();
+    }
+
+    @Test
+    public void testInMemoryProduct() throws Exception {
+        final Path journalDir = dir.resolve("memory");
+        ProcessingJournal journal = new ProcessingJournal(journalDir);
+        final byte[] data = "in memory".getBytes("US-ASCII");
+        final DataProduct[] products = new DataProduct[2];
+        for (int i = 0; i < products.length; i++) {
+            // No file exists for the data-product
+            products[i] = new DataProduct(rootDir, new FileInfo(new FileId(
+                    new ArchivePath("memory" + i)), data.length), ByteBuffer
+                    .wrap(data));
+            journal.pending(products[i]);
+        }
+        journal.dead(products[0], new IOException("Simulated failure"));
+        assertArrayEquals(data, Files.readAllBytes(journalDir.resolve(
+                "dead-letter").resolve("memory0")));
+        journal.close();
+
+        journal = new ProcessingJournal(journalDir);
+        final List<ProcessingJournal.Entry> entries = journal.takeRecovered();
+        assertEquals(1, entries.size());
+        final DataProduct recovered = entries.get(0).getProduct();
+        assertTrue(recovered.exists());
+        assertEquals(ByteBuffer.wrap(data), recovered.getContents());
+        journal.close();
+    }
+
+    /**
+     * Verifies that concurrent threads share synchronizations of the journal
+     * and measures the rate at which they can durably record data-products.
+     */
+    @Test
+    public void testGroupCommit() throws Exception {
+        final ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("group"));
+        final int threadCount = 8;
+        final int perThread = 200;
+        final DataProduct product = newProduct(0);
+        final ExecutorService executor = Executors
+                .newFixedThreadPool(threadCount);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        final long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t * perThread;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < perThread; i++) {
+                        final DataProduct dataProduct = new DataProduct(
+                                product.getRootDir(), new FileInfo(
+                                        new FileId(new ArchivePath("product"
+                                                + (offset + i))), 1));
+                        journal.pending(dataProduct);
+                        journal.done(dataProduct.getFileInfo().getFileId());
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(0, journal.getOutstanding().size());
+        final int recordCount = threadCount * perThread;
+        assertTrue(journal.getSyncCount() < recordCount);
+        journal.close();
+        System.out.println("ProcessingJournalTest: " + recordCount / seconds
+                + " durable records/s");
+    }
+
+    /**
+     * Verifies that the journal file is only rewritten when most of it is
+     * records that no longer matter.
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        final Path journalDir = dir.resolve("compaction");
+        final ProcessingJournal journal = new ProcessingJournal(journalDir);
+        final Path path = journalDir.resolve("journal");
+        final byte[] data = new byte[1 << 17];
+        final List<DataProduct> products = new ArrayList<DataProduct>();
+        for (int i = 0; i < 16; i++) {
+            final DataProduct product = new DataProduct(rootDir, new FileInfo(
+                    new FileId(new ArchivePath("large" + i)), data.length),
+                    ByteBuffer.wrap(data));
+            products.add(product);
+            final long syncCount = journal.getSyncCount();
+            journal.pending(product);
+            // Appended rather than rewritten, although the file is large
+            assertEquals(syncCount + 1, journal.getSyncCount());
+        }
+        final long liveSize = Files.size(path);
+        assertTrue(liveSize > 2 * (1 << 20));
+        for (int i = 1; i < products.size(); i++) {
+            journal.done(products.get(i).getFileInfo().getFileId());
+        }
+        journal.pending(newProduct(0));
+        // Rewritten with just the outstanding data-products
+        assertTrue(Files.size(path) < liveSize / 8);
+        assertEquals(2, journal.getOutstanding().size());
+        journal.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("batch"));
+        final List<DataProduct> products = new ArrayList<DataProduct>();
+        for (int i = 0; i < 10; i++) {
+            products.add(newProduct(i));
+        }
+        final long syncCount = journal.getSyncCount();
+        journal.pending(products);
+        assertEquals(syncCount + 1, journal.getSyncCount());
+        assertEquals(products.size(), journal.getOutstanding().size());
+        journal.close();
+    }
+}
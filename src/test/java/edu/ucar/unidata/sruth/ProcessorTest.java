@@ -9,11 +9,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -28,8 +36,40 @@ import org.junit.Test;
  * @author Steven R. Emmerson
  */
 public class ProcessorTest {
+    /**
+     * Records the data-products that it acts upon.
+     */
+    private static final class RecordingAction extends Action {
+        private final List<ArchivePath> paths = Collections
+                                                      .synchronizedList(new ArrayList<ArchivePath>());
+        private final CountDownLatch    latch;
+
+        RecordingAction(final int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        void execute(final Matcher matcher, final DataProduct dataProduct)
+                throws InterruptedException {
+            Thread.sleep(10);
+            paths.add(dataProduct.getFileInfo().getPath());
+            latch.countDown();
+        }
+
+        @Override
+        public String toString() {
+            return "RecordingAction";
+        }
+    }
+
     private ExecutorService executor;
 
+    private static DataProduct newProduct(final int i) {
+        final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                "product" + i)), 1);
+        return new DataProduct(Paths.get("/tmp"), fileInfo);
+    }
+
     /**
      * @throws java.lang.Exception
      */
@@ -112,4 +152,385 @@ public class ProcessorTest {
         Files.delete(destDir);
     }
 
+    @Test
+    public final void testSpill() throws Exception {
+        final int count = 50;
+        final Processor processor = new Processor(1, 2,
+                Processor.OverflowPolicy.SPILL);
+        final RecordingAction action = new RecordingAction(count);
+        processor.add(Pattern.compile(".*"), action);
+        for (int i = 0; i < count; i++) {
+            processor.put(newProduct(i));
+        }
+        assertEquals(count - 2, processor.getSpilledCount());
+        executor.submit(processor);
+        assertTrue(action.latch.await(60, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(new ArchivePath("product" + i), action.paths.get(i));
+        }
+        assertEquals(0, processor.getQueueDepth());
+    }
+
+    @Test
+    public final void testSpillInMemory() throws Exception {
+        final int count = 50;
+        final Processor processor = new Processor(1, 2,
+                Processor.OverflowPolicy.SPILL);
+        final List<Byte> contents = Collections
+                .synchronizedList(new ArrayList<Byte>());
+        final CountDownLatch latch = new CountDownLatch(count);
+        processor.add(Pattern.compile(".*"), new Action() {
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException {
+                contents.add(dataProduct.getContents().get());
+                latch.countDown();
+            }
+
+            @Override
+            public String toString() {
+                return "ContentsAction";
+            }
+        });
+        // Like those of a MEMORY store, the data-products have no files
+        final Path rootDir = Files.createTempDirectory("ProcessorTest");
+        for (int i = 0; i < count; i++) {
+            processor.put(new DataProduct(rootDir, new FileInfo(new FileId(
+                    new ArchivePath("product" + i)), 1), ByteBuffer
+                    .wrap(new byte[] { (byte) i })));
+        }
+        assertEquals(count - 2, processor.getSpilledCount());
+        executor.submit(processor);
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals((byte) i, contents.get(i).byteValue());
+        }
+        assertEquals(0, processor.getDeadCount());
+    }
+
+    @Test
+    public final void testDrop() throws Exception {
+        final Processor processor = new Processor(1, 2,
+                Processor.OverflowPolicy.DROP);
+        final RecordingAction action = new RecordingAction(2);
+        processor.add(Pattern.compile(".*"), action);
+        for (int i = 0; i < 10; i++) {
+            processor.put(newProduct(i));
+        }
+        assertEquals(8, processor.getDroppedCount());
+        executor.submit(processor);
+        assertTrue(action.latch.await(60, TimeUnit.SECONDS));
+        assertEquals(2, action.paths.size());
+    }
+
+    @Test
+    public final void testBulkhead() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Action stuck = new Action() {
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws InterruptedException {
+                release.await();
+            }
+
+            @Override
+            public String toString() {
+                return "StuckAction";
+            }
+        };
+        final Bulkhead bulkhead = new Bulkhead(stuck, 1, 2);
+        final RecordingAction action = new RecordingAction(10);
+        // One lane: without the bulkhead, the stuck action would block the
+        // other. Rejected data-products aren't retried during the test.
+        final Processor processor = new Processor(1, 100,
+                Processor.OverflowPolicy.BLOCK, 5, 60000);
+        processor.add(Pattern.compile(".*"), bulkhead);
+        processor.add(Pattern.compile("product.*"), action);
+        executor.submit(processor);
+        for (int i = 0; i < 10; i++) {
+            processor.put(newProduct(i));
+        }
+        assertTrue(action.latch.await(60, TimeUnit.SECONDS));
+        // One executing, two queued, the rest rejected
+        assertEquals(2, bulkhead.getQueueDepth());
+        assertEquals(7, bulkhead.getRejectedCount());
+        release.countDown();
+        bulkhead.close();
+        assertEquals(3, bulkhead.getLatencies().getCount());
+    }
+
+    @Test
+    public final void testBulkheadBackpressure() throws Exception {
+        final RecordingAction action = new RecordingAction(10);
+        final Bulkhead bulkhead = new Bulkhead(action, 1, 1);
+        // Rejections would exhaust two attempts quickly if they were failures
+        final Processor processor = new Processor(1, 100,
+                Processor.OverflowPolicy.BLOCK, 2, 10);
+        processor.add(Pattern.compile(".*"), bulkhead);
+        executor.submit(processor);
+        for (int i = 0; i < 10; i++) {
+            processor.put(newProduct(i));
+        }
+        assertTrue(action.latch.await(60, TimeUnit.SECONDS));
+        assertTrue(bulkhead.getRejectedCount() > 0);
+        assertEquals(0, processor.getDeadCount());
+        bulkhead.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testBulkheadRequiresThreadSafeAction() {
+        new Bulkhead(new RecordingAction(1), 2, 1);
+    }
+
+    @Test
+    public final void testBulkheadOutcome() throws Exception {
+        final Path dir = Files.createTempDirectory("ProcessorTest");
+        final DataProduct product = newProduct(dir.resolve("src"), "product");
+        final ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("journal"));
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch attempted = new CountDownLatch(2);
+        final Bulkhead bulkhead = new Bulkhead(new Action() {
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException, InterruptedException {
+                release.await();
+                attempted.countDown();
+                if (attempted.getCount() == 1) {
+                    throw new IOException("Simulated failure");
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "SlowFailingAction";
+            }
+        }, 1, 2);
+        final Processor processor = new Processor(1, 10,
+                Processor.OverflowPolicy.BLOCK, 3, 10);
+        processor.setJournal(journal);
+        processor.add(Pattern.compile(".*"), bulkhead);
+        final Future<Void> future = executor.submit(processor);
+        processor.put(product);
+        // The data-product isn't done while the bulkheaded action is running
+        Thread.sleep(100);
+        assertEquals(1, journal.getOutstanding().size());
+        release.countDown();
+        // The failure is reported back and the data-product is retried
+        assertTrue(attempted.await(60, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && journal.getOutstanding().size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, journal.getOutstanding().size());
+        assertEquals(0, processor.getDeadCount());
+        future.cancel(true);
+    }
+
+    @Test
+    public final void testJournalsOnlyMatching() throws Exception {
+        final Path dir = Files.createTempDirectory("ProcessorTest");
+        final ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("journal"));
+        final Processor processor = new Processor();
+        processor.setJournal(journal);
+        processor.add(Pattern.compile("wanted.*"), new RecordingAction(1));
+        processor.put(newProduct(dir.resolve("src"), "unwanted"));
+        assertEquals(0, journal.getOutstanding().size());
+        processor.put(newProduct(dir.resolve("src"), "wanted"));
+        assertEquals(1, journal.getOutstanding().size());
+        journal.close();
+    }
+
+    @Test
+    public final void testRetry() throws Exception {
+        final Path dir = Files.createTempDirectory("ProcessorTest");
+        final Path srcDir = dir.resolve("src");
+        final DataProduct good = newProduct(srcDir, "good");
+        final DataProduct bad = newProduct(srcDir, "bad");
+        final ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("journal"));
+        final Processor processor = new Processor(1, 10,
+                Processor.OverflowPolicy.BLOCK, 3, 10);
+        processor.setJournal(journal);
+        final CountDownLatch latch = new CountDownLatch(2 + 3);
+        processor.add(Pattern.compile(".*"), new Action() {
+            private int goodFailures;
+
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException {
+                latch.countDown();
+                if (dataProduct.equals(bad)
+                        || (dataProduct.equals(good) && goodFailures++ == 0)) {
+                    throw new IOException("Simulated failure");
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "FailingAction";
+            }
+        });
+        processor.put(good);
+        processor.put(bad);
+        assertEquals(2, journal.getOutstanding().size());
+        final Future<Void> future = executor.submit(processor);
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && processor.getDeadCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, processor.getDeadCount());
+        assertEquals(0, journal.getOutstanding().size());
+        assertTrue(Files.exists(dir.resolve("journal").resolve("dead-letter")
+                .resolve("bad")));
+        future.cancel(true);
+    }
+
+    @Test
+    public final void testRuntimeException() throws Exception {
+        final Processor processor = new Processor(1, 10,
+                Processor.OverflowPolicy.BLOCK, 3, 10);
+        final RecordingAction recorder = new RecordingAction(3);
+        processor.add(Pattern.compile(".*"), new Action() {
+            private boolean hasFailed;
+
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException, InterruptedException {
+                if (!hasFailed) {
+                    hasFailed = true;
+                    throw new IllegalStateException("Simulated bug");
+                }
+                recorder.execute(matcher, dataProduct);
+            }
+
+            @Override
+            public String toString() {
+                return "BuggyAction";
+            }
+        });
+        final Future<Void> future = executor.submit(processor);
+        for (int i = 0; i < 3; i++) {
+            processor.put(newProduct(i));
+        }
+        // The lane survives and the failed data-product is retried
+        assertTrue(recorder.latch.await(60, TimeUnit.SECONDS));
+        assertTrue(recorder.paths.contains(newProduct(0).getFileInfo()
+                .getPath()));
+        assertEquals(0, processor.getDeadCount());
+        future.cancel(true);
+    }
+
+    @Test
+    public final void testRecoveredProgress() throws Exception {
+        final Path dir = Files.createTempDirectory("ProcessorTest");
+        final DataProduct product = newProduct(dir.resolve("src"), "product");
+        final Pattern pattern = Pattern.compile(".*");
+        ProcessingJournal journal = new ProcessingJournal(dir
+                .resolve("journal"));
+        journal.pending(product);
+        // Simulate a crash after the first action completed
+        journal.progress(product.getFileInfo().getFileId(), pattern
+                .pattern(), 1);
+        journal.close();
+
+        journal = new ProcessingJournal(dir.resolve("journal"));
+        final RecordingAction first = new RecordingAction(1);
+        final RecordingAction second = new RecordingAction(1);
+        final Processor processor = new Processor(1, 10,
+                Processor.OverflowPolicy.BLOCK, 3, 10);
+        processor.setJournal(journal);
+        processor.add(pattern, first);
+        processor.add(pattern, second);
+        final Future<Void> future = executor.submit(processor);
+        assertTrue(second.latch.await(60, TimeUnit.SECONDS));
+        // The completed action isn't executed again
+        assertEquals(0, first.paths.size());
+        for (int i = 0; i < 100 && journal.getOutstanding().size() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, journal.getOutstanding().size());
+        future.cancel(true);
+    }
+
+    /**
+     * Returns a pattern whose actions are executed by a different lane of a
+     * two-lane processor than those of another pattern.
+     */
+    private static Pattern otherLane(final Pattern pattern, final String regex) {
+        for (;;) {
+            final Pattern other = Pattern.compile(regex);
+            if (((other.hashCode() & Integer.MAX_VALUE) % 2) != ((pattern
+                    .hashCode() & Integer.MAX_VALUE) % 2)) {
+                return other;
+            }
+        }
+    }
+
+    @Test
+    public final void testRetryWithFullLane() throws Exception {
+        final Processor processor = new Processor(2, 1,
+                Processor.OverflowPolicy.BLOCK, 3, 50);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Pattern busyPattern = Pattern.compile("busy.*");
+        processor.add(busyPattern, new Action() {
+            private boolean hasFailed;
+
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException, InterruptedException {
+                if (!hasFailed) {
+                    hasFailed = true;
+                    throw new IOException("Simulated failure");
+                }
+                release.await();
+            }
+
+            @Override
+            public String toString() {
+                return "BlockingAction";
+            }
+        });
+        final RecordingAction recorder = new RecordingAction(1);
+        processor.add(otherLane(busyPattern, "other.*"), new Action() {
+            private boolean hasFailed;
+
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws IOException, InterruptedException {
+                if (!hasFailed) {
+                    hasFailed = true;
+                    throw new IOException("Simulated failure");
+                }
+                recorder.execute(matcher, dataProduct);
+            }
+
+            @Override
+            public String toString() {
+                return "FailOnceAction";
+            }
+        });
+        final Future<Void> future = executor.submit(processor);
+        // The first fails; the second blocks the lane; the third fills it
+        for (int i = 0; i < 3; i++) {
+            processor.put(new DataProduct(Paths.get("/tmp"), new FileInfo(
+                    new FileId(new ArchivePath("busy" + i)), 1)));
+        }
+        Thread.sleep(100);
+        processor.put(new DataProduct(Paths.get("/tmp"), new FileInfo(
+                new FileId(new ArchivePath("other")), 1)));
+        // The other lane's retry isn't stuck behind the full lane's
+        assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertEquals(0, processor.getDeadCount());
+        future.cancel(true);
+    }
+
+    private static DataProduct newProduct(final Path rootDir, final String name)
+            throws IOException {
+        Files.createDirectories(rootDir);
+        Files.write(rootDir.resolve(name), name.getBytes("US-ASCII"));
+        return new DataProduct(rootDir, new FileInfo(new FileId(
+                new ArchivePath(name)), name.length()));
+    }
 }
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ServerSelector}.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class ServerSelectorTest {
+    private static final Filter FILTER = Filter.getInstance("feed/*");
+
+    /**
+     * A selector whose round-trip times are given rather than measured.
+     */
+    private static final class FixedSelector extends ServerSelector {
+        private final Map<InetSocketAddress, Long> rtts = new HashMap<InetSocketAddress, Long>();
+
+        @Override
+        long probe(final InetSocketAddress server) {
+            final Long rtt = rtts.get(server);
+            return rtt == null
+                    ? UNREACHABLE
+                    : rtt;
+        }
+    }
+
+    private static InetSocketAddress server(final int i) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+                10, 0, 0, (byte) i }), 38800);
+    }
+
+    private static final Set<InetSocketAddress> NONE = Collections
+                                                             .emptySet();
+
+    @Test
+    public final void testNearest() throws Exception {
+        final Topology topology = new Topology();
+        final FixedSelector selector = new FixedSelector();
+        for (int i = 1; i <= 3; i++) {
+            topology.add(FILTER, server(i));
+            topology.setLoad(server(i), new ServerLoad(0, 1, 7));
+            selector.rtts.put(server(i), i * 10000000L);
+        }
+        assertEquals(server(1), selector.select(topology, FILTER, NONE));
+        assertEquals(server(2), selector.select(topology, FILTER,
+                Collections.singleton(server(1))));
+    }
+
+    @Test
+    public final void testUnderLoaded() throws Exception {
+        final Topology topology = new Topology();
+        final FixedSelector selector = new FixedSelector();
+        // A nearby but busy and full server
+        topology.add(FILTER, server(1));
+        topology.setLoad(server(1), new ServerLoad(1000000, 8, 0));
+        selector.rtts.put(server(1), 1000000L);
+        // A slightly farther, idle server
+        topology.add(FILTER, server(2));
+        topology.setLoad(server(2), new ServerLoad(0, 0, 8));
+        selector.rtts.put(server(2), 2000000L);
+        assertEquals(server(2), selector.select(topology, FILTER, NONE));
+    }
+
+    @Test
+    public final void testUnreachable() throws Exception {
+        final Topology topology = new Topology();
+        final FixedSelector selector = new FixedSelector();
+        topology.add(FILTER, server(1));
+        topology.add(FILTER, server(2));
+        selector.rtts.put(server(2), 50000000L);
+        assertEquals(server(2), selector.select(topology, FILTER, NONE));
+        assertNull(selector.select(topology, Filter.getInstance("other/*"),
+                NONE));
+    }
+}
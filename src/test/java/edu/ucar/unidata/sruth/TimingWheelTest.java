@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TimingWheel} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class TimingWheelTest {
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testExpiry() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(1,
+                TimeUnit.SECONDS, 8);
+        final long start = System.nanoTime();
+        wheel.schedule("a", start + 2 * TICK);
+        wheel.schedule("b", start + 3 * TICK);
+        wheel.schedule("c", start + 3 * TICK);
+        assertEquals(3, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(start + TICK));
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 2 * TICK));
+        assertEquals(new HashSet<String>(Arrays.asList("b", "c")),
+                new HashSet<String>(wheel.advance(start + 4 * TICK)));
+        assertEquals(0, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(start + 9 * TICK));
+    }
+
+    @Test
+    public void testReschedule() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(1,
+                TimeUnit.SECONDS, 4);
+        final long start = System.nanoTime();
+        assertFalse(wheel.reschedule("a", start + TICK));
+        wheel.schedule("a", start + 2 * TICK);
+        wheel.schedule("b", start + 2 * TICK);
+        // Later: moved when its slot is visited
+        assertTrue(wheel.reschedule("a", start + 10 * TICK));
+        // Earlier: moved now
+        wheel.schedule("b", start + TICK);
+        assertEquals(Arrays.asList("b"), wheel.advance(start + TICK));
+        for (long t = 2; t < 10; t++) {
+            assertEquals(Collections.emptyList(),
+                    wheel.advance(start + t * TICK));
+        }
+        assertTrue(wheel.contains("a"));
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 10 * TICK));
+        assertFalse(wheel.contains("a"));
+    }
+
+    @Test
+    public void testCancel() {
+        final TimingWheel<String> wheel = new TimingWheel<String>(1,
+                TimeUnit.SECONDS, 4);
+        final long start = System.nanoTime();
+        wheel.schedule("a", start + TICK);
+        assertTrue(wheel.cancel("a"));
+        assertFalse(wheel.cancel("a"));
+        // A cancelled then rescheduled item expires once, at its new deadline
+        wheel.schedule("a", start + 3 * TICK);
+        assertEquals(Collections.emptyList(), wheel.advance(start + 2 * TICK));
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 3 * TICK));
+    }
+
+    @Test
+    public void testLongJump() {
+        final TimingWheel<Integer> wheel = new TimingWheel<Integer>(1,
+                TimeUnit.SECONDS, 4);
+        final long start = System.nanoTime();
+        for (int i = 1; i <= 100; i++) {
+            wheel.schedule(i, start + i * TICK);
+        }
+        // Advancing past many revolutions expires everything that's due
+        final List<Integer> expired = wheel.advance(start + 50 * TICK);
+        assertEquals(50, expired.size());
+        assertEquals(50, wheel.size());
+        assertEquals(50, wheel.advance(start + 200 * TICK).size());
+    }
+}
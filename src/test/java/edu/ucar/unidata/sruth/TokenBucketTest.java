@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TokenBucket} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurst() {
+        final TokenBucket bucket = new TokenBucket(10, 5);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.acquire(start));
+        }
+        assertTrue(bucket.acquire(start) > 0);
+        assertEquals(1, bucket.getRejectionCount());
+        // The bucket refills at its rate but no further than its burst size
+        final long later = start + 10 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.acquire(later));
+        }
+        assertTrue(bucket.acquire(later) > 0);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        final TokenBucket bucket = new TokenBucket(10, 1);
+        final long start = System.nanoTime();
+        assertEquals(0, bucket.acquire(start));
+        // Rejected requests are told to return a token-time apart
+        long previous = 0;
+        for (int i = 1; i <= 10; i++) {
+            final long retryAfter = bucket.acquire(start);
+            assertEquals(i * SECOND / 10, retryAfter, SECOND / 1000);
+            assertTrue(retryAfter > previous);
+            previous = retryAfter;
+        }
+        assertEquals(10, bucket.getMaxBacklog());
+        // A request that returns when told is admitted
+        assertEquals(0, bucket.acquire(start + SECOND / 10));
+    }
+
+    @Test
+    public void testBacklogDrains() {
+        final TokenBucket bucket = new TokenBucket(10, 1);
+        final long start = System.nanoTime();
+        assertEquals(0, bucket.acquire(start));
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire(start);
+        }
+        // After the backlog has drained, a rejection waits for one token only
+        final long later = start + 2 * SECOND;
+        assertEquals(0, bucket.acquire(later));
+        assertEquals(SECOND / 10, bucket.acquire(later), SECOND / 1000);
+    }
+}
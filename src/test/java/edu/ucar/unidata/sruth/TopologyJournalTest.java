@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TopologyJournal} class.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class TopologyJournalTest {
+    private static final Filter FEED = Filter.getInstance("feed/*");
+    private Path                dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("TopologyJournalTest");
+    }
+
+    private static InetSocketAddress server(final int i) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                38900 + i);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final Topology topology = new Topology();
+        topology.add(FEED, server(0));
+        topology.setLoad(server(0), new ServerLoad(1024, 1, 3));
+        TopologyJournal journal = new TopologyJournal(dir);
+        assertNull(journal.takeRecovered());
+        journal.record(topology);
+        final long size = Files.size(dir.resolve("topology"));
+        // Only the changes are appended
+        topology.add(FEED, server(1));
+        journal.record(topology);
+        final long deltaSize = Files.size(dir.resolve("topology")) - size;
+        assertTrue(0 < deltaSize && deltaSize < size);
+        topology.remove(server(0));
+        journal.record(topology);
+        journal.close();
+
+        // Simulate a crash in the middle of appending a record
+        Files.write(dir.resolve("topology"), new byte[] { 0, 0, 0 },
+                StandardOpenOption.APPEND);
+
+        journal = new TopologyJournal(dir);
+        final Topology recovered = journal.takeRecovered();
+        assertNotNull(recovered);
+        assertNull(journal.takeRecovered());
+        assertEquals(topology.getId(), recovered.getId());
+        assertEquals(topology.getVersion(), recovered.getVersion());
+        assertEquals(topology.getServers(), recovered.getServers());
+        // The recovered topology remembers its recent changes
+        assertNotNull(recovered.getDelta(topology.getId(),
+                topology.getVersion() - 2));
+
+        // A new session continues from the recovered topology
+        recovered.add(FEED, server(2));
+        journal.record(recovered);
+        journal.close();
+        journal = new TopologyJournal(dir);
+        assertEquals(recovered.getServers(), journal.takeRecovered()
+                .getServers());
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final Topology topology = new Topology();
+        final TopologyJournal journal = new TopologyJournal(dir);
+        final int n = 20000;
+        for (int i = 0; i < n; i++) {
+            topology.add(FEED, server(i % 100));
+            topology.setLoad(server(i % 100), new ServerLoad(i, 1, 1));
+            journal.record(topology);
+        }
+        journal.close();
+        // Smaller than the headers alone of a delta per change
+        assertTrue(Files.size(dir.resolve("topology")) < 12L * n);
+        final Topology recovered = new TopologyJournal(dir).takeRecovered();
+        assertEquals(topology.getVersion(), recovered.getVersion());
+        assertEquals(topology.getLoad(server(99)), recovered.getLoad(server(99)));
+    }
+}
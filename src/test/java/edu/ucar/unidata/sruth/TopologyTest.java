@@ -0,0 +1,359 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the versioning and the filter index of {@link Topology}. Run
+ * {@link #main} to time best-server queries on a large topology.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class TopologyTest {
+    private static final Filter FOO = Filter.getInstance("foo/*");
+    private static final Filter BAR = Filter.getInstance("bar/*");
+
+    private static InetSocketAddress server(final int i) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+                10, 0, 0, (byte) i }), 38800);
+    }
+
+    @Test
+    public final void testVersion() throws Exception {
+        final Topology topology = new Topology();
+        assertEquals(0, topology.getVersion());
+        topology.add(FOO, server(1));
+        assertEquals(1, topology.getVersion());
+        topology.add(FOO, server(1));
+        assertEquals(1, topology.getVersion());
+        topology.add(BAR, server(1));
+        topology.remove(server(1));
+        assertEquals(3, topology.getVersion());
+        topology.remove(server(1));
+        assertEquals(3, topology.getVersion());
+    }
+
+    @Test
+    public final void testDelta() throws Exception {
+        final Topology original = new Topology();
+        original.add(FOO, server(1));
+        final Topology copy = new Topology(original);
+        assertEquals(original.getId(), copy.getId());
+        assertEquals(original.getVersion(), copy.getVersion());
+
+        original.add(BAR, server(2));
+        original.add(FOO, server(3));
+        original.remove(server(1));
+        final TopologyDelta delta = original.getDelta(copy.getId(),
+                copy.getVersion());
+        assertNotNull(delta);
+        assertEquals(3, delta.size());
+        assertTrue(copy.apply(delta));
+        assertEquals(original.getVersion(), copy.getVersion());
+        assertEquals(original.getServers(), copy.getServers());
+        assertEquals(original.getServers(FOO), copy.getServers(FOO));
+
+        // Re-applying a delta changes nothing
+        assertTrue(copy.apply(delta));
+        assertEquals(original.getVersion(), copy.getVersion());
+
+        // A delta doesn't apply to a different lineage
+        assertNull(original.getDelta(copy.getId() + 1, 0));
+        assertFalse(new Topology().apply(delta));
+    }
+
+    @Test
+    public final void testFilteredDelta() throws Exception {
+        final Topology original = new Topology();
+        original.add(FOO, server(1));
+        final Topology view = original.versionedSubset(FOO);
+        original.add(BAR, server(2));
+        original.add(FOO, server(3));
+        final TopologyDelta delta = original.getDelta(view.getId(),
+                view.getVersion()).subset(FOO);
+        assertFalse(delta.isComplete());
+        assertEquals(1, delta.size());
+        assertTrue(view.apply(delta));
+        assertEquals(original.getVersion(), view.getVersion());
+        assertEquals(original.subset(FOO).getServers(), view.getServers());
+        // An incomplete delta must start at the version of the topology
+        assertFalse(view.apply(delta));
+    }
+
+    @Test
+    public final void testLoads() throws Exception {
+        final Topology original = new Topology();
+        original.add(FOO, server(1));
+        final Topology copy = new Topology(original);
+        final long version = original.getVersion();
+
+        // A load on an unknown server is ignored
+        original.setLoad(server(2), new ServerLoad(0, 0, 8));
+        assertNull(original.getLoad(server(2)));
+        assertEquals(version, original.getVersion());
+
+        final ServerLoad load = new ServerLoad(100000, 2, 6);
+        original.setLoad(server(1), load);
+        assertEquals(version + 1, original.getVersion());
+        // A similar load isn't a change
+        original.setLoad(server(1), new ServerLoad(150000, 2, 6));
+        assertEquals(version + 1, original.getVersion());
+        assertEquals(load, original.getLoad(server(1)));
+
+        // Loads are distributed by deltas and the compact form
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.getDelta(copy.getId(), copy.getVersion()).write(
+                new DataOutputStream(bytes));
+        assertTrue(copy.apply(TopologyDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())))));
+        assertEquals(load, copy.getLoad(server(1)));
+        bytes = new ByteArrayOutputStream();
+        original.write(new DataOutputStream(bytes));
+        assertEquals(load, Topology.read(
+                new DataInputStream(new ByteArrayInputStream(bytes
+                        .toByteArray()))).getLoad(server(1)));
+        assertEquals(load, original.subset(FOO).getLoad(server(1)));
+
+        original.remove(server(1));
+        assertNull(original.getLoad(server(1)));
+    }
+
+    @Test
+    public final void testForgottenChanges() throws Exception {
+        final Topology topology = new Topology();
+        for (int i = 0; i < 5000; i++) {
+            topology.add(Filter.getInstance("feed" + i + "/*"), server(1));
+        }
+        assertNull(topology.getDelta(topology.getId(), 0));
+        assertEquals(0,
+                topology.getDelta(topology.getId(), topology.getVersion())
+                        .size());
+        topology.clear();
+        assertNull(topology.getDelta(topology.getId(),
+                topology.getVersion() - 1));
+    }
+
+    @Test
+    public final void testCompactForm() throws Exception {
+        final Topology original = new Topology();
+        original.add(FOO, server(1));
+        original.add(BAR, server(2));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.write(new DataOutputStream(bytes));
+        final Topology copy = Topology.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(original.getVersion(), copy.getVersion());
+
+        original.add(FOO, server(3));
+        original.remove(server(2));
+        bytes = new ByteArrayOutputStream();
+        original.getDelta(copy.getId(), copy.getVersion()).write(
+                new DataOutputStream(bytes));
+        final TopologyDelta delta = TopologyDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertTrue(copy.apply(delta));
+        assertEquals(original.getServers(), copy.getServers());
+        assertEquals(original.getVersion(), copy.getVersion());
+    }
+
+    @Test
+    public final void testSerialization() throws Exception {
+        final Topology original = new Topology();
+        original.add(FOO, server(1));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(original);
+        oos.close();
+        final ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        final Topology copy = (Topology) ois.readObject();
+        ois.close();
+        assertEquals(original.getId(), copy.getId());
+        assertEquals(original.getVersion(), copy.getVersion());
+
+        original.add(BAR, server(2));
+        assertTrue(copy.apply(original.getDelta(copy.getId(),
+                copy.getVersion())));
+        assertEquals(original.getServers(), copy.getServers());
+    }
+
+    /**
+     * Returns filters of the form "feed&lt;i&gt;/*" and
+     * "feed&lt;i&gt;/&lt;j&gt;/*".
+     * 
+     * @param count
+     *            The number of filters.
+     * @return The filters.
+     */
+    private static Filter[] newFilters(final int count) {
+        final Filter[] filters = new Filter[count];
+        final int feedCount = Math.max(1, count / 50);
+        for (int i = 0; i < count; i++) {
+            filters[i] = Filter.getInstance(i < feedCount
+                    ? "feed" + i + "/*"
+                    : "feed" + i % feedCount + "/" + i + "/*");
+        }
+        return filters;
+    }
+
+    /**
+     * Adds servers with random filters to a topology.
+     * 
+     * @param topology
+     *            The topology.
+     * @param serverCount
+     *            The number of servers.
+     * @param filters
+     *            The filters from which to choose.
+     * @param random
+     *            The pseudo-random number generator.
+     * @return The filter of each server.
+     */
+    private static Map<InetSocketAddress, Filter> addServers(
+            final Topology topology, final int serverCount,
+            final Filter[] filters, final Random random) throws Exception {
+        final Map<InetSocketAddress, Filter> filterOf = new HashMap<InetSocketAddress, Filter>();
+        for (int i = 0; i < serverCount; i++) {
+            final InetSocketAddress server = new InetSocketAddress(
+                    InetAddress.getByAddress(new byte[] { 10, 1,
+                            (byte) (i >> 8), (byte) i }), 38800);
+            final Filter filter = filters[random.nextInt(filters.length)];
+            topology.add(filter, server);
+            filterOf.put(server, filter);
+        }
+        return filterOf;
+    }
+
+    @Test
+    public final void testIndex() throws Exception {
+        final Random random = new Random(1);
+        final Filter[] filters = newFilters(100);
+        final Topology topology = new Topology();
+        final Map<InetSocketAddress, Filter> filterOf = addServers(topology,
+                1000, filters, random);
+        // Remove some servers to exercise the index's removal
+        int i = 0;
+        for (final InetSocketAddress server : new HashSet<InetSocketAddress>(
+                filterOf.keySet())) {
+            if (i++ % 7 == 0) {
+                topology.remove(server);
+                filterOf.remove(server);
+            }
+        }
+
+        for (final Filter filter : filters) {
+            final Set<InetSocketAddress> expected = new HashSet<InetSocketAddress>();
+            for (final Map.Entry<InetSocketAddress, Filter> entry : filterOf
+                    .entrySet()) {
+                if (entry.getValue().includes(filter)) {
+                    expected.add(entry.getKey());
+                }
+            }
+            assertEquals(expected, new HashSet<InetSocketAddress>(
+                    topology.getServers(filter)));
+            assertEquals(expected, topology.subset(filter).getServers());
+
+            // The best server is one that just barely satisfies the filter
+            final Set<InetSocketAddress> excluded = new HashSet<InetSocketAddress>();
+            for (final InetSocketAddress server : expected) {
+                if (filterOf.get(server).equals(filter)) {
+                    assertEquals(filter,
+                            filterOf.get(topology.getBestServer(filter)));
+                    excluded.add(server);
+                }
+            }
+            // Excluding those servers leaves a server of an including filter
+            final InetSocketAddress best = topology.getBestServer(filter,
+                    excluded);
+            if (expected.size() > excluded.size()) {
+                assertNotNull(best);
+                assertFalse(excluded.contains(best));
+                assertTrue(filterOf.get(best).includes(filter));
+            }
+            else {
+                assertNull(best);
+            }
+            assertNull(topology.getBestServer(filter, expected));
+        }
+        // Exclusion doesn't modify the topology
+        assertEquals(filterOf.keySet(), new HashSet<InetSocketAddress>(
+                topology.getServers()));
+
+        topology.clear();
+        assertTrue(topology.getServers(filters[0]).isEmpty());
+        assertNull(topology.getBestServer(filters[0]));
+    }
+
+    /**
+     * Times best-server queries on a large topology.
+     * 
+     * @param args
+     *            The number of servers (default 10,000), the number of
+     *            distinct filters (default 500), and the number of queries
+     *            (default 100,000).
+     * @throws Exception
+     *             if an error occurs.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int serverCount = args.length > 0
+                ? Integer.parseInt(args[0])
+                : 10000;
+        final int filterCount = args.length > 1
+                ? Integer.parseInt(args[1])
+                : 500;
+        final int queryCount = args.length > 2
+                ? Integer.parseInt(args[2])
+                : 100000;
+        final Random random = new Random(1);
+        final Filter[] filters = newFilters(filterCount);
+        final Topology topology = new Topology();
+        final Map<InetSocketAddress, Filter> filterOf = addServers(topology,
+                serverCount, filters, random);
+        final Set<InetSocketAddress> excluded = new HashSet<InetSocketAddress>();
+        for (final InetSocketAddress server : filterOf.keySet()) {
+            if (excluded.size() >= 8) {
+                break;
+            }
+            excluded.add(server);
+        }
+        // Warm up the JIT before timing
+        for (int pass = 0; pass < 2; pass++) {
+            int found = 0;
+            final long start = System.nanoTime();
+            for (int i = 0; i < queryCount; i++) {
+                if (topology.getBestServer(filters[i % filterCount], excluded) != null) {
+                    found++;
+                }
+            }
+            final double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.println(queryCount + " best-server queries on "
+                    + serverCount + " servers and " + filterCount
+                    + " filters in " + elapsed + " s (" + elapsed * 1e6
+                    / queryCount + " us/query, " + found + " found)");
+        }
+    }
+}
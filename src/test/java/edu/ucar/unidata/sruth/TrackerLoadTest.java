@@ -0,0 +1,512 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ObjectInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the front end of the {@link Tracker} under load. Run {@link #main}
+ * to simulate 10,000 nodes registering over loopback.
+ * 
+ * @author Steven R. Emmerson
+ */
+public class TrackerLoadTest {
+    private ExecutorService executor;
+    private Tracker         tracker;
+    private Future<Void>    trackerFuture;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        tracker = new Tracker(new InetSocketAddress(loopback, 38801),
+                new InetSocketAddress(loopback, 0));
+        trackerFuture = executor.submit(tracker);
+        tracker.waitUntilRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        trackerFuture.cancel(true);
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registers a node like a {@link ClientManager} does: if the tracker is
+     * busy, then the registration is retried after the time given by the
+     * tracker plus a little jitter.
+     * 
+     * @param client
+     *            The connection to the tracker.
+     * @param filter
+     *            The filter of the node.
+     * @param server
+     *            The address of the node's server.
+     * @return The network topology.
+     * @throws Exception
+     *             if the registration fails.
+     */
+    static Topology register(final TrackerClient client, final Filter filter,
+            final InetSocketAddress server) throws Exception {
+        for (;;) {
+            try {
+                return client.register(filter, server);
+            }
+            catch (final TrackerBusyException e) {
+                final long retryAfter = e.getRetryAfter(TimeUnit.MILLISECONDS);
+                Thread.sleep(retryAfter
+                        + ThreadLocalRandom.current().nextLong(
+                                retryAfter / 4 + 1));
+            }
+        }
+    }
+
+    /**
+     * Simulates nodes that register with a tracker over persistent
+     * connections.
+     * 
+     * @param tracker
+     *            The tracker.
+     * @param executor
+     *            The executor for the connections.
+     * @param nodeCount
+     *            The number of simulated nodes.
+     * @param connectionCount
+     *            The number of concurrent connections.
+     * @return The elapsed time in seconds.
+     * @throws Exception
+     *             if a registration fails.
+     */
+    static double simulate(final Tracker tracker,
+            final ExecutorService executor, final int nodeCount,
+            final int connectionCount) throws Exception {
+        final InetSocketAddress trackerAddress = tracker.getServerAddress();
+        final AtomicInteger nextNode = new AtomicInteger();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < connectionCount; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final TrackerClient client = new TrackerClient(
+                            trackerAddress);
+                    try {
+                        for (int node; (node = nextNode.getAndIncrement()) < nodeCount;) {
+                            final InetSocketAddress server = new InetSocketAddress(
+                                    InetAddress.getByAddress(new byte[] { 10,
+                                            (byte) (node >> 16),
+                                            (byte) (node >> 8), (byte) node }),
+                                    38800);
+                            final Filter filter = Filter.getInstance("feed"
+                                    + node % 10 + "/*");
+                            final Topology topology = register(client,
+                                    filter, server);
+                            assertTrue(topology.getServerCount(Filter.EVERYTHING) > 0);
+                        }
+                    }
+                    finally {
+                        client.close();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<Void> future : futures) {
+            future.get();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    @Test
+    public final void testLoad() throws Exception {
+        final int nodeCount = 1000;
+        final double elapsed = simulate(tracker, executor, nodeCount, 100);
+        assertEquals(nodeCount, tracker.getRegistrationCount());
+        assertEquals(nodeCount + 1, tracker.getNetwork().getServers().size());
+        System.out.println("testLoad(): " + nodeCount + " registrations in "
+                + elapsed + " s");
+    }
+
+    @Test
+    public final void testJoinStorm() throws Exception {
+        final int nodeCount = 2000;
+        final int rate = 400;
+        final int burst = 100;
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final TokenBucket admission = new TokenBucket(rate, burst);
+        final Tracker stormTracker = new Tracker(new InetSocketAddress(
+                loopback, 38801), new InetSocketAddress(loopback, 0),
+                admission, null);
+        final ExecutorService stormExecutor = Executors.newCachedThreadPool();
+        final Future<Void> stormFuture = stormExecutor.submit(stormTracker);
+        try {
+            stormTracker.waitUntilRunning();
+            // Every node registers at once, as after a tracker restart
+            final double elapsed = simulate(stormTracker, stormExecutor,
+                    nodeCount, nodeCount);
+            assertEquals(nodeCount + 1, stormTracker.getNetwork().getServers()
+                    .size());
+            final double ideal = (double) (nodeCount - burst) / rate;
+            System.out.println("testJoinStorm(): " + nodeCount
+                    + " nodes recovered in " + elapsed + " s (ideal " + ideal
+                    + " s); " + admission.getRejectionCount()
+                    + " rejections; maximum backlog "
+                    + admission.getMaxBacklog());
+            // The rejected nodes were spread out: few were rejected twice
+            assertTrue(admission.getRejectionCount() < 2 * nodeCount);
+            assertTrue(admission.getMaxBacklog() <= nodeCount - burst);
+            // Generous because the nodes share the tracker's CPU
+            assertTrue(elapsed < 60);
+        }
+        finally {
+            stormFuture.cancel(true);
+            stormExecutor.shutdownNow();
+            stormExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public final void testLoadReport() throws Exception {
+        final Filter filter = Filter.getInstance("feed/*");
+        final TrackerClient client = new TrackerClient(
+                tracker.getServerAddress());
+        try {
+            final InetSocketAddress server = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 38805);
+            final ServerLoad load = new ServerLoad(4096, 3, 5);
+            client.register(filter, server, load);
+            assertEquals(load, tracker.getNetwork().getLoad(server));
+            // The load is distributed with the topology
+            assertEquals(load, client.register(filter, server).getLoad(server));
+            // The heartbeat keeps the load current
+            final ServerLoad busier = new ServerLoad(4096, 5, 3);
+            final long version = tracker.getNetwork().getVersion();
+            assertTrue(client.renew(filter, server, busier));
+            assertEquals(busier, tracker.getNetwork().getLoad(server));
+            assertTrue(tracker.getNetwork().getVersion() > version);
+            // A similar load isn't a change
+            assertTrue(client.renew(filter, server, busier));
+            assertEquals(version + 1, tracker.getNetwork().getVersion());
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public final void testRegistrationSubset() throws Exception {
+        final Filter feed = Filter.getInstance("feed/*");
+        final Filter other = Filter.getInstance("other/*");
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final InetSocketAddress feedServer = new InetSocketAddress(loopback,
+                38840);
+        final InetSocketAddress otherServer = new InetSocketAddress(loopback,
+                38841);
+        final InetSocketAddress laterServer = new InetSocketAddress(loopback,
+                38842);
+        final TrackerClient client = new TrackerClient(
+                tracker.getServerAddress());
+        final TrackerClient later = new TrackerClient(
+                tracker.getServerAddress());
+        try {
+            client.register(other, otherServer);
+            client.register(feed, feedServer);
+            // Only the relevant part of the topology is sent
+            Topology topology = client.register(feed, feedServer);
+            assertTrue(topology.getServers().contains(feedServer));
+            assertFalse(topology.getServers().contains(otherServer));
+            assertEquals(2, topology.getServers().size());
+            // Including the relevant part of the changes
+            later.register(other, laterServer);
+            assertTrue(topology == client.register(feed, feedServer));
+            assertEquals(tracker.getNetwork().getVersion(),
+                    topology.getVersion());
+            assertFalse(topology.getServers().contains(laterServer));
+            // A different filter gets a different part
+            topology = client.register(other, otherServer);
+            assertTrue(topology.getServers().contains(laterServer));
+            assertFalse(topology.getServers().contains(feedServer));
+        }
+        finally {
+            client.close();
+            later.close();
+        }
+    }
+
+    @Test
+    public final void testLeaseExpiry() throws Exception {
+        final Filter filter = Filter.getInstance("feed/*");
+        final TrackerClient live = new TrackerClient(tracker.getServerAddress());
+        final TrackerClient dead = new TrackerClient(tracker.getServerAddress());
+        try {
+            final InetSocketAddress liveServer = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 38820);
+            final InetSocketAddress deadServer = new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), 38821);
+            dead.register(filter, deadServer);
+            live.register(filter, liveServer);
+            assertEquals(Tracker.getLeaseDuration(), live.getLeaseDuration());
+            assertTrue(live.renew(filter, liveServer));
+            final long leaseNanos = TimeUnit.SECONDS.toNanos(Tracker
+                    .getLeaseDuration());
+            // Nothing expires early
+            assertEquals(0, tracker.expireLeases(System.nanoTime()));
+            // Both leases expire together if not renewed
+            assertEquals(2,
+                    tracker.expireLeases(System.nanoTime() + 2 * leaseNanos));
+            assertEquals(2, tracker.getExpiredLeaseCount());
+            final Topology network = tracker.getNetwork();
+            assertFalse(network.getServers().contains(deadServer));
+            assertFalse(network.getServers().contains(liveServer));
+            assertEquals(0, tracker.getOverlay().size(filter));
+            // The source-server never expires
+            assertEquals(1, network.getServers().size());
+            // A renewal after expiry says to register again
+            assertFalse(live.renew(filter, liveServer));
+            live.register(filter, liveServer);
+            assertTrue(live.renew(filter, liveServer));
+            assertTrue(network.getServers().contains(liveServer));
+        }
+        finally {
+            live.close();
+            dead.close();
+        }
+    }
+
+    @Test
+    public final void testRestart() throws Exception {
+        final Filter filter = Filter.getInstance("feed/*");
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final InetSocketAddress sourceServer = new InetSocketAddress(loopback,
+                38801);
+        final InetSocketAddress server = new InetSocketAddress(loopback, 38830);
+        final Path dir = Files.createTempDirectory("TrackerLoadTest");
+        final long id;
+        final long version;
+        ExecutorService restartExecutor = Executors.newSingleThreadExecutor();
+        Tracker restartTracker = new Tracker(sourceServer,
+                new InetSocketAddress(loopback, 0), new TopologyJournal(dir));
+        restartExecutor.submit(restartTracker);
+        restartTracker.waitUntilRunning();
+        TrackerClient client = new TrackerClient(
+                restartTracker.getServerAddress());
+        try {
+            client.register(filter, server, new ServerLoad(2048, 1, 4));
+        }
+        finally {
+            client.close();
+        }
+        id = restartTracker.getNetwork().getId();
+        version = restartTracker.getNetwork().getVersion();
+        // The journal is brought up to date when the tracker stops
+        restartExecutor.shutdownNow();
+        assertTrue(restartExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        restartExecutor = Executors.newSingleThreadExecutor();
+        restartTracker = new Tracker(sourceServer, new InetSocketAddress(
+                loopback, 0), new TopologyJournal(dir));
+        restartExecutor.submit(restartTracker);
+        try {
+            restartTracker.waitUntilRunning();
+            final Topology network = restartTracker.getNetwork();
+            assertEquals(id, network.getId());
+            assertEquals(version, network.getVersion());
+            assertTrue(network.getServers().contains(server));
+            assertEquals(new ServerLoad(2048, 1, 4), network.getLoad(server));
+            assertEquals(1, restartTracker.getUnverifiedCount());
+            // The recovered server is the overlay's last choice for a parent
+            assertEquals(sourceServer, restartTracker.getOverlay().getParent(
+                    filter, server));
+            // The recovered server keeps its registration by renewing it
+            client = new TrackerClient(restartTracker.getServerAddress());
+            try {
+                assertTrue(client.renew(filter, server));
+                assertEquals(sourceServer, client.getParent());
+            }
+            finally {
+                client.close();
+            }
+            assertEquals(0, restartTracker.getUnverifiedCount());
+        }
+        finally {
+            restartExecutor.shutdownNow();
+            restartExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public final void testOverlayAssignment() throws Exception {
+        final InetSocketAddress source = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 38801);
+        final Filter filter = Filter.getInstance("feed/*");
+        final Overlay overlay = tracker.getOverlay();
+        final TrackerClient[] clients = new TrackerClient[6];
+        final InetSocketAddress[] servers = new InetSocketAddress[clients.length];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new TrackerClient(tracker.getServerAddress());
+                servers[i] = new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), 38810 + i);
+                clients[i].register(filter, servers[i]);
+                assertEquals(source, clients[i].getSource());
+                assertEquals(overlay.getParent(filter, servers[i]),
+                        clients[i].getParent());
+            }
+            // The source-server's degree is bounded
+            assertEquals(4, overlay.getSourceDegree());
+            for (int i = 4; i < clients.length; i++) {
+                assertEquals(2, overlay.getDepth(filter, servers[i]));
+            }
+            // A node leaves the overlay when its connection closes
+            clients[0].close();
+            for (int i = 0; i < 100
+                    && overlay.size(filter) == clients.length; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(clients.length - 1, overlay.size(filter));
+            assertEquals(4, overlay.getSourceDegree());
+            for (int i = 1; i < clients.length; i++) {
+                assertTrue(overlay.getDepth(filter, servers[i]) <= 2);
+                // A moved node learns its new parent when it renews
+                assertTrue(clients[i].renew(filter, servers[i]));
+                assertEquals(overlay.getParent(filter, servers[i]),
+                        clients[i].getParent());
+            }
+            // A node that renews on a new connection is attached again
+            clients[0] = new TrackerClient(tracker.getServerAddress());
+            assertTrue(clients[0].renew(filter, servers[0]));
+            assertEquals(clients.length, overlay.size(filter));
+            assertEquals(overlay.getParent(filter, servers[0]),
+                    clients[0].getParent());
+        }
+        finally {
+            for (final TrackerClient client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public final void testSerializedTask() throws Exception {
+        final Socket socket = new Socket();
+        socket.connect(tracker.getServerAddress());
+        final TopologyGetter getter = new TopologyGetter(
+                Filter.getInstance("feed/*"), new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), 38802), socket);
+        getter.callTracker();
+        final ObjectInputStream ois = new ObjectInputStream(
+                socket.getInputStream());
+        final Topology topology = (Topology) ois.readObject();
+        assertEquals(1, topology.getServers().size());
+        assertEquals(tracker.getReportingAddress(), ois.readObject());
+        socket.close();
+        for (int i = 0; i < 100
+                && tracker.getNetwork().getServers().size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, tracker.getNetwork().getServers().size());
+        // A legacy node can't renew, so its registration has no lease
+        assertEquals(0, tracker.expireLeases(System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(10 * Tracker.getLeaseDuration())));
+        assertEquals(2, tracker.getNetwork().getServers().size());
+    }
+
+    @Test
+    public final void testSubscription() throws Exception {
+        final BlockingQueue<Integer> serverCounts = new LinkedBlockingQueue<Integer>();
+        final TopologySubscription subscription = new TopologySubscription(
+                tracker.getServerAddress(), Filter.getInstance("feed/*"),
+                new TopologySubscription.Listener() {
+                    @Override
+                    void topologyChanged(final Topology topology) {
+                        serverCounts.add(topology.getServers().size());
+                    }
+                });
+        subscription.start();
+        try {
+            // The source-server
+            assertEquals(Integer.valueOf(1),
+                    serverCounts.poll(10, TimeUnit.SECONDS));
+            final TrackerClient client = new TrackerClient(
+                    tracker.getServerAddress());
+            final InetAddress loopback = InetAddress.getLoopbackAddress();
+            client.register(Filter.getInstance("other/*"),
+                    new InetSocketAddress(loopback, 38803));
+            client.register(Filter.getInstance("feed/*"),
+                    new InetSocketAddress(loopback, 38804));
+            client.close();
+            // The irrelevant registration isn't pushed
+            assertEquals(Integer.valueOf(2),
+                    serverCounts.poll(10, TimeUnit.SECONDS));
+            final Topology topology = subscription.getTopology();
+            assertTrue(topology.getServers().contains(
+                    new InetSocketAddress(loopback, 38804)));
+            assertFalse(topology.getServers().contains(
+                    new InetSocketAddress(loopback, 38803)));
+        }
+        finally {
+            subscription.close();
+        }
+    }
+
+    /**
+     * Simulates nodes registering with a tracker over loopback.
+     * 
+     * @param args
+     *            The number of nodes (default 10,000) and the number of
+     *            concurrent connections (default 100). Each connection keeps
+     *            a copy of the network topology.
+     * @throws Exception
+     *             if a registration fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int nodeCount = args.length > 0
+                ? Integer.parseInt(args[0])
+                : 10000;
+        final int connectionCount = args.length > 1
+                ? Integer.parseInt(args[1])
+                : 100;
+        final TrackerLoadTest test = new TrackerLoadTest();
+        test.setUp();
+        try {
+            final double elapsed = simulate(test.tracker, test.executor,
+                    nodeCount, connectionCount);
+            System.out.println(nodeCount + " registrations over "
+                    + connectionCount + " connections in " + elapsed + " s ("
+                    + nodeCount / elapsed + "/s)");
+        }
+        finally {
+            test.tearDown();
+        }
+    }
+}
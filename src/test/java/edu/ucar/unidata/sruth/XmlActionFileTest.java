@@ -17,9 +17,11 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -116,4 +118,119 @@ public class XmlActionFileTest {
         Files.delete(destPath);
         Files.delete(destDir);
     }
+
+    @Test
+    public void testLinkedFileAction() throws Exception {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"))
+                .resolve(getClass().getSimpleName() + "-link");
+        Assert.assertEquals(0, Misc.system("rm", "-rf", dir.toString()));
+        final Path srcDir = dir.resolve("src");
+        final Path destDir = dir.resolve("dest");
+        Files.createDirectories(srcDir);
+        final Processor processor = XmlActionFile
+                .getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                        + "<entry pattern=\"(.*)\">" + "<file path=\""
+                        + destDir + "/$1\" link=\"true\"/>" + "</entry>"
+                        + "</actions>");
+        executor.submit(processor);
+        final Path name = Paths.get("product");
+        final Path srcPath = srcDir.resolve(name);
+        final Path destPath = destDir.resolve(name);
+        Files.write(srcPath, "data".getBytes("US-ASCII"));
+        final FileInfo fileInfo = new FileInfo(
+                new FileId(new ArchivePath(name)), 4);
+        processor.put(new DataProduct(srcDir, fileInfo));
+        for (int i = 0; i < 50 && !Files.exists(destPath); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(Files.isSameFile(srcPath, destPath));
+        assertEquals(2, Files.getAttribute(srcPath, "unix:nlink"));
+    }
+
+    @Test
+    public void testAppendAction() throws Exception {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"))
+                .resolve(getClass().getSimpleName() + "-append");
+        Assert.assertEquals(0, Misc.system("rm", "-rf", dir.toString()));
+        final Path srcDir = dir.resolve("src");
+        final Path destDir = dir.resolve("dest");
+        Files.createDirectories(srcDir);
+        final Processor processor = XmlActionFile
+                .getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                        + "<entry pattern=\"(hour\\d+)/.*\">"
+                        + "<append path=\"" + destDir + "/$1\" files=\"1\"/>"
+                        + "</entry>" + "</actions>");
+        final Future<Void> future = executor.submit(processor);
+        processor.waitUntilRunning();
+        final String[] hours = { "hour0", "hour0", "hour1", "hour0" };
+        final StringBuilder[] expected = { new StringBuilder(),
+                new StringBuilder() };
+        for (int i = 0; i < hours.length; i++) {
+            final String data = "data" + i;
+            final Path name = Paths.get(hours[i], "product" + i);
+            Files.createDirectories(srcDir.resolve(name).getParent());
+            Files.write(srcDir.resolve(name), data.getBytes("US-ASCII"));
+            processor.put(new DataProduct(srcDir, new FileInfo(new FileId(
+                    new ArchivePath(name)), data.length())));
+            expected[hours[i].equals("hour0")
+                    ? 0
+                    : 1].append(data);
+        }
+        final Path hour0 = destDir.resolve("hour0");
+        for (int i = 0; i < 50
+                && (!Files.exists(hour0) || Files.size(hour0) < expected[0]
+                        .length()); i++) {
+            Thread.sleep(100);
+        }
+        future.cancel(true);
+        assertEquals(expected[0].toString(), new String(Files
+                .readAllBytes(hour0), "US-ASCII"));
+        assertEquals(expected[1].toString(), new String(Files
+                .readAllBytes(destDir.resolve("hour1")), "US-ASCII"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testPersistentDecoderWithReference() throws IOException {
+        XmlActionFile.getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                + "<entry pattern=\"(.*)\">"
+                + "<decode program=\"cat\" workers=\"1\">"
+                + "<arg>$1</arg>" + "</decode>" + "</entry>" + "</actions>");
+    }
+
+    @Test
+    public void testPersistentDecoder() throws Exception {
+        final Path dir = Paths.get(System.getProperty("java.io.tmpdir"))
+                .resolve(getClass().getSimpleName() + "-decoder");
+        Assert.assertEquals(0, Misc.system("rm", "-rf", dir.toString()));
+        final Path srcDir = dir.resolve("src");
+        Files.createDirectories(srcDir);
+        final Path output = dir.resolve("output");
+        final Processor processor = XmlActionFile
+                .getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                        + "<entry pattern=\".*\">"
+                        + "<decode program=\"sh\" workers=\"1\">"
+                        + "<arg>-c</arg>" + "<arg>cat &gt;&gt;" + output
+                        + "</arg>" + "</decode>" + "</entry>" + "</actions>");
+        final Future<Void> future = executor.submit(processor);
+        processor.waitUntilRunning();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            final String name = "product" + i;
+            final String data = "data" + i;
+            Files.write(srcDir.resolve(name), data.getBytes("US-ASCII"));
+            final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                    name)), data.length());
+            processor.put(new DataProduct(srcDir, fileInfo));
+            expected.append(data.length() + " " + name + "\n" + data);
+        }
+        String actual = "";
+        for (int i = 0; i < 50 && !actual.equals(expected.toString()); i++) {
+            Thread.sleep(100);
+            if (Files.exists(output)) {
+                actual = new String(Files.readAllBytes(output), "US-ASCII");
+            }
+        }
+        future.cancel(true);
+        assertEquals(expected.toString(), actual);
+    }
 }